@@ -0,0 +1,33 @@
+package org.vaadin.appfoundation.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks in the benchmarks source folder. The benchmarks
+ * folder is compiled together with the src folder, with the libraries of the
+ * "benchmark" Ivy configuration on the classpath; the JMH annotation processor
+ * generates the benchmark harness during compilation.
+ * 
+ * Without arguments all benchmarks are run. The first argument can be given a
+ * regular expression selecting the benchmarks to run, for example
+ * "FacadeBenchmark.find". The allocation rate of each operation is reported
+ * by the GC profiler as gc.alloc.rate.norm (bytes per operation).
+ * 
+ * @author Kim
+ * 
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0]
+                : "org\\.vaadin\\.appfoundation\\.benchmark\\..*";
+        Options options = new OptionsBuilder().include(include).addProfiler(
+                GCProfiler.class).build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,49 @@
+package org.vaadin.appfoundation.benchmark.persistence;
+
+import javax.persistence.Entity;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Entity used by the persistence benchmarks. It has a few columns of different
+ * types, roughly like a typical application entity.
+ * 
+ * @author Kim
+ * 
+ */
+@Entity
+public class BenchmarkPojo extends AbstractPojo {
+
+    private static final long serialVersionUID = 2750391847593611282L;
+
+    private String name;
+
+    private String email;
+
+    private int counter;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public void setCounter(int counter) {
+        this.counter = counter;
+    }
+
+}
@@ -0,0 +1,220 @@
+package org.vaadin.appfoundation.benchmark.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.appfoundation.persistence.facade.EntityQuery;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+
+/**
+ * Benchmarks of the JPAFacade operations against the in-memory HSQLDB unit
+ * "benchmark". Each operation is measured both for throughput and for sampled
+ * latency, which reports the latency percentiles. The table is filled with
+ * the given number of rows before the measurements start.
+ * 
+ * @author Kim
+ * 
+ */
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FacadeBenchmark {
+
+    private static final int PAGE_SIZE = 50;
+
+    private static final int BATCH_SIZE = 50;
+
+    @Param( { "100", "10000" })
+    public int rows;
+
+    private JPAFacade facade;
+
+    private long[] ids;
+
+    // Hands out rows to the threads, so that no two threads write the same
+    // rows and run into optimistic lock conflicts
+    private final AtomicInteger nextRow = new AtomicInteger();
+
+    private final Map<String, Object> parameters = new HashMap<String, Object>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        facade = new JPAFacade("benchmark");
+        facade.setBatchSize(500);
+
+        List<BenchmarkPojo> pojos = new ArrayList<BenchmarkPojo>();
+        for (int i = 0; i < rows; i++) {
+            BenchmarkPojo pojo = new BenchmarkPojo();
+            pojo.setName("name" + i);
+            pojo.setEmail("user" + i + "@example.com");
+            pojo.setCounter(i);
+            pojos.add(pojo);
+        }
+        facade.storeAll(pojos, false);
+
+        ids = new long[rows];
+        for (int i = 0; i < rows; i++) {
+            ids[i] = pojos.get(i).getId();
+        }
+        facade.setBatchSize(0);
+
+        parameters.put("counter", rows / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        facade.kill();
+    }
+
+    /**
+     * Per-thread state with the rows written by the thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private final Random random = new Random();
+
+        private BenchmarkPojo pojo;
+
+        private List<BenchmarkPojo> batch;
+
+        @Setup(Level.Iteration)
+        public void setUp(FacadeBenchmark benchmark) {
+            pojo = benchmark.findNextRow();
+            batch = new ArrayList<BenchmarkPojo>();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.add(benchmark.findNextRow());
+            }
+        }
+
+        private long randomId(FacadeBenchmark benchmark) {
+            return benchmark.ids[random.nextInt(benchmark.rows)];
+        }
+
+    }
+
+    /**
+     * Per-invocation state holding a freshly stored entity for delete().
+     */
+    @State(Scope.Thread)
+    public static class DeleteState {
+
+        private BenchmarkPojo pojo;
+
+        // Storing the entity takes about as long as deleting it, so the
+        // per-invocation setup overhead is negligible here
+        @Setup(Level.Invocation)
+        public void setUp(FacadeBenchmark benchmark) {
+            pojo = new BenchmarkPojo();
+            pojo.setName("deleted");
+            benchmark.facade.store(pojo);
+        }
+
+    }
+
+    private BenchmarkPojo findNextRow() {
+        int row = nextRow.getAndIncrement() % rows;
+        return facade.find(BenchmarkPojo.class, ids[row]);
+    }
+
+    @Benchmark
+    public BenchmarkPojo find(ThreadState state) {
+        return facade.find(BenchmarkPojo.class, state.randomId(this));
+    }
+
+    @Benchmark
+    public Map<Long, BenchmarkPojo> findAll(ThreadState state) {
+        List<Long> pageIds = new ArrayList<Long>(PAGE_SIZE);
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            pageIds.add(state.randomId(this));
+        }
+        return facade.findAll(BenchmarkPojo.class, pageIds);
+    }
+
+    @Benchmark
+    public List<BenchmarkPojo> list() {
+        return facade.list(BenchmarkPojo.class);
+    }
+
+    @Benchmark
+    public List<BenchmarkPojo> listPage(ThreadState state) {
+        int start = state.random.nextInt(rows - PAGE_SIZE);
+        return facade.list(BenchmarkPojo.class, start, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public BenchmarkPojo findReadOnly(ThreadState state) {
+        return facade.findReadOnly(BenchmarkPojo.class, state.randomId(this));
+    }
+
+    @Benchmark
+    public List<BenchmarkPojo> listReadOnly() {
+        return facade.listReadOnly(BenchmarkPojo.class);
+    }
+
+    @Benchmark
+    public Long count() {
+        return facade.count(BenchmarkPojo.class);
+    }
+
+    @Benchmark
+    public BenchmarkPojo store(ThreadState state) {
+        state.pojo.setCounter(state.pojo.getCounter() + 1);
+        facade.store(state.pojo);
+        return state.pojo;
+    }
+
+    @Benchmark
+    public List<BenchmarkPojo> storeAll(ThreadState state) {
+        for (BenchmarkPojo pojo : state.batch) {
+            pojo.setCounter(pojo.getCounter() + 1);
+        }
+        facade.storeAll(state.batch);
+        return state.batch;
+    }
+
+    @Benchmark
+    public void delete(DeleteState state) {
+        facade.delete(state.pojo);
+    }
+
+    @Benchmark
+    public BenchmarkPojo refresh(ThreadState state) {
+        facade.refresh(state.pojo);
+        return state.pojo;
+    }
+
+    @Benchmark
+    public List<?> getFieldValues() {
+        return facade.getFieldValues(BenchmarkPojo.class, "email",
+                "p.counter >= :counter", parameters);
+    }
+
+    @Benchmark
+    public List<Object[]> getFieldValuesEntityQuery() {
+        return facade.getFieldValues(EntityQuery.from(BenchmarkPojo.class).ge(
+                "counter", parameters.get("counter")).select("email"));
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.vaadin.appfoundation.benchmark.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.KeysetPage;
+
+/**
+ * Compares the cost of fetching pages at different depths with offset based
+ * pagination (list(String, Map, int, int)) and keyset pagination (page()).
+ * Offset pages have to step over all the preceding rows, so they get slower
+ * the deeper they are, whereas keyset pages seek directly past the previous
+ * page.
+ * 
+ * @author Kim
+ * 
+ */
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PagingBenchmark {
+
+    private static final int ROWS = 20000;
+
+    private static final int PAGE_SIZE = 50;
+
+    // Offset pagination needs the same ordering as keyset pagination to
+    // return stable pages, so both are compared with ORDER BY p.id.
+    private static final String OFFSET_QUERY = "SELECT p FROM BenchmarkPojo p ORDER BY p.id";
+
+    /**
+     * The index of the first row on the fetched page.
+     */
+    @Param( { "0", "5000", "10000", "19950" })
+    public int depth;
+
+    private JPAFacade facade;
+
+    private String token;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        facade = new JPAFacade("benchmark");
+        facade.setBatchSize(500);
+
+        List<BenchmarkPojo> pojos = new ArrayList<BenchmarkPojo>();
+        for (int i = 0; i < ROWS; i++) {
+            BenchmarkPojo pojo = new BenchmarkPojo();
+            pojo.setName("name" + i);
+            pojos.add(pojo);
+        }
+        facade.storeAll(pojos, false);
+
+        // Walk through the pages preceding the depth to get its token
+        token = null;
+        for (int i = 0; i < depth / PAGE_SIZE; i++) {
+            token = facade.page(BenchmarkPojo.class, token, PAGE_SIZE)
+                    .getContinuationToken();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        facade.kill();
+    }
+
+    @Benchmark
+    public List<BenchmarkPojo> offset() {
+        return facade.list(OFFSET_QUERY, null, depth, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public KeysetPage<BenchmarkPojo> keyset() {
+        return facade.page(BenchmarkPojo.class, token, PAGE_SIZE);
+    }
+
+}
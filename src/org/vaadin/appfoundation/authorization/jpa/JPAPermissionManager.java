@@ -212,8 +212,7 @@ public class JPAPermissionManager extends AbstractPermissionManager {
 
     public void removeAllPermission(Role role, Resource resource) {
         checkRoleAndResourceNotNull(role, resource);
-        String queryStr = "SELECT p FROM PermissionEntity p WHERE "
-                + "p.resource = :resource AND "
+        String whereClause = "p.resource = :resource AND "
                 + "(p.type = :typeAllowAll OR p.type = :typeDenyAll) AND p.role = :role";
         Map<String, Object> parameters = new HashMap<String, Object>();
         parameters.put("resource", resource.getIdentifier());
@@ -221,31 +220,26 @@ public class JPAPermissionManager extends AbstractPermissionManager {
         parameters.put("typeAllowAll", PermissionType.ALLOW_ALL);
         parameters.put("typeDenyAll", PermissionType.DENY_ALL);
 
-        List<PermissionEntity> permissions = FacadeFactory.getFacade().list(
-                queryStr, parameters);
-        FacadeFactory.getFacade().deleteAll(permissions);
+        FacadeFactory.getFacade().deleteWhere(PermissionEntity.class,
+                whereClause, parameters);
     }
 
     public void removeAllPermissions(Role role, Resource resource) {
         checkRoleAndResourceNotNull(role, resource);
 
-        String queryStr = "SELECT p FROM PermissionEntity p WHERE "
-                + "p.resource = :resource AND p.role = :role";
         Map<String, Object> parameters = new HashMap<String, Object>();
         parameters.put("resource", resource.getIdentifier());
         parameters.put("role", role.getIdentifier());
 
-        List<PermissionEntity> permissions = FacadeFactory.getFacade().list(
-                queryStr, parameters);
-        FacadeFactory.getFacade().deleteAll(permissions);
+        FacadeFactory.getFacade().deleteWhere(PermissionEntity.class,
+                "p.resource = :resource AND p.role = :role", parameters);
 
     }
 
     public void removePermission(Role role, String action, Resource resource) {
         checkRoleAndResourceNotNull(role, resource);
 
-        String queryStr = "SELECT p FROM PermissionEntity p WHERE "
-                + "p.resource = :resource AND "
+        String whereClause = "p.resource = :resource AND "
                 + "p.action = :action AND "
                 + "(p.type = :typeAllow OR p.type = :typeDeny) AND p.role = :role";
         Map<String, Object> parameters = new HashMap<String, Object>();
@@ -255,9 +249,8 @@ public class JPAPermissionManager extends AbstractPermissionManager {
         parameters.put("typeAllow", PermissionType.ALLOW);
         parameters.put("typeDeny", PermissionType.DENY);
 
-        List<PermissionEntity> permissions = FacadeFactory.getFacade().list(
-                queryStr, parameters);
-        FacadeFactory.getFacade().deleteAll(permissions);
+        FacadeFactory.getFacade().deleteWhere(PermissionEntity.class,
+                whereClause, parameters);
 
     }
 }
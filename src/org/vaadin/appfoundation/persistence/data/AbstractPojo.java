@@ -1,12 +1,16 @@
 package org.vaadin.appfoundation.persistence.data;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.persistence.Column;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.MappedSuperclass;
+import javax.persistence.Transient;
 import javax.persistence.Version;
 
 /**
@@ -30,6 +34,11 @@ abstract public class AbstractPojo implements Serializable {
     @Version
     protected Long consistencyVersion;
 
+    // The values of the persistent fields when change tracking was started,
+    // or null if the changes aren't tracked
+    @Transient
+    private transient Object[] snapshot;
+
     public AbstractPojo() {
 
     }
@@ -75,4 +84,67 @@ abstract public class AbstractPojo implements Serializable {
         this.consistencyVersion = consistencyVersion;
     }
 
+    /**
+     * Starts tracking the changes made to this entity. The current values of
+     * the persistent fields are taken as a snapshot, and JPAFacade.store()
+     * then writes only the fields changed since with a single UPDATE
+     * statement, instead of merging the whole entity. A new snapshot is taken
+     * whenever the entity is stored.
+     * 
+     * The changes are detected with equals(). Dates and arrays are copied to
+     * the snapshot, but other mutable values have to be replaced rather than
+     * modified for their changes to be noticed. The snapshot is not
+     * serialized with the entity.
+     */
+    public void trackChanges() {
+        Object[] values = EntityAccessor.forClass(getClass()).getValues(this);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = EntityAccessor.copyValue(values[i]);
+        }
+        snapshot = values;
+    }
+
+    /**
+     * Stops tracking the changes made to this entity, so that it is merged as
+     * a whole when it is stored.
+     */
+    public void stopTrackingChanges() {
+        snapshot = null;
+    }
+
+    /**
+     * Checks if the changes made to this entity are being tracked.
+     * 
+     * @return true if trackChanges() has been called
+     */
+    public boolean isTrackingChanges() {
+        return snapshot != null;
+    }
+
+    /**
+     * Returns the names of the persistent fields whose values have changed
+     * since change tracking was started or the entity was last stored.
+     * 
+     * @return List of field names
+     * @throws IllegalStateException
+     *             If the changes aren't tracked
+     */
+    public List<String> getChangedFields() {
+        if (snapshot == null) {
+            throw new IllegalStateException("Changes are not being tracked");
+        }
+
+        EntityAccessor accessor = EntityAccessor.forClass(getClass());
+        Object[] values = accessor.getValues(this);
+        List<String> changed = new ArrayList<String>();
+        for (int i = 0; i < values.length; i++) {
+            // deepEquals also compares the contents of arrays
+            if (!Arrays.deepEquals(new Object[] { values[i] },
+                    new Object[] { snapshot[i] })) {
+                changed.add(accessor.getFieldNames().get(i));
+            }
+        }
+        return changed;
+    }
+
 }
@@ -0,0 +1,261 @@
+package org.vaadin.appfoundation.persistence.data;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.Transient;
+
+/**
+ * Gives access to the persistent fields of an entity class. The fields of a
+ * class, including the fields declared in its superclasses, are looked up and
+ * made accessible only once, after which the accessor is reused for all
+ * instances of the class.
+ * 
+ * @author Kim
+ * 
+ */
+public final class EntityAccessor {
+
+    private static final ConcurrentMap<Class<?>, EntityAccessor> accessors = new ConcurrentHashMap<Class<?>, EntityAccessor>();
+
+    private final Field[] fields;
+
+    private final List<String> fieldNames;
+
+    private final Class<?> c;
+
+    // The no-arg constructor of the class, looked up on first use
+    private volatile Constructor<?> constructor;
+
+    private EntityAccessor(Class<?> c) {
+        this.c = c;
+        List<Field> fieldList = new ArrayList<Field>();
+        List<String> names = new ArrayList<String>();
+        // getDeclaredFields() only returns the fields defined in the class
+        // itself, so walk through all the superclasses too.
+        for (Class<?> current = c; current != null; current = current
+                .getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                // If the field is transient, static or final, then it isn't
+                // part of the entity's persistent state
+                if (!field.isAnnotationPresent(Transient.class)
+                        && !Modifier.isStatic(field.getModifiers())
+                        && !Modifier.isFinal(field.getModifiers())) {
+                    // The field might be inaccessible, so let's force it to be
+                    // accessible.
+                    field.setAccessible(true);
+                    fieldList.add(field);
+                    names.add(field.getName());
+                }
+            }
+        }
+        fields = fieldList.toArray(new Field[fieldList.size()]);
+        fieldNames = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Returns the accessor for the given class.
+     * 
+     * @param c
+     *            The entity class
+     * @return The accessor of the class
+     */
+    public static EntityAccessor forClass(Class<?> c) {
+        EntityAccessor accessor = accessors.get(c);
+        if (accessor == null) {
+            // Two threads may build an accessor for the same class at the
+            // same time, in which case the first one wins.
+            accessor = new EntityAccessor(c);
+            EntityAccessor existing = accessors.putIfAbsent(c, accessor);
+            if (existing != null) {
+                accessor = existing;
+            }
+        }
+        return accessor;
+    }
+
+    /**
+     * Returns the names of the persistent fields in the order used by
+     * getValues().
+     * 
+     * @return List of field names
+     */
+    public List<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * Copies the values of all persistent fields from one instance to
+     * another.
+     * 
+     * @param from
+     *            The object from which we are copying
+     * @param to
+     *            The object to which we are copying
+     */
+    public void copy(Object from, Object to) {
+        try {
+            for (Field field : fields) {
+                field.set(to, field.get(from));
+            }
+        } catch (IllegalAccessException e) {
+            // All fields have been made accessible, so this should not happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a new instance of the class and copies the values of all
+     * persistent fields from the given instance to it. The copy is shallow,
+     * meaning that referenced objects are shared by both instances.
+     * 
+     * @param pojo
+     *            The object which is copied
+     * @return A new instance with the same field values
+     */
+    @SuppressWarnings("unchecked")
+    public <A> A newCopy(A pojo) {
+        Constructor<?> constructor = this.constructor;
+        try {
+            if (constructor == null) {
+                // Entities are required to have a no-arg constructor, but it
+                // may be protected
+                constructor = c.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                this.constructor = constructor;
+            }
+            A copy = (A) constructor.newInstance();
+            copy(pojo, copy);
+            return copy;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(c.getName()
+                    + " does not have a no-arg constructor", e);
+        } catch (InstantiationException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Creates a new instance of the class like newCopy(), but also copies the
+     * Dates and arrays held by the persistent fields, so that modifying them
+     * in place on one instance doesn't show on the other. Collections and
+     * referenced entities are still shared by both instances.
+     * 
+     * @param pojo
+     *            The object which is copied
+     * @return A new instance with the same field values
+     */
+    public <A> A newValueCopy(A pojo) {
+        A copy = newCopy(pojo);
+        try {
+            for (Field field : fields) {
+                field.set(copy, copyValue(field.get(copy)));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return copy;
+    }
+
+    /**
+     * Copies the mutable values which can be compared by their contents, that
+     * is Dates and arrays. Other values are returned as such.
+     * 
+     * @param value
+     *            The value of a persistent field
+     * @return A copy of the value, or the value itself
+     */
+    static Object copyValue(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        }
+        if (value != null && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(),
+                    length);
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the values of all persistent fields of the given instance.
+     * 
+     * @param pojo
+     *            The object whose values are read
+     * @return The field values in the order of getFieldNames()
+     */
+    public Object[] getValues(Object pojo) {
+        Object[] values = new Object[fields.length];
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = fields[i].get(pojo);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the value of a single persistent field.
+     * 
+     * @param pojo
+     *            The object whose value is read
+     * @param fieldName
+     *            Name of the field
+     * @return The field's value
+     */
+    public Object getValue(Object pojo, String fieldName) {
+        int index = fieldNames.indexOf(fieldName);
+        if (index < 0) {
+            throw new IllegalArgumentException("Field '" + fieldName
+                    + "' not found in " + pojo.getClass().getName());
+        }
+
+        try {
+            return fields[index].get(pojo);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets the value of a single persistent field.
+     * 
+     * @param pojo
+     *            The object whose value is set
+     * @param fieldName
+     *            Name of the field
+     * @param value
+     *            The new value
+     */
+    public void setValue(Object pojo, String fieldName, Object value) {
+        int index = fieldNames.indexOf(fieldName);
+        if (index < 0) {
+            throw new IllegalArgumentException("Field '" + fieldName
+                    + "' not found in " + pojo.getClass().getName());
+        }
+
+        try {
+            fields[index].set(pojo, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
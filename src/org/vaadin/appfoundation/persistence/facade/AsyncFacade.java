@@ -0,0 +1,464 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Executes facade operations asynchronously on a bounded pool of worker
+ * threads, so that slow database operations don't block the calling thread.
+ * Each operation returns a Future for its result.
+ * 
+ * Every operation runs on a worker thread with the worker's own EntityManager,
+ * which is closed once the operation has finished. Operations therefore never
+ * take part in a unit of work running on the calling thread. To run several
+ * operations in one transaction, submit them together as a
+ * {@link UnitOfWork}.
+ * 
+ * Operations can be given a timeout. When the timeout expires, the operation's
+ * Future is cancelled and the worker thread interrupted. If the facade is a
+ * {@link StatementControl}, such as a {@link JPAFacade} or a facade wrapping
+ * one, the timeout is also set as the JDBC statement timeout of the queries.
+ * If the JPAFacade tracks its statements (see
+ * {@link JPAFacade#setStatementTracking(boolean)}), cancelling the Future also
+ * cancels the statement the operation is executing, so that the database
+ * stops executing it.
+ * 
+ * @author Kim
+ * 
+ */
+public class AsyncFacade {
+
+    private final IFacade facade;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService timer;
+
+    // Default timeout in milliseconds, zero if disabled
+    private volatile long timeout = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param facade
+     *            The facade which executes the operations
+     * @param threads
+     *            Number of worker threads
+     * @param queueCapacity
+     *            The maximum number of operations waiting for a free worker.
+     *            Operations submitted when the queue is full are rejected with
+     *            a RejectedExecutionException.
+     */
+    public AsyncFacade(IFacade facade, int threads, int queueCapacity) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "Thread count and queue capacity must be positive numbers");
+        }
+
+        this.facade = facade;
+        executor = new ThreadPoolExecutor(threads, threads, 60L,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                        queueCapacity), new DaemonThreadFactory("facade-async"));
+        timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(
+                "facade-async-timer"));
+    }
+
+    /**
+     * Sets the default timeout of the operations.
+     * 
+     * @param timeout
+     *            Timeout in milliseconds or zero for no timeout
+     */
+    public void setTimeout(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout may not be negative");
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the default timeout of the operations.
+     * 
+     * @return Timeout in milliseconds or zero if there is no timeout
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Returns the facade which executes the operations.
+     * 
+     * @return The wrapped facade
+     */
+    public IFacade getFacade() {
+        return facade;
+    }
+
+    /**
+     * Executes the given unit of work in a single transaction with the default
+     * timeout.
+     * 
+     * @param work
+     *            The unit of work to be executed
+     * @return Future for the unit of work's result
+     */
+    public <T> Future<T> submit(UnitOfWork<T> work) {
+        return submit(work, timeout);
+    }
+
+    /**
+     * Executes the given unit of work in a single transaction.
+     * 
+     * @param work
+     *            The unit of work to be executed
+     * @param timeout
+     *            Timeout in milliseconds or zero for no timeout
+     * @return Future for the unit of work's result
+     */
+    public <T> Future<T> submit(final UnitOfWork<T> work, long timeout) {
+        if (work == null) {
+            throw new IllegalArgumentException("Unit of work may not be null");
+        }
+
+        return execute(new UnitOfWork<T>() {
+            public T execute(IFacade facade) {
+                return facade.inTransaction(work);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Fetches a specific entity object from the database asynchronously.
+     * 
+     * @see IFacade#find(Class, Long)
+     */
+    public <A extends AbstractPojo> Future<A> findAsync(final Class<A> clazz,
+            final Long id) {
+        return execute(new UnitOfWork<A>() {
+            public A execute(IFacade facade) {
+                return facade.find(clazz, id);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Fetches a specific entity object from the database for the given query
+     * asynchronously.
+     * 
+     * @see IFacade#find(String, Map)
+     */
+    public <A extends AbstractPojo> Future<A> findAsync(final String queryStr,
+            final Map<String, Object> parameters) {
+        return execute(new UnitOfWork<A>() {
+            public A execute(IFacade facade) {
+                return facade.<A> find(queryStr, parameters);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Fetches all entities of the given entity type asynchronously.
+     * 
+     * @see IFacade#list(Class)
+     */
+    public <A extends AbstractPojo> Future<List<A>> listAsync(
+            final Class<A> clazz) {
+        return execute(new UnitOfWork<List<A>>() {
+            public List<A> execute(IFacade facade) {
+                return facade.list(clazz);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Fetches a range of entities of the given entity type asynchronously.
+     * 
+     * @see IFacade#list(Class, int, int)
+     */
+    public <A extends AbstractPojo> Future<List<A>> listAsync(
+            final Class<A> clazz, final int startIndex, final int amount) {
+        return execute(new UnitOfWork<List<A>>() {
+            public List<A> execute(IFacade facade) {
+                return facade.list(clazz, startIndex, amount);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Fetches all entities for the given query asynchronously.
+     * 
+     * @see IFacade#list(String, Map)
+     */
+    public <A extends AbstractPojo> Future<List<A>> listAsync(
+            final String queryStr, final Map<String, Object> parameters) {
+        return execute(new UnitOfWork<List<A>>() {
+            public List<A> execute(IFacade facade) {
+                return facade.<A> list(queryStr, parameters);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Fetches a range of entities for the given query asynchronously.
+     * 
+     * @see IFacade#list(String, Map, int, int)
+     */
+    public <A extends AbstractPojo> Future<List<A>> listAsync(
+            final String queryStr, final Map<String, Object> parameters,
+            final int startIndex, final int amount) {
+        return execute(new UnitOfWork<List<A>>() {
+            public List<A> execute(IFacade facade) {
+                return facade.<A> list(queryStr, parameters, startIndex,
+                        amount);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Counts the entities of the given entity type asynchronously.
+     * 
+     * @see IFacade#count(Class)
+     */
+    public Future<Long> countAsync(final Class<? extends AbstractPojo> c) {
+        return execute(new UnitOfWork<Long>() {
+            public Long execute(IFacade facade) {
+                return facade.count(c);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Counts the entities which fulfill the where clause asynchronously.
+     * 
+     * @see IFacade#count(Class, String, Map)
+     */
+    public Future<Long> countAsync(final Class<? extends AbstractPojo> c,
+            final String whereClause, final Map<String, Object> parameters) {
+        return execute(new UnitOfWork<Long>() {
+            public Long execute(IFacade facade) {
+                return facade.count(c, whereClause, parameters);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Fetches the values of a specific field asynchronously.
+     * 
+     * @see IFacade#getFieldValues(Class, String, String, Map)
+     */
+    public Future<List<?>> getFieldValuesAsync(
+            final Class<? extends AbstractPojo> c, final String field,
+            final String whereConditions, final Map<String, Object> parameters) {
+        return execute(new UnitOfWork<List<?>>() {
+            public List<?> execute(IFacade facade) {
+                return facade.getFieldValues(c, field, whereConditions,
+                        parameters);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Stores an entity asynchronously. The entity should not be modified
+     * before the returned Future is done.
+     * 
+     * @see IFacade#store(AbstractPojo)
+     */
+    public Future<Void> storeAsync(final AbstractPojo pojo) {
+        return execute(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                facade.store(pojo);
+                return null;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Stores a set of entities asynchronously within the same transaction.
+     * The entities should not be modified before the returned Future is done.
+     * 
+     * @see IFacade#storeAll(Collection)
+     */
+    public <A extends AbstractPojo> Future<Void> storeAllAsync(
+            final Collection<A> pojos) {
+        return execute(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                facade.storeAll(pojos);
+                return null;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Removes an entity asynchronously.
+     * 
+     * @see IFacade#delete(AbstractPojo)
+     */
+    public Future<Void> deleteAsync(final AbstractPojo pojo) {
+        return execute(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                facade.delete(pojo);
+                return null;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Removes a set of entities asynchronously within the same transaction.
+     * 
+     * @see IFacade#deleteAll(Collection)
+     */
+    public <A extends AbstractPojo> Future<Void> deleteAllAsync(
+            final Collection<A> pojos) {
+        return execute(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                facade.deleteAll(pojos);
+                return null;
+            }
+        }, timeout);
+    }
+
+    /**
+     * Stops accepting new operations. Operations which have already been
+     * submitted are still executed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        timer.shutdown();
+    }
+
+    /**
+     * Runs the given operation on a worker thread.
+     * 
+     * @param operation
+     *            The operation to be executed
+     * @param timeout
+     *            Timeout in milliseconds or zero for no timeout
+     * @return Future for the operation's result
+     * @throws RejectedExecutionException
+     *             if the queue is full or the executor has been shut down
+     */
+    private <T> Future<T> execute(final UnitOfWork<T> operation,
+            final long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout may not be negative");
+        }
+
+        final StatementControl control = facade instanceof StatementControl ? (StatementControl) facade
+                : null;
+        final long submitted = System.currentTimeMillis();
+        TimedTask<T> task = new TimedTask<T>(new Callable<T>() {
+            public T call() throws Exception {
+                if (timeout > 0 && control != null) {
+                    // Let the database abort the statements once the time
+                    // left for this operation has run out
+                    long left = timeout
+                            - (System.currentTimeMillis() - submitted);
+                    control.setThreadQueryTimeout(Math.max(left, 1L));
+                }
+                try {
+                    return operation.execute(facade);
+                } finally {
+                    if (control != null) {
+                        control.setThreadQueryTimeout(null);
+                    }
+                    // The worker thread is reused, so don't leave an
+                    // EntityManager behind
+                    facade.close();
+                }
+            }
+        }, control);
+
+        executor.execute(task);
+        if (timeout > 0) {
+            task.cancelAfter(timeout);
+        }
+        return task;
+    }
+
+    /**
+     * A task which cancels itself once its timeout has expired. Cancelling the
+     * task cancels the statement it is executing.
+     */
+    private class TimedTask<T> extends FutureTask<T> {
+
+        private volatile ScheduledFuture<?> canceller;
+
+        private final StatementControl control;
+
+        // The worker thread running this task, null when not running. Guarded
+        // by this, so that the statements of the worker aren't cancelled
+        // after it has moved on to another task.
+        private Thread runner;
+
+        public TimedTask(Callable<T> callable, StatementControl control) {
+            super(callable);
+            this.control = control;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                runner = Thread.currentThread();
+            }
+            try {
+                super.run();
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mayInterruptIfRunning && control != null) {
+                synchronized (this) {
+                    if (runner != null) {
+                        control.cancelStatements(runner);
+                    }
+                }
+            }
+            return cancelled;
+        }
+
+        public void cancelAfter(long timeout) {
+            canceller = timer.schedule(new Runnable() {
+                public void run() {
+                    cancel(true);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            // The task may have completed before the canceller was scheduled
+            if (isDone()) {
+                canceller.cancel(false);
+            }
+        }
+
+        @Override
+        protected void done() {
+            ScheduledFuture<?> canceller = this.canceller;
+            if (canceller != null) {
+                canceller.cancel(false);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,245 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+
+/**
+ * Configuration of the JDBC connection pools of a JPAFacade. The settings are
+ * applied to the connection pools of the persistence unit, overriding the
+ * pool settings in the persistence.xml file, and the pools are metered so
+ * that their state can be monitored through JPAFacade.getPoolMetrics().
+ * 
+ * The settings apply to both the write pool and the read pool of the
+ * persistence unit. The defaults are the pool defaults of EclipseLink.
+ * 
+ * @author Kim
+ * 
+ */
+public class ConnectionPoolConfig implements Serializable {
+
+    private static final long serialVersionUID = -3307716546722367432L;
+
+    private int minSize = ConnectionPool.MIN_CONNECTIONS;
+
+    private int maxSize = ConnectionPool.MAX_CONNECTIONS;
+
+    private int initialSize = ConnectionPool.INITIAL_CONNECTIONS;
+
+    private long acquireTimeout = ConnectionPool.WAIT_TIMEOUT;
+
+    private long leakDetectionThreshold = 0;
+
+    private int statementCacheSize = 0;
+
+    /**
+     * Sets the number of connections kept open in each pool even when they
+     * aren't used.
+     * 
+     * @param minSize
+     *            The minimum number of connections
+     */
+    public void setMinSize(int minSize) {
+        if (minSize < 0) {
+            throw new IllegalArgumentException(
+                    "Minimum size may not be negative");
+        }
+        this.minSize = minSize;
+    }
+
+    /**
+     * Returns the number of connections kept open in each pool.
+     * 
+     * @return The minimum number of connections
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Sets the maximum number of connections in each pool. When all of them
+     * are in use, the threads acquiring a connection have to wait for one to
+     * be released.
+     * 
+     * @param maxSize
+     *            The maximum number of connections
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum size must be at least one");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the maximum number of connections in each pool.
+     * 
+     * @return The maximum number of connections
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the number of connections opened when the pools are started.
+     * 
+     * @param initialSize
+     *            The initial number of connections
+     */
+    public void setInitialSize(int initialSize) {
+        if (initialSize < 0) {
+            throw new IllegalArgumentException(
+                    "Initial size may not be negative");
+        }
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * Returns the number of connections opened when the pools are started.
+     * 
+     * @return The initial number of connections
+     */
+    public int getInitialSize() {
+        return initialSize;
+    }
+
+    /**
+     * Sets how long a thread may wait for a free connection before the
+     * acquisition fails.
+     * 
+     * @param acquireTimeout
+     *            The timeout in milliseconds or zero for no timeout
+     */
+    public void setAcquireTimeout(long acquireTimeout) {
+        if (acquireTimeout < 0 || acquireTimeout > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Acquire timeout must be between zero and "
+                            + Integer.MAX_VALUE);
+        }
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    /**
+     * Returns how long a thread may wait for a free connection.
+     * 
+     * @return The timeout in milliseconds or zero for no timeout
+     */
+    public long getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    /**
+     * Sets how long a connection may be held before it is reported as a
+     * possible leak by PoolMetrics.getSuspectedLeaks(). The stack trace of
+     * each acquisition is recorded when leak detection is on, so it should
+     * only be turned on while looking for leaks.
+     * 
+     * @param leakDetectionThreshold
+     *            The threshold in milliseconds or zero to turn leak detection
+     *            off
+     */
+    public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+        if (leakDetectionThreshold < 0) {
+            throw new IllegalArgumentException(
+                    "Leak detection threshold may not be negative");
+        }
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    /**
+     * Returns how long a connection may be held before it is reported as a
+     * possible leak.
+     * 
+     * @return The threshold in milliseconds or zero if leak detection is off
+     */
+    public long getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    /**
+     * Sets the number of prepared statements cached per connection.
+     * 
+     * @param statementCacheSize
+     *            The number of cached statements or zero to turn statement
+     *            caching off
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException(
+                    "Statement cache size may not be negative");
+        }
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Returns the number of prepared statements cached per connection.
+     * 
+     * @return The number of cached statements or zero if statement caching is
+     *         off
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Converts this configuration to the persistence unit properties given to
+     * the entity manager factory.
+     * 
+     * @param unitName
+     *            Persistence-unit name, whose own session customizer is run
+     *            by the customizer metering the pools
+     * @param metrics
+     *            The metrics the pools of the persistence unit report to
+     * @return The persistence unit properties
+     */
+    Map<String, Object> toProperties(String unitName, PoolMetrics metrics) {
+        if (minSize > maxSize || initialSize > maxSize) {
+            throw new IllegalArgumentException(
+                    "Minimum and initial sizes may not exceed the maximum size");
+        }
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        String[] pools = { PersistenceUnitProperties.CONNECTION_POOL,
+                PersistenceUnitProperties.CONNECTION_POOL_READ };
+        for (String pool : pools) {
+            properties.put(pool + PersistenceUnitProperties.CONNECTION_POOL_MIN,
+                    String.valueOf(minSize));
+            properties.put(pool + PersistenceUnitProperties.CONNECTION_POOL_MAX,
+                    String.valueOf(maxSize));
+            properties.put(pool
+                    + PersistenceUnitProperties.CONNECTION_POOL_INITIAL, String
+                    .valueOf(initialSize));
+            properties.put(pool
+                    + PersistenceUnitProperties.CONNECTION_POOL_WAIT, String
+                    .valueOf(acquireTimeout));
+        }
+
+        if (statementCacheSize > 0) {
+            properties.put(PersistenceUnitProperties.CACHE_STATEMENTS, "true");
+            properties.put(PersistenceUnitProperties.CACHE_STATEMENTS_SIZE,
+                    String.valueOf(statementCacheSize));
+        } else {
+            properties.put(PersistenceUnitProperties.CACHE_STATEMENTS, "false");
+        }
+
+        // The customizer replaces the pools with metered ones. It takes the
+        // place of the persistence unit's own customizer, so it runs that
+        // customizer too.
+        properties.put(PersistenceUnitProperties.SESSION_CUSTOMIZER,
+                PoolMetricsCustomizer.class.getName());
+        properties.put(PoolMetricsCustomizer.METRICS_PROPERTY, metrics);
+        String customizer = PersistenceXml.getProperty(unitName,
+                PersistenceUnitProperties.SESSION_CUSTOMIZER);
+        if (customizer != null
+                && !customizer.equals(PoolMetricsCustomizer.class.getName())) {
+            properties.put(PoolMetricsCustomizer.CUSTOMIZER_PROPERTY,
+                    customizer);
+        }
+        return properties;
+    }
+
+}
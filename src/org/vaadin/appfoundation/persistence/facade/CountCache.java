@@ -0,0 +1,334 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * A bounded cache of COUNT query results keyed by the entity class, the where
+ * clause and the query parameters. A cached count is invalidated when an
+ * entity of the same class is written through the facade. Optionally, the
+ * cache can be allowed to serve invalidated counts for a while, which trades
+ * accuracy for fewer COUNT queries on frequently written tables.
+ * 
+ * The cache only notices writes made through the facade. The count of a class
+ * is invalidated by writes to that class, its subclasses and its
+ * superclasses, since they may change the rows counted for the class, but not
+ * by writes to other entities the where clause refers to.
+ * 
+ * @author Kim
+ * 
+ */
+public class CountCache implements Serializable {
+
+    private static final long serialVersionUID = 5262371808645791457L;
+
+    private final ConcurrentMap<Key, Entry> counts = new ConcurrentHashMap<Key, Entry>();
+
+    // The cached keys in insertion order, used for choosing the evicted entry
+    private final Queue<Key> keys = new ConcurrentLinkedQueue<Key>();
+
+    // Write counter per entity class. A cached count is up-to-date as long as
+    // the counter of its class hasn't changed after the count was queried.
+    private final ConcurrentMap<Class<?>, AtomicLong> generations = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+    private volatile int maxSize;
+
+    // How long invalidated counts may still be served in milliseconds
+    private volatile long maxStaleness = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize
+     *            The maximum number of counts held in the cache
+     */
+    public CountCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the current write generation of the given entity class, which
+     * changes whenever the class, one of its subclasses or one of its
+     * superclasses is invalidated. The generation must be read before the
+     * count is queried from the database and given to put() along with the
+     * count.
+     * 
+     * @param c
+     *            Entity class
+     * @return Current generation
+     */
+    long getGeneration(Class<? extends AbstractPojo> c) {
+        // The counters only grow, so their sum changes whenever one of them
+        // does
+        long generation = 0;
+        for (Map.Entry<Class<?>, AtomicLong> entry : generations.entrySet()) {
+            if (entry.getKey().isAssignableFrom(c)
+                    || c.isAssignableFrom(entry.getKey())) {
+                generation += entry.getValue().get();
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Returns the cached count for the given query and updates the hit/miss
+     * counters.
+     * 
+     * @param c
+     *            Entity class
+     * @param whereClause
+     *            The where clause of the query or null
+     * @param parameters
+     *            The query parameters or null
+     * @return The cached count or null if no usable count is cached
+     */
+    Long get(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        Entry entry = counts.get(new Key(c, whereClause, parameters));
+        if (entry != null && isUsable(c, entry)) {
+            hits.incrementAndGet();
+            return entry.count;
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Checks if the cached count may still be served.
+     * 
+     * @param c
+     *            Entity class
+     * @param entry
+     *            Cached count
+     * @return true if the count is up-to-date or within the staleness window
+     */
+    private boolean isUsable(Class<? extends AbstractPojo> c, Entry entry) {
+        if (entry.generation == getGeneration(c)) {
+            return true;
+        }
+        return maxStaleness > 0
+                && System.currentTimeMillis() - entry.created < maxStaleness;
+    }
+
+    /**
+     * Adds a count to the cache, evicting the oldest entries if the cache is
+     * full.
+     * 
+     * @param c
+     *            Entity class
+     * @param whereClause
+     *            The where clause of the query or null
+     * @param parameters
+     *            The query parameters or null
+     * @param count
+     *            The count returned by the query
+     * @param generation
+     *            The generation of the class before the query was executed
+     */
+    void put(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters, Long count, long generation) {
+        if (maxSize == 0) {
+            return;
+        }
+
+        Key key = new Key(c, whereClause, parameters);
+        if (counts.put(key, new Entry(count, generation)) == null) {
+            keys.add(key);
+            while (counts.size() > maxSize) {
+                Key oldest = keys.poll();
+                if (oldest == null) {
+                    break;
+                }
+                counts.remove(oldest);
+            }
+        }
+    }
+
+    /**
+     * Invalidates all cached counts of the given entity class, its subclasses
+     * and its superclasses. This is done automatically for writes made
+     * through the facade, but it needs to be called if the class's table is
+     * modified by other means.
+     * 
+     * @param c
+     *            Entity class
+     */
+    public void invalidate(Class<? extends AbstractPojo> c) {
+        AtomicLong generation = generations.get(c);
+        if (generation == null) {
+            generation = new AtomicLong();
+            AtomicLong existing = generations.putIfAbsent(c, generation);
+            if (existing != null) {
+                generation = existing;
+            }
+        }
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Removes all counts from the cache. The counters are not reset.
+     */
+    public void clear() {
+        counts.clear();
+        keys.clear();
+    }
+
+    /**
+     * Sets the maximum number of counts held in the cache. Setting the size to
+     * zero disables the cache.
+     * 
+     * @param maxSize
+     *            The maximum number of cached counts
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException(
+                    "Cache size may not be negative");
+        }
+        this.maxSize = maxSize;
+        if (counts.size() > maxSize) {
+            clear();
+        }
+    }
+
+    /**
+     * Returns the maximum number of counts held in the cache.
+     * 
+     * @return Maximum cache size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets for how long a count may still be served after it has been
+     * invalidated by a write. Zero (the default) means that invalidated counts
+     * are never served.
+     * 
+     * @param maxStaleness
+     *            The maximum age of an invalidated count in milliseconds
+     */
+    public void setMaxStaleness(long maxStaleness) {
+        if (maxStaleness < 0) {
+            throw new IllegalArgumentException(
+                    "Staleness may not be negative");
+        }
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * Returns for how long a count may still be served after it has been
+     * invalidated by a write.
+     * 
+     * @return The maximum age of an invalidated count in milliseconds
+     */
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Returns the number of counts currently in the cache.
+     * 
+     * @return Number of cached counts
+     */
+    public int size() {
+        return counts.size();
+    }
+
+    /**
+     * Returns the number of lookups which found a usable count.
+     * 
+     * @return Number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups which had to query the count.
+     * 
+     * @return Number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The key of a cached count.
+     */
+    private static class Key implements Serializable {
+
+        private static final long serialVersionUID = -6733102871954380117L;
+
+        private final Class<?> c;
+
+        private final String whereClause;
+
+        private final Map<String, Object> parameters;
+
+        public Key(Class<?> c, String whereClause,
+                Map<String, Object> parameters) {
+            this.c = c;
+            this.whereClause = whereClause;
+            // Copy the parameters, as the caller may reuse the map
+            this.parameters = parameters == null ? null
+                    : new HashMap<String, Object>(parameters);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return c.equals(other.c)
+                    && (whereClause == null ? other.whereClause == null
+                            : whereClause.equals(other.whereClause))
+                    && (parameters == null ? other.parameters == null
+                            : parameters.equals(other.parameters));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = c.hashCode();
+            hash = 31 * hash
+                    + (whereClause == null ? 0 : whereClause.hashCode());
+            return 31 * hash + (parameters == null ? 0 : parameters.hashCode());
+        }
+
+    }
+
+    /**
+     * A cached count along with the generation it was queried in.
+     */
+    private static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1969460853766364539L;
+
+        private final Long count;
+
+        private final long generation;
+
+        private final long created = System.currentTimeMillis();
+
+        public Entry(Long count, long generation) {
+            this.count = count;
+            this.generation = generation;
+        }
+
+    }
+
+}
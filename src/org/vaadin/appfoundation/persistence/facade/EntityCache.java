@@ -0,0 +1,108 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * A second-level cache of entities keyed by their class and id. A facade using
+ * an entity cache looks entities up from the cache before fetching them from
+ * the database, and removes entities from the cache when they are stored or
+ * deleted through the facade. Changes made to the database by other means are
+ * not noticed by the cache.
+ * 
+ * Implementations must be thread-safe and must never hand out an instance
+ * which is also held by the cache or by another caller, since entities are
+ * mutable. The instances handed out may still share the values of their
+ * fields, such as collections and referenced entities, with the cached state,
+ * so an entity returned by the cache should only be modified by replacing the
+ * values of its fields.
+ * 
+ * @author Kim
+ * 
+ */
+public interface EntityCache {
+
+    /**
+     * Returns the cached entity of the given class with the given id.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param id
+     *            The primary key of the entity
+     * @return A new instance with the state of the cached entity or null if
+     *         the entity is not cached
+     */
+    public <A extends AbstractPojo> A get(Class<A> clazz, Long id);
+
+    /**
+     * Adds an entity which was loaded from the database to the cache.
+     * 
+     * @param pojo
+     *            The loaded entity
+     * @param loadTime
+     *            The time spent on loading the entity in nanoseconds
+     */
+    public void put(AbstractPojo pojo, long loadTime);
+
+    /**
+     * Removes the entity of the given class with the given id from the cache.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param id
+     *            The primary key of the entity
+     */
+    public void remove(Class<? extends AbstractPojo> clazz, Long id);
+
+    /**
+     * Removes all entities of the given class and its subclasses from the
+     * cache.
+     * 
+     * @param clazz
+     *            Entity class
+     */
+    public void removeAll(Class<? extends AbstractPojo> clazz);
+
+    /**
+     * Removes all entities from the cache. The counters are not reset.
+     */
+    public void clear();
+
+    /**
+     * Returns the number of entities currently in the cache.
+     * 
+     * @return Number of cached entities
+     */
+    public int size();
+
+    /**
+     * Returns the number of lookups which found the entity in the cache.
+     * 
+     * @return Number of cache hits
+     */
+    public long getHits();
+
+    /**
+     * Returns the number of lookups which didn't find the entity in the
+     * cache.
+     * 
+     * @return Number of cache misses
+     */
+    public long getMisses();
+
+    /**
+     * Returns the number of entities dropped from the cache because it was
+     * full or because the entity had expired.
+     * 
+     * @return Number of evictions
+     */
+    public long getEvictions();
+
+    /**
+     * Returns the average time spent on loading an entity from the database
+     * after a cache miss.
+     * 
+     * @return Average load time in nanoseconds
+     */
+    public long getAverageLoadTime();
+
+}
@@ -0,0 +1,29 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * A change made to a single entity by
+ * {@link IFacade#update(Class, Long, EntityMutation)}. The mutation is applied
+ * to a freshly read copy of the entity and applied again to a newly read copy
+ * if storing the entity conflicts with a concurrent update, so it should only
+ * depend on the state of the entity it is given.
+ * 
+ * @author Kim
+ * 
+ * @param <A>
+ *            Type of the mutated entity
+ */
+public interface EntityMutation<A extends AbstractPojo> {
+
+    /**
+     * Applies the change to the given entity. The entity is stored after this
+     * method returns. If this method throws an exception, the entity is not
+     * stored and the update is not retried.
+     * 
+     * @param entity
+     *            The current state of the entity
+     */
+    public void mutate(A entity);
+
+}
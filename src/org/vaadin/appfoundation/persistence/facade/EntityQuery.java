@@ -0,0 +1,550 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.data.EntityAccessor;
+
+/**
+ * A query for entities of a single class, built from filters, orderings,
+ * limits and a projection instead of a query string. The filters are
+ * combined with AND. Field names are validated and all values are passed as
+ * query parameters, so no caller-supplied text ends up in the query string.
+ * 
+ * The query string depends only on the structure of the query, not on the
+ * filter values, so queries which differ only by their values share the same
+ * query string and thus the same cached query plan.
+ * 
+ * <pre>
+ * List&lt;User&gt; users = facade.list(EntityQuery.from(User.class)
+ *         .eq(&quot;accountLocked&quot;, false).like(&quot;name&quot;, &quot;A%&quot;)
+ *         .orderBy(&quot;name&quot;).limit(0, 20));
+ * </pre>
+ * 
+ * @author Kim
+ * 
+ */
+public class EntityQuery<A extends AbstractPojo> implements Serializable {
+
+    private static final long serialVersionUID = -1846310462906478220L;
+
+    private static final Pattern FIELD_PATH = Pattern
+            .compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)*");
+
+    private final Class<A> entityClass;
+
+    // The filters of the query, referring to the parameters by their indexes
+    private final List<String> conditions = new ArrayList<String>();
+
+    private final List<Object> values = new ArrayList<Object>();
+
+    private final List<String> orderFields = new ArrayList<String>();
+
+    private final List<Boolean> descending = new ArrayList<Boolean>();
+
+    private final List<String> selection = new ArrayList<String>();
+
+    private int firstResult = 0;
+
+    private int maxResults = -1;
+
+    /**
+     * Constructor.
+     * 
+     * @param entityClass
+     *            The class of the queried entities
+     */
+    public EntityQuery(Class<A> entityClass) {
+        if (entityClass == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+        this.entityClass = entityClass;
+    }
+
+    /**
+     * Creates a query for the entities of the given class.
+     * 
+     * @param entityClass
+     *            The class of the queried entities
+     * @return A new query without filters
+     */
+    public static <A extends AbstractPojo> EntityQuery<A> from(
+            Class<A> entityClass) {
+        return new EntityQuery<A>(entityClass);
+    }
+
+    /**
+     * Creates a copy of this query.
+     * 
+     * @return A new query with the same filters, orderings, projection and
+     *         limits
+     */
+    public EntityQuery<A> copy() {
+        EntityQuery<A> copy = new EntityQuery<A>(entityClass);
+        copy.conditions.addAll(conditions);
+        copy.values.addAll(values);
+        copy.orderFields.addAll(orderFields);
+        copy.descending.addAll(descending);
+        copy.selection.addAll(selection);
+        copy.firstResult = firstResult;
+        copy.maxResults = maxResults;
+        return copy;
+    }
+
+    /**
+     * Adds a filter requiring the field to equal the given value. A null
+     * value requires the field to be null.
+     * 
+     * @param field
+     *            Field name or path, such as "address.city"
+     * @param value
+     *            The required value
+     * @return This query
+     */
+    public EntityQuery<A> eq(String field, Object value) {
+        if (value == null) {
+            return isNull(field);
+        }
+        return compare(field, "=", value);
+    }
+
+    /**
+     * Adds a filter requiring the field to differ from the given value. A
+     * null value requires the field not to be null.
+     * 
+     * @param field
+     *            Field name or path
+     * @param value
+     *            The excluded value
+     * @return This query
+     */
+    public EntityQuery<A> ne(String field, Object value) {
+        if (value == null) {
+            return isNotNull(field);
+        }
+        return compare(field, "<>", value);
+    }
+
+    /**
+     * Adds a filter requiring the field to be less than the given value.
+     * 
+     * @param field
+     *            Field name or path
+     * @param value
+     *            The upper bound
+     * @return This query
+     */
+    public EntityQuery<A> lt(String field, Object value) {
+        return compare(field, "<", value);
+    }
+
+    /**
+     * Adds a filter requiring the field to be less than or equal to the given
+     * value.
+     * 
+     * @param field
+     *            Field name or path
+     * @param value
+     *            The upper bound
+     * @return This query
+     */
+    public EntityQuery<A> le(String field, Object value) {
+        return compare(field, "<=", value);
+    }
+
+    /**
+     * Adds a filter requiring the field to be greater than the given value.
+     * 
+     * @param field
+     *            Field name or path
+     * @param value
+     *            The lower bound
+     * @return This query
+     */
+    public EntityQuery<A> gt(String field, Object value) {
+        return compare(field, ">", value);
+    }
+
+    /**
+     * Adds a filter requiring the field to be greater than or equal to the
+     * given value.
+     * 
+     * @param field
+     *            Field name or path
+     * @param value
+     *            The lower bound
+     * @return This query
+     */
+    public EntityQuery<A> ge(String field, Object value) {
+        return compare(field, ">=", value);
+    }
+
+    /**
+     * Adds a filter requiring the field to match the given LIKE pattern.
+     * 
+     * @param field
+     *            Field name or path
+     * @param pattern
+     *            The pattern, in which % matches any characters and _ a
+     *            single character
+     * @return This query
+     */
+    public EntityQuery<A> like(String field, String pattern) {
+        return compare(field, "LIKE", pattern);
+    }
+
+    /**
+     * Adds a filter requiring the field to equal one of the given values. If
+     * no values are given, the query matches no entities.
+     * 
+     * @param field
+     *            Field name or path
+     * @param values
+     *            The allowed values
+     * @return This query
+     */
+    public EntityQuery<A> in(String field, Collection<?> values) {
+        checkField(field);
+        if (values == null) {
+            throw new IllegalArgumentException("Values may not be null");
+        }
+
+        if (values.isEmpty()) {
+            // An empty IN list isn't valid JPQL. Stored entities always have
+            // an id, so this matches nothing.
+            conditions.add("p.id IS NULL");
+        } else {
+            conditions.add("p." + field + " IN :p" + this.values.size());
+            this.values.add(new ArrayList<Object>(values));
+        }
+        return this;
+    }
+
+    /**
+     * Adds a filter requiring the field to be null.
+     * 
+     * @param field
+     *            Field name or path
+     * @return This query
+     */
+    public EntityQuery<A> isNull(String field) {
+        checkField(field);
+        conditions.add("p." + field + " IS NULL");
+        return this;
+    }
+
+    /**
+     * Adds a filter requiring the field not to be null.
+     * 
+     * @param field
+     *            Field name or path
+     * @return This query
+     */
+    public EntityQuery<A> isNotNull(String field) {
+        checkField(field);
+        conditions.add("p." + field + " IS NOT NULL");
+        return this;
+    }
+
+    /**
+     * Orders the results by the given field in ascending order. Orderings are
+     * applied in the order they are added.
+     * 
+     * @param field
+     *            Field name or path
+     * @return This query
+     */
+    public EntityQuery<A> orderBy(String field) {
+        return order(field, false);
+    }
+
+    /**
+     * Orders the results by the given field in descending order.
+     * 
+     * @param field
+     *            Field name or path
+     * @return This query
+     */
+    public EntityQuery<A> orderByDesc(String field) {
+        return order(field, true);
+    }
+
+    /**
+     * Selects the values of the given fields instead of the entities. The
+     * projection is used by IFacade.getFieldValues(EntityQuery).
+     * 
+     * @param fields
+     *            Field names or paths
+     * @return This query
+     */
+    public EntityQuery<A> select(String... fields) {
+        if (fields == null || fields.length == 0) {
+            throw new IllegalArgumentException("No fields given");
+        }
+
+        selection.clear();
+        for (String field : fields) {
+            checkField(field);
+            selection.add(field);
+        }
+        return this;
+    }
+
+    /**
+     * Limits the results of the query to the given window.
+     * 
+     * @param firstResult
+     *            Index of the first result
+     * @param maxResults
+     *            The maximum number of results
+     * @return This query
+     */
+    public EntityQuery<A> limit(int firstResult, int maxResults) {
+        if (firstResult < 0 || maxResults < 0) {
+            throw new IllegalArgumentException("Limits may not be negative");
+        }
+        this.firstResult = firstResult;
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    /**
+     * Returns the class of the queried entities.
+     * 
+     * @return Entity class
+     */
+    public Class<A> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * Returns the index of the first result.
+     * 
+     * @return Index of the first result, zero if the query isn't limited
+     */
+    public int getFirstResult() {
+        return firstResult;
+    }
+
+    /**
+     * Returns the maximum number of results.
+     * 
+     * @return The maximum number of results, or -1 if the query isn't limited
+     */
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    /**
+     * Checks if the results of the query are limited.
+     * 
+     * @return true if limit() has been called
+     */
+    public boolean isLimited() {
+        return maxResults >= 0;
+    }
+
+    /**
+     * Returns the selected fields.
+     * 
+     * @return The fields given to select(), or an empty list if the query
+     *         selects entities
+     */
+    public List<String> getSelection() {
+        return Collections.unmodifiableList(selection);
+    }
+
+    /**
+     * Returns the fields the results are ordered by.
+     * 
+     * @return The ordering fields
+     */
+    public List<String> getOrderFields() {
+        return Collections.unmodifiableList(orderFields);
+    }
+
+    /**
+     * Checks if the results are ordered by the given ordering in descending
+     * order.
+     * 
+     * @param index
+     *            Index of the ordering
+     * @return true if the ordering is descending
+     */
+    public boolean isDescending(int index) {
+        return descending.get(index);
+    }
+
+    /**
+     * Returns the filters as a JPQL where clause, in which the entity is
+     * called p.
+     * 
+     * @return The where clause or null if the query has no filters
+     */
+    String getWhereClause() {
+        if (conditions.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder where = new StringBuilder();
+        for (String condition : conditions) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            where.append(condition);
+        }
+        return where.toString();
+    }
+
+    /**
+     * Returns the values of the query parameters.
+     * 
+     * @return The parameter values by the parameter names used in the query
+     *         strings
+     */
+    Map<String, Object> getParameters() {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        for (int i = 0; i < values.size(); i++) {
+            parameters.put("p" + i, values.get(i));
+        }
+        return parameters;
+    }
+
+    /**
+     * Returns the JPQL query selecting the entities.
+     * 
+     * @return Query string
+     */
+    String getQueryString() {
+        return createQueryString("p", true);
+    }
+
+    /**
+     * Returns the JPQL query counting the entities. Orderings are left out.
+     * 
+     * @return Query string
+     */
+    String getCountQueryString() {
+        return createQueryString("COUNT(p.id)", false);
+    }
+
+    /**
+     * Returns the JPQL query selecting the fields given to select().
+     * 
+     * @return Query string
+     */
+    String getSelectQueryString() {
+        if (selection.isEmpty()) {
+            throw new IllegalStateException("No fields have been selected");
+        }
+
+        StringBuilder fields = new StringBuilder();
+        for (String field : selection) {
+            if (fields.length() > 0) {
+                fields.append(", ");
+            }
+            fields.append("p.").append(field);
+        }
+        return createQueryString(fields.toString(), true);
+    }
+
+    /**
+     * Returns a comparator ordering entities in the order of this query. Ties
+     * are ordered by id. Null values come first.
+     * 
+     * @return A comparator of entities
+     */
+    Comparator<A> getComparator() {
+        return new Comparator<A>() {
+            @SuppressWarnings("unchecked")
+            public int compare(A o1, A o2) {
+                for (int i = 0; i < orderFields.size(); i++) {
+                    Comparable<Object> value1 = (Comparable<Object>) getValue(
+                            o1, orderFields.get(i));
+                    Object value2 = getValue(o2, orderFields.get(i));
+                    int order;
+                    if (value1 == null || value2 == null) {
+                        order = value1 == null ? (value2 == null ? 0 : -1) : 1;
+                    } else {
+                        order = value1.compareTo(value2);
+                    }
+                    if (order != 0) {
+                        return descending.get(i) ? -order : order;
+                    }
+                }
+                return o1.getId().compareTo(o2.getId());
+            }
+        };
+    }
+
+    /**
+     * Reads the value of a field path from an entity.
+     */
+    private static Object getValue(Object pojo, String path) {
+        Object value = pojo;
+        for (String field : path.split("\\.")) {
+            if (value == null) {
+                return null;
+            }
+            value = EntityAccessor.forClass(value.getClass()).getValue(value,
+                    field);
+        }
+        return value;
+    }
+
+    private String createQueryString(String selection, boolean ordered) {
+        StringBuilder queryStr = new StringBuilder("SELECT ").append(selection)
+                .append(" FROM ").append(entityClass.getSimpleName()).append(
+                        " p");
+        String where = getWhereClause();
+        if (where != null) {
+            queryStr.append(" WHERE ").append(where);
+        }
+
+        if (ordered && !orderFields.isEmpty()) {
+            queryStr.append(" ORDER BY ");
+            for (int i = 0; i < orderFields.size(); i++) {
+                if (i > 0) {
+                    queryStr.append(", ");
+                }
+                queryStr.append("p.").append(orderFields.get(i));
+                if (descending.get(i)) {
+                    queryStr.append(" DESC");
+                }
+            }
+        }
+        return queryStr.toString();
+    }
+
+    private EntityQuery<A> compare(String field, String operator, Object value) {
+        checkField(field);
+        if (value == null) {
+            throw new IllegalArgumentException("Value may not be null");
+        }
+        conditions.add("p." + field + " " + operator + " :p" + values.size());
+        values.add(value);
+        return this;
+    }
+
+    private EntityQuery<A> order(String field, boolean desc) {
+        checkField(field);
+        orderFields.add(field);
+        descending.add(desc);
+        return this;
+    }
+
+    private void checkField(String field) {
+        if (field == null || !FIELD_PATH.matcher(field).matches()) {
+            throw new IllegalArgumentException("Invalid field name: " + field);
+        }
+    }
+
+}
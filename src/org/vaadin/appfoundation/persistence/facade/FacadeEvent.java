@@ -0,0 +1,223 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Describes a completed facade operation. Events are created by
+ * {@link InstrumentedFacade} and given to its {@link FacadeListener}s.
+ * 
+ * @author Kim
+ * 
+ */
+public class FacadeEvent {
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+    private static final Pattern NUMBER_LITERAL = Pattern
+            .compile("(?<![\\w:.])\\d+(\\.\\d+)?\\b");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final FacadeOperation operation;
+
+    private final Class<?> entityClass;
+
+    private final String query;
+
+    private final Map<String, Object> parameters;
+
+    private final long duration;
+
+    private final int rows;
+
+    private final Throwable failure;
+
+    /**
+     * Constructor.
+     * 
+     * @param operation
+     *            The kind of the operation
+     * @param entityClass
+     *            The entity class of the operation or null if not known
+     * @param query
+     *            The query string or where clause of the operation, or null
+     *            if the operation wasn't given one
+     * @param parameters
+     *            The query parameters or null
+     * @param duration
+     *            How long the operation took in nanoseconds
+     * @param rows
+     *            The number of entities or rows read or written, or -1 if not
+     *            known
+     * @param failure
+     *            The exception thrown by the operation or null if it
+     *            succeeded
+     */
+    public FacadeEvent(FacadeOperation operation, Class<?> entityClass,
+            String query, Map<String, Object> parameters, long duration,
+            int rows, Throwable failure) {
+        this.operation = operation;
+        this.entityClass = entityClass;
+        this.query = query;
+        this.parameters = parameters;
+        this.duration = duration;
+        this.rows = rows;
+        this.failure = failure;
+    }
+
+    /**
+     * Returns the kind of the operation.
+     * 
+     * @return The operation
+     */
+    public FacadeOperation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Returns the entity class of the operation.
+     * 
+     * @return Entity class or null if not known
+     */
+    public Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * Returns the query string of the operation. For operations which take
+     * a where clause instead of a whole query, such as count(), this is the
+     * where clause.
+     * 
+     * @return The query string or null if the operation wasn't given one
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Returns the query parameters of the operation. Note that the values
+     * may contain personal data, so they shouldn't be logged as such.
+     * 
+     * @return The parameters or null
+     */
+    public Map<String, Object> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Returns how long the operation took.
+     * 
+     * @return Duration in nanoseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the number of entities or rows the operation read or wrote.
+     * 
+     * @return Number of rows or -1 if not known
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the exception thrown by the operation.
+     * 
+     * @return The exception or null if the operation succeeded
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Checks if the operation failed.
+     * 
+     * @return true if the operation threw an exception
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Returns the fingerprint of the query, which is the query string with
+     * its literals replaced by question marks and its white space collapsed.
+     * Queries which differ only by their literals have the same fingerprint.
+     * 
+     * @return The fingerprint or null if the operation had no query string
+     */
+    public String getFingerprint() {
+        return fingerprint(query);
+    }
+
+    /**
+     * Returns the shapes of the query parameters: the type of each value and
+     * the size of each collection, but not the values themselves.
+     * 
+     * @return The parameter shapes, such as "{ids=ArrayList[40], name=String}"
+     */
+    public String getParameterShapes() {
+        if (parameters == null) {
+            return "{}";
+        }
+
+        Map<String, String> shapes = new TreeMap<String, String>();
+        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+            Object value = entry.getValue();
+            String shape;
+            if (value == null) {
+                shape = "null";
+            } else if (value instanceof Collection<?>) {
+                shape = value.getClass().getSimpleName() + "["
+                        + ((Collection<?>) value).size() + "]";
+            } else {
+                shape = value.getClass().getSimpleName();
+            }
+            shapes.put(entry.getKey(), shape);
+        }
+        return shapes.toString();
+    }
+
+    /**
+     * Returns the fingerprint of the given query string.
+     * 
+     * @param query
+     *            Query string
+     * @return The fingerprint or null if the query is null
+     */
+    public static String fingerprint(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        String fingerprint = STRING_LITERAL.matcher(query).replaceAll("?");
+        fingerprint = NUMBER_LITERAL.matcher(fingerprint).replaceAll("?");
+        return WHITESPACE.matcher(fingerprint).replaceAll(" ").trim();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder description = new StringBuilder();
+        description.append(operation);
+        if (entityClass != null) {
+            description.append(" ").append(entityClass.getSimpleName());
+        }
+        description.append(" took ").append(duration / 1000000).append(" ms");
+        if (rows >= 0) {
+            description.append(", ").append(rows).append(" rows");
+        }
+        if (query != null) {
+            description.append(": ").append(getFingerprint()).append(" ")
+                    .append(getParameterShapes());
+        }
+        if (failure != null) {
+            description.append(", failed with ").append(failure);
+        }
+        return description.toString();
+    }
+
+}
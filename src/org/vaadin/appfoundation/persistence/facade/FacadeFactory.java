@@ -1,14 +1,22 @@
 package org.vaadin.appfoundation.persistence.facade;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Factory class for creating and managing facades in the application.
  * 
+ * The registry is safe to use from several threads at once. Looking up a
+ * facade never locks, and a registered facade is fully initialized before
+ * any other thread can see it.
+ * 
  * @author Kim
  * 
  */
@@ -16,9 +24,9 @@ public class FacadeFactory implements Serializable {
 
     private static final long serialVersionUID = -7409448835737552324L;
 
-    private static Map<String, IFacade> facades = new HashMap<String, IFacade>();
+    private static final ConcurrentMap<String, IFacade> facades = new ConcurrentHashMap<String, IFacade>();
 
-    private static IFacade defaultFacade;
+    private static final AtomicReference<IFacade> defaultFacade = new AtomicReference<IFacade>();
 
     /**
      * Register a new JPAFacade to the application.
@@ -36,6 +44,50 @@ public class FacadeFactory implements Serializable {
         registerFacade(JPAFacade.class, name, isDefault);
     }
 
+    /**
+     * Register a new JPAFacade with the given connection pool configuration to
+     * the application. The pool metrics are available through the
+     * getPoolMetrics() method of the facade.
+     * 
+     * @param name
+     *            The persistence-unit name in the persistence.xml file.
+     * @param isDefault
+     *            Should this facade be the default facade to be used in the
+     *            application.
+     * @param pool
+     *            Configuration of the connection pools
+     */
+    public static void registerFacade(String name, boolean isDefault,
+            ConnectionPoolConfig pool) {
+        checkName(name);
+        JPAFacade facadeImpl = new JPAFacade();
+        facadeImpl.init(name, pool);
+        putCreatedFacade(name, facadeImpl, isDefault);
+    }
+
+    /**
+     * Register a new JPAFacade to the application without creating its entity
+     * manager factory yet. The factory is created when the facade is used for
+     * the first time, or in the background by warmUpInBackground(), which
+     * speeds up the application startup.
+     * 
+     * @param name
+     *            The persistence-unit name in the persistence.xml file.
+     * @param isDefault
+     *            Should this facade be the default facade to be used in the
+     *            application.
+     * @param pool
+     *            Configuration of the connection pools or null if the
+     *            settings of the persistence.xml file are used as they are
+     */
+    public static void registerLazyFacade(String name, boolean isDefault,
+            ConnectionPoolConfig pool) {
+        checkName(name);
+        JPAFacade facadeImpl = new JPAFacade();
+        facadeImpl.initLazily(name, pool);
+        putCreatedFacade(name, facadeImpl, isDefault);
+    }
+
     /**
      * Register a new facade to the application.
      * 
@@ -52,11 +104,7 @@ public class FacadeFactory implements Serializable {
     public static void registerFacade(Class<? extends IFacade> facade,
             String name, boolean isDefault) throws InstantiationException,
             IllegalAccessException {
-        // Check if there already exists a facade with this name.
-        if (facades.containsKey(name)) {
-            throw new IllegalArgumentException("A facade with the name '"
-                    + name + "' exists already!");
-        }
+        checkName(name);
 
         // Create a new instance of the facade
         IFacade facadeImpl = facade.newInstance();
@@ -64,13 +112,91 @@ public class FacadeFactory implements Serializable {
         // Initialize the facade
         facadeImpl.init(name);
 
-        // Put the facade in our static map
-        facades.put(name, facadeImpl);
+        putCreatedFacade(name, facadeImpl, isDefault);
+    }
+
+    /**
+     * Register an already initialized facade instance to the application,
+     * for example a facade composed of other facades.
+     * 
+     * @param name
+     *            The name of the facade
+     * @param facade
+     *            The facade instance
+     * @param isDefault
+     *            Should this facade be the default facade to be used in the
+     *            application.
+     */
+    public static void registerFacade(String name, IFacade facade,
+            boolean isDefault) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+        checkName(name);
+        putFacade(name, facade, isDefault);
+    }
+
+    /**
+     * Puts a facade created by the factory in the factory. If another thread
+     * has registered a facade with the same name in the meantime, the created
+     * facade is killed.
+     * 
+     * @param name
+     *            The name of the facade
+     * @param facadeImpl
+     *            The facade instance
+     * @param isDefault
+     *            Should this facade be the default facade
+     */
+    private static void putCreatedFacade(String name, IFacade facadeImpl,
+            boolean isDefault) {
+        try {
+            putFacade(name, facadeImpl, isDefault);
+        } catch (IllegalArgumentException e) {
+            facadeImpl.kill();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks that there isn't a facade with the given name yet. This check
+     * only avoids creating facades needlessly, putFacade() makes the final
+     * check.
+     * 
+     * @param name
+     *            The name of the new facade
+     */
+    private static void checkName(String name) {
+        // Check if there already exists a facade with this name.
+        if (facades.containsKey(name)) {
+            throw new IllegalArgumentException("A facade with the name '"
+                    + name + "' exists already!");
+        }
+    }
+
+    /**
+     * Puts an initialized facade in the factory.
+     * 
+     * @param name
+     *            The name of the facade
+     * @param facadeImpl
+     *            The facade instance
+     * @param isDefault
+     *            Should this facade be the default facade
+     */
+    private static void putFacade(String name, IFacade facadeImpl,
+            boolean isDefault) {
+        // Put the facade in our static map, unless another thread got there
+        // first
+        if (facades.putIfAbsent(name, facadeImpl) != null) {
+            throw new IllegalArgumentException("A facade with the name '"
+                    + name + "' exists already!");
+        }
 
         // Should this facade instance be used as the default facade in the
         // application?
         if (isDefault) {
-            defaultFacade = facadeImpl;
+            defaultFacade.set(facadeImpl);
         }
     }
 
@@ -80,7 +206,7 @@ public class FacadeFactory implements Serializable {
      * @return The default facade instance
      */
     public static IFacade getFacade() {
-        return defaultFacade;
+        return defaultFacade.get();
     }
 
     /**
@@ -115,7 +241,7 @@ public class FacadeFactory implements Serializable {
         }
 
         // Everything is ok, change the default facade
-        defaultFacade = facade;
+        defaultFacade.set(facade);
     }
 
     /**
@@ -125,17 +251,17 @@ public class FacadeFactory implements Serializable {
      *            Persistence-unit name (defined in the persistence.xml)
      */
     public static void removeFacade(String name) {
-        if (facades.containsKey(name)) {
-            IFacade facade = facades.get(name);
+        if (name == null) {
+            return;
+        }
 
+        IFacade facade = facades.remove(name);
+        if (facade != null) {
             // If the facade is same instance as the default facade, then remove
             // the default facade reference.
-            if (facade == defaultFacade) {
-                defaultFacade = null;
-            }
+            defaultFacade.compareAndSet(facade, null);
 
             facade.kill();
-            facades.remove(name);
         }
     }
 
@@ -143,12 +269,42 @@ public class FacadeFactory implements Serializable {
      * Removes all facade references from the factory.
      */
     public static void clear() {
-        // Store the names to a temporary set to avoid
-        // ConcurrentModificationException
-        Set<String> names = new HashSet<String>(facades.keySet());
-        for (String name : names) {
+        // The key set of the concurrent map may be iterated while it is being
+        // modified
+        for (String name : facades.keySet()) {
             removeFacade(name);
         }
     }
 
+    /**
+     * Warms up all registered JPAFacades in a background thread, so that the
+     * first requests of the application don't have to wait for the entity
+     * manager factories to be created and connected to the database. See
+     * JPAFacade.warmUp().
+     * 
+     * @return A Future which is done once all the facades have been warmed up
+     *         and which holds the exception if warming up one of them failed
+     */
+    public static Future<Void> warmUpInBackground() {
+        final List<JPAFacade> jpaFacades = new ArrayList<JPAFacade>();
+        for (IFacade facade : facades.values()) {
+            if (facade instanceof JPAFacade) {
+                jpaFacades.add((JPAFacade) facade);
+            }
+        }
+
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            public Void call() {
+                for (JPAFacade facade : jpaFacades) {
+                    facade.warmUp();
+                }
+                return null;
+            }
+        });
+        Thread thread = new Thread(task, "facade-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
 }
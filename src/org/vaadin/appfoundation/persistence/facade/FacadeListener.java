@@ -0,0 +1,22 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+/**
+ * Listener notified of every operation executed through an
+ * {@link InstrumentedFacade}. The listener is called on the thread which
+ * executed the operation, right after the operation has completed, so it
+ * should return quickly.
+ * 
+ * @author Kim
+ * 
+ */
+public interface FacadeListener {
+
+    /**
+     * Called when an operation has completed, successfully or not.
+     * 
+     * @param event
+     *            Details of the operation
+     */
+    public void operationCompleted(FacadeEvent event);
+
+}
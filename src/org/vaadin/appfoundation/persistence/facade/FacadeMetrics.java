@@ -0,0 +1,100 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A listener which collects per-operation metrics from an
+ * {@link InstrumentedFacade}: a latency histogram, the number of rows read or
+ * written and the number of failed operations. Recording an operation doesn't
+ * lock, so the metrics can be collected in production.
+ * 
+ * @author Kim
+ * 
+ */
+public class FacadeMetrics implements FacadeListener {
+
+    private final Map<FacadeOperation, LatencyHistogram> latencies = new EnumMap<FacadeOperation, LatencyHistogram>(
+            FacadeOperation.class);
+
+    private final Map<FacadeOperation, AtomicLong> rows = new EnumMap<FacadeOperation, AtomicLong>(
+            FacadeOperation.class);
+
+    private final Map<FacadeOperation, AtomicLong> failures = new EnumMap<FacadeOperation, AtomicLong>(
+            FacadeOperation.class);
+
+    /**
+     * Constructor.
+     */
+    public FacadeMetrics() {
+        // The maps are filled up front, so that they are only read afterwards
+        // and need no locking
+        for (FacadeOperation operation : FacadeOperation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            rows.put(operation, new AtomicLong());
+            failures.put(operation, new AtomicLong());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void operationCompleted(FacadeEvent event) {
+        FacadeOperation operation = event.getOperation();
+        latencies.get(operation).record(event.getDuration());
+        if (event.getRows() > 0) {
+            rows.get(operation).addAndGet(event.getRows());
+        }
+        if (event.isFailed()) {
+            failures.get(operation).incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the latencies of the given operation. The count of the
+     * histogram is the number of executed operations.
+     * 
+     * @param operation
+     *            The operation
+     * @return Latency histogram
+     */
+    public LatencyHistogram getLatency(FacadeOperation operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * Returns the total number of rows read or written by the given
+     * operation.
+     * 
+     * @param operation
+     *            The operation
+     * @return Number of rows
+     */
+    public long getRows(FacadeOperation operation) {
+        return rows.get(operation).get();
+    }
+
+    /**
+     * Returns the number of failed executions of the given operation.
+     * 
+     * @param operation
+     *            The operation
+     * @return Number of failures
+     */
+    public long getFailures(FacadeOperation operation) {
+        return failures.get(operation).get();
+    }
+
+    /**
+     * Resets all the metrics.
+     */
+    public void reset() {
+        for (FacadeOperation operation : FacadeOperation.values()) {
+            latencies.get(operation).reset();
+            rows.get(operation).set(0);
+            failures.get(operation).set(0);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+/**
+ * The kinds of operations reported to {@link FacadeListener}s.
+ * 
+ * @author Kim
+ * 
+ */
+public enum FacadeOperation {
+
+    /**
+     * Fetching a single entity by its id or by a query.
+     */
+    FIND,
+
+    /**
+     * Fetching several entities by their ids.
+     */
+    FIND_ALL,
+
+    /**
+     * Fetching a list of entities.
+     */
+    LIST,
+
+    /**
+     * Fetching a keyset page of entities.
+     */
+    PAGE,
+
+    /**
+     * Opening a cursor over entities.
+     */
+    CURSOR,
+
+    /**
+     * Counting entities.
+     */
+    COUNT,
+
+    /**
+     * Fetching field values or ids of entities.
+     */
+    FIELD_VALUES,
+
+    /**
+     * Storing a single entity.
+     */
+    STORE,
+
+    /**
+     * Storing several entities.
+     */
+    STORE_ALL,
+
+    /**
+     * Updating a single entity with a mutation, including its retries.
+     */
+    UPDATE,
+
+    /**
+     * Deleting a single entity.
+     */
+    DELETE,
+
+    /**
+     * Deleting several entities.
+     */
+    DELETE_ALL,
+
+    /**
+     * Deleting entities with a bulk statement.
+     */
+    DELETE_WHERE,
+
+    /**
+     * Updating entities with a bulk statement.
+     */
+    UPDATE_WHERE,
+
+    /**
+     * Refreshing an entity from the database.
+     */
+    REFRESH,
+
+    /**
+     * Executing a unit of work.
+     */
+    TRANSACTION
+
+}
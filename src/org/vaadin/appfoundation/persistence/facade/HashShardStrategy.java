@@ -0,0 +1,34 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Spreads the entities evenly over the shards by the hash of their ids. The
+ * id bits are mixed before taking the modulo, so that ids which only differ
+ * in their high bits, such as the ids of a {@link TimeOrderedIdGenerator},
+ * are spread evenly too.
+ * 
+ * @author Kim
+ * 
+ */
+public class HashShardStrategy implements ShardStrategy, Serializable {
+
+    private static final long serialVersionUID = 7391736210394570911L;
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getShard(Class<? extends AbstractPojo> c, long id, int shards) {
+        // The finalizer of MurmurHash3
+        long hash = id;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) ((hash & Long.MAX_VALUE) % shards);
+    }
+
+}
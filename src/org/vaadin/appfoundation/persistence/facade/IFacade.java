@@ -34,6 +34,21 @@ public interface IFacade {
      */
     public <A extends AbstractPojo> A find(Class<A> clazz, Long id);
 
+    /**
+     * Fetch the entity objects with the given primary keys from the database.
+     * The entities are fetched with as few queries as possible instead of one
+     * query per id. Ids which weren't found are left out of the result.
+     * 
+     * @param clazz
+     *            The class of the entities
+     * @param ids
+     *            The primary keys of the entity objects to be fetched
+     * @return The found entities mapped by their ids, in the order of the
+     *         given ids
+     */
+    public <A extends AbstractPojo> Map<Long, A> findAll(Class<A> clazz,
+            Collection<Long> ids);
+
     /**
      * Fetches all entities in the database of the given entity type
      * 
@@ -85,6 +100,148 @@ public interface IFacade {
     public <A extends AbstractPojo> List<A> list(String queryStr,
             Map<String, Object> parameters, int startIndex, int amount);
 
+    /**
+     * Fetches a page of entities of the given entity type ordered by their
+     * ids. Unlike list(Class, int, int), the page is located by seeking past
+     * the last entity of the previous page instead of skipping over a number
+     * of rows, so fetching a deep page costs as much as fetching the first
+     * one.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param continuationToken
+     *            The continuation token of the previous page or null for the
+     *            first page
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return A page of A entities
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String continuationToken, int amount);
+
+    /**
+     * Fetches a page of entities of the given entity type ordered by the given
+     * field. Entities with equal values in the field are ordered by their ids.
+     * The field may not contain null values.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param keyField
+     *            Name of the field by which the entities are ordered
+     * @param continuationToken
+     *            The continuation token of the previous page or null for the
+     *            first page
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return A page of A entities
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String keyField, String continuationToken, int amount);
+
+    /**
+     * Opens a cursor over all entities in the database of the given entity
+     * type. The entities are fetched from the database in chunks of the given
+     * size, so the whole result set is never held in memory at once. The
+     * returned cursor must be closed once it is no longer needed.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param fetchSize
+     *            The number of entities fetched from the database at a time
+     * @return A cursor over the A entities
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(Class<A> clazz,
+            int fetchSize);
+
+    /**
+     * Opens a cursor over all entities in the database for the given query.
+     * The entities are fetched from the database in chunks of the given size,
+     * so the whole result set is never held in memory at once. The returned
+     * cursor must be closed once it is no longer needed.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param fetchSize
+     *            The number of entities fetched from the database at a time
+     * @return A cursor over the A entities
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(String queryStr,
+            Map<String, Object> parameters, int fetchSize);
+
+    /**
+     * Fetch a specific entity object from the database in read-only mode. The
+     * returned object may be shared with other callers and must not be
+     * modified. In return, the object is not copied or tracked for changes,
+     * which makes read-only queries considerably cheaper than normal ones.
+     * 
+     * @param clazz
+     *            The class of the entity
+     * @param id
+     *            The primary key of the entity object to be fetched
+     * @return An instance of A or null if it wasn't found
+     */
+    public <A extends AbstractPojo> A findReadOnly(Class<A> clazz, Long id);
+
+    /**
+     * Fetches all entities in the database of the given entity type in
+     * read-only mode. The returned objects may be shared with other callers
+     * and must not be modified.
+     * 
+     * @param clazz
+     *            Entity class
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz);
+
+    /**
+     * Fetches entities of the given entity type in read-only mode. The
+     * returned objects may be shared with other callers and must not be
+     * modified.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz,
+            int startIndex, int amount);
+
+    /**
+     * Fetches all entities for the given query in read-only mode. The
+     * returned objects may be shared with other callers and must not be
+     * modified.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters);
+
+    /**
+     * Fetches entities for the given query in read-only mode. The returned
+     * objects may be shared with other callers and must not be modified.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount);
+
     /**
      * Fetch a specific entity object from the database for the given query
      * 
@@ -98,7 +255,8 @@ public interface IFacade {
             Map<String, Object> parameters);
 
     /**
-     * Store an entity to the database
+     * Store an entity to the database. If the entity tracks its changes, only
+     * the changed fields need to be written.
      * 
      * @param pojo
      *            An instance of the entity to be stored
@@ -114,6 +272,43 @@ public interface IFacade {
      */
     public <A extends AbstractPojo> void storeAll(Collection<A> pojos);
 
+    /**
+     * Store a set of entities within the same transaction. If refresh is
+     * false, only the ids and consistency versions of the entities are updated
+     * after they have been stored, instead of reloading all their fields from
+     * the database.
+     * 
+     * @param pojos
+     *            Set of entities which are to be stored as a batch within the
+     *            same transaction
+     * @param refresh
+     *            Should the entities be refreshed after they have been stored
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos,
+            boolean refresh);
+
+    /**
+     * Reads an entity, applies the mutation to it and stores it. If the entity
+     * has been updated concurrently, so that storing it fails on its
+     * consistency version, the entity is read again and the mutation
+     * reapplied after a randomized backoff, up to a limited number of
+     * attempts. Within a unit of work a conflict is not retried, since the
+     * transaction can no longer commit.
+     * 
+     * @param c
+     *            Entity class
+     * @param id
+     *            Id of the entity
+     * @param mutation
+     *            The change made to the entity
+     * @return The stored entity or null if there is no entity with the id
+     * @throws javax.persistence.OptimisticLockException
+     *             if the entity still conflicts after the last attempt. The
+     *             exception may be wrapped in a RollbackException.
+     */
+    public <A extends AbstractPojo> A update(Class<A> c, Long id,
+            EntityMutation<A> mutation);
+
     /**
      * Remove an entity from the database
      * 
@@ -131,6 +326,44 @@ public interface IFacade {
      */
     public <A extends AbstractPojo> void deleteAll(Collection<A> pojos);
 
+    /**
+     * Removes all entities of the given type which fulfill the where clause
+     * with a single bulk DELETE statement. The entities are not loaded, and
+     * the removal does not cascade to related entities.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param whereClause
+     *            The statement's WHERE clause, referring to the entity as p
+     * @param parameters
+     *            A map of parameters and parameter values used in the
+     *            statement
+     * @return The number of removed entities
+     */
+    public int deleteWhere(Class<? extends AbstractPojo> c,
+            String whereClause, Map<String, Object> parameters);
+
+    /**
+     * Updates fields of all entities of the given type which fulfill the where
+     * clause with a single bulk UPDATE statement. The entities are not loaded.
+     * The consistency versions of the updated entities are incremented, so
+     * instances read before the update can no longer be stored.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param assignments
+     *            The statement's SET clause, e.g. "p.foo = :foo"
+     * @param whereClause
+     *            The statement's WHERE clause, referring to the entity as p
+     * @param parameters
+     *            A map of parameters and parameter values used in the
+     *            statement
+     * @return The number of updated entities
+     */
+    public int updateWhere(Class<? extends AbstractPojo> c,
+            String assignments, String whereClause,
+            Map<String, Object> parameters);
+
     /**
      * Update all the fields in the entity to the most up-to-date version of
      * data found in the database. Any changes made to the entity object before
@@ -141,6 +374,20 @@ public interface IFacade {
      */
     public <A extends AbstractPojo> void refresh(A pojo);
 
+    /**
+     * Executes the given unit of work within a single transaction. All facade
+     * calls made by the unit of work on the current thread share the same
+     * connection and transaction, which is committed once the unit of work
+     * returns and rolled back if it throws an exception. If a unit of work is
+     * started while another one is already running on the same thread, the
+     * inner unit joins the outer unit's transaction.
+     * 
+     * @param work
+     *            The unit of work to be executed
+     * @return The result returned by the unit of work
+     */
+    public <T> T inTransaction(UnitOfWork<T> work);
+
     /**
      * Close the facade. Closes the connection.
      */
@@ -191,4 +438,123 @@ public interface IFacade {
      */
     public List<?> getFieldValues(Class<? extends AbstractPojo> c,
             String field, String whereConditions, Map<String, Object> parameters);
+
+    /**
+     * Fetches the values of several fields for all entities which match the
+     * set criteria. The entities themselves are not loaded.
+     * 
+     * @param c
+     *            Entity class
+     * @param fields
+     *            Fields whose values are returned
+     * @param whereConditions
+     *            Where conditions or null
+     * @param parameters
+     *            Parameter values for the where conditions
+     * @return A list of rows, each holding the values of the fields in the
+     *         given order
+     */
+    public List<Object[]> getFieldValues(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters);
+
+    /**
+     * Fetches the values of several fields for all entities which match the
+     * set criteria and creates a result object of the given class for each
+     * entity. The result class must have a public constructor taking the
+     * field values in the given order. The entities themselves are not loaded.
+     * 
+     * @param c
+     *            Entity class
+     * @param resultClass
+     *            Class of the result objects
+     * @param fields
+     *            Fields whose values are passed to the constructor
+     * @param whereConditions
+     *            Where conditions or null
+     * @param parameters
+     *            Parameter values for the where conditions
+     * @return A list of result objects
+     */
+    public <T> List<T> getFieldValues(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters);
+
+    /**
+     * Fetches the ids of all entities which match the set criteria in
+     * ascending order.
+     * 
+     * @param c
+     *            Entity class
+     * @param whereConditions
+     *            Where conditions or null
+     * @param parameters
+     *            Parameter values for the where conditions
+     * @return The ids of the matching entities
+     */
+    public long[] getIds(Class<? extends AbstractPojo> c,
+            String whereConditions, Map<String, Object> parameters);
+
+    /**
+     * Fetches the entities matching the given query, in the order and within
+     * the limits set in the query.
+     * 
+     * @param query
+     *            The query
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> list(EntityQuery<A> query);
+
+    /**
+     * Counts the entities matching the given query. The orderings and limits
+     * of the query are ignored.
+     * 
+     * @param query
+     *            The query
+     * @return Number of matching entities
+     */
+    public Long count(EntityQuery<? extends AbstractPojo> query);
+
+    /**
+     * Fetches a page of the entities matching the given query. The query may
+     * be ordered by a single ascending field, which is then used as the key
+     * field of the pages, or not at all, in which case the pages are ordered
+     * by id. The limits of the query are ignored.
+     * 
+     * @param query
+     *            The query
+     * @param continuationToken
+     *            The continuation token of the previous page or null for the
+     *            first page
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return A page of A entities
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(EntityQuery<A> query,
+            String continuationToken, int amount);
+
+    /**
+     * Opens a cursor over the entities matching the given query. The returned
+     * cursor must be closed once it is no longer needed.
+     * 
+     * @param query
+     *            The query
+     * @param fetchSize
+     *            The number of entities fetched from the database at a time
+     * @return A cursor over the A entities
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            EntityQuery<A> query, int fetchSize);
+
+    /**
+     * Fetches the values of the fields selected in the given query from the
+     * matching entities. Each row holds the values in the order the fields
+     * were selected.
+     * 
+     * @param query
+     *            The query, with the fields selected with select()
+     * @return List of rows of field values
+     */
+    public List<Object[]> getFieldValues(
+            EntityQuery<? extends AbstractPojo> query);
 }
@@ -0,0 +1,154 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.sequencing.Sequence;
+import org.eclipse.persistence.sessions.DatasourceLogin;
+import org.eclipse.persistence.sessions.Session;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Session customizer which selects how the ids of the entities extending
+ * AbstractPojo are allocated in a persistence unit. The allocation is chosen
+ * with the persistence unit property {@link #ALLOCATION_PROPERTY}:
+ * <ul>
+ * <li>{@link #POOLED} takes the ids from the sequence table in blocks of
+ * {@link #BLOCK_SIZE_PROPERTY} ids, so only one insert per block has to
+ * update the sequence table.</li>
+ * <li>{@link #TIME_ORDERED} generates the ids in memory with a
+ * {@link TimeOrderedIdGenerator}, whose node id is given in
+ * {@link #NODE_ID_PROPERTY}. Each application instance using the same
+ * database needs a node id of its own.</li>
+ * </ul>
+ * If the property isn't set, the ids are allocated as configured by the
+ * entity mappings.
+ * 
+ * The customizer is taken into use with the persistence unit property
+ * eclipselink.session.customizer. The PoolMetricsCustomizer set by
+ * ConnectionPoolConfig applies the id allocation as well.
+ * 
+ * Entities which already have an id keep it with both allocations.
+ * 
+ * @author Kim
+ * 
+ */
+public class IdAllocationCustomizer implements SessionCustomizer {
+
+    /**
+     * The persistence unit property selecting the id allocation.
+     */
+    public static final String ALLOCATION_PROPERTY = "org.vaadin.appfoundation.id-allocation";
+
+    /**
+     * The persistence unit property holding the number of ids allocated at a
+     * time with pooled allocation.
+     */
+    public static final String BLOCK_SIZE_PROPERTY = "org.vaadin.appfoundation.id-block-size";
+
+    /**
+     * The persistence unit property holding the node id of time-ordered
+     * allocation.
+     */
+    public static final String NODE_ID_PROPERTY = "org.vaadin.appfoundation.id-node";
+
+    /**
+     * Allocates the ids from the sequence table in blocks.
+     */
+    public static final String POOLED = "pooled";
+
+    /**
+     * Generates time-ordered ids in memory.
+     */
+    public static final String TIME_ORDERED = "time-ordered";
+
+    /**
+     * The number of ids allocated at a time if no block size is given.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 500;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void customize(Session session) throws Exception {
+        Object allocation = session.getProperty(ALLOCATION_PROPERTY);
+        if (allocation == null) {
+            return;
+        }
+
+        DatasourceLogin login = (DatasourceLogin) session.getDatasourceLogin();
+        if (POOLED.equals(allocation)) {
+            int blockSize = getInt(session, BLOCK_SIZE_PROPERTY,
+                    DEFAULT_BLOCK_SIZE);
+            if (blockSize < 1) {
+                throw new IllegalArgumentException(
+                        "Id block size must be positive");
+            }
+            for (String name : getSequenceNames(session)) {
+                Sequence sequence = (Sequence) getSequence(login, name)
+                        .clone();
+                sequence.setName(name);
+                sequence.setPreallocationSize(blockSize);
+                login.addSequence(sequence);
+            }
+        } else if (TIME_ORDERED.equals(allocation)) {
+            // One generator is enough for all the entity classes, as the ids
+            // it generates are unique anyway
+            TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(
+                    getInt(session, NODE_ID_PROPERTY, 0));
+            for (String name : getSequenceNames(session)) {
+                login.addSequence(new TimeOrderedSequence(name, generator));
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown id allocation "
+                    + allocation);
+        }
+    }
+
+    /**
+     * Returns the names of the sequences used by the entities extending
+     * AbstractPojo.
+     * 
+     * @param session
+     *            The session being customized
+     * @return The sequence names
+     */
+    private Set<String> getSequenceNames(Session session) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (ClassDescriptor descriptor : session.getDescriptors().values()) {
+            if (AbstractPojo.class.isAssignableFrom(descriptor.getJavaClass())
+                    && descriptor.usesSequenceNumbers()) {
+                names.add(descriptor.getSequenceNumberName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the sequence of the given name, or the default sequence if the
+     * name hasn't been given a sequence of its own.
+     */
+    private Sequence getSequence(DatasourceLogin login, String name) {
+        Sequence sequence = login.getSequence(name);
+        return sequence != null ? sequence : login.getDefaultSequence();
+    }
+
+    /**
+     * Reads an integer property of the persistence unit. The properties of
+     * the persistence.xml file are strings, while those given in code may be
+     * numbers.
+     */
+    private int getInt(Session session, String property, int defaultValue) {
+        Object value = session.getProperty(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return Integer.parseInt(value.toString().trim());
+    }
+
+}
@@ -0,0 +1,1313 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.RollbackException;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.data.EntityAccessor;
+
+/**
+ * A facade which keeps the entities in memory instead of a database. It can
+ * stand in for a JPAFacade in tests and serve read-mostly reference data
+ * without a database.
+ * 
+ * The entities of each class are kept in a concurrent map ordered by id. An
+ * index of a field is built the first time a query restricts the field to
+ * given values with = or IN, and is kept up to date from then on. Queries
+ * are written in the subset of JPQL described in {@link InMemoryQuery}.
+ * 
+ * Like a JPAFacade, the facade stores and returns copies of the entities, so
+ * changes made to an entity are not seen by others before it is stored. The
+ * copies are shallow: collections and other referenced objects are shared.
+ * The read-only methods return the stored instances without copying them.
+ * Stored entities are checked against their consistency versions, and an
+ * OptimisticLockException is thrown if the stored entity has been changed
+ * since the given one was read.
+ * 
+ * Reads never lock. Writes and units of work are serialized by a single
+ * lock, so a unit of work must not wait for another thread writing to the
+ * same facade. A failed unit of work is rolled back, but its changes are
+ * visible to other threads while it runs.
+ * 
+ * @author Kim
+ * 
+ */
+public class InMemoryFacade implements IFacade {
+
+    // Orders entities by their ids
+    private static final Comparator<AbstractPojo> ID_ORDER = new Comparator<AbstractPojo>() {
+        public int compare(AbstractPojo o1, AbstractPojo o2) {
+            return o1.getId().compareTo(o2.getId());
+        }
+    };
+
+    // The maximum number of parsed queries kept for reuse
+    private static final int QUERY_CACHE_SIZE = 500;
+
+    private final ConcurrentMap<Class<?>, Table> tables = new ConcurrentHashMap<Class<?>, Table>();
+
+    private final ConcurrentMap<String, Class<?>> entityNames = new ConcurrentHashMap<String, Class<?>>();
+
+    private final ConcurrentMap<String, InMemoryQuery> queries = new ConcurrentHashMap<String, InMemoryQuery>();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Guarded by writeLock
+    private long lastId = 0;
+
+    // The state of the entities before they were first changed in the
+    // running unit of work, or null outside units of work. Only the thread
+    // holding writeLock has one.
+    private final ThreadLocal<Map<Table, Map<Long, AbstractPojo>>> undoLog = new ThreadLocal<Map<Table, Map<Long, AbstractPojo>>>();
+
+    // Set when a nested unit of work fails, so that the outer one is rolled
+    // back
+    private boolean rollbackOnly = false;
+
+    private String name;
+
+    // Retry settings and conflict counters of update()
+    private final UpdateRetry updateRetry = new UpdateRetry();
+
+    /**
+     * The entities of a single class.
+     */
+    private class Table {
+
+        private final Class<?> type;
+
+        private final ConcurrentSkipListMap<Long, AbstractPojo> rows = new ConcurrentSkipListMap<Long, AbstractPojo>();
+
+        // The ids of the entities by the index keys of the values of a field
+        private final ConcurrentMap<String, ConcurrentMap<Object, Set<Long>>> indexes = new ConcurrentHashMap<String, ConcurrentMap<Object, Set<Long>>>();
+
+        Table(Class<?> type) {
+            this.type = type;
+        }
+
+        /**
+         * Returns the index of the given field, building it if needed.
+         */
+        ConcurrentMap<Object, Set<Long>> getIndex(String field) {
+            ConcurrentMap<Object, Set<Long>> index = indexes.get(field);
+            if (index != null) {
+                return index;
+            }
+
+            // The index is built while no one is writing, so that it doesn't
+            // miss any changes
+            writeLock.lock();
+            try {
+                index = indexes.get(field);
+                if (index == null) {
+                    index = new ConcurrentHashMap<Object, Set<Long>>();
+                    EntityAccessor accessor = EntityAccessor.forClass(type);
+                    for (AbstractPojo row : rows.values()) {
+                        addToIndex(index, accessor.getValue(row, field), row
+                                .getId());
+                    }
+                    indexes.put(field, index);
+                }
+                return index;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Stores a row. Must be called while holding writeLock.
+         */
+        void put(AbstractPojo row) {
+            AbstractPojo old = rows.get(row.getId());
+            recordUndo(this, row.getId(), old);
+
+            // The new values are added to the indexes before the row is
+            // replaced and the old values are removed after it, so that a
+            // concurrent reader always finds the row in the index
+            EntityAccessor accessor = EntityAccessor.forClass(type);
+            for (Map.Entry<String, ConcurrentMap<Object, Set<Long>>> entry : indexes
+                    .entrySet()) {
+                addToIndex(entry.getValue(), accessor.getValue(row, entry
+                        .getKey()), row.getId());
+            }
+            rows.put(row.getId(), row);
+            if (old != null) {
+                removeFromIndexes(old, row);
+            }
+        }
+
+        /**
+         * Removes a row. Must be called while holding writeLock.
+         */
+        void remove(Long id) {
+            AbstractPojo old = rows.remove(id);
+            if (old != null) {
+                recordUndo(this, id, old);
+                removeFromIndexes(old, null);
+            }
+        }
+
+        private void addToIndex(ConcurrentMap<Object, Set<Long>> index,
+                Object value, Long id) {
+            // Null values never match a condition, so they aren't indexed
+            if (value == null) {
+                return;
+            }
+
+            Object key = InMemoryQuery.indexKey(value);
+            Set<Long> ids = index.get(key);
+            if (ids == null) {
+                ids = Collections
+                        .newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+                index.put(key, ids);
+            }
+            ids.add(id);
+        }
+
+        /**
+         * Removes the values of the old row from the indexes, unless the new
+         * row has the same values.
+         */
+        private void removeFromIndexes(AbstractPojo old, AbstractPojo row) {
+            EntityAccessor accessor = EntityAccessor.forClass(type);
+            for (Map.Entry<String, ConcurrentMap<Object, Set<Long>>> entry : indexes
+                    .entrySet()) {
+                Object oldValue = accessor.getValue(old, entry.getKey());
+                if (oldValue == null) {
+                    continue;
+                }
+                Object oldKey = InMemoryQuery.indexKey(oldValue);
+                if (row != null) {
+                    Object value = accessor.getValue(row, entry.getKey());
+                    if (value != null
+                            && oldKey.equals(InMemoryQuery.indexKey(value))) {
+                        continue;
+                    }
+                }
+                Set<Long> ids = entry.getValue().get(oldKey);
+                if (ids != null) {
+                    ids.remove(old.getId());
+                    if (ids.isEmpty()) {
+                        entry.getValue().remove(oldKey);
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A cursor over a list of entities held in memory.
+     */
+    private static class ListCursor<A extends AbstractPojo> implements
+            ResultCursor<A> {
+
+        private Iterator<A> iterator;
+
+        ListCursor(List<A> items) {
+            iterator = items.iterator();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean hasNext() {
+            return iterator != null && iterator.hasNext();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public A next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return iterator.next();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void close() {
+            iterator = null;
+        }
+
+    }
+
+    /**
+     * Constructor.
+     */
+    public InMemoryFacade() {
+
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name given to this facade in init().
+     * 
+     * @return The name or null if the facade hasn't been initialized
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the retry settings of update(), which can be used for
+     * monitoring how often updates conflict.
+     * 
+     * @return The update retry settings of this facade
+     */
+    public UpdateRetry getUpdateRetry() {
+        return updateRetry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        return copy(findRow(clazz, id));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Map<Long, A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        if (clazz == null || ids == null) {
+            throw new IllegalArgumentException(
+                    "Class and ids may not be null");
+        }
+
+        Map<Long, A> found = new LinkedHashMap<Long, A>();
+        for (Long id : ids) {
+            if (id != null && !found.containsKey(id)) {
+                A pojo = find(clazz, id);
+                if (pojo != null) {
+                    found.put(id, pojo);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz) {
+        return copyAll(this.<A> select(clazz, null, null));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz,
+            int startIndex, int amount) {
+        return copyAll(limit(this.<A> select(clazz, null, null), startIndex,
+                amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters) {
+        return copyAll(this.<A> query(queryStr, parameters));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        return copyAll(limit(this.<A> query(queryStr, parameters), startIndex,
+                amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String continuationToken, int amount) {
+        return page(clazz, "id", continuationToken, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String keyField, String continuationToken, int amount) {
+        return page(clazz, keyField, null, null, continuationToken, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(Class<A> clazz,
+            int fetchSize) {
+        checkFetchSize(fetchSize);
+        return new ListCursor<A>(list(clazz));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(String queryStr,
+            Map<String, Object> parameters, int fetchSize) {
+        checkFetchSize(fetchSize);
+        return new ListCursor<A>(this.<A> list(queryStr, parameters));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> A findReadOnly(Class<A> clazz, Long id) {
+        return (A) findRow(clazz, id);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz) {
+        return select(clazz, null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz,
+            int startIndex, int amount) {
+        return limit(this.<A> select(clazz, null, null), startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters) {
+        return query(queryStr, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        return limit(this.<A> query(queryStr, parameters), startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(String queryStr,
+            Map<String, Object> parameters) {
+        List<A> result = query(queryStr, parameters);
+        if (result.size() > 1) {
+            throw new NonUniqueResultException(
+                    "More than one result was returned from the query");
+        }
+        return result.isEmpty() ? null : copy(result.get(0));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        writeLock.lock();
+        try {
+            write(pojo);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        storeAll(pojos, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(final Collection<A> pojos,
+            boolean refresh) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        // store() updates the ids and versions of the entities, and the
+        // stored copies are otherwise identical to them, so there is nothing
+        // more to refresh
+        inTransaction(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                for (A pojo : pojos) {
+                    store(pojo);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A update(Class<A> c, Long id,
+            EntityMutation<A> mutation) {
+        // A unit of work holds the write lock, so its own updates can't
+        // conflict with other threads and retrying wouldn't help
+        return updateRetry.update(this, null, c, id, mutation,
+                undoLog.get() == null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        // If it isn't stored, it can't be removed
+        if (pojo.getId() == null) {
+            return;
+        }
+
+        writeLock.lock();
+        try {
+            for (Table table : getTables(pojo.getClass())) {
+                table.remove(pojo.getId());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void deleteAll(final Collection<A> pojos) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        inTransaction(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                for (A pojo : pojos) {
+                    delete(pojo);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int deleteWhere(Class<? extends AbstractPojo> c,
+            String whereClause, Map<String, Object> parameters) {
+        checkStatement(c, whereClause);
+        return execute(c, "DELETE FROM " + c.getSimpleName() + " p WHERE "
+                + whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int updateWhere(Class<? extends AbstractPojo> c,
+            String assignments, String whereClause,
+            Map<String, Object> parameters) {
+        checkStatement(c, whereClause);
+        if (assignments == null) {
+            throw new IllegalArgumentException("Assignments may not be null");
+        }
+        return execute(c, "UPDATE " + c.getSimpleName() + " p SET "
+                + assignments + " WHERE " + whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void refresh(A pojo) {
+        AbstractPojo row = findRow(pojo.getClass(), pojo.getId());
+        if (row == null) {
+            throw new IllegalArgumentException("Entity "
+                    + pojo.getClass().getName() + " with id " + pojo.getId()
+                    + " is not stored");
+        }
+        EntityAccessor.forClass(pojo.getClass()).copy(row, pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> T inTransaction(UnitOfWork<T> work) {
+        if (work == null) {
+            throw new IllegalArgumentException("Unit of work may not be null");
+        }
+
+        writeLock.lock();
+        try {
+            if (undoLog.get() != null) {
+                // A unit of work is already running on this thread, so join
+                // it. If this one fails, the outer one is rolled back too.
+                boolean completed = false;
+                try {
+                    T result = work.execute(this);
+                    completed = true;
+                    return result;
+                } finally {
+                    if (!completed) {
+                        rollbackOnly = true;
+                    }
+                }
+            }
+
+            undoLog.set(new LinkedHashMap<Table, Map<Long, AbstractPojo>>());
+            rollbackOnly = false;
+            boolean completed = false;
+            try {
+                T result = work.execute(this);
+                if (rollbackOnly) {
+                    throw new RollbackException(
+                            "The unit of work was marked for rollback by a "
+                                    + "nested unit of work");
+                }
+                completed = true;
+                return result;
+            } finally {
+                Map<Table, Map<Long, AbstractPojo>> undo = undoLog.get();
+                undoLog.remove();
+                if (!completed) {
+                    rollback(undo);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        // Nothing to close
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void kill() {
+        writeLock.lock();
+        try {
+            tables.clear();
+            entityNames.clear();
+            queries.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c) {
+        return (long) select(c, null, null).size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        return (long) select(c, where(c, whereClause), parameters).size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<?> getFieldValues(Class<? extends AbstractPojo> c,
+            String field, String whereConditions,
+            Map<String, Object> parameters) {
+        List<Object> values = new ArrayList<Object>();
+        for (Object[] row : getFieldValues(c, new String[] { field },
+                whereConditions, parameters)) {
+            values.add(row[0]);
+        }
+        return values;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        if (c == null || fields == null || fields.length == 0) {
+            throw new IllegalArgumentException(
+                    "Class and fields may not be null or empty");
+        }
+
+        StringBuilder selection = new StringBuilder();
+        for (String field : fields) {
+            if (selection.length() > 0) {
+                selection.append(", ");
+            }
+            selection.append("p.").append(field);
+        }
+        InMemoryQuery query = parse("SELECT " + selection + " FROM "
+                + c.getSimpleName() + " p"
+                + (whereConditions != null ? " WHERE " + whereConditions : ""));
+        return project(query, select(c, query, parameters));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> List<T> getFieldValues(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        if (resultClass == null) {
+            throw new IllegalArgumentException("Result class may not be null");
+        }
+
+        List<Object[]> rows = getFieldValues(c, fields, whereConditions,
+                parameters);
+        List<T> results = new ArrayList<T>(rows.size());
+        Constructor<T> constructor = null;
+        for (Object[] row : rows) {
+            if (constructor == null) {
+                constructor = getConstructor(resultClass, row);
+            }
+            results.add(newInstance(constructor, row));
+        }
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getIds(Class<? extends AbstractPojo> c,
+            String whereConditions, Map<String, Object> parameters) {
+        List<AbstractPojo> rows = select(c, where(c, whereConditions),
+                parameters);
+        long[] ids = new long[rows.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = rows.get(i).getId();
+        }
+        return ids;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(EntityQuery<A> query) {
+        return copyAll(select(query));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(EntityQuery<? extends AbstractPojo> query) {
+        return (long) select(query.getEntityClass(),
+                where(query.getEntityClass(), query.getWhereClause()),
+                query.getParameters()).size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(EntityQuery<A> query,
+            String continuationToken, int amount) {
+        return page(query.getEntityClass(), JPAFacade.getKeyField(query),
+                where(query.getEntityClass(), query.getWhereClause()), query
+                        .getParameters(), continuationToken, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            EntityQuery<A> query, int fetchSize) {
+        checkFetchSize(fetchSize);
+        return new ListCursor<A>(list(query));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(
+            EntityQuery<? extends AbstractPojo> query) {
+        InMemoryQuery parsed = parse(query.getSelectQueryString());
+        List<AbstractPojo> rows = select(query.getEntityClass(), parsed, query
+                .getParameters());
+        return project(parsed, limit(parsed, rows, query));
+    }
+
+    /**
+     * Returns the stored entity of the given class or its subclasses with
+     * the given id.
+     */
+    private AbstractPojo findRow(Class<?> clazz, Long id) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+        if (id == null) {
+            throw new IllegalArgumentException("Id may not be null");
+        }
+
+        for (Table table : getTables(clazz)) {
+            AbstractPojo row = table.rows.get(id);
+            if (row != null) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the tables of the given class and its subclasses.
+     */
+    private List<Table> getTables(Class<?> clazz) {
+        List<Table> found = new ArrayList<Table>(1);
+        for (Table table : tables.values()) {
+            if (clazz.isAssignableFrom(table.type)) {
+                found.add(table);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the table of the given class, creating it if needed.
+     */
+    private Table getTable(Class<?> clazz) {
+        Table table = tables.get(clazz);
+        if (table == null) {
+            table = new Table(clazz);
+            Table existing = tables.putIfAbsent(clazz, table);
+            if (existing != null) {
+                table = existing;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Resolves the class of the given entity name from the classes of the
+     * stored entities and their superclasses.
+     * 
+     * @return The class or null if no entities of the class are stored
+     */
+    private Class<?> resolve(String entityName) {
+        Class<?> clazz = entityNames.get(entityName);
+        if (clazz != null) {
+            return clazz;
+        }
+
+        for (Class<?> type : tables.keySet()) {
+            for (Class<?> current = type; current != null; current = current
+                    .getSuperclass()) {
+                if (current.getSimpleName().equals(entityName)) {
+                    entityNames.put(entityName, current);
+                    return current;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores an entity. Must be called while holding writeLock.
+     */
+    private void write(AbstractPojo pojo) {
+        Table table = getTable(pojo.getClass());
+        Long id = pojo.getId();
+        AbstractPojo old = id != null ? table.rows.get(id) : null;
+        Long version;
+        if (old != null) {
+            // The entity must not have been changed since it was read
+            Long oldVersion = old.getConsistencyVersion();
+            if (oldVersion == null ? pojo.getConsistencyVersion() != null
+                    : !oldVersion.equals(pojo.getConsistencyVersion())) {
+                throw new OptimisticLockException(pojo);
+            }
+            version = oldVersion == null ? 1L : oldVersion + 1;
+        } else {
+            if (id == null) {
+                id = ++lastId;
+            } else {
+                lastId = Math.max(lastId, id);
+            }
+            version = 1L;
+        }
+
+        AbstractPojo row = EntityAccessor.forClass(pojo.getClass()).newCopy(
+                pojo);
+        row.setId(id);
+        row.setConsistencyVersion(version);
+        table.put(row);
+
+        pojo.setId(id);
+        pojo.setConsistencyVersion(version);
+        if (pojo.isTrackingChanges()) {
+            pojo.trackChanges();
+        }
+    }
+
+    /**
+     * Remembers the state of an entity before the running unit of work
+     * changed it for the first time.
+     */
+    private void recordUndo(Table table, Long id, AbstractPojo old) {
+        Map<Table, Map<Long, AbstractPojo>> undo = undoLog.get();
+        if (undo == null) {
+            return;
+        }
+
+        Map<Long, AbstractPojo> rows = undo.get(table);
+        if (rows == null) {
+            rows = new HashMap<Long, AbstractPojo>();
+            undo.put(table, rows);
+        }
+        if (!rows.containsKey(id)) {
+            rows.put(id, old);
+        }
+    }
+
+    /**
+     * Restores the entities changed by a failed unit of work.
+     */
+    private void rollback(Map<Table, Map<Long, AbstractPojo>> undo) {
+        for (Map.Entry<Table, Map<Long, AbstractPojo>> entry : undo.entrySet()) {
+            for (Map.Entry<Long, AbstractPojo> row : entry.getValue()
+                    .entrySet()) {
+                if (row.getValue() == null) {
+                    entry.getKey().remove(row.getKey());
+                } else {
+                    entry.getKey().put(row.getValue());
+                }
+            }
+        }
+    }
+
+    private static void checkStatement(Class<? extends AbstractPojo> c,
+            String whereClause) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+        if (whereClause == null) {
+            throw new IllegalArgumentException("Where clause may not be null");
+        }
+    }
+
+    /**
+     * Executes a DELETE or UPDATE statement. The new states of the updated
+     * entities are all computed before any of them is written, so a failing
+     * assignment leaves the entities unchanged.
+     * 
+     * @return The number of removed or updated entities
+     */
+    private int execute(Class<? extends AbstractPojo> c, String queryStr,
+            Map<String, Object> parameters) {
+        InMemoryQuery statement = parse(queryStr);
+        writeLock.lock();
+        try {
+            List<AbstractPojo> rows = select(c, statement, parameters);
+            if (statement.isDelete()) {
+                for (AbstractPojo row : rows) {
+                    getTable(row.getClass()).remove(row.getId());
+                }
+                return rows.size();
+            }
+
+            List<AbstractPojo> updated = new ArrayList<AbstractPojo>(rows
+                    .size());
+            for (AbstractPojo row : rows) {
+                AbstractPojo copy = EntityAccessor.forClass(row.getClass())
+                        .newCopy(row);
+                statement.assign(copy, parameters);
+                Long version = row.getConsistencyVersion();
+                copy.setConsistencyVersion(version == null ? 1L : version + 1);
+                updated.add(copy);
+            }
+            for (AbstractPojo row : updated) {
+                getTable(row.getClass()).put(row);
+            }
+            return updated.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Parses a query string or fetches the parsed query from the cache.
+     */
+    private InMemoryQuery parse(String queryStr) {
+        InMemoryQuery query = queries.get(queryStr);
+        if (query == null) {
+            query = InMemoryQuery.parse(queryStr);
+            if (queries.size() < QUERY_CACHE_SIZE) {
+                queries.put(queryStr, query);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Parses a where clause in which the entity is called p.
+     * 
+     * @return The parsed query or null if there is no where clause
+     */
+    private InMemoryQuery where(Class<?> c, String whereClause) {
+        if (whereClause == null) {
+            return null;
+        }
+        return parse("SELECT p FROM " + c.getSimpleName() + " p WHERE "
+                + whereClause);
+    }
+
+    /**
+     * Runs a query selecting entities, without copying them.
+     */
+    @SuppressWarnings("unchecked")
+    private <A extends AbstractPojo> List<A> query(String queryStr,
+            Map<String, Object> parameters) {
+        InMemoryQuery query = parse(queryStr);
+        if (query.isCount() || query.isProjection() || query.isDelete()
+                || query.isUpdate()) {
+            throw new IllegalArgumentException(
+                    "Only queries selecting entities are supported: "
+                            + queryStr);
+        }
+
+        Class<?> clazz = resolve(query.getEntityName());
+        if (clazz == null) {
+            return new ArrayList<A>();
+        }
+        List<A> rows = select((Class<A>) clazz, query, parameters);
+        if (query.isOrdered()) {
+            Collections.sort(rows, query.getComparator());
+        }
+        return rows;
+    }
+
+    /**
+     * Runs an entity query, without copying the entities.
+     */
+    private <A extends AbstractPojo> List<A> select(EntityQuery<A> query) {
+        InMemoryQuery parsed = parse(query.getQueryString());
+        List<A> rows = select(query.getEntityClass(), parsed, query
+                .getParameters());
+        return limit(parsed, rows, query);
+    }
+
+    /**
+     * Selects the stored entities of the given class and its subclasses which
+     * match the query, in the order of their ids.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param query
+     *            The query whose where clause the entities must fulfill, or
+     *            null for all entities
+     * @param parameters
+     *            Parameter values of the query
+     * @return The stored instances of the matching entities
+     */
+    @SuppressWarnings("unchecked")
+    private <A extends AbstractPojo> List<A> select(
+            Class<? extends AbstractPojo> clazz, InMemoryQuery query,
+            Map<String, Object> parameters) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        List<Table> selected = getTables(clazz);
+        List<A> result = new ArrayList<A>();
+        for (Table table : selected) {
+            for (AbstractPojo row : getCandidates(table, query, parameters)) {
+                if (query == null || query.matches(row, parameters)) {
+                    result.add((A) row);
+                }
+            }
+        }
+        if (selected.size() > 1) {
+            Collections.sort(result, ID_ORDER);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entities of the table which may match the query, looking
+     * them up from an index if possible. The candidates are in the order of
+     * their ids.
+     */
+    private Collection<AbstractPojo> getCandidates(Table table,
+            InMemoryQuery query, Map<String, Object> parameters) {
+        String field = query != null ? query.getIndexedField() : null;
+        if (field == null) {
+            return table.rows.values();
+        }
+
+        boolean byId = "id".equals(field);
+        Map<Long, AbstractPojo> candidates = new TreeMap<Long, AbstractPojo>();
+        for (Object value : query.getIndexedValues(parameters)) {
+            if (value == null) {
+                continue;
+            }
+
+            if (byId) {
+                if (value instanceof Number) {
+                    addCandidate(table, ((Number) value).longValue(),
+                            candidates);
+                }
+            } else {
+                Set<Long> ids = table.getIndex(field).get(
+                        InMemoryQuery.indexKey(value));
+                if (ids != null) {
+                    for (Long id : ids) {
+                        addCandidate(table, id, candidates);
+                    }
+                }
+            }
+        }
+        return candidates.values();
+    }
+
+    private void addCandidate(Table table, Long id,
+            Map<Long, AbstractPojo> candidates) {
+        AbstractPojo row = table.rows.get(id);
+        if (row != null) {
+            candidates.put(id, row);
+        }
+    }
+
+    /**
+     * Fetches a page of the entities matching the where clause, ordered by
+     * the key field and id.
+     */
+    private <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            final String keyField, InMemoryQuery where,
+            Map<String, Object> parameters, String continuationToken,
+            int amount) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (keyField == null || !keyField.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+            throw new IllegalArgumentException("Invalid key field");
+        }
+
+        if (amount < 1) {
+            throw new IllegalArgumentException(
+                    "Amount must be a positive number");
+        }
+
+        List<A> rows = select(clazz, where, parameters);
+        boolean byId = "id".equals(keyField);
+        if (!byId) {
+            Collections.sort(rows, new Comparator<A>() {
+                public int compare(A o1, A o2) {
+                    int order = InMemoryQuery.compareNullsFirst(
+                            getKey(o1, keyField), getKey(o2, keyField));
+                    return order != 0 ? order : o1.getId().compareTo(
+                            o2.getId());
+                }
+            });
+        }
+
+        // Seek past the last entity of the previous page
+        int start = 0;
+        if (continuationToken != null) {
+            KeysetToken token = KeysetToken.decode(continuationToken);
+            if (!keyField.equals(token.getKeyField())) {
+                throw new IllegalArgumentException(
+                        "The continuation token was created for field '"
+                                + token.getKeyField() + "'");
+            }
+
+            while (start < rows.size()) {
+                A row = rows.get(start);
+                int order = byId ? 0 : InMemoryQuery.compareNullsFirst(getKey(
+                        row, keyField), token.getKeyValue());
+                if (order > 0 || order == 0
+                        && row.getId().compareTo(token.getId()) > 0) {
+                    break;
+                }
+                start++;
+            }
+        }
+
+        List<A> items = copyAll(rows.subList(start, Math.min(rows.size(),
+                start + amount)));
+        String nextToken = null;
+        if (start + amount < rows.size()) {
+            A last = items.get(amount - 1);
+            Object keyValue = byId ? last.getId() : getKey(last, keyField);
+            nextToken = new KeysetToken(keyField, keyValue, last.getId())
+                    .encode();
+        }
+        return new KeysetPage<A>(items, nextToken);
+    }
+
+    private static Object getKey(AbstractPojo pojo, String keyField) {
+        return EntityAccessor.forClass(pojo.getClass()).getValue(pojo,
+                keyField);
+    }
+
+    private static List<Object[]> project(InMemoryQuery query,
+            List<? extends AbstractPojo> rows) {
+        List<Object[]> values = new ArrayList<Object[]>(rows.size());
+        for (AbstractPojo row : rows) {
+            values.add(query.project(row));
+        }
+        return values;
+    }
+
+    /**
+     * Applies the ordering and limits of an entity query to the selected
+     * entities.
+     */
+    private static <A extends AbstractPojo> List<A> limit(
+            InMemoryQuery parsed, List<A> rows, EntityQuery<?> query) {
+        if (parsed.isOrdered()) {
+            Collections.sort(rows, parsed.getComparator());
+        }
+        if (!query.isLimited()) {
+            return rows;
+        }
+        return limit(rows, query.getFirstResult(),
+                query.getMaxResults() < 0 ? Integer.MAX_VALUE : query
+                        .getMaxResults());
+    }
+
+    private static <A> List<A> limit(List<A> rows, int startIndex, int amount) {
+        if (startIndex < 0 || amount < 0) {
+            throw new IllegalArgumentException(
+                    "Start index and amount may not be negative");
+        }
+
+        int from = Math.min(startIndex, rows.size());
+        int to = (int) Math.min((long) from + amount, rows.size());
+        return new ArrayList<A>(rows.subList(from, to));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <A extends AbstractPojo> A copy(AbstractPojo row) {
+        return row != null ? (A) EntityAccessor.forClass(row.getClass())
+                .newCopy(row) : null;
+    }
+
+    private static <A extends AbstractPojo> List<A> copyAll(List<A> rows) {
+        List<A> copies = new ArrayList<A>(rows.size());
+        for (A row : rows) {
+            copies.add(InMemoryFacade.<A> copy(row));
+        }
+        return copies;
+    }
+
+    private static void checkFetchSize(int fetchSize) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Fetch size must be a positive number");
+        }
+    }
+
+    /**
+     * Finds the public constructor of the result class which accepts the
+     * given values.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Constructor<T> getConstructor(Class<T> resultClass,
+            Object[] values) {
+        for (Constructor<?> constructor : resultClass.getConstructors()) {
+            Class<?>[] types = constructor.getParameterTypes();
+            if (types.length != values.length) {
+                continue;
+            }
+            boolean accepts = true;
+            for (int i = 0; i < types.length && accepts; i++) {
+                accepts = values[i] == null ? !types[i].isPrimitive()
+                        : box(types[i]).isInstance(values[i]);
+            }
+            if (accepts) {
+                return (Constructor<T>) constructor;
+            }
+        }
+        throw new IllegalArgumentException(resultClass.getName()
+                + " has no public constructor accepting the selected fields");
+    }
+
+    private static <T> T newInstance(Constructor<T> constructor, Object[] row) {
+        try {
+            return constructor.newInstance(row);
+        } catch (InstantiationException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        } else if (type == int.class) {
+            return Integer.class;
+        } else if (type == long.class) {
+            return Long.class;
+        } else if (type == boolean.class) {
+            return Boolean.class;
+        } else if (type == double.class) {
+            return Double.class;
+        } else if (type == float.class) {
+            return Float.class;
+        } else if (type == short.class) {
+            return Short.class;
+        } else if (type == byte.class) {
+            return Byte.class;
+        }
+        return Character.class;
+    }
+
+}
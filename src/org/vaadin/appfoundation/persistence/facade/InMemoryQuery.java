@@ -0,0 +1,1073 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.data.EntityAccessor;
+
+/**
+ * A JPQL query parsed for the {@link InMemoryFacade}. Only the subset of JPQL
+ * used by the facades and the rest of this library is supported:
+ * <ul>
+ * <li>SELECT of the entity, of COUNT() or of fields of the entity, FROM a
+ * single entity</li>
+ * <li>WHERE conditions combined with AND, OR, NOT and parentheses</li>
+ * <li>the operators =, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;=, LIKE, IN, IS NULL
+ * and IS NOT NULL on fields, named parameters and literals</li>
+ * <li>ORDER BY fields, ASC or DESC</li>
+ * <li>DELETE statements and UPDATE statements setting fields to named
+ * parameters, literals or other fields</li>
+ * </ul>
+ * Other queries are rejected with an IllegalArgumentException. The conditions
+ * are evaluated with the three-valued logic of SQL, so a comparison with a
+ * null value never matches.
+ * 
+ * @author Kim
+ * 
+ */
+final class InMemoryQuery {
+
+    private static final int EQ = 0;
+    private static final int NE = 1;
+    private static final int LT = 2;
+    private static final int LE = 3;
+    private static final int GT = 4;
+    private static final int GE = 5;
+
+    private static final String[] OPERATORS = { "=", "<>", "<", "<=", ">",
+            ">=" };
+
+    private final String entityName;
+
+    private final boolean count;
+
+    // The selected field paths, or empty if the entity itself is selected
+    private final List<String[]> selection = new ArrayList<String[]>();
+
+    private Condition where;
+
+    private final List<String[]> orderFields = new ArrayList<String[]>();
+
+    private final List<Boolean> descending = new ArrayList<Boolean>();
+
+    // The condition which can be looked up from an index, or null
+    private Condition indexed;
+
+    private boolean delete = false;
+
+    // The fields set by an UPDATE statement and their new values
+    private final List<String> assignedFields = new ArrayList<String>();
+
+    private final List<Operand> assignedValues = new ArrayList<Operand>();
+
+    private InMemoryQuery(String entityName, boolean count) {
+        this.entityName = entityName;
+        this.count = count;
+    }
+
+    /**
+     * Parses the given query string.
+     * 
+     * @param queryStr
+     *            JPQL query string
+     * @return The parsed query
+     * @throws IllegalArgumentException
+     *             if the query isn't valid or isn't supported
+     */
+    static InMemoryQuery parse(String queryStr) {
+        if (queryStr == null) {
+            throw new IllegalArgumentException("Query may not be null");
+        }
+        return new Parser(queryStr).parseQuery();
+    }
+
+    /**
+     * Returns the name of the queried entity.
+     * 
+     * @return Entity name
+     */
+    String getEntityName() {
+        return entityName;
+    }
+
+    /**
+     * Checks if the query selects the count of the entities.
+     * 
+     * @return true for COUNT() queries
+     */
+    boolean isCount() {
+        return count;
+    }
+
+    /**
+     * Checks if the query selects fields instead of entities.
+     * 
+     * @return true if fields are selected
+     */
+    boolean isProjection() {
+        return !selection.isEmpty();
+    }
+
+    /**
+     * Checks if the query is a DELETE statement.
+     * 
+     * @return true for DELETE statements
+     */
+    boolean isDelete() {
+        return delete;
+    }
+
+    /**
+     * Checks if the query is an UPDATE statement.
+     * 
+     * @return true for UPDATE statements
+     */
+    boolean isUpdate() {
+        return !assignedFields.isEmpty();
+    }
+
+    /**
+     * Sets the fields assigned by an UPDATE statement. All new values are
+     * evaluated before any of the fields is set.
+     * 
+     * @param pojo
+     *            The updated entity
+     * @param parameters
+     *            Parameter values of the statement
+     */
+    void assign(Object pojo, Map<String, Object> parameters) {
+        Object[] values = new Object[assignedValues.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = assignedValues.get(i).get(pojo, parameters);
+        }
+        EntityAccessor accessor = EntityAccessor.forClass(pojo.getClass());
+        for (int i = 0; i < values.length; i++) {
+            accessor.setValue(pojo, assignedFields.get(i), values[i]);
+        }
+    }
+
+    /**
+     * Checks if the query has an ORDER BY clause.
+     * 
+     * @return true if the query is ordered
+     */
+    boolean isOrdered() {
+        return !orderFields.isEmpty();
+    }
+
+    /**
+     * Checks if the given entity fulfills the where clause of the query.
+     * 
+     * @param pojo
+     *            The entity
+     * @param parameters
+     *            Parameter values of the query
+     * @return true if the entity matches
+     */
+    boolean matches(Object pojo, Map<String, Object> parameters) {
+        return where == null
+                || Boolean.TRUE.equals(where.evaluate(pojo, parameters));
+    }
+
+    /**
+     * Returns the field of the condition which restricts the matching
+     * entities to those with given values of a single field, if the where
+     * clause has such a condition joined to the rest with AND. The facade can
+     * look up the candidates for the query from an index of the field.
+     * 
+     * @return Field name or null if the query has no such condition
+     */
+    String getIndexedField() {
+        return indexed != null ? indexed.getIndexedField() : null;
+    }
+
+    /**
+     * Returns the values of the indexed field which the matching entities
+     * may have.
+     * 
+     * @param parameters
+     *            Parameter values of the query
+     * @return The field values
+     */
+    Collection<?> getIndexedValues(Map<String, Object> parameters) {
+        return indexed.getIndexedValues(parameters);
+    }
+
+    /**
+     * Returns the values of the selected fields of the given entity.
+     * 
+     * @param pojo
+     *            The entity
+     * @return The field values in the order they were selected
+     */
+    Object[] project(Object pojo) {
+        Object[] row = new Object[selection.size()];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = getValue(pojo, selection.get(i));
+        }
+        return row;
+    }
+
+    /**
+     * Returns a comparator ordering entities by the ORDER BY clause of the
+     * query. Ties are ordered by id and null values come first.
+     * 
+     * @return A comparator of entities
+     */
+    Comparator<AbstractPojo> getComparator() {
+        return new Comparator<AbstractPojo>() {
+            public int compare(AbstractPojo o1, AbstractPojo o2) {
+                for (int i = 0; i < orderFields.size(); i++) {
+                    int order = compareNullsFirst(getValue(o1, orderFields
+                            .get(i)), getValue(o2, orderFields.get(i)));
+                    if (order != 0) {
+                        return descending.get(i) ? -order : order;
+                    }
+                }
+                return o1.getId().compareTo(o2.getId());
+            }
+        };
+    }
+
+    /**
+     * Compares two values, ordering null values before all others.
+     * 
+     * @param value1
+     *            First value
+     * @param value2
+     *            Second value
+     * @return A negative number, zero or a positive number as the first value
+     *         is less than, equal to or greater than the second
+     */
+    static int compareNullsFirst(Object value1, Object value2) {
+        if (value1 == null || value2 == null) {
+            return value1 == null ? (value2 == null ? 0 : -1) : 1;
+        }
+        return compare(value1, value2);
+    }
+
+    /**
+     * Returns the key of the given value in an index. Values which are equal
+     * in a query have equal keys, so that the index can be used for looking
+     * up the candidates of an equality condition.
+     * 
+     * @param value
+     *            A non-null field value
+     * @return The index key
+     */
+    static Object indexKey(Object value) {
+        if (value instanceof Number) {
+            // Adding zero turns -0.0 into 0.0, which equals it in a query but
+            // not in a map
+            return ((Number) value).doubleValue() + 0.0;
+        }
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        if (value instanceof AbstractPojo) {
+            Long id = ((AbstractPojo) value).getId();
+            return id != null ? indexKey(id) : value;
+        }
+        return value;
+    }
+
+    /**
+     * Reads the value of a field path from an entity.
+     */
+    private static Object getValue(Object pojo, String[] path) {
+        Object value = pojo;
+        for (String field : path) {
+            if (value == null) {
+                return null;
+            }
+            value = EntityAccessor.forClass(value.getClass()).getValue(value,
+                    field);
+        }
+        return value;
+    }
+
+    /**
+     * Checks if two non-null values are equal in a query. Numbers are
+     * compared by their values regardless of their types and entities by
+     * their ids.
+     */
+    private static boolean isEqual(Object value1, Object value2) {
+        if (value1 instanceof Number && value2 instanceof Number) {
+            return compareNumbers((Number) value1, (Number) value2) == 0;
+        }
+        if (value1 instanceof Date && value2 instanceof Date) {
+            return ((Date) value1).getTime() == ((Date) value2).getTime();
+        }
+        if (value1 instanceof AbstractPojo && value2 instanceof AbstractPojo) {
+            Long id = ((AbstractPojo) value1).getId();
+            return id != null && id.equals(((AbstractPojo) value2).getId());
+        }
+        return value1.equals(value2);
+    }
+
+    /**
+     * Compares two non-null values.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compare(Object value1, Object value2) {
+        if (value1 instanceof Number && value2 instanceof Number) {
+            return compareNumbers((Number) value1, (Number) value2);
+        }
+        if (value1 instanceof Date && value2 instanceof Date) {
+            long time1 = ((Date) value1).getTime();
+            long time2 = ((Date) value2).getTime();
+            return time1 < time2 ? -1 : (time1 == time2 ? 0 : 1);
+        }
+        try {
+            return ((Comparable<Object>) value1).compareTo(value2);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Cannot compare "
+                    + value1.getClass().getName() + " to "
+                    + value2.getClass().getName());
+        }
+    }
+
+    private static int compareNumbers(Number value1, Number value2) {
+        if (isIntegral(value1) && isIntegral(value2)) {
+            long long1 = value1.longValue();
+            long long2 = value2.longValue();
+            return long1 < long2 ? -1 : (long1 == long2 ? 0 : 1);
+        }
+
+        double double1 = value1.doubleValue();
+        double double2 = value2.doubleValue();
+        if (Double.isNaN(double1) || Double.isInfinite(double1)
+                || Double.isNaN(double2) || Double.isInfinite(double2)) {
+            return Double.compare(double1, double2);
+        }
+        return toBigDecimal(value1).compareTo(toBigDecimal(value2));
+    }
+
+    private static boolean isIntegral(Number value) {
+        return value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte;
+    }
+
+    private static BigDecimal toBigDecimal(Number value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        }
+        if (isIntegral(value)) {
+            return BigDecimal.valueOf(value.longValue());
+        }
+        return BigDecimal.valueOf(value.doubleValue());
+    }
+
+    /**
+     * Combines the results of conditions with AND (and = true) or OR (and =
+     * false) in three-valued logic, where null stands for unknown.
+     */
+    private static Boolean combine(List<Condition> conditions, Object pojo,
+            Map<String, Object> parameters, boolean and) {
+        Boolean result = and;
+        for (Condition condition : conditions) {
+            Boolean value = condition.evaluate(pojo, parameters);
+            if (value == null) {
+                result = null;
+            } else if (value != and) {
+                return value;
+            }
+        }
+        return result;
+    }
+
+    private static Boolean not(Boolean value, boolean negated) {
+        if (value == null || !negated) {
+            return value;
+        }
+        return !value;
+    }
+
+    /**
+     * An operand of a condition: a field path, a parameter or a literal.
+     */
+    private abstract static class Operand {
+
+        abstract Object get(Object pojo, Map<String, Object> parameters);
+
+    }
+
+    private static class PathOperand extends Operand {
+
+        private final String[] path;
+
+        PathOperand(String[] path) {
+            this.path = path;
+        }
+
+        @Override
+        Object get(Object pojo, Map<String, Object> parameters) {
+            return getValue(pojo, path);
+        }
+
+    }
+
+    private static class ParameterOperand extends Operand {
+
+        private final String name;
+
+        ParameterOperand(String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object get(Object pojo, Map<String, Object> parameters) {
+            if (parameters == null || !parameters.containsKey(name)) {
+                throw new IllegalArgumentException("Query argument " + name
+                        + " not found in the list of parameters provided");
+            }
+            return parameters.get(name);
+        }
+
+    }
+
+    private static class LiteralOperand extends Operand {
+
+        private final Object value;
+
+        LiteralOperand(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object get(Object pojo, Map<String, Object> parameters) {
+            return value;
+        }
+
+    }
+
+    /**
+     * A condition of the where clause. Conditions evaluate to true, false or
+     * null for unknown.
+     */
+    private abstract static class Condition {
+
+        abstract Boolean evaluate(Object pojo, Map<String, Object> parameters);
+
+        /**
+         * Returns the field whose values this condition restricts to those
+         * returned by getIndexedValues(), or null.
+         */
+        String getIndexedField() {
+            return null;
+        }
+
+        Collection<?> getIndexedValues(Map<String, Object> parameters) {
+            return null;
+        }
+
+    }
+
+    private static class Junction extends Condition {
+
+        private final List<Condition> conditions;
+
+        private final boolean and;
+
+        Junction(List<Condition> conditions, boolean and) {
+            this.conditions = conditions;
+            this.and = and;
+        }
+
+        @Override
+        Boolean evaluate(Object pojo, Map<String, Object> parameters) {
+            return combine(conditions, pojo, parameters, and);
+        }
+
+    }
+
+    private static class Not extends Condition {
+
+        private final Condition condition;
+
+        Not(Condition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        Boolean evaluate(Object pojo, Map<String, Object> parameters) {
+            return not(condition.evaluate(pojo, parameters), true);
+        }
+
+    }
+
+    private static class Comparison extends Condition {
+
+        private final Operand left;
+
+        private final int operator;
+
+        private final Operand right;
+
+        Comparison(Operand left, int operator, Operand right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        Boolean evaluate(Object pojo, Map<String, Object> parameters) {
+            Object value1 = left.get(pojo, parameters);
+            Object value2 = right.get(pojo, parameters);
+            if (value1 == null || value2 == null) {
+                return null;
+            }
+
+            switch (operator) {
+            case EQ:
+                return isEqual(value1, value2);
+            case NE:
+                return !isEqual(value1, value2);
+            case LT:
+                return compare(value1, value2) < 0;
+            case LE:
+                return compare(value1, value2) <= 0;
+            case GT:
+                return compare(value1, value2) > 0;
+            default:
+                return compare(value1, value2) >= 0;
+            }
+        }
+
+        @Override
+        String getIndexedField() {
+            return operator == EQ ? getSimpleField(left, right) : null;
+        }
+
+        @Override
+        Collection<?> getIndexedValues(Map<String, Object> parameters) {
+            Object value = right.get(null, parameters);
+            return value != null ? Collections.singletonList(value)
+                    : Collections.emptyList();
+        }
+
+    }
+
+    private static class Like extends Condition {
+
+        private final Operand value;
+
+        private final Operand pattern;
+
+        private final boolean negated;
+
+        // The last pattern and its regular expression, reused while the
+        // pattern stays the same
+        private volatile Object[] compiled;
+
+        Like(Operand value, Operand pattern, boolean negated) {
+            this.value = value;
+            this.pattern = pattern;
+            this.negated = negated;
+        }
+
+        @Override
+        Boolean evaluate(Object pojo, Map<String, Object> parameters) {
+            Object string = value.get(pojo, parameters);
+            Object like = pattern.get(pojo, parameters);
+            if (string == null || like == null) {
+                return null;
+            }
+
+            Object[] compiled = this.compiled;
+            if (compiled == null || !compiled[0].equals(like)) {
+                compiled = new Object[] { like, toRegex(like.toString()) };
+                this.compiled = compiled;
+            }
+            return not(((Pattern) compiled[1]).matcher(string.toString())
+                    .matches(), negated);
+        }
+
+        private static Pattern toRegex(String like) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : like.toCharArray()) {
+                if (c == '%' || c == '_') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '%' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+
+    }
+
+    private static class In extends Condition {
+
+        private final Operand value;
+
+        // Either a single parameter holding a collection or a list of items
+        private final List<Operand> items;
+
+        private final boolean negated;
+
+        In(Operand value, List<Operand> items, boolean negated) {
+            this.value = value;
+            this.items = items;
+            this.negated = negated;
+        }
+
+        @Override
+        Boolean evaluate(Object pojo, Map<String, Object> parameters) {
+            Object fieldValue = value.get(pojo, parameters);
+            if (fieldValue == null) {
+                return null;
+            }
+
+            Boolean result = false;
+            for (Object item : getItems(pojo, parameters)) {
+                if (item == null) {
+                    result = null;
+                } else if (isEqual(fieldValue, item)) {
+                    return not(true, negated);
+                }
+            }
+            return not(result, negated);
+        }
+
+        private Collection<?> getItems(Object pojo,
+                Map<String, Object> parameters) {
+            if (items.size() == 1 && items.get(0) instanceof ParameterOperand) {
+                Object parameter = items.get(0).get(pojo, parameters);
+                if (parameter instanceof Collection<?>) {
+                    return (Collection<?>) parameter;
+                }
+            }
+
+            List<Object> values = new ArrayList<Object>(items.size());
+            for (Operand item : items) {
+                values.add(item.get(pojo, parameters));
+            }
+            return values;
+        }
+
+        @Override
+        String getIndexedField() {
+            if (negated) {
+                return null;
+            }
+            for (Operand item : items) {
+                if (item instanceof PathOperand) {
+                    return null;
+                }
+            }
+            return getSimpleField(value, null);
+        }
+
+        @Override
+        Collection<?> getIndexedValues(Map<String, Object> parameters) {
+            return getItems(null, parameters);
+        }
+
+    }
+
+    private static class IsNull extends Condition {
+
+        private final Operand value;
+
+        private final boolean negated;
+
+        IsNull(Operand value, boolean negated) {
+            this.value = value;
+            this.negated = negated;
+        }
+
+        @Override
+        Boolean evaluate(Object pojo, Map<String, Object> parameters) {
+            return not(value.get(pojo, parameters) == null, negated);
+        }
+
+    }
+
+    /**
+     * Returns the name of the field if the operand is a field of the entity
+     * itself and the other operand, if given, doesn't depend on the entity.
+     */
+    private static String getSimpleField(Operand field, Operand other) {
+        if (!(field instanceof PathOperand) || other instanceof PathOperand) {
+            return null;
+        }
+        String[] path = ((PathOperand) field).path;
+        return path.length == 1 ? path[0] : null;
+    }
+
+    /**
+     * A recursive descent parser for the supported subset of JPQL.
+     */
+    private static class Parser {
+
+        private final String queryStr;
+
+        private final List<String> tokens = new ArrayList<String>();
+
+        private int position = 0;
+
+        private String alias;
+
+        Parser(String queryStr) {
+            this.queryStr = queryStr;
+            tokenize();
+        }
+
+        InMemoryQuery parseQuery() {
+            if (accept("DELETE")) {
+                expect("FROM");
+                InMemoryQuery statement = new InMemoryQuery(parseEntity(),
+                        false);
+                statement.delete = true;
+                return parseWhere(statement);
+            }
+            if (accept("UPDATE")) {
+                InMemoryQuery statement = new InMemoryQuery(parseEntity(),
+                        false);
+                expect("SET");
+                do {
+                    String[] path = toPath(next());
+                    // Only fields of the entity itself can be set, and the
+                    // facade maintains the id and the version
+                    if (path.length > 1 || "id".equals(path[0])
+                            || "consistencyVersion".equals(path[0])) {
+                        throw unsupported();
+                    }
+                    expect("=");
+                    statement.assignedFields.add(path[0]);
+                    statement.assignedValues.add(parseOperand());
+                } while (accept(","));
+                return parseWhere(statement);
+            }
+
+            expect("SELECT");
+            boolean count = accept("COUNT");
+            List<String> selected = new ArrayList<String>();
+            if (count) {
+                expect("(");
+                selected.add(next());
+                expect(")");
+            } else {
+                do {
+                    selected.add(next());
+                } while (accept(","));
+            }
+
+            expect("FROM");
+            String entityName = next();
+            accept("AS");
+            alias = next();
+            if (!isIdentifier(entityName) || !isIdentifier(alias)) {
+                throw unsupported();
+            }
+
+            InMemoryQuery query = new InMemoryQuery(entityName, count);
+            if (count) {
+                // COUNT() may be given the entity or one of its fields
+                if (!selected.get(0).equals(alias)) {
+                    toPath(selected.get(0));
+                }
+            } else if (selected.size() > 1 || !selected.get(0).equals(alias)) {
+                for (String path : selected) {
+                    query.selection.add(toPath(path));
+                }
+            }
+
+            if (accept("WHERE")) {
+                query.where = parseOr();
+                query.indexed = findIndexed(query.where);
+            }
+
+            if (accept("ORDER")) {
+                expect("BY");
+                do {
+                    query.orderFields.add(toPath(next()));
+                    boolean desc = accept("DESC");
+                    if (!desc) {
+                        accept("ASC");
+                    }
+                    query.descending.add(desc);
+                } while (accept(","));
+            }
+
+            if (position < tokens.size()) {
+                throw unsupported();
+            }
+            return query;
+        }
+
+        /**
+         * Parses the entity name and alias of a DELETE or UPDATE statement.
+         */
+        private String parseEntity() {
+            String entityName = next();
+            accept("AS");
+            alias = next();
+            if (!isIdentifier(entityName) || !isIdentifier(alias)) {
+                throw unsupported();
+            }
+            return entityName;
+        }
+
+        /**
+         * Parses the optional where clause ending a DELETE or UPDATE
+         * statement.
+         */
+        private InMemoryQuery parseWhere(InMemoryQuery statement) {
+            if (accept("WHERE")) {
+                statement.where = parseOr();
+                statement.indexed = findIndexed(statement.where);
+            }
+            if (position < tokens.size()) {
+                throw unsupported();
+            }
+            return statement;
+        }
+
+        /**
+         * Finds a condition joined to the rest of the where clause with AND
+         * which can be looked up from an index, preferring conditions on the
+         * id.
+         */
+        private Condition findIndexed(Condition where) {
+            List<Condition> conjuncts = where instanceof Junction
+                    && ((Junction) where).and ? ((Junction) where).conditions
+                    : Collections.singletonList(where);
+            Condition found = null;
+            for (Condition condition : conjuncts) {
+                String field = condition.getIndexedField();
+                if ("id".equals(field)) {
+                    return condition;
+                }
+                if (field != null && found == null) {
+                    found = condition;
+                }
+            }
+            return found;
+        }
+
+        private Condition parseOr() {
+            List<Condition> conditions = new ArrayList<Condition>();
+            do {
+                conditions.add(parseAnd());
+            } while (accept("OR"));
+            return conditions.size() == 1 ? conditions.get(0) : new Junction(
+                    conditions, false);
+        }
+
+        private Condition parseAnd() {
+            List<Condition> conditions = new ArrayList<Condition>();
+            do {
+                conditions.add(parseNot());
+            } while (accept("AND"));
+            return conditions.size() == 1 ? conditions.get(0) : new Junction(
+                    conditions, true);
+        }
+
+        private Condition parseNot() {
+            if (accept("NOT")) {
+                return new Not(parseNot());
+            }
+            if (accept("(")) {
+                Condition condition = parseOr();
+                expect(")");
+                return condition;
+            }
+            return parsePredicate();
+        }
+
+        private Condition parsePredicate() {
+            Operand operand = parseOperand();
+            if (accept("IS")) {
+                boolean negated = accept("NOT");
+                expect("NULL");
+                return new IsNull(operand, negated);
+            }
+
+            boolean negated = accept("NOT");
+            if (accept("LIKE")) {
+                return new Like(operand, parseOperand(), negated);
+            }
+            if (accept("IN")) {
+                List<Operand> items = new ArrayList<Operand>();
+                if (accept("(")) {
+                    do {
+                        items.add(parseOperand());
+                    } while (accept(","));
+                    expect(")");
+                } else {
+                    items.add(parseOperand());
+                    if (!(items.get(0) instanceof ParameterOperand)) {
+                        throw unsupported();
+                    }
+                }
+                return new In(operand, items, negated);
+            }
+            if (negated) {
+                throw unsupported();
+            }
+
+            String operator = next();
+            if ("!=".equals(operator)) {
+                operator = "<>";
+            }
+            for (int i = 0; i < OPERATORS.length; i++) {
+                if (OPERATORS[i].equals(operator)) {
+                    return new Comparison(operand, i, parseOperand());
+                }
+            }
+            throw unsupported();
+        }
+
+        private Operand parseOperand() {
+            String token = next();
+            char first = token.charAt(0);
+            if (first == ':') {
+                return new ParameterOperand(token.substring(1));
+            }
+            if (first == '\'') {
+                return new LiteralOperand(token.substring(1,
+                        token.length() - 1).replace("''", "'"));
+            }
+            if (first == '-' || Character.isDigit(first)) {
+                if (token.indexOf('.') >= 0) {
+                    return new LiteralOperand(Double.valueOf(token));
+                }
+                return new LiteralOperand(Long.valueOf(token));
+            }
+            if ("TRUE".equalsIgnoreCase(token)
+                    || "FALSE".equalsIgnoreCase(token)) {
+                return new LiteralOperand(Boolean.valueOf(token));
+            }
+            if ("NULL".equalsIgnoreCase(token)) {
+                return new LiteralOperand(null);
+            }
+            return new PathOperand(toPath(token));
+        }
+
+        /**
+         * Converts a path starting with the alias of the entity to the field
+         * names following the alias.
+         */
+        private String[] toPath(String token) {
+            String[] parts = token.split("\\.", -1);
+            if (!parts[0].equals(alias) || parts.length < 2) {
+                throw unsupported();
+            }
+            String[] path = new String[parts.length - 1];
+            for (int i = 0; i < path.length; i++) {
+                if (!isIdentifier(parts[i + 1])) {
+                    throw unsupported();
+                }
+                path[i] = parts[i + 1];
+            }
+            return path;
+        }
+
+        private boolean isIdentifier(String token) {
+            return token.matches("[A-Za-z_][A-Za-z0-9_]*");
+        }
+
+        private String next() {
+            if (position >= tokens.size()) {
+                throw unsupported();
+            }
+            return tokens.get(position++);
+        }
+
+        private boolean accept(String keyword) {
+            if (position < tokens.size()
+                    && tokens.get(position).equalsIgnoreCase(keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String keyword) {
+            if (!accept(keyword)) {
+                throw unsupported();
+            }
+        }
+
+        private IllegalArgumentException unsupported() {
+            return new IllegalArgumentException(
+                    "Unsupported or invalid query: " + queryStr);
+        }
+
+        private void tokenize() {
+            int length = queryStr.length();
+            int i = 0;
+            while (i < length) {
+                char c = queryStr.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                } else if (c == '\'') {
+                    // String literal, in which quotes are escaped by doubling
+                    i++;
+                    while (true) {
+                        if (i >= length) {
+                            throw unsupported();
+                        }
+                        if (queryStr.charAt(i) == '\'') {
+                            if (i + 1 < length
+                                    && queryStr.charAt(i + 1) == '\'') {
+                                i += 2;
+                                continue;
+                            }
+                            i++;
+                            break;
+                        }
+                        i++;
+                    }
+                } else if (c == '<' || c == '>' || c == '!') {
+                    i++;
+                    if (i < length
+                            && (queryStr.charAt(i) == '=' || c == '<'
+                                    && queryStr.charAt(i) == '>')) {
+                        i++;
+                    }
+                } else if (c == '=' || c == '(' || c == ')' || c == ',') {
+                    i++;
+                } else if (c == ':' || c == '-' || c == '.' || c == '_'
+                        || Character.isLetterOrDigit(c)) {
+                    i++;
+                    while (i < length
+                            && (queryStr.charAt(i) == '.'
+                                    || queryStr.charAt(i) == '_' || Character
+                                    .isLetterOrDigit(queryStr.charAt(i)))) {
+                        i++;
+                    }
+                } else {
+                    throw unsupported();
+                }
+                tokens.add(queryStr.substring(start, i));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,764 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * A facade which times the operations of another facade and reports them to
+ * {@link FacadeListener}s, such as {@link FacadeMetrics} and
+ * {@link SlowQueryLog}. Each event tells the kind of the operation, its
+ * entity class and query, how long it took and how many rows it read or
+ * wrote.
+ * 
+ * When no listeners have been added, the operations go straight to the
+ * facade without being timed.
+ * 
+ * <pre>
+ * InstrumentedFacade facade = new InstrumentedFacade(new JPAFacade(&quot;default&quot;));
+ * facade.addListener(new SlowQueryLog(500));
+ * FacadeFactory.registerFacade(&quot;default&quot;, facade, true);
+ * </pre>
+ * 
+ * @author Kim
+ * 
+ */
+public class InstrumentedFacade implements IFacade, StatementControl {
+
+    private static final Logger logger = Logger
+            .getLogger(InstrumentedFacade.class.getName());
+
+    private final IFacade facade;
+
+    private final List<FacadeListener> listeners = new CopyOnWriteArrayList<FacadeListener>();
+
+    /**
+     * An operation of the instrumented facade.
+     */
+    private interface Operation<T> {
+
+        public T execute();
+
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param facade
+     *            The facade whose operations are instrumented
+     */
+    public InstrumentedFacade(IFacade facade) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+        this.facade = facade;
+    }
+
+    /**
+     * Returns the facade whose operations are instrumented.
+     * 
+     * @return The instrumented facade
+     */
+    public IFacade getFacade() {
+        return facade;
+    }
+
+    /**
+     * Adds a listener which is notified of every completed operation.
+     * 
+     * @param listener
+     *            The listener
+     */
+    public void addListener(FacadeListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener may not be null");
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * 
+     * @param listener
+     *            The listener
+     */
+    public void removeListener(FacadeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Executes the operation and reports it to the listeners.
+     * 
+     * @param type
+     *            The kind of the operation
+     * @param entityClass
+     *            Entity class or null
+     * @param query
+     *            Query string or null
+     * @param parameters
+     *            Query parameters or null
+     * @param rows
+     *            The number of written rows, or -1 for counting the rows in
+     *            the result
+     * @param operation
+     *            The operation
+     * @return The result of the operation
+     */
+    private <T> T execute(FacadeOperation type, Class<?> entityClass,
+            String query, Map<String, Object> parameters, int rows,
+            Operation<T> operation) {
+        if (listeners.isEmpty()) {
+            return operation.execute();
+        }
+
+        long start = System.nanoTime();
+        T result = null;
+        Throwable failure = null;
+        try {
+            result = operation.execute();
+            return result;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            long duration = System.nanoTime() - start;
+            int count = failure != null ? -1 : rows >= 0 ? rows
+                    : countRows(result);
+            fire(new FacadeEvent(type, entityClass, query, parameters,
+                    duration, count, failure));
+        }
+    }
+
+    private void fire(FacadeEvent event) {
+        for (FacadeListener listener : listeners) {
+            try {
+                listener.operationCompleted(event);
+            } catch (RuntimeException e) {
+                // A broken listener must not break the operation
+                logger.log(Level.WARNING, "Facade listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rows in the result of an operation.
+     */
+    private static int countRows(Object result) {
+        if (result == null) {
+            return 0;
+        }
+        if (result instanceof Collection<?>) {
+            return ((Collection<?>) result).size();
+        }
+        if (result instanceof Map<?, ?>) {
+            return ((Map<?, ?>) result).size();
+        }
+        if (result instanceof KeysetPage<?>) {
+            return ((KeysetPage<?>) result).getItems().size();
+        }
+        if (result instanceof long[]) {
+            return ((long[]) result).length;
+        }
+        if (result instanceof Integer) {
+            // The row count of a bulk statement
+            return (Integer) result;
+        }
+        if (result instanceof ResultCursor<?>) {
+            // The rows are read after the cursor has been opened
+            return -1;
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the entity class of the first entity in the collection.
+     */
+    private static Class<?> getEntityClass(
+            Collection<? extends AbstractPojo> pojos) {
+        return pojos == null || pojos.isEmpty() ? null : pojos.iterator()
+                .next().getClass();
+    }
+
+    private static Class<?> getEntityClass(AbstractPojo pojo) {
+        return pojo != null ? pojo.getClass() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(String name) {
+        facade.init(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(final Class<A> clazz, final Long id) {
+        return execute(FacadeOperation.FIND, clazz, null, null, -1,
+                new Operation<A>() {
+                    public A execute() {
+                        return facade.find(clazz, id);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Map<Long, A> findAll(final Class<A> clazz,
+            final Collection<Long> ids) {
+        return execute(FacadeOperation.FIND_ALL, clazz, null, null, -1,
+                new Operation<Map<Long, A>>() {
+                    public Map<Long, A> execute() {
+                        return facade.findAll(clazz, ids);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(final Class<A> clazz) {
+        return execute(FacadeOperation.LIST, clazz, null, null, -1,
+                new Operation<List<A>>() {
+                    public List<A> execute() {
+                        return facade.list(clazz);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(final Class<A> clazz,
+            final int startIndex, final int amount) {
+        return execute(FacadeOperation.LIST, clazz, null, null, -1,
+                new Operation<List<A>>() {
+                    public List<A> execute() {
+                        return facade.list(clazz, startIndex, amount);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(final String queryStr,
+            final Map<String, Object> parameters) {
+        return execute(FacadeOperation.LIST, null, queryStr, parameters, -1,
+                new Operation<List<A>>() {
+                    public List<A> execute() {
+                        return facade.list(queryStr, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(final String queryStr,
+            final Map<String, Object> parameters, final int startIndex,
+            final int amount) {
+        return execute(FacadeOperation.LIST, null, queryStr, parameters, -1,
+                new Operation<List<A>>() {
+                    public List<A> execute() {
+                        return facade.list(queryStr, parameters, startIndex,
+                                amount);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(final Class<A> clazz,
+            final String continuationToken, final int amount) {
+        return execute(FacadeOperation.PAGE, clazz, null, null, -1,
+                new Operation<KeysetPage<A>>() {
+                    public KeysetPage<A> execute() {
+                        return facade.page(clazz, continuationToken, amount);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(final Class<A> clazz,
+            final String keyField, final String continuationToken,
+            final int amount) {
+        return execute(FacadeOperation.PAGE, clazz, null, null, -1,
+                new Operation<KeysetPage<A>>() {
+                    public KeysetPage<A> execute() {
+                        return facade.page(clazz, keyField, continuationToken,
+                                amount);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            final Class<A> clazz, final int fetchSize) {
+        return execute(FacadeOperation.CURSOR, clazz, null, null, -1,
+                new Operation<ResultCursor<A>>() {
+                    public ResultCursor<A> execute() {
+                        return facade.cursor(clazz, fetchSize);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            final String queryStr, final Map<String, Object> parameters,
+            final int fetchSize) {
+        return execute(FacadeOperation.CURSOR, null, queryStr, parameters, -1,
+                new Operation<ResultCursor<A>>() {
+                    public ResultCursor<A> execute() {
+                        return facade.cursor(queryStr, parameters, fetchSize);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A findReadOnly(final Class<A> clazz,
+            final Long id) {
+        return execute(FacadeOperation.FIND, clazz, null, null, -1,
+                new Operation<A>() {
+                    public A execute() {
+                        return facade.findReadOnly(clazz, id);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(final Class<A> clazz) {
+        return execute(FacadeOperation.LIST, clazz, null, null, -1,
+                new Operation<List<A>>() {
+                    public List<A> execute() {
+                        return facade.listReadOnly(clazz);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(final Class<A> clazz,
+            final int startIndex, final int amount) {
+        return execute(FacadeOperation.LIST, clazz, null, null, -1,
+                new Operation<List<A>>() {
+                    public List<A> execute() {
+                        return facade.listReadOnly(clazz, startIndex, amount);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(
+            final String queryStr, final Map<String, Object> parameters) {
+        return execute(FacadeOperation.LIST, null, queryStr, parameters, -1,
+                new Operation<List<A>>() {
+                    public List<A> execute() {
+                        return facade.listReadOnly(queryStr, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(
+            final String queryStr, final Map<String, Object> parameters,
+            final int startIndex, final int amount) {
+        return execute(FacadeOperation.LIST, null, queryStr, parameters, -1,
+                new Operation<List<A>>() {
+                    public List<A> execute() {
+                        return facade.listReadOnly(queryStr, parameters,
+                                startIndex, amount);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(final String queryStr,
+            final Map<String, Object> parameters) {
+        return execute(FacadeOperation.FIND, null, queryStr, parameters, -1,
+                new Operation<A>() {
+                    public A execute() {
+                        return facade.<A> find(queryStr, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(final AbstractPojo pojo) {
+        execute(FacadeOperation.STORE, getEntityClass(pojo), null, null, 1,
+                new Operation<Void>() {
+                    public Void execute() {
+                        facade.store(pojo);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(final Collection<A> pojos) {
+        execute(FacadeOperation.STORE_ALL, getEntityClass(pojos), null, null,
+                pojos.size(), new Operation<Void>() {
+                    public Void execute() {
+                        facade.storeAll(pojos);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(final Collection<A> pojos,
+            final boolean refresh) {
+        execute(FacadeOperation.STORE_ALL, getEntityClass(pojos), null, null,
+                pojos.size(), new Operation<Void>() {
+                    public Void execute() {
+                        facade.storeAll(pojos, refresh);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A update(final Class<A> c, final Long id,
+            final EntityMutation<A> mutation) {
+        return execute(FacadeOperation.UPDATE, c, null, null, -1,
+                new Operation<A>() {
+                    public A execute() {
+                        return facade.update(c, id, mutation);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(final AbstractPojo pojo) {
+        execute(FacadeOperation.DELETE, getEntityClass(pojo), null, null, 1,
+                new Operation<Void>() {
+                    public Void execute() {
+                        facade.delete(pojo);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void deleteAll(final Collection<A> pojos) {
+        execute(FacadeOperation.DELETE_ALL, getEntityClass(pojos), null, null,
+                pojos.size(), new Operation<Void>() {
+                    public Void execute() {
+                        facade.deleteAll(pojos);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int deleteWhere(final Class<? extends AbstractPojo> c,
+            final String whereClause, final Map<String, Object> parameters) {
+        return execute(FacadeOperation.DELETE_WHERE, c, whereClause,
+                parameters, -1, new Operation<Integer>() {
+                    public Integer execute() {
+                        return facade.deleteWhere(c, whereClause, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int updateWhere(final Class<? extends AbstractPojo> c,
+            final String assignments, final String whereClause,
+            final Map<String, Object> parameters) {
+        String statement = "SET " + assignments + " WHERE " + whereClause;
+        return execute(FacadeOperation.UPDATE_WHERE, c, statement, parameters,
+                -1, new Operation<Integer>() {
+                    public Integer execute() {
+                        return facade.updateWhere(c, assignments,
+                                whereClause, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void refresh(final A pojo) {
+        execute(FacadeOperation.REFRESH, getEntityClass(pojo), null, null, 1,
+                new Operation<Void>() {
+                    public Void execute() {
+                        facade.refresh(pojo);
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Executes the unit of work in a transaction of the instrumented facade.
+     * The work is given this facade, so that its operations are reported
+     * too.
+     * 
+     * @param work
+     *            The unit of work to be executed
+     * @return The result of the unit of work
+     */
+    public <T> T inTransaction(final UnitOfWork<T> work) {
+        if (work == null) {
+            throw new IllegalArgumentException("Unit of work may not be null");
+        }
+
+        return execute(FacadeOperation.TRANSACTION, null, null, null, 0,
+                new Operation<T>() {
+                    public T execute() {
+                        return facade.inTransaction(new UnitOfWork<T>() {
+                            public T execute(IFacade transactional) {
+                                return work.execute(InstrumentedFacade.this);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        facade.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void kill() {
+        facade.kill();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setThreadQueryTimeout(Long timeout) {
+        if (facade instanceof StatementControl) {
+            ((StatementControl) facade).setThreadQueryTimeout(timeout);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void cancelStatements(Thread thread) {
+        if (facade instanceof StatementControl) {
+            ((StatementControl) facade).cancelStatements(thread);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(final Class<? extends AbstractPojo> c) {
+        return execute(FacadeOperation.COUNT, c, null, null, -1,
+                new Operation<Long>() {
+                    public Long execute() {
+                        return facade.count(c);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(final Class<? extends AbstractPojo> c,
+            final String whereClause, final Map<String, Object> parameters) {
+        return execute(FacadeOperation.COUNT, c, whereClause, parameters, -1,
+                new Operation<Long>() {
+                    public Long execute() {
+                        return facade.count(c, whereClause, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<?> getFieldValues(final Class<? extends AbstractPojo> c,
+            final String field, final String whereConditions,
+            final Map<String, Object> parameters) {
+        return execute(FacadeOperation.FIELD_VALUES, c, whereConditions,
+                parameters, -1, new Operation<List<?>>() {
+                    public List<?> execute() {
+                        return facade.getFieldValues(c, field,
+                                whereConditions, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(final Class<? extends AbstractPojo> c,
+            final String[] fields, final String whereConditions,
+            final Map<String, Object> parameters) {
+        return execute(FacadeOperation.FIELD_VALUES, c, whereConditions,
+                parameters, -1, new Operation<List<Object[]>>() {
+                    public List<Object[]> execute() {
+                        return facade.getFieldValues(c, fields,
+                                whereConditions, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> List<T> getFieldValues(final Class<? extends AbstractPojo> c,
+            final Class<T> resultClass, final String[] fields,
+            final String whereConditions, final Map<String, Object> parameters) {
+        return execute(FacadeOperation.FIELD_VALUES, c, whereConditions,
+                parameters, -1, new Operation<List<T>>() {
+                    public List<T> execute() {
+                        return facade.getFieldValues(c, resultClass, fields,
+                                whereConditions, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getIds(final Class<? extends AbstractPojo> c,
+            final String whereConditions, final Map<String, Object> parameters) {
+        return execute(FacadeOperation.FIELD_VALUES, c, whereConditions,
+                parameters, -1, new Operation<long[]>() {
+                    public long[] execute() {
+                        return facade.getIds(c, whereConditions, parameters);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(final EntityQuery<A> query) {
+        if (listeners.isEmpty()) {
+            // Don't build the query strings needlessly
+            return facade.list(query);
+        }
+        return execute(FacadeOperation.LIST, query.getEntityClass(), query
+                .getQueryString(), query.getParameters(), -1,
+                new Operation<List<A>>() {
+                    public List<A> execute() {
+                        return facade.list(query);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(final EntityQuery<? extends AbstractPojo> query) {
+        if (listeners.isEmpty()) {
+            // Don't build the query strings needlessly
+            return facade.count(query);
+        }
+        return execute(FacadeOperation.COUNT, query.getEntityClass(), query
+                .getCountQueryString(), query.getParameters(), -1,
+                new Operation<Long>() {
+                    public Long execute() {
+                        return facade.count(query);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(
+            final EntityQuery<A> query, final String continuationToken,
+            final int amount) {
+        if (listeners.isEmpty()) {
+            // Don't build the query strings needlessly
+            return facade.page(query, continuationToken, amount);
+        }
+        return execute(FacadeOperation.PAGE, query.getEntityClass(), query
+                .getQueryString(), query.getParameters(), -1,
+                new Operation<KeysetPage<A>>() {
+                    public KeysetPage<A> execute() {
+                        return facade.page(query, continuationToken, amount);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            final EntityQuery<A> query, final int fetchSize) {
+        if (listeners.isEmpty()) {
+            // Don't build the query strings needlessly
+            return facade.cursor(query, fetchSize);
+        }
+        return execute(FacadeOperation.CURSOR, query.getEntityClass(), query
+                .getQueryString(), query.getParameters(), -1,
+                new Operation<ResultCursor<A>>() {
+                    public ResultCursor<A> execute() {
+                        return facade.cursor(query, fetchSize);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(
+            final EntityQuery<? extends AbstractPojo> query) {
+        if (listeners.isEmpty()) {
+            // Don't build the query strings needlessly
+            return facade.getFieldValues(query);
+        }
+        return execute(FacadeOperation.FIELD_VALUES, query.getEntityClass(),
+                query.getSelectQueryString(), query.getParameters(), -1,
+                new Operation<List<Object[]>>() {
+                    public List<Object[]> execute() {
+                        return facade.getFieldValues(query);
+                    }
+                });
+    }
+
+}
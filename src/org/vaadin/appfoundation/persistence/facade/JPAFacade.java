@@ -1,24 +1,42 @@
 package org.vaadin.appfoundation.persistence.facade;
 
 import java.io.Serializable;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.NoResultException;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.Persistence;
 import javax.persistence.Query;
-import javax.persistence.Transient;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.EntityType;
 
+import org.eclipse.persistence.config.BatchWriting;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.config.QueryHints;
 import org.eclipse.persistence.expressions.ExpressionBuilder;
+import org.eclipse.persistence.internal.databaseaccess.DatabasePlatform;
 import org.eclipse.persistence.jpa.JpaEntityManager;
 import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.queries.CursoredStream;
+import org.eclipse.persistence.queries.DatabaseQuery;
 import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.data.EntityAccessor;
 
 /**
  * An implementation of the IFacade interface. This class acts as a layer
@@ -29,16 +47,114 @@ import org.vaadin.appfoundation.persistence.data.AbstractPojo;
  * @author Kim
  * 
  */
-public class JPAFacade implements IFacade, Serializable {
+public class JPAFacade implements IFacade, StatementControl, Serializable {
 
     private static final long serialVersionUID = 2302865212748213608L;
 
-    protected EntityManagerFactory emf = null;
+    /**
+     * The default maximum number of parsed queries held in the query cache.
+     */
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 256;
+
+    /**
+     * The default maximum number of ids in the IN list of a findAll() query.
+     * Some databases, such as Oracle, do not accept longer IN lists.
+     */
+    public static final int DEFAULT_IN_LIST_SIZE = 1000;
+
+    // Names of the parameters holding the position of the previous page in a
+    // paged query, reserved in the parameters of the where conditions
+    private static final String LAST_ID_PARAMETER = "keysetLastId";
+    private static final String LAST_KEY_PARAMETER = "keysetLastKey";
+
+    // A field name or a path of field names, such as "address.city"
+    private static final Pattern FIELD_PATH = Pattern
+            .compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)*");
+
+    protected volatile EntityManagerFactory emf = null;
+
+    // Persistence-unit name and properties of an entity manager factory which
+    // is created on first use, null when there is no such factory pending.
+    // Guarded by this.
+    private String lazyUnitName = null;
+
+    private Map<String, Object> lazyUnitProperties = null;
 
     // Store the EntityManager in a ThreadLocale variable to avoid multithread
     // problems
     protected ThreadLocal<EntityManager> em = new ThreadLocal<EntityManager>();
 
+    // Nesting depth of the unit of work running on the current thread, null
+    // if the thread isn't executing a unit of work
+    private final ThreadLocal<Integer> unitOfWorkDepth = new ThreadLocal<Integer>();
+
+    // Entities written within the current thread's unit of work. They are
+    // evicted from the caches once more after the transaction has ended,
+    // since other threads may have cached their old state meanwhile.
+    private final ThreadLocal<List<AbstractPojo>> unitOfWorkWrites = new ThreadLocal<List<AbstractPojo>>();
+
+    // Entity classes written with bulk statements within the current thread's
+    // unit of work, evicted again for the same reason
+    private final ThreadLocal<Set<Class<? extends AbstractPojo>>> unitOfWorkBulkWrites = new ThreadLocal<Set<Class<? extends AbstractPojo>>>();
+
+    // Second-level cache for entities fetched by their id, null if disabled
+    private volatile EntityCache entityCache = null;
+
+    // Stamp of the latest write, and the stamp of the latest write of each
+    // entity class. Entities which were written while they were loaded are not
+    // left in the entity cache, since the loaded state may predate the write.
+    private final AtomicLong writeStamp = new AtomicLong();
+    private final ConcurrentMap<Class<?>, AtomicLong> classWriteStamps = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+    // Tells for each entity class if its entities can be held in the entity
+    // cache, that is if all of its persistent attributes are basic values
+    private final ConcurrentMap<Class<?>, Boolean> cacheableClasses = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    // Query timeout in milliseconds, zero if disabled
+    private volatile long queryTimeout = 0;
+
+    // Query timeout overriding queryTimeout on the current thread
+    private final ThreadLocal<Long> threadQueryTimeout = new ThreadLocal<Long>();
+
+    // Statements being executed on the connections of the session created by
+    // this facade
+    private final RunningStatements runningStatements = new RunningStatements();
+
+    // Should the entity manager factory track the running statements, so that
+    // they can be cancelled
+    private volatile boolean statementTracking = false;
+
+    // Number of entities written at a time in bulk writes, zero if disabled
+    private volatile int batchSize = 0;
+
+    // Batch writing settings of the platform from before setBatchSize() turned
+    // JDBC batch writing on, restored when the batch size is set to zero. Null
+    // while the settings of the platform haven't been changed. Guarded by this.
+    private Boolean platformBatchWriting = null;
+    private boolean platformJdbcBatchWriting;
+    private boolean platformNativeBatchWriting;
+    private int platformBatchWritingSize;
+
+    // Should stored entities be refreshed from the database
+    private volatile boolean refreshAfterStore = true;
+
+    // Maximum number of ids in the IN list of a findAll() query
+    private volatile int inListSize = DEFAULT_IN_LIST_SIZE;
+
+    // Cache of parsed JPQL queries, shared by all threads using this facade
+    private final QueryCache queryCache = new QueryCache(
+            DEFAULT_QUERY_CACHE_SIZE);
+
+    // Cache of COUNT query results, disabled until a size is given to it
+    private final CountCache countCache = new CountCache(0);
+
+    // Retry settings and conflict counters of update()
+    private final UpdateRetry updateRetry = new UpdateRetry();
+
+    // Metrics of the connection pools, null unless a pool configuration was
+    // given to init()
+    private volatile PoolMetrics poolMetrics = null;
+
     /**
      * Default constructor which does nothing. Make sure to call init() if
      * you've used this constructor.
@@ -58,6 +174,19 @@ public class JPAFacade implements IFacade, Serializable {
         init(name);
     }
 
+    /**
+     * Alternative constructor. Takes as input the persistence-unit name and
+     * the configuration of its connection pools.
+     * 
+     * @param name
+     *            Persistence-unit name (defined in the persistence.xml)
+     * @param pool
+     *            Configuration of the connection pools
+     */
+    public JPAFacade(String name, ConnectionPoolConfig pool) {
+        init(name, pool);
+    }
+
     /**
      * Initializes this facade. Creates an entity manager factory based on the
      * configurations for the given name
@@ -66,21 +195,312 @@ public class JPAFacade implements IFacade, Serializable {
      *            Persistence-unit name (defined in the persistence.xml)
      */
     public void init(String name) {
-        emf = Persistence.createEntityManagerFactory(name);
+        init(name, null);
+    }
+
+    /**
+     * Initializes this facade with the given connection pool configuration.
+     * The configuration overrides the pool settings of the persistence unit,
+     * and the pools are metered so that their state is available through
+     * getPoolMetrics().
+     * 
+     * @param name
+     *            Persistence-unit name (defined in the persistence.xml)
+     * @param pool
+     *            Configuration of the connection pools or null if the
+     *            settings of the persistence.xml file are used as they are
+     */
+    public void init(String name, ConnectionPoolConfig pool) {
+        initialize(name, pool, false);
+    }
+
+    /**
+     * Initializes this facade without creating the entity manager factory.
+     * The factory is created when the facade is used for the first time or
+     * when warmUp() is called, which moves the cost of processing the
+     * persistence unit out of the application startup.
+     * 
+     * @param name
+     *            Persistence-unit name (defined in the persistence.xml)
+     * @param pool
+     *            Configuration of the connection pools or null if the
+     *            settings of the persistence.xml file are used as they are
+     */
+    public void initLazily(String name, ConnectionPoolConfig pool) {
+        initialize(name, pool, true);
+    }
+
+    /**
+     * Initializes this facade for the given persistence unit.
+     * 
+     * @param name
+     *            Persistence-unit name (defined in the persistence.xml)
+     * @param pool
+     *            Configuration of the connection pools or null
+     * @param lazy
+     *            Should the creation of the entity manager factory be
+     *            postponed until the first use
+     */
+    private synchronized void initialize(String name,
+            ConnectionPoolConfig pool, boolean lazy) {
+        // Cached queries and entities belong to the previous entity manager
+        // factory
+        queryCache.clear();
+        countCache.clear();
+        cacheableClasses.clear();
+        if (entityCache != null) {
+            entityCache.clear();
+        }
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        PoolMetrics metrics = null;
+        if (pool != null) {
+            metrics = new PoolMetrics(pool.getLeakDetectionThreshold());
+            properties = pool.toProperties(name, metrics);
+        }
+        setStatementTrackingProperties(properties, name, statementTracking);
+        setBatchWritingProperties(properties, batchSize);
+        platformBatchWriting = null;
+
+        if (lazy) {
+            emf = null;
+            lazyUnitName = name;
+            lazyUnitProperties = properties;
+        } else {
+            lazyUnitName = null;
+            lazyUnitProperties = null;
+            emf = createEntityManagerFactory(name, properties);
+        }
+        poolMetrics = metrics;
+    }
+
+    /**
+     * Creates an entity manager factory for the given persistence unit.
+     * 
+     * @param name
+     *            Persistence-unit name (defined in the persistence.xml)
+     * @param properties
+     *            Properties overriding those of the persistence.xml
+     * @return The entity manager factory
+     */
+    private EntityManagerFactory createEntityManagerFactory(String name,
+            Map<String, Object> properties) {
+        return Persistence.createEntityManagerFactory(name, properties);
+    }
+
+    /**
+     * Returns the entity manager factory of this facade, creating it if the
+     * facade was initialized lazily.
+     * 
+     * @return The entity manager factory or null if the facade hasn't been
+     *         initialized
+     */
+    protected EntityManagerFactory getEntityManagerFactory() {
+        EntityManagerFactory factory = emf;
+        if (factory == null) {
+            factory = createLazyEntityManagerFactory();
+        }
+        return factory;
+    }
+
+    /**
+     * Creates the entity manager factory of a lazily initialized facade,
+     * unless another thread has already created it.
+     * 
+     * @return The entity manager factory or null if the facade hasn't been
+     *         initialized
+     */
+    private synchronized EntityManagerFactory createLazyEntityManagerFactory() {
+        if (emf == null && lazyUnitName != null) {
+            emf = createEntityManagerFactory(lazyUnitName, lazyUnitProperties);
+            lazyUnitName = null;
+            lazyUnitProperties = null;
+        }
+        return emf;
+    }
+
+    /**
+     * Prepares this facade for use, so that the first operations don't have
+     * to wait for it. The entity manager factory is created if the facade was
+     * initialized lazily, the entity metadata is processed and the facade
+     * connects to the database, filling the connection pools with their
+     * initial connections.
+     */
+    public void warmUp() {
+        EntityManagerFactory factory = getEntityManagerFactory();
+        if (factory == null) {
+            throw new IllegalStateException("Facade has not been initialized");
+        }
+        // Getting the server session logs it in to the database
+        JpaHelper.getServerSession(factory);
+        factory.getMetamodel();
+    }
+
+    /**
+     * Returns the live metrics of the connection pools of this facade.
+     * 
+     * @return The pool metrics or null if the facade wasn't initialized with
+     *         a connection pool configuration
+     */
+    public PoolMetrics getPoolMetrics() {
+        return poolMetrics;
+    }
+
+    /**
+     * Returns the cache of parsed queries used by this facade. The cache can
+     * be used for monitoring its hit rate and for changing its size.
+     * 
+     * @return The query cache of this facade
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Returns the cache of COUNT query results used by this facade. The cache
+     * is disabled by default; it is enabled by giving it a maximum size.
+     * 
+     * @return The count cache of this facade
+     */
+    public CountCache getCountCache() {
+        return countCache;
+    }
+
+    /**
+     * Returns the retry settings of update(). They can be used for changing
+     * the number of attempts and the backoff, and for monitoring how often
+     * updates conflict.
+     * 
+     * @return The update retry settings of this facade
+     */
+    public UpdateRetry getUpdateRetry() {
+        return updateRetry;
+    }
+
+    /**
+     * Sets the second-level cache used by find(Class, Long). Entities stored
+     * or deleted through this facade are removed from the cache. Within a unit
+     * of work the cache is bypassed, so that uncommitted changes are seen and
+     * never cached. Entities with collections, embedded objects or relations
+     * are never cached, since the cache doesn't copy those and changing them
+     * in place on a found entity would change the cached state. Setting the
+     * cache to null disables it.
+     * 
+     * @param entityCache
+     *            The entity cache or null
+     */
+    public void setEntityCache(EntityCache entityCache) {
+        this.entityCache = entityCache;
+    }
+
+    /**
+     * Returns the second-level cache used by find(Class, Long).
+     * 
+     * @return The entity cache or null if caching is disabled
+     */
+    public EntityCache getEntityCache() {
+        return entityCache;
     }
 
     /**
      * {@inheritDoc}
      */
     public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        EntityCache cache = getEntityCache(clazz);
+        if (cache != null) {
+            A cached = cache.get(clazz, id);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        long stamp = writeStamp.get();
+        long start = System.nanoTime();
         // Get the EntityManager and use its find() method to fetch the object.
         EntityManager em = getEntityManager();
         try {
-            return em.find(clazz, id);
+            A pojo;
+            int timeout = getQueryTimeoutSeconds();
+            if (timeout > 0) {
+                Map<String, Object> hints = new HashMap<String, Object>();
+                hints.put(QueryHints.JDBC_TIMEOUT, timeout);
+                pojo = em.find(clazz, id, hints);
+            } else {
+                pojo = em.find(clazz, id);
+            }
+            if (cache != null && pojo != null) {
+                cache(cache, pojo, System.nanoTime() - start, stamp);
+            }
+            return pojo;
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> Map<Long, A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("Ids may not be null");
+        }
+
+        // Drop duplicates and nulls, but keep the order of the ids
+        Set<Long> uniqueIds = new LinkedHashSet<Long>(ids);
+        uniqueIds.remove(null);
+
+        Map<Long, A> found = new HashMap<Long, A>();
+        List<Long> missing = new ArrayList<Long>();
+        EntityCache cache = getEntityCache(clazz);
+        for (Long id : uniqueIds) {
+            A cached = cache != null ? cache.get(clazz, id) : null;
+            if (cached != null) {
+                found.put(id, cached);
+            } else {
+                missing.add(id);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            EntityManager em = getEntityManager();
+            try {
+                String queryStr = "SELECT p FROM " + clazz.getSimpleName()
+                        + " p WHERE p.id IN :ids";
+                for (int i = 0; i < missing.size(); i += inListSize) {
+                    Map<String, Object> parameters = new HashMap<String, Object>();
+                    parameters.put("ids", missing.subList(i, Math.min(i
+                            + inListSize, missing.size())));
+                    long stamp = writeStamp.get();
+                    long start = System.nanoTime();
+                    List<A> pojos = generateQuery(queryStr, parameters, em)
+                            .getResultList();
+                    // Share the load time of the chunk between its entities
+                    long loadTime = pojos.isEmpty() ? 0 : (System.nanoTime()
+                            - start) / pojos.size();
+                    for (A pojo : pojos) {
+                        found.put(pojo.getId(), pojo);
+                        if (cache != null) {
+                            cache(cache, pojo, loadTime, stamp);
+                        }
+                    }
+                }
+            } finally {
+                // Once we've done the queries, close the EntityManager
+                releaseEntityManager(em);
+            }
         }
+
+        Map<Long, A> result = new LinkedHashMap<Long, A>();
+        for (Long id : uniqueIds) {
+            A pojo = found.get(id);
+            if (pojo != null) {
+                result.put(id, pojo);
+            }
+        }
+        return result;
     }
 
     /**
@@ -96,7 +516,7 @@ public class JPAFacade implements IFacade, Serializable {
             return query.getResultList();
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            releaseEntityManager(em);
         }
     }
 
@@ -117,6 +537,7 @@ public class JPAFacade implements IFacade, Serializable {
         JpaEntityManager jpaEm = JpaHelper.getEntityManager(em);
         // Build the query
         Query query = jpaEm.createQuery(builder, entityClass);
+        applyQueryTimeout(query);
         return query;
     }
 
@@ -134,7 +555,7 @@ public class JPAFacade implements IFacade, Serializable {
             return query.getResultList();
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            releaseEntityManager(em);
         }
     }
 
@@ -154,7 +575,7 @@ public class JPAFacade implements IFacade, Serializable {
             Map<String, Object> parameters, EntityManager em) {
         // Create a query object from the query string given as the
         // parameter
-        Query query = em.createQuery(queryStr);
+        Query query = createQuery(queryStr, em);
         // Check if we have some parameters defined
         if (parameters != null) {
             for (Entry<String, Object> entry : parameters.entrySet()) {
@@ -165,166 +586,1432 @@ public class JPAFacade implements IFacade, Serializable {
         return query;
     }
 
+    /**
+     * Creates a Query object from the given query string. Parsed queries are
+     * kept in the query cache, so that a query string only needs to be parsed
+     * the first time it is used.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param em
+     *            EntityManager instance
+     * @return An instance of the Query object for the given query string
+     */
+    private Query createQuery(String queryStr, EntityManager em) {
+        if (queryCache.getMaxSize() == 0) {
+            Query query = em.createQuery(queryStr);
+            applyQueryTimeout(query);
+            return query;
+        }
+
+        JpaEntityManager jpaEm = JpaHelper.getEntityManager(em);
+        DatabaseQuery databaseQuery = queryCache.get(queryStr);
+        if (databaseQuery == null) {
+            databaseQuery = JpaHelper.getDatabaseQuery(em
+                    .createQuery(queryStr));
+            queryCache.put(queryStr, databaseQuery);
+        }
+
+        // Queries created from a DatabaseQuery are shared in the same way as
+        // named queries are, meaning that they are copied before any changes
+        // (hints, result limits) are made to them. This keeps the cached
+        // instance untouched.
+        Query query = jpaEm.createQuery(databaseQuery);
+        applyQueryTimeout(query);
+        return query;
+    }
+
+    /**
+     * Sets the JDBC statement timeout of the given query, if a query timeout
+     * is in effect on the current thread.
+     * 
+     * @param query
+     *            The query to be executed
+     */
+    private void applyQueryTimeout(Query query) {
+        int timeout = getQueryTimeoutSeconds();
+        if (timeout > 0) {
+            query.setHint(QueryHints.JDBC_TIMEOUT, timeout);
+        }
+    }
+
+    /**
+     * Returns the query timeout of the current thread in whole seconds, which
+     * is the resolution of JDBC statement timeouts.
+     * 
+     * @return Timeout in seconds or zero if no timeout is in effect
+     */
+    private int getQueryTimeoutSeconds() {
+        Long timeout = threadQueryTimeout.get();
+        if (timeout == null) {
+            timeout = queryTimeout;
+        }
+        // Round up, so that a timeout below one second doesn't disable it
+        return (int) ((timeout + 999) / 1000);
+    }
+
+    /**
+     * Sets the timeout of the database queries executed by this facade. When
+     * a query runs longer than the timeout, the JDBC driver cancels the
+     * statement and the query fails with an exception. The timeout is rounded
+     * up to whole seconds.
+     * 
+     * @param queryTimeout
+     *            Timeout in milliseconds or zero for no timeout
+     */
+    public void setQueryTimeout(long queryTimeout) {
+        if (queryTimeout < 0) {
+            throw new IllegalArgumentException(
+                    "Query timeout may not be negative");
+        }
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * Returns the timeout of the database queries executed by this facade.
+     * 
+     * @return Timeout in milliseconds or zero if there is no timeout
+     */
+    public long getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setThreadQueryTimeout(Long timeout) {
+        if (timeout == null) {
+            threadQueryTimeout.remove();
+        } else {
+            threadQueryTimeout.set(timeout);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The statements can only be cancelled if statement tracking has been
+     * turned on with setStatementTracking(). They are cancelled through the
+     * JDBC driver, which may not support cancelling.
+     */
+    public void cancelStatements(Thread thread) {
+        EntityManagerFactory factory = emf;
+        if (factory == null || !factory.isOpen()) {
+            // No statements are executed before the factory is created
+            return;
+        }
+        // Facades of the same persistence unit may share the session, whose
+        // connections report to the statements of the facade which created it
+        Object statements = JpaHelper.getServerSession(factory).getProperty(
+                StatementTracker.STATEMENTS_PROPERTY);
+        if (statements instanceof RunningStatements) {
+            ((RunningStatements) statements).cancel(thread);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String continuationToken, int amount) {
+        return page(clazz, "id", continuationToken, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String keyField, String continuationToken, int amount) {
+        return page(clazz, keyField, null, null, continuationToken, amount);
+    }
+
     /**
      * {@inheritDoc}
      */
+    public <A extends AbstractPojo> KeysetPage<A> page(EntityQuery<A> query,
+            String continuationToken, int amount) {
+        checkQuery(query);
+        return page(query.getEntityClass(), getKeyField(query), query
+                .getWhereClause(), query.getParameters(), continuationToken,
+                amount);
+    }
+
+    /**
+     * Returns the key field for keyset paging by the given query.
+     * 
+     * @param query
+     *            The query
+     * @return The only ordering field of the query, or id if the query isn't
+     *         ordered
+     */
+    static String getKeyField(EntityQuery<?> query) {
+        List<String> orderFields = query.getOrderFields();
+        if (orderFields.isEmpty()) {
+            return "id";
+        }
+        if (orderFields.size() > 1 || query.isDescending(0)
+                || orderFields.get(0).indexOf('.') >= 0) {
+            throw new IllegalArgumentException(
+                    "Pages can only be ordered by a single ascending field");
+        }
+        return orderFields.get(0);
+    }
+
+    /**
+     * Fetches a page of the entities matching the given where clause.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param keyField
+     *            Name of the field by which the entities are ordered
+     * @param whereClause
+     *            Where conditions or null
+     * @param whereParameters
+     *            Parameter values for the where conditions or null. The names
+     *            keysetLastId and keysetLastKey are reserved.
+     * @param continuationToken
+     *            The continuation token of the previous page or null for the
+     *            first page
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return A page of A entities
+     */
     @SuppressWarnings("unchecked")
-    public <A extends AbstractPojo> A find(String queryStr,
-            Map<String, Object> parameters) {
+    private <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String keyField, String whereClause,
+            Map<String, Object> whereParameters, String continuationToken,
+            int amount) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (keyField == null || !keyField.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+            throw new IllegalArgumentException("Invalid key field");
+        }
+
+        if (amount < 1) {
+            throw new IllegalArgumentException(
+                    "Amount must be a positive number");
+        }
+
+        boolean byId = "id".equals(keyField);
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        StringBuilder queryStr = new StringBuilder("SELECT p FROM ");
+        queryStr.append(clazz.getSimpleName()).append(" p");
+        if (whereClause != null) {
+            queryStr.append(" WHERE (").append(whereClause).append(")");
+            if (whereParameters != null) {
+                if (whereParameters.containsKey(LAST_ID_PARAMETER)
+                        || whereParameters.containsKey(LAST_KEY_PARAMETER)) {
+                    throw new IllegalArgumentException("Parameter names "
+                            + LAST_ID_PARAMETER + " and " + LAST_KEY_PARAMETER
+                            + " are reserved");
+                }
+                parameters.putAll(whereParameters);
+            }
+        }
+
+        // Seek past the last entity of the previous page
+        if (continuationToken != null) {
+            KeysetToken token = KeysetToken.decode(continuationToken);
+            if (!keyField.equals(token.getKeyField())) {
+                throw new IllegalArgumentException(
+                        "The continuation token was created for field '"
+                                + token.getKeyField() + "'");
+            }
+
+            queryStr.append(whereClause != null ? " AND " : " WHERE ");
+            if (byId) {
+                queryStr.append("p.id > :").append(LAST_ID_PARAMETER);
+            } else {
+                queryStr.append("(p.").append(keyField).append(" > :")
+                        .append(LAST_KEY_PARAMETER);
+                queryStr.append(" OR (p.").append(keyField).append(" = :")
+                        .append(LAST_KEY_PARAMETER);
+                queryStr.append(" AND p.id > :").append(LAST_ID_PARAMETER)
+                        .append("))");
+                parameters.put(LAST_KEY_PARAMETER, token.getKeyValue());
+            }
+            parameters.put(LAST_ID_PARAMETER, token.getId());
+        }
+
+        if (byId) {
+            queryStr.append(" ORDER BY p.id");
+        } else {
+            queryStr.append(" ORDER BY p.").append(keyField).append(", p.id");
+        }
+
         EntityManager em = getEntityManager();
         try {
-            // Create a query object from the query string given as the
-            // parameter
-            Query query = em.createQuery(queryStr);
-            // Check if we have some parameters defined
-            if (parameters != null) {
-                for (Entry<String, Object> entry : parameters.entrySet()) {
-                    // Inject the parameter to the query
-                    query.setParameter(entry.getKey(), entry.getValue());
-                }
+            Query query = generateQuery(queryStr.toString(), parameters, em);
+            // Fetch one extra entity to find out if there is a next page
+            query.setMaxResults(amount + 1);
+            List<A> items = query.getResultList();
+
+            String nextToken = null;
+            if (items.size() > amount) {
+                items = new ArrayList<A>(items.subList(0, amount));
+                A last = items.get(amount - 1);
+                Object keyValue = byId ? last.getId() : EntityAccessor
+                        .forClass(last.getClass()).getValue(last, keyField);
+                nextToken = new KeysetToken(keyField, keyValue, last.getId())
+                        .encode();
             }
 
-            // Execute query and return result
-            return (A) query.getSingleResult();
-        } catch (NoResultException e) {
-            // This exception will occur if no results were found with the given
-            // query. If this occurs, return null.
-            return null;
+            return new KeysetPage<A>(items, nextToken);
         } finally {
             // Once we've done the query, close the EntityManager
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(Class<A> clazz,
+            int fetchSize) {
+        // The cursor needs an EntityManager of its own, since it stays open
+        // after this method returns and the thread's EntityManager is closed
+        // by every other method in this facade.
+        EntityManager em = getEntityManagerFactory().createEntityManager();
+        try {
+            return openCursor(generateQuery(clazz, em), fetchSize, em);
+        } catch (RuntimeException e) {
+            em.close();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(String queryStr,
+            Map<String, Object> parameters, int fetchSize) {
+        EntityManager em = getEntityManagerFactory().createEntityManager();
+        try {
+            return openCursor(generateQuery(queryStr, parameters, em),
+                    fetchSize, em);
+        } catch (RuntimeException e) {
+            em.close();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            EntityQuery<A> query, int fetchSize) {
+        checkQuery(query);
+        EntityManager em = getEntityManagerFactory().createEntityManager();
+        try {
+            return openCursor(generateQuery(query, query.getQueryString(), em),
+                    fetchSize, em);
+        } catch (RuntimeException e) {
+            em.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a Query object for the given query string of an EntityQuery,
+     * with the parameters and limits of the EntityQuery.
+     * 
+     * @param query
+     *            The EntityQuery
+     * @param queryStr
+     *            One of the query strings of the EntityQuery
+     * @param em
+     *            EntityManager instance
+     * @return An instance of the Query object
+     */
+    private Query generateQuery(EntityQuery<?> query, String queryStr,
+            EntityManager em) {
+        Query jpaQuery = generateQuery(queryStr, query.getParameters(), em);
+        if (query.isLimited()) {
+            jpaQuery.setFirstResult(query.getFirstResult()).setMaxResults(
+                    query.getMaxResults());
+        }
+        return jpaQuery;
+    }
+
+    private void checkQuery(EntityQuery<?> query) {
+        if (query == null) {
+            throw new IllegalArgumentException("Query may not be null");
+        }
+    }
+
+    /**
+     * Executes the given query as an EclipseLink cursored stream and wraps the
+     * stream in a ResultCursor.
+     * 
+     * @param query
+     *            The query to be executed
+     * @param fetchSize
+     *            The JDBC fetch size and the size of the chunks after which
+     *            the persistence context is cleared
+     * @param em
+     *            The EntityManager owned by the cursor
+     * @return A cursor over the query results
+     */
+    private <A extends AbstractPojo> ResultCursor<A> openCursor(Query query,
+            int fetchSize, EntityManager em) {
+        if (fetchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Fetch size must be a positive number");
+        }
+
+        query.setHint(QueryHints.CURSOR, HintValues.TRUE);
+        query.setHint(QueryHints.CURSOR_PAGE_SIZE, fetchSize);
+        query.setHint(QueryHints.JDBC_FETCH_SIZE, fetchSize);
+
+        CursoredStream stream = (CursoredStream) query.getSingleResult();
+        return new JPAResultCursor<A>(em, stream, fetchSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> A findReadOnly(Class<A> clazz, Long id) {
+        EntityManager em = getEntityManager();
+        try {
+            Map<String, Object> hints = new HashMap<String, Object>();
+            if (!inUnitOfWork()) {
+                hints.put(QueryHints.READ_ONLY, HintValues.TRUE);
+            }
+            int timeout = getQueryTimeoutSeconds();
+            if (timeout > 0) {
+                hints.put(QueryHints.JDBC_TIMEOUT, timeout);
+            }
+            return em.find(clazz, id, hints);
+        } finally {
+            // Once we've done the query, close the EntityManager
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz) {
+        return listReadOnly(clazz, null, null, 0, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz,
+            int startIndex, int amount) {
+        return listReadOnly(clazz, null, null, startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters) {
+        return listReadOnly(null, queryStr, parameters, 0, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        return listReadOnly(null, queryStr, parameters, startIndex, amount);
+    }
+
+    /**
+     * Executes a read-only query, either for all entities of the given class
+     * or for the given query string. Inside a unit of work the query is
+     * executed as a normal query, so that the unit's uncommitted changes are
+     * seen and never end up in the shared cache.
+     * 
+     * @param clazz
+     *            Entity class or null if the query string is used
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned or a negative number
+     *            for all entities
+     * @return List of A entities
+     */
+    @SuppressWarnings("unchecked")
+    private <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz,
+            String queryStr, Map<String, Object> parameters, int startIndex,
+            int amount) {
+        EntityManager em = getEntityManager();
+        try {
+            Query query = clazz != null ? generateQuery(clazz, em)
+                    : generateQuery(queryStr, parameters, em);
+            if (!inUnitOfWork()) {
+                // The results are the shared cache's own instances, so they
+                // are neither copied nor registered for change tracking
+                query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+            }
+            if (amount >= 0) {
+                query.setFirstResult(startIndex).setMaxResults(amount);
+            }
+            return query.getResultList();
+        } finally {
+            // Once we've done the query, close the EntityManager
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> A find(String queryStr,
+            Map<String, Object> parameters) {
+        EntityManager em = getEntityManager();
+        try {
+            // Generate a query instance for the given query and parameters
+            Query query = generateQuery(queryStr, parameters, em);
+
+            // Execute query and return result
+            return (A) query.getSingleResult();
+        } catch (NoResultException e) {
+            // This exception will occur if no results were found with the given
+            // query. If this occurs, return null.
+            return null;
+        } finally {
+            // Once we've done the query, close the EntityManager
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(AbstractPojo pojo) {
+        if (pojo.isTrackingChanges() && storeChanges(pojo)) {
+            return;
+        }
+
+        EntityManager em = getEntityManager();
+        try {
+            // Open a new transaction unless we already have an open one
+            beginTransaction(em);
+            // Check if the entity has an id (primary key). If it has a primary
+            // key, then there is an existing instance of this object in the
+            // database and we only need to update its state.
+            AbstractPojo managed = pojo;
+            if (pojo.getId() != null) {
+                managed = em.merge(pojo);
+            } else {
+                // An id didn't exist, so we have a new entity in our hands,
+                // hence we need to persist it and not merge.
+                em.persist(pojo);
+            }
+            // Commit the transaction
+            commitTransaction(em);
+            evict(pojo);
+
+            // The concurrency version id has now been incremented for pojo,
+            // hence we need to update the pojo at this point to avoid
+            // exceptions caused by the optimistic locking.
+            if (refreshAfterStore) {
+                refresh(pojo);
+            } else {
+                // The managed instance already knows the new id and version,
+                // so there's no need to read the entity again.
+                pojo.setId(managed.getId());
+                pojo.setConsistencyVersion(managed.getConsistencyVersion());
+            }
+            if (pojo.isTrackingChanges()) {
+                pojo.trackChanges();
+            }
+        } finally {
+            // Once we've done the query, close the EntityManager
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * Writes the changed fields of an entity tracking its changes with a
+     * single UPDATE statement. The statement only updates the row if its
+     * consistency version still matches that of the entity, so no SELECT is
+     * needed before the update nor a refresh after it. Only basic fields can
+     * be written this way; if the id, the version or any other field has
+     * changed, the entity has to be merged.
+     * 
+     * @param pojo
+     *            The entity to be stored
+     * @return true if the entity was stored, false if it has to be merged
+     * @throws OptimisticLockException
+     *             If the entity has been modified or removed by someone else
+     */
+    private boolean storeChanges(AbstractPojo pojo) {
+        if (pojo.getId() == null || pojo.getConsistencyVersion() == null) {
+            return false;
+        }
+
+        List<String> changed = pojo.getChangedFields();
+        if (changed.isEmpty()) {
+            // Nothing to write
+            return true;
+        }
+
+        EntityType<?> type;
+        try {
+            type = getEntityManagerFactory().getMetamodel().entity(
+                    pojo.getClass());
+        } catch (IllegalArgumentException e) {
+            // Not an entity known to the persistence unit
+            return false;
+        }
+
+        EntityAccessor accessor = EntityAccessor.forClass(pojo.getClass());
+        StringBuilder queryStr = new StringBuilder("UPDATE ").append(
+                type.getName()).append(" p SET");
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        for (int i = 0; i < changed.size(); i++) {
+            String field = changed.get(i);
+            if ("id".equals(field) || "consistencyVersion".equals(field)) {
+                return false;
+            }
+            // Relations and embedded objects can't be set by a bulk update
+            PersistentAttributeType attributeType;
+            try {
+                attributeType = type.getAttribute(field)
+                        .getPersistentAttributeType();
+            } catch (IllegalArgumentException e) {
+                // Not a persistent attribute, such as a transient field
+                return false;
+            }
+            if (attributeType != PersistentAttributeType.BASIC) {
+                return false;
+            }
+            queryStr.append(" p.").append(field).append(" = :value").append(i)
+                    .append(",");
+            parameters.put("value" + i, accessor.getValue(pojo, field));
+        }
+        queryStr.append(" p.consistencyVersion = p.consistencyVersion + 1")
+                .append(" WHERE p.id = :id AND p.consistencyVersion = :version");
+        parameters.put("id", pojo.getId());
+        parameters.put("version", pojo.getConsistencyVersion());
+
+        EntityManager em = getEntityManager();
+        try {
+            beginTransaction(em);
+            int updated = generateQuery(queryStr.toString(), parameters, em)
+                    .executeUpdate();
+            if (updated == 0) {
+                if (inUnitOfWork()) {
+                    em.getTransaction().setRollbackOnly();
+                } else {
+                    em.getTransaction().rollback();
+                }
+                throw new OptimisticLockException("The entity has been "
+                        + "modified or removed since it was read", null, pojo);
+            }
+            commitTransaction(em);
+            evict(pojo);
+
+            pojo.setConsistencyVersion(pojo.getConsistencyVersion() + 1);
+            pojo.trackChanges();
+            return true;
+        } finally {
+            if (!inUnitOfWork() && em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        storeAll(pojos, refreshAfterStore);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos,
+            boolean refresh) {
+        // This method follows the same principles as the store() method. Read
+        // store()'s comments for more detailed explanations.
+        EntityManager em = getEntityManager();
+        try {
+            beginTransaction(em);
+
+            // The entities of the current chunk and their managed copies
+            List<AbstractPojo> chunk = new ArrayList<AbstractPojo>();
+            List<AbstractPojo> managed = new ArrayList<AbstractPojo>();
+            // The ids and versions of the already flushed chunks. They are
+            // copied to the entities only after the transaction has been
+            // committed successfully.
+            List<AbstractPojo> flushed = new ArrayList<AbstractPojo>();
+            List<Long[]> flushedKeys = new ArrayList<Long[]>();
+
+            // Loop through all entities
+            for (AbstractPojo pojo : pojos) {
+                // Merge or persist the objects depending on if they already
+                // exist in the database.
+                if (pojo.getId() != null) {
+                    managed.add(em.merge(pojo));
+                } else {
+                    em.persist(pojo);
+                    managed.add(pojo);
+                }
+                chunk.add(pojo);
+
+                // In batch mode, write the chunk to the database and detach
+                // it, so that the persistence context doesn't grow with the
+                // size of the collection.
+                if (batchSize > 0 && chunk.size() == batchSize) {
+                    em.flush();
+                    for (int i = 0; i < chunk.size(); i++) {
+                        flushed.add(chunk.get(i));
+                        flushedKeys.add(new Long[] { managed.get(i).getId(),
+                                managed.get(i).getConsistencyVersion() });
+                    }
+                    em.clear();
+                    chunk.clear();
+                    managed.clear();
+                }
+            }
+            // Commit the transaction.
+            commitTransaction(em);
+            for (AbstractPojo pojo : pojos) {
+                evict(pojo);
+            }
+
+            // Hand the generated ids and new versions back to the caller's
+            // instances.
+            for (int i = 0; i < flushed.size(); i++) {
+                flushed.get(i).setId(flushedKeys.get(i)[0]);
+                flushed.get(i).setConsistencyVersion(flushedKeys.get(i)[1]);
+            }
+            for (int i = 0; i < chunk.size(); i++) {
+                chunk.get(i).setId(managed.get(i).getId());
+                chunk.get(i).setConsistencyVersion(
+                        managed.get(i).getConsistencyVersion());
+            }
+
+            // Refresh all the pojos.
+            if (refresh) {
+                for (AbstractPojo pojo : pojos) {
+                    refresh(pojo);
+                }
+            }
+            // The stored state is the base for the next changes
+            for (AbstractPojo pojo : pojos) {
+                if (pojo.isTrackingChanges()) {
+                    pojo.trackChanges();
+                }
+            }
+        } finally {
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A update(Class<A> c, Long id,
+            EntityMutation<A> mutation) {
+        return updateRetry.update(this, inUnitOfWork() ? null : entityCache,
+                c, id, mutation, !inUnitOfWork());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        // If it isn't stored, it can't be removed
+        if (pojo.getId() == null) {
+            return;
+        }
+
+        EntityManager em = getEntityManager();
+        try {
+            // Begin the transaction
+            beginTransaction(em);
+            // We need to merge this object to the database session, so that it
+            // can be deleted. We do this by actually fetching the object first.
+            Object entity = em.find(pojo.getClass(), pojo.getId());
+            // Now when we have a fresh instance of the entity which is attached
+            // to the JPA provider's session, we can remove the entity.
+            em.remove(entity);
+            // Commit transaction.
+            commitTransaction(em);
+            evict(pojo);
+        } finally {
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        if (batchSize > 0) {
+            deleteAllById(pojos);
+            return;
+        }
+        // This method follows the same principles as the delete() method. Read
+        // delete()'s comments for more detailed explanations.
+
+        EntityManager em = getEntityManager();
+        try {
+            beginTransaction(em);
+            for (A pojo : pojos) {
+                // If it isn't stored, it can't be removed
+                if (pojo.getId() == null) {
+                    continue;
+                }
+                // Fetch the entity merged to the session
+                Object entity = em.find(pojo.getClass(), pojo.getId());
+                if (entity != null) {
+                    // Remove the entity
+                    em.remove(entity);
+                }
+            }
+            // Commit transaction
+            commitTransaction(em);
+            for (A pojo : pojos) {
+                evict(pojo);
+            }
+        } finally {
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * Removes the given entities with bulk DELETE statements, one statement
+     * per entity class and chunk of batchSize ids. The entities are not loaded
+     * before they are removed.
+     * 
+     * @param pojos
+     *            The entities to be removed
+     */
+    private <A extends AbstractPojo> void deleteAllById(Collection<A> pojos) {
+        // Group the ids by the entity class
+        Map<Class<?>, List<Long>> ids = new HashMap<Class<?>, List<Long>>();
+        for (A pojo : pojos) {
+            // If it isn't stored, it can't be removed
+            if (pojo.getId() == null) {
+                continue;
+            }
+            List<Long> classIds = ids.get(pojo.getClass());
+            if (classIds == null) {
+                classIds = new ArrayList<Long>();
+                ids.put(pojo.getClass(), classIds);
+            }
+            classIds.add(pojo.getId());
+        }
+
+        EntityManager em = getEntityManager();
+        try {
+            beginTransaction(em);
+            for (Entry<Class<?>, List<Long>> entry : ids.entrySet()) {
+                String queryStr = "DELETE FROM "
+                        + entry.getKey().getSimpleName()
+                        + " p WHERE p.id IN :ids";
+                List<Long> classIds = entry.getValue();
+                for (int i = 0; i < classIds.size(); i += batchSize) {
+                    Map<String, Object> parameters = new HashMap<String, Object>();
+                    parameters.put("ids", classIds.subList(i, Math.min(i
+                            + batchSize, classIds.size())));
+                    generateQuery(queryStr, parameters, em).executeUpdate();
+                }
+            }
+            // Commit transaction
+            commitTransaction(em);
+            for (A pojo : pojos) {
+                evict(pojo);
+            }
+        } finally {
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int deleteWhere(Class<? extends AbstractPojo> c,
+            String whereClause, Map<String, Object> parameters) {
+        checkBulkStatement(c, whereClause);
+        return executeBulkStatement(c, "DELETE FROM " + c.getSimpleName()
+                + " p WHERE " + whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int updateWhere(Class<? extends AbstractPojo> c,
+            String assignments, String whereClause,
+            Map<String, Object> parameters) {
+        checkBulkStatement(c, whereClause);
+        if (assignments == null) {
+            throw new IllegalArgumentException("Assignments may not be null");
+        }
+        // Bulk updates don't increment the version by themselves
+        return executeBulkStatement(c, "UPDATE " + c.getSimpleName()
+                + " p SET " + assignments
+                + ", p.consistencyVersion = p.consistencyVersion + 1"
+                + " WHERE " + whereClause, parameters);
+    }
+
+    private void checkBulkStatement(Class<? extends AbstractPojo> c,
+            String whereClause) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+        if (whereClause == null) {
+            throw new IllegalArgumentException("Where clause may not be null");
+        }
+    }
+
+    /**
+     * Executes a bulk UPDATE or DELETE statement and evicts the entities of
+     * the class from the caches, since it isn't known which of them were
+     * written.
+     * 
+     * @param c
+     *            The written entity class
+     * @param queryStr
+     *            The statement
+     * @param parameters
+     *            Parameters of the statement
+     * @return The number of written rows
+     */
+    private int executeBulkStatement(Class<? extends AbstractPojo> c,
+            String queryStr, Map<String, Object> parameters) {
+        EntityManager em = getEntityManager();
+        try {
+            beginTransaction(em);
+            int rows = generateQuery(queryStr, parameters, em).executeUpdate();
+            commitTransaction(em);
+            evictAll(c);
+            return rows;
+        } finally {
+            if (!inUnitOfWork() && em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> T inTransaction(UnitOfWork<T> work) {
+        if (work == null) {
+            throw new IllegalArgumentException("Unit of work may not be null");
+        }
+
+        Integer depth = unitOfWorkDepth.get();
+        if (depth != null) {
+            // A unit of work is already running on this thread, so join its
+            // transaction
+            return joinUnitOfWork(work, depth);
+        }
+
+        EntityManager em = getEntityManager();
+        unitOfWorkDepth.set(1);
+        unitOfWorkWrites.set(new ArrayList<AbstractPojo>());
+        unitOfWorkBulkWrites.set(new LinkedHashSet<Class<? extends AbstractPojo>>());
+        try {
+            em.getTransaction().begin();
+            T result = work.execute(this);
+            // Throws a RollbackException if a nested unit of work failed
+            em.getTransaction().commit();
+            return result;
+        } finally {
+            unitOfWorkDepth.remove();
+            // If the commit wasn't reached, undo everything done so far
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            close();
+
+            List<AbstractPojo> writes = unitOfWorkWrites.get();
+            unitOfWorkWrites.remove();
+            for (AbstractPojo pojo : writes) {
+                evict(pojo);
+            }
+            Set<Class<? extends AbstractPojo>> bulkWrites = unitOfWorkBulkWrites
+                    .get();
+            unitOfWorkBulkWrites.remove();
+            for (Class<? extends AbstractPojo> c : bulkWrites) {
+                evictAll(c);
+            }
+        }
+    }
+
+    /**
+     * Executes a unit of work within the transaction of the unit of work
+     * already running on the current thread. If the nested unit of work fails,
+     * the whole transaction is marked for rollback, even if the outer unit of
+     * work catches the exception.
+     * 
+     * @param work
+     *            The nested unit of work
+     * @param depth
+     *            Current nesting depth
+     * @return The result returned by the unit of work
+     */
+    private <T> T joinUnitOfWork(UnitOfWork<T> work, int depth) {
+        unitOfWorkDepth.set(depth + 1);
+        boolean completed = false;
+        try {
+            T result = work.execute(this);
+            completed = true;
+            return result;
+        } finally {
+            unitOfWorkDepth.set(depth);
+            EntityManager em = this.em.get();
+            if (!completed && em != null && em.getTransaction().isActive()) {
+                em.getTransaction().setRollbackOnly();
+            }
+        }
+    }
+
+    /**
+     * Checks if the current thread is executing a unit of work.
+     * 
+     * @return true if a unit of work is running
+     */
+    private boolean inUnitOfWork() {
+        return unitOfWorkDepth.get() != null;
+    }
+
+    /**
+     * Removes a stored or deleted entity from the entity cache and invalidates
+     * the cached counts of its class.
+     * 
+     * @param pojo
+     *            The written entity
+     */
+    private void evict(AbstractPojo pojo) {
+        markWritten(pojo.getClass());
+        countCache.invalidate(pojo.getClass());
+        EntityCache cache = entityCache;
+        if (cache != null && pojo.getId() != null) {
+            cache.remove(pojo.getClass(), pojo.getId());
+        }
+
+        List<AbstractPojo> writes = unitOfWorkWrites.get();
+        if (writes != null) {
+            writes.add(pojo);
+        }
+    }
+
+    /**
+     * Records that entities of the class have been written. This must happen
+     * before the written entities are removed from the entity cache, so that a
+     * load racing with the write either sees the new stamp or has its stale
+     * entity removed from the cache.
+     * 
+     * @param c
+     *            The written entity class
+     */
+    private void markWritten(Class<?> c) {
+        long stamp = writeStamp.incrementAndGet();
+        AtomicLong classStamp = classWriteStamps.get(c);
+        if (classStamp == null) {
+            AtomicLong newStamp = new AtomicLong();
+            classStamp = classWriteStamps.putIfAbsent(c, newStamp);
+            if (classStamp == null) {
+                classStamp = newStamp;
+            }
+        }
+        // Concurrent writers may get here in any order, keep the latest stamp
+        long current = classStamp.get();
+        while (current < stamp && !classStamp.compareAndSet(current, stamp)) {
+            current = classStamp.get();
+        }
+    }
+
+    /**
+     * Puts a loaded entity into the entity cache, unless its class or one of
+     * its superclasses has been written since the load began. The stamps are
+     * checked again after the put, since a write may evict the entity between
+     * the check and the put.
+     * 
+     * @param cache
+     *            The entity cache
+     * @param pojo
+     *            The loaded entity
+     * @param loadTime
+     *            The time it took to load the entity in nanoseconds
+     * @param stamp
+     *            The write stamp taken before the load began
+     */
+    private void cache(EntityCache cache, AbstractPojo pojo, long loadTime,
+            long stamp) {
+        if (!isCacheable(pojo.getClass())
+                || writtenSince(pojo.getClass(), stamp)) {
+            return;
+        }
+        cache.put(pojo, loadTime);
+        if (writtenSince(pojo.getClass(), stamp)) {
+            cache.remove(pojo.getClass(), pojo.getId());
+        }
+    }
+
+    /**
+     * Returns the entity cache for finding entities of the given class, or
+     * null if the cache is disabled, the current thread is in a unit of work
+     * or the entities of the class aren't cached.
+     */
+    private EntityCache getEntityCache(Class<?> c) {
+        EntityCache cache = entityCache;
+        if (cache == null || inUnitOfWork() || !isCacheable(c)) {
+            return null;
+        }
+        return cache;
+    }
+
+    /**
+     * Checks if the entities of the class can be held in the entity cache.
+     * The cache copies only the basic values of an entity, so an entity with
+     * collections, embedded objects or relations would share them with the
+     * cached state. The metamodel is consulted once per class.
+     */
+    private boolean isCacheable(Class<?> c) {
+        Boolean cacheable = cacheableClasses.get(c);
+        if (cacheable == null) {
+            cacheable = Boolean.TRUE;
+            try {
+                for (Attribute<?, ?> attribute : getEntityManagerFactory()
+                        .getMetamodel().entity(c).getAttributes()) {
+                    if (!PersistentAttributeType.BASIC.equals(attribute
+                            .getPersistentAttributeType())) {
+                        cacheable = Boolean.FALSE;
+                        break;
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                // Not an entity known to the persistence unit
+                cacheable = Boolean.FALSE;
+            }
+            cacheableClasses.put(c, cacheable);
+        }
+        return cacheable;
+    }
+
+    /**
+     * Checks if the class or one of its superclasses has been written after
+     * the given write stamp.
+     */
+    private boolean writtenSince(Class<?> c, long stamp) {
+        for (Class<?> current = c; current != null; current = current
+                .getSuperclass()) {
+            AtomicLong classStamp = classWriteStamps.get(current);
+            if (classStamp != null && classStamp.get() > stamp) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes all entities of a class written with a bulk statement from the
+     * entity cache and invalidates the cached counts of the class.
+     * 
+     * @param c
+     *            The written entity class
+     */
+    private void evictAll(Class<? extends AbstractPojo> c) {
+        markWritten(c);
+        countCache.invalidate(c);
+        EntityCache cache = entityCache;
+        if (cache != null) {
+            cache.removeAll(c);
+        }
+
+        Set<Class<? extends AbstractPojo>> bulkWrites = unitOfWorkBulkWrites
+                .get();
+        if (bulkWrites != null) {
+            bulkWrites.add(c);
+        }
+    }
+
+    /**
+     * Begins a transaction, unless the EntityManager already has an active
+     * one. Inside a unit of work, the unit's transaction is always active.
+     * 
+     * @param em
+     *            EntityManager instance
+     */
+    private void beginTransaction(EntityManager em) {
+        if (!em.getTransaction().isActive()) {
+            em.getTransaction().begin();
+        }
+    }
+
+    /**
+     * Commits the EntityManager's transaction. Inside a unit of work the
+     * changes are only written to the database, as the transaction is
+     * committed once the whole unit of work is done.
+     * 
+     * @param em
+     *            EntityManager instance
+     */
+    private void commitTransaction(EntityManager em) {
+        if (inUnitOfWork()) {
+            em.flush();
+        } else {
+            em.getTransaction().commit();
+        }
+    }
+
+    /**
+     * Releases the EntityManager used by a single facade operation. Outside a
+     * unit of work the EntityManager is closed. Inside a unit of work it stays
+     * open for the following operations, but its persistence context is
+     * cleared, so that the entities handed out by the operation are detached
+     * just like they would be if the EntityManager had been closed.
+     * 
+     * @param em
+     *            EntityManager instance
+     */
+    private void releaseEntityManager(EntityManager em) {
+        if (inUnitOfWork()) {
+            em.clear();
+        } else {
             em.close();
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Sets the batch size used in bulk writes. When the batch size is
+     * positive, storeAll() writes the entities to the database and clears the
+     * persistence context every batchSize entities, deleteAll() removes the
+     * entities with one DELETE statement per batchSize ids without loading
+     * them first, and JDBC batch writing is turned on for the persistence unit
+     * with the given batch size. Note that bulk deletes do not cascade to
+     * related entities. Zero (the default) disables the bulk mode and restores
+     * the batch writing settings of the persistence unit.
+     * 
+     * The batch writing settings belong to the persistence unit, so they apply
+     * to every facade sharing the entity manager factory's session. If the
+     * facade was initialized lazily, the settings are given to the entity
+     * manager factory when it is created.
+     * 
+     * @param batchSize
+     *            The number of entities written to the database at a time
+     * @throws IllegalStateException
+     *             if the facade hasn't been initialized
      */
-    public void store(AbstractPojo pojo) {
-        EntityManager em = getEntityManager();
-        try {
-            // Check if we have an open transaction
-            if (!em.getTransaction().isActive()) {
-                // If not, open a new transaction
-                em.getTransaction().begin();
-            }
-            // Check if the entity has an id (primary key). If it has a primary
-            // key, then there is an existing instance of this object in the
-            // database and we only need to update its state.
-            if (pojo.getId() != null) {
-                em.merge(pojo);
-            } else {
-                // An id didn't exist, so we have a new entity in our hands,
-                // hence we need to persist it and not merge.
-                em.persist(pojo);
-            }
-            // Commit the transaction
-            em.getTransaction().commit();
+    public synchronized void setBatchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException(
+                    "Batch size may not be negative");
+        }
 
-            // The concurrency version id has now been incremented for pojo,
-            // hence we need to refresh the pojo at this point to avoid
-            // exceptions caused by the optimistic locking. This refresh won't
-            // cause an extra database query, since the object is cached in the
-            // JPA providers memory.
-            refresh(pojo);
-        } finally {
-            // Once we've done the query, close the EntityManager
-            em.close();
+        if (emf != null) {
+            setBatchWriting(JpaHelper.getServerSession(emf).getPlatform(),
+                    batchSize);
+        } else if (lazyUnitName != null) {
+            setBatchWritingProperties(lazyUnitProperties, batchSize);
+        } else {
+            throw new IllegalStateException("Facade has not been initialized");
         }
+        this.batchSize = batchSize;
     }
 
     /**
-     * {@inheritDoc}
+     * Turns JDBC batch writing on with the given batch size, or restores the
+     * settings the platform had before it was turned on if the size is zero.
+     * 
+     * @param platform
+     *            The platform of the entity manager factory's session
+     * @param batchSize
+     *            The batch size or zero
      */
-    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
-        // This method follows the same principles as the store() method. Read
-        // store()'s comments for more detailed explanations.
-        EntityManager em = getEntityManager();
-        try {
-            em.getTransaction().begin();
-            // Loop through all entities
-            for (AbstractPojo pojo : pojos) {
-                // Merge or persist the objects depending on if they already
-                // exist in the database.
-                if (pojo.getId() != null) {
-                    em.merge(pojo);
-                } else {
-                    em.persist(pojo);
-                }
-            }
-            // Commit the transaction.
-            em.getTransaction().commit();
-
-            // Refresh all the pojos.
-            for (AbstractPojo pojo : pojos) {
-                refresh(pojo);
+    private void setBatchWriting(DatabasePlatform platform, int batchSize) {
+        if (batchSize > 0) {
+            if (platformBatchWriting == null) {
+                platformBatchWriting = platform.usesBatchWriting();
+                platformJdbcBatchWriting = platform.usesJDBCBatchWriting();
+                platformNativeBatchWriting = platform.usesNativeBatchWriting();
+                platformBatchWritingSize = platform.getMaxBatchWritingSize();
             }
-        } finally {
-            em.close();
+            platform.setUsesBatchWriting(true);
+            platform.setUsesJDBCBatchWriting(true);
+            platform.setUsesNativeBatchWriting(false);
+            platform.setMaxBatchWritingSize(batchSize);
+        } else if (platformBatchWriting != null) {
+            platform.setUsesBatchWriting(platformBatchWriting);
+            platform.setUsesJDBCBatchWriting(platformJdbcBatchWriting);
+            platform.setUsesNativeBatchWriting(platformNativeBatchWriting);
+            platform.setMaxBatchWritingSize(platformBatchWritingSize);
+            platformBatchWriting = null;
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Adds the persistence unit properties turning JDBC batch writing on with
+     * the given batch size, or removes them if the size is zero so that the
+     * settings of the persistence.xml file apply.
+     * 
+     * @param properties
+     *            Properties of the entity manager factory
+     * @param batchSize
+     *            The batch size or zero
      */
-    public void delete(AbstractPojo pojo) {
-        if (pojo == null) {
-            throw new IllegalArgumentException("Null values are not accepted");
+    private static void setBatchWritingProperties(
+            Map<String, Object> properties, int batchSize) {
+        if (batchSize > 0) {
+            properties.put(PersistenceUnitProperties.BATCH_WRITING,
+                    BatchWriting.JDBC);
+            properties.put(PersistenceUnitProperties.BATCH_WRITING_SIZE,
+                    Integer.toString(batchSize));
+        } else {
+            properties.remove(PersistenceUnitProperties.BATCH_WRITING);
+            properties.remove(PersistenceUnitProperties.BATCH_WRITING_SIZE);
         }
+    }
 
-        // If it isn't stored, it can't be removed
-        if (pojo.getId() == null) {
-            return;
-        }
+    /**
+     * Defines if store() and storeAll() should refresh the stored entities
+     * from the database. When refreshing is turned off, only the ids and
+     * consistency versions of the stored entities are updated, which saves a
+     * database query per entity but leaves any values set by the database
+     * (such as column defaults) unread. Refreshing is on by default.
+     * 
+     * @param refreshAfterStore
+     *            Should the entities be refreshed after they have been stored
+     */
+    public void setRefreshAfterStore(boolean refreshAfterStore) {
+        this.refreshAfterStore = refreshAfterStore;
+    }
 
-        EntityManager em = getEntityManager();
-        try {
-            // Begin the transaction
-            em.getTransaction().begin();
-            // We need to merge this object to the database session, so that it
-            // can be deleted. We do this by actually fetching the object first.
-            Object entity = em.find(pojo.getClass(), pojo.getId());
-            // Now when we have a fresh instance of the entity which is attached
-            // to the JPA provider's session, we can remove the entity.
-            em.remove(entity);
-            // Commit transaction.
-            em.getTransaction().commit();
-        } finally {
-            em.close();
+    /**
+     * Checks if store() and storeAll() refresh the stored entities from the
+     * database.
+     * 
+     * @return true if the entities are refreshed
+     */
+    public boolean isRefreshAfterStore() {
+        return refreshAfterStore;
+    }
+
+    /**
+     * Sets the maximum number of ids in the IN list of a findAll() query. Id
+     * collections larger than this are fetched with several queries.
+     * 
+     * @param inListSize
+     *            The maximum number of ids in one query
+     */
+    public void setInListSize(int inListSize) {
+        if (inListSize < 1) {
+            throw new IllegalArgumentException(
+                    "IN list size must be at least one");
         }
+        this.inListSize = inListSize;
     }
 
     /**
-     * {@inheritDoc}
+     * Returns the maximum number of ids in the IN list of a findAll() query.
+     * 
+     * @return The maximum number of ids in one query
      */
-    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
-        if (pojos == null) {
-            throw new IllegalArgumentException("Null values are not accepted");
+    public int getInListSize() {
+        return inListSize;
+    }
+
+    /**
+     * Turns the tracking of the running statements on or off. When it is on,
+     * the connections of the persistence unit record the statement each
+     * thread is executing, so that cancelStatements() can cancel it, for
+     * example when an {@link AsyncFacade} operation is cancelled. The
+     * tracking wraps the JDBC connections and statements, which adds a
+     * reflective call to every JDBC call, so it is off by default.
+     * 
+     * The tracking is set up when the entity manager factory is created, so
+     * it has to be turned on before init() is called or after initLazily().
+     * It is not available if the persistence.xml file defines a session
+     * event listener, since the persistence unit takes only one.
+     * 
+     * @param statementTracking
+     *            true if the running statements should be tracked
+     * @throws IllegalStateException
+     *             if the entity manager factory has already been created
+     */
+    public synchronized void setStatementTracking(boolean statementTracking) {
+        if (emf != null) {
+            throw new IllegalStateException("Statement tracking must be set "
+                    + "before the entity manager factory is created");
         }
-        // This method follows the same principles as the delete() method. Read
-        // delete()'s comments for more detailed explanations.
+        if (lazyUnitName != null) {
+            setStatementTrackingProperties(lazyUnitProperties, lazyUnitName,
+                    statementTracking);
+        }
+        this.statementTracking = statementTracking;
+    }
 
-        EntityManager em = getEntityManager();
-        try {
-            em.getTransaction().begin();
-            for (A pojo : pojos) {
-                // If it isn't stored, it can't be removed
-                if (pojo.getId() == null) {
-                    continue;
-                }
-                // Fetch the entity merged to the session
-                Object entity = em.find(pojo.getClass(), pojo.getId());
-                if (entity != null) {
-                    // Remove the entity
-                    em.remove(entity);
-                }
-            }
-            // Commit transaction
-            em.getTransaction().commit();
-        } finally {
-            em.close();
+    /**
+     * Checks if the running statements are tracked.
+     * 
+     * @return true if statement tracking is turned on
+     */
+    public boolean isStatementTracking() {
+        return statementTracking;
+    }
+
+    /**
+     * Adds the persistence unit properties installing the
+     * {@link StatementTracker}, or removes them if the statements shouldn't
+     * be tracked. The persistence unit's own session event listener is left
+     * in place, since only one listener can be given.
+     * 
+     * @param properties
+     *            Properties of the entity manager factory
+     * @param name
+     *            Persistence-unit name
+     * @param statementTracking
+     *            Should the statements be tracked
+     */
+    private void setStatementTrackingProperties(
+            Map<String, Object> properties, String name,
+            boolean statementTracking) {
+        if (statementTracking
+                && PersistenceXml.getProperty(name,
+                        PersistenceUnitProperties.SESSION_EVENT_LISTENER_CLASS) == null) {
+            properties.put(
+                    PersistenceUnitProperties.SESSION_EVENT_LISTENER_CLASS,
+                    StatementTracker.class.getName());
+            properties.put(StatementTracker.STATEMENTS_PROPERTY,
+                    runningStatements);
+        } else {
+            properties
+                    .remove(PersistenceUnitProperties.SESSION_EVENT_LISTENER_CLASS);
+            properties.remove(StatementTracker.STATEMENTS_PROPERTY);
         }
     }
 
+    /**
+     * Returns the batch size used in bulk writes.
+     * 
+     * @return The number of entities written to the database at a time or
+     *         zero if the bulk mode is disabled
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
     /**
      * Returns an instance of the EntityManager which is open for use
      * 
@@ -332,18 +2019,26 @@ public class JPAFacade implements IFacade, Serializable {
      */
     protected EntityManager getEntityManager() {
         // Check if em is null or if the em has been closed.
-        if ((em.get() == null || !em.get().isOpen()) && emf != null) {
-            // create a new em if we didn't have a usable one available.
-            em.set(emf.createEntityManager());
+        if (em.get() == null || !em.get().isOpen()) {
+            EntityManagerFactory factory = getEntityManagerFactory();
+            if (factory != null) {
+                // create a new em if we didn't have a usable one available.
+                em.set(factory.createEntityManager());
+            }
         }
 
         return em.get();
     }
 
     /**
-     * Closes the entity manager.
+     * Closes the entity manager. Inside a unit of work this method does
+     * nothing, since the entity manager is closed when the unit of work ends.
      */
     public void close() {
+        if (inUnitOfWork()) {
+            return;
+        }
+
         // Close the entity manager
         if (em.get() != null && em.get().isOpen()) {
             em.get().clear();
@@ -359,9 +2054,19 @@ public class JPAFacade implements IFacade, Serializable {
         if (em.get() != null && em.get().isOpen()) {
             em.get().close();
         }
+        synchronized (this) {
+            // A lazily initialized factory is no longer needed
+            lazyUnitName = null;
+            lazyUnitProperties = null;
+        }
         if (emf != null) {
             emf.close();
         }
+        queryCache.clear();
+        countCache.clear();
+        if (entityCache != null) {
+            entityCache.clear();
+        }
     }
 
     /**
@@ -390,7 +2095,7 @@ public class JPAFacade implements IFacade, Serializable {
         em.refresh(pojo2);
 
         // Now copy all fields' values from pojo2 back to pojo
-        copyFieldsRecursively(pojo, pojo2, pojo.getClass());
+        EntityAccessor.forClass(pojo.getClass()).copy(pojo2, pojo);
 
         // Close the em if necessary
         if (closeEm) {
@@ -398,6 +2103,17 @@ public class JPAFacade implements IFacade, Serializable {
         }
     }
 
+    /**
+     * Checks if counts should be looked up from the count cache. Within a unit
+     * of work the cache is bypassed, so that uncommitted changes are seen and
+     * never cached.
+     * 
+     * @return true if the count cache should be used
+     */
+    private boolean useCountCache() {
+        return countCache.getMaxSize() > 0 && !inUnitOfWork();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -406,23 +2122,36 @@ public class JPAFacade implements IFacade, Serializable {
             throw new IllegalArgumentException("Class may not be null");
         }
 
+        boolean cached = useCountCache();
+        if (cached) {
+            Long count = countCache.get(c, null, null);
+            if (count != null) {
+                return count;
+            }
+        }
+
+        long generation = countCache.getGeneration(c);
         EntityManager em = getEntityManager();
         try {
             String queryStr = "SELECT COUNT(p.id) FROM " + c.getSimpleName()
                     + " p";
             // Create a query object from the query string given as the
             // parameter
-            Query query = em.createQuery(queryStr);
+            Query query = createQuery(queryStr, em);
 
             // Execute query and return result
-            return (Long) query.getSingleResult();
+            Long count = (Long) query.getSingleResult();
+            if (cached) {
+                countCache.put(c, null, null, count, generation);
+            }
+            return count;
         } catch (NoResultException e) {
             // This exception will occur if no results were found with the given
             // query. If this occurs, return null.
             return -1L;
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            releaseEntityManager(em);
         }
     }
 
@@ -439,6 +2168,15 @@ public class JPAFacade implements IFacade, Serializable {
             throw new IllegalArgumentException("Where clause may not be null");
         }
 
+        boolean cached = useCountCache();
+        if (cached) {
+            Long count = countCache.get(c, whereClause, parameters);
+            if (count != null) {
+                return count;
+            }
+        }
+
+        long generation = countCache.getGeneration(c);
         EntityManager em = getEntityManager();
         try {
             String queryStr = "SELECT COUNT(p.id) FROM " + c.getSimpleName()
@@ -446,65 +2184,68 @@ public class JPAFacade implements IFacade, Serializable {
 
             Query query = generateQuery(queryStr, parameters, em);
             // Execute query and return result
-            return (Long) query.getSingleResult();
+            Long count = (Long) query.getSingleResult();
+            if (cached) {
+                countCache.put(c, whereClause, parameters, count, generation);
+            }
+            return count;
         } catch (NoResultException e) {
             // This exception will occur if no results were found with the given
             // query. If this occurs, return null.
             return -1L;
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            releaseEntityManager(em);
         }
     }
 
     /**
-     * Copies all field values recursively from pojo2 to pojo
-     * 
-     * @param pojo
-     *            The object to which we are copying
-     * @param pojo2
-     *            The object from which we are copying
-     * @param c
-     *            The class we are currently processing
-     */
-    private <A extends AbstractPojo> void copyFieldsRecursively(A pojo,
-            A pojo2, Class<?> c) {
-        // if class is null, then there is nothing left to copy
-        if (c != null) {
-            // Get all the fields in this class. NOTE! getDeclaredFields() will
-            // return all fields whether they are private or not. However,
-            // getDeclaredFields() will only return the fields defined in
-            // Class<?> c, and not the fields in its superclass(es). Hence, we
-            // need to perform this method recursively to be able to get the
-            // superclasses' field values too.
-            Field[] fields = c.getDeclaredFields();
-
-            // Loop through all fields
-            for (Field field : fields) {
-                // If the field is transient, static or final, then we do not
-                // want to copy its value
-                if (!field.isAnnotationPresent(Transient.class)
-                        && !Modifier.isStatic(field.getModifiers())
-                        && !Modifier.isFinal(field.getModifiers())) {
-
-                    // The field might be inaccessible, so let's force it to be
-                    // accessible.
-                    field.setAccessible(true);
-                    try {
-                        // Copy the value from pojo2 to pojo
-                        field.set(pojo, field.get(pojo2));
-                    } catch (IllegalArgumentException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    } catch (IllegalAccessException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
+     * {@inheritDoc}
+     */
+    public Long count(EntityQuery<? extends AbstractPojo> query) {
+        checkQuery(query);
+        Class<? extends AbstractPojo> c = query.getEntityClass();
+        String whereClause = query.getWhereClause();
+        Map<String, Object> parameters = whereClause != null ? query
+                .getParameters() : null;
+
+        boolean cached = useCountCache();
+        if (cached) {
+            Long count = countCache.get(c, whereClause, parameters);
+            if (count != null) {
+                return count;
+            }
+        }
+
+        long generation = countCache.getGeneration(c);
+        EntityManager em = getEntityManager();
+        try {
+            Query jpaQuery = generateQuery(query.getCountQueryString(),
+                    parameters, em);
+            Long count = (Long) jpaQuery.getSingleResult();
+            if (cached) {
+                countCache.put(c, whereClause, parameters, count, generation);
             }
-            // Now perform the same copying of fields to this class's
-            // superclass.
-            copyFieldsRecursively(pojo, pojo2, c.getSuperclass());
+            return count;
+        } finally {
+            // Once we've done the query, close the EntityManager
+            releaseEntityManager(em);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> List<A> list(EntityQuery<A> query) {
+        checkQuery(query);
+        EntityManager em = getEntityManager();
+        try {
+            return generateQuery(query, query.getQueryString(), em)
+                    .getResultList();
+        } finally {
+            // Once we've done the query, close the EntityManager
+            releaseEntityManager(em);
         }
     }
 
@@ -523,7 +2264,7 @@ public class JPAFacade implements IFacade, Serializable {
             return query.getResultList();
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            releaseEntityManager(em);
         }
     }
 
@@ -545,7 +2286,7 @@ public class JPAFacade implements IFacade, Serializable {
             return query.getResultList();
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            releaseEntityManager(em);
         }
     }
 
@@ -555,30 +2296,170 @@ public class JPAFacade implements IFacade, Serializable {
     public List<?> getFieldValues(Class<? extends AbstractPojo> c,
             String field, String whereConditions, Map<String, Object> parameters) {
 
-        String queryStr = createSelectFieldQuery(c, field, whereConditions);
+        String queryStr = createSelectQuery(c, "p." + field, whereConditions);
+        return executeSelectQuery(queryStr, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        String queryStr = createSelectQuery(c, createSelection(fields),
+                whereConditions);
+        return toRows(executeSelectQuery(queryStr, parameters), fields.length);
+    }
+
+    /**
+     * Converts the results of a query selecting fields into rows.
+     * 
+     * @param rows
+     *            The query results
+     * @param fields
+     *            The number of selected fields
+     * @return List of rows of field values
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object[]> toRows(List<?> rows, int fields) {
+        if (fields > 1) {
+            return (List<Object[]>) rows;
+        }
+
+        // A query selecting a single field returns the values as such, so
+        // wrap them into rows
+        List<Object[]> wrapped = new ArrayList<Object[]>(rows.size());
+        for (Object value : rows) {
+            wrapped.add(new Object[] { value });
+        }
+        return wrapped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getFieldValues(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        if (resultClass == null) {
+            throw new IllegalArgumentException("Result class may not be null");
+        }
+
+        // The constructor expression creates the result objects directly
+        // from the selected columns
+        String queryStr = createSelectQuery(c, "NEW " + resultClass.getName()
+                + "(" + createSelection(fields) + ")", whereConditions);
+        return (List<T>) executeSelectQuery(queryStr, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(
+            EntityQuery<? extends AbstractPojo> query) {
+        checkQuery(query);
+        String queryStr = query.getSelectQueryString();
+        List<?> rows;
         EntityManager em = getEntityManager();
-        Query query = generateQuery(queryStr, parameters, em);
+        try {
+            rows = generateQuery(query, queryStr, em).getResultList();
+        } finally {
+            // Once we've done the query, close the EntityManager
+            releaseEntityManager(em);
+        }
+        return toRows(rows, query.getSelection().size());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getIds(Class<? extends AbstractPojo> c,
+            String whereConditions, Map<String, Object> parameters) {
+        String queryStr = createSelectQuery(c, "p.id", whereConditions)
+                + " ORDER BY p.id";
+        List<?> rows = executeSelectQuery(queryStr, parameters);
 
+        long[] ids = new long[rows.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (Long) rows.get(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Executes a query which selects values instead of entities. The selected
+     * values are never registered in the persistence context.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @return List of selected values
+     */
+    private List<?> executeSelectQuery(String queryStr,
+            Map<String, Object> parameters) {
+        EntityManager em = getEntityManager();
         try {
+            Query query = generateQuery(queryStr, parameters, em);
             // Execute query and return results
             return query.getResultList();
         } finally {
             // Once we've done the query, close the EntityManager
-            em.close();
+            releaseEntityManager(em);
         }
     }
 
     /**
-     * Creates the query for selecting a specific field's value from entities.
+     * Creates the select list for the given fields.
+     * 
+     * @param fields
+     *            Names of the selected fields
+     * @return Comma separated list of the fields
+     */
+    private String createSelection(String[] fields) {
+        if (fields == null || fields.length == 0) {
+            throw new IllegalArgumentException("No fields given");
+        }
+
+        StringBuilder selection = new StringBuilder();
+        for (String field : fields) {
+            checkFieldName(field);
+            if (selection.length() > 0) {
+                selection.append(", ");
+            }
+            selection.append("p.").append(field);
+        }
+        return selection.toString();
+    }
+
+    /**
+     * Checks that the given string is a valid field name or a path of field
+     * names, such as "address.city", so that it can be safely used in a query.
      * 
-     * @param c
      * @param field
+     *            Field name
+     */
+    private void checkFieldName(String field) {
+        if (field == null || !FIELD_PATH.matcher(field).matches()) {
+            throw new IllegalArgumentException("Invalid field name: " + field);
+        }
+    }
+
+    /**
+     * Creates a query which selects the given values from entities.
+     * 
+     * @param c
+     *            Entity class
+     * @param selection
+     *            The select list of the query
      * @param whereConditions
-     * @return
+     *            Where conditions or null
+     * @return Database query string
      */
-    private String createSelectFieldQuery(Class<? extends AbstractPojo> c,
-            String field, String whereConditions) {
-        String queryStr = "SELECT p." + field + " FROM " + c.getSimpleName()
+    private String createSelectQuery(Class<? extends AbstractPojo> c,
+            String selection, String whereConditions) {
+        String queryStr = "SELECT " + selection + " FROM " + c.getSimpleName()
                 + " p";
 
         if (whereConditions != null) {
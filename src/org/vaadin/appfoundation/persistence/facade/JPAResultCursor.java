@@ -0,0 +1,114 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.NoSuchElementException;
+
+import javax.persistence.EntityManager;
+
+import org.eclipse.persistence.queries.CursoredStream;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * {@link ResultCursor} implementation backed by an EclipseLink cursored
+ * stream. The cursor owns its EntityManager, which is cleared every time a
+ * full chunk of entities has been read, so that the persistence context never
+ * holds more than one chunk of entities at a time.
+ * 
+ * @author Kim
+ * 
+ * @param <A>
+ *            Entity type
+ */
+class JPAResultCursor<A extends AbstractPojo> implements ResultCursor<A> {
+
+    private final EntityManager em;
+
+    private final CursoredStream stream;
+
+    private final int chunkSize;
+
+    private int readInChunk = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param em
+     *            The EntityManager which executed the query. The cursor will
+     *            close it when the cursor itself is closed.
+     * @param stream
+     *            The cursored stream returned by the query
+     * @param chunkSize
+     *            Number of entities read before the persistence context is
+     *            cleared
+     */
+    JPAResultCursor(EntityManager em, CursoredStream stream, int chunkSize) {
+        this.em = em;
+        this.stream = stream;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+
+        boolean hasNext = stream.hasMoreElements();
+        // Release the resources automatically once we've reached the end
+        if (!hasNext) {
+            close();
+        }
+        return hasNext;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public A next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        // Detach the previous chunk before reading the next one, so that the
+        // entities already handed out can be garbage collected.
+        if (readInChunk == chunkSize) {
+            stream.releasePrevious();
+            stream.clear();
+            em.clear();
+            readInChunk = 0;
+        }
+
+        readInChunk++;
+        return (A) stream.nextElement();
+    }
+
+    /**
+     * Removing entities through the cursor is not supported.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException(
+                "Entities cannot be removed through a cursor");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        try {
+            stream.close();
+        } finally {
+            em.clear();
+            em.close();
+        }
+    }
+
+}
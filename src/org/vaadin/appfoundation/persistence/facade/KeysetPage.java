@@ -0,0 +1,67 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * A single page of entities fetched with keyset pagination. In addition to the
+ * entities, the page contains an opaque continuation token which is given to
+ * the facade when the next page is requested.
+ * 
+ * @author Kim
+ * 
+ * @param <A>
+ *            Entity type
+ */
+public class KeysetPage<A extends AbstractPojo> implements Serializable {
+
+    private static final long serialVersionUID = -2938485573023315370L;
+
+    private final List<A> items;
+
+    private final String continuationToken;
+
+    /**
+     * Constructor.
+     * 
+     * @param items
+     *            The entities on this page
+     * @param continuationToken
+     *            Token for fetching the next page or null if this is the last
+     *            page
+     */
+    public KeysetPage(List<A> items, String continuationToken) {
+        this.items = items;
+        this.continuationToken = continuationToken;
+    }
+
+    /**
+     * Returns the entities on this page.
+     * 
+     * @return List of A entities
+     */
+    public List<A> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns the token which should be used for fetching the next page.
+     * 
+     * @return Continuation token or null if there are no more pages
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    /**
+     * Checks if there are more pages after this page.
+     * 
+     * @return true if a next page exists
+     */
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+
+}
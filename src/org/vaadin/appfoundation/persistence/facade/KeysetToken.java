@@ -0,0 +1,228 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * Encodes and decodes the continuation tokens used by keyset pagination. A
+ * token holds the name of the ordering field, the ordering key and the id of
+ * the last entity on a page. The token is opaque to the caller; internally it
+ * is a small binary record written as a hexadecimal string.
+ * 
+ * Tokens are handed out to clients and may come back tampered with, which is
+ * why only a fixed set of key types is supported and no Java serialization is
+ * involved in decoding them.
+ * 
+ * @author Kim
+ * 
+ */
+class KeysetToken {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_INTEGER = 3;
+    private static final byte TYPE_SHORT = 4;
+    private static final byte TYPE_BYTE = 5;
+    private static final byte TYPE_DOUBLE = 6;
+    private static final byte TYPE_FLOAT = 7;
+    private static final byte TYPE_BIG_DECIMAL = 8;
+    private static final byte TYPE_BIG_INTEGER = 9;
+    private static final byte TYPE_DATE = 10;
+    private static final byte TYPE_SQL_DATE = 11;
+    private static final byte TYPE_TIMESTAMP = 12;
+
+    private final String keyField;
+
+    private final Object keyValue;
+
+    private final Long id;
+
+    /**
+     * Constructor.
+     * 
+     * @param keyField
+     *            Name of the field the pages are ordered by
+     * @param keyValue
+     *            Value of the key field of the last entity on the page
+     * @param id
+     *            Id of the last entity on the page
+     */
+    KeysetToken(String keyField, Object keyValue, Long id) {
+        this.keyField = keyField;
+        this.keyValue = keyValue;
+        this.id = id;
+    }
+
+    String getKeyField() {
+        return keyField;
+    }
+
+    Object getKeyValue() {
+        return keyValue;
+    }
+
+    Long getId() {
+        return id;
+    }
+
+    /**
+     * Converts this token to its string representation.
+     * 
+     * @return The opaque token string
+     */
+    String encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(keyField);
+            out.writeLong(id);
+            writeValue(out, keyValue);
+            out.close();
+        } catch (IOException e) {
+            // Writing to a byte array never fails
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes.toByteArray()) {
+            sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a token string created with encode().
+     * 
+     * @param token
+     *            The opaque token string
+     * @return The decoded token
+     */
+    static KeysetToken decode(String token) {
+        if (token.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid continuation token");
+        }
+
+        byte[] bytes = new byte[token.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(token.charAt(i * 2), 16);
+            int low = Character.digit(token.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid continuation token");
+            }
+            bytes[i] = (byte) ((high << 4) + low);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                bytes));
+        try {
+            String keyField = in.readUTF();
+            long id = in.readLong();
+            Object keyValue = readValue(in);
+            return new KeysetToken(keyField, keyValue, id);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid continuation token", e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value)
+            throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException(
+                    "The pagination key of an entity may not be null");
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(TYPE_BIG_DECIMAL);
+            out.writeUTF(value.toString());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(TYPE_BIG_INTEGER);
+            out.writeUTF(value.toString());
+        } else if (value instanceof Timestamp) {
+            out.writeByte(TYPE_TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof java.sql.Date) {
+            out.writeByte(TYPE_SQL_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Date) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else {
+            throw new IllegalArgumentException("Fields of type "
+                    + value.getClass().getName()
+                    + " cannot be used as a pagination key");
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_STRING:
+            return in.readUTF();
+        case TYPE_LONG:
+            return in.readLong();
+        case TYPE_INTEGER:
+            return in.readInt();
+        case TYPE_SHORT:
+            return in.readShort();
+        case TYPE_BYTE:
+            return in.readByte();
+        case TYPE_DOUBLE:
+            return in.readDouble();
+        case TYPE_FLOAT:
+            return in.readFloat();
+        case TYPE_BIG_DECIMAL:
+            return new BigDecimal(readNumber(in));
+        case TYPE_BIG_INTEGER:
+            return new BigInteger(readNumber(in));
+        case TYPE_DATE:
+            return new Date(in.readLong());
+        case TYPE_SQL_DATE:
+            return new java.sql.Date(in.readLong());
+        case TYPE_TIMESTAMP:
+            Timestamp timestamp = new Timestamp(in.readLong());
+            timestamp.setNanos(in.readInt());
+            return timestamp;
+        default:
+            throw new IOException("Unknown key type " + type);
+        }
+    }
+
+    private static String readNumber(DataInputStream in) throws IOException {
+        String number = in.readUTF();
+        if (!number.matches("-?[0-9]+(\\.[0-9]+)?(E[+-]?[0-9]+)?")) {
+            throw new IOException("Malformed number");
+        }
+        return number;
+    }
+
+}
@@ -0,0 +1,320 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.data.EntityAccessor;
+
+/**
+ * A size-bounded {@link EntityCache} which evicts the least recently used
+ * entity when it is full. Entities can also be given a time-to-live, either
+ * for all entity classes or per class, after which they are no longer served
+ * from the cache. The cache holds copies of the entities, in which the Dates
+ * and arrays are copied too, so changes made to those of an entity after it
+ * has been cached don't affect the cached state. Collections and referenced
+ * entities are not copied but shared by the cached entity and the copies
+ * handed out, so they must not be modified in place. {@link JPAFacade} never
+ * puts entities with collections, embedded objects or relations in the cache
+ * for that reason.
+ * 
+ * @author Kim
+ * 
+ */
+public class LRUEntityCache implements EntityCache, Serializable {
+
+    private static final long serialVersionUID = 6019813245398710238L;
+
+    private final Map<Key, Entry> entries;
+
+    private final int maxSize;
+
+    // Time-to-live in milliseconds, zero if the entities never expire
+    private volatile long defaultTimeToLive = 0;
+
+    private final Map<Class<?>, Long> timeToLives = new ConcurrentHashMap<Class<?>, Long>();
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    private long loads = 0;
+
+    private long totalLoadTime = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize
+     *            The maximum number of entities held in the cache
+     */
+    public LRUEntityCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(
+                    "Cache size must be a positive number");
+        }
+
+        this.maxSize = maxSize;
+        // An access ordered map keeps the least recently used entry first
+        entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = -3416270447614434583L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Sets the time-to-live of all entities which don't have a class specific
+     * time-to-live.
+     * 
+     * @param timeToLive
+     *            Time-to-live in milliseconds or zero if the entities should
+     *            never expire
+     */
+    public void setTimeToLive(long timeToLive) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException(
+                    "Time-to-live may not be negative");
+        }
+        defaultTimeToLive = timeToLive;
+    }
+
+    /**
+     * Sets the time-to-live of the entities of the given class.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param timeToLive
+     *            Time-to-live in milliseconds or zero if the entities should
+     *            never expire
+     */
+    public void setTimeToLive(Class<? extends AbstractPojo> clazz,
+            long timeToLive) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException(
+                    "Time-to-live may not be negative");
+        }
+        timeToLives.put(clazz, timeToLive);
+    }
+
+    /**
+     * Returns the time-to-live of the entities of the given class.
+     * 
+     * @param clazz
+     *            Entity class
+     * @return Time-to-live in milliseconds or zero if the entities never
+     *         expire
+     */
+    public long getTimeToLive(Class<? extends AbstractPojo> clazz) {
+        Long timeToLive = timeToLives.get(clazz);
+        return timeToLive != null ? timeToLive : defaultTimeToLive;
+    }
+
+    /**
+     * Returns the maximum number of entities held in the cache.
+     * 
+     * @return Maximum cache size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public <A extends AbstractPojo> A get(Class<A> clazz, Long id) {
+        if (clazz == null || id == null) {
+            return null;
+        }
+
+        Entry entry;
+        synchronized (this) {
+            Key key = new Key(clazz, id);
+            entry = entries.get(key);
+            if (entry != null && entry.isExpired()) {
+                entries.remove(key);
+                evictions++;
+                entry = null;
+            }
+
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+
+        // The cached instance is never modified, so it can be copied outside
+        // the lock
+        return (A) EntityAccessor.forClass(clazz).newValueCopy(entry.pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void put(AbstractPojo pojo, long loadTime) {
+        if (pojo == null || pojo.getId() == null) {
+            return;
+        }
+
+        long timeToLive = getTimeToLive(pojo.getClass());
+        long expires = timeToLive > 0 ? System.currentTimeMillis()
+                + timeToLive : 0;
+        AbstractPojo copy = EntityAccessor.forClass(pojo.getClass())
+                .newValueCopy(pojo);
+
+        synchronized (this) {
+            loads++;
+            totalLoadTime += loadTime;
+            entries.put(new Key(pojo.getClass(), pojo.getId()), new Entry(
+                    copy, expires));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void remove(Class<? extends AbstractPojo> clazz,
+            Long id) {
+        if (clazz != null && id != null) {
+            entries.remove(new Key(clazz, id));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void removeAll(Class<? extends AbstractPojo> clazz) {
+        Iterator<Key> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (clazz.isAssignableFrom(it.next().clazz)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the share of lookups which found the entity in the cache.
+     * 
+     * @return Hit rate between 0 and 1
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized long getAverageLoadTime() {
+        return loads == 0 ? 0 : totalLoadTime / loads;
+    }
+
+    /**
+     * The key of a cached entity.
+     */
+    private static class Key implements Serializable {
+
+        private static final long serialVersionUID = 3502174530911362816L;
+
+        private final Class<?> clazz;
+
+        private final Long id;
+
+        public Key(Class<?> clazz, Long id) {
+            this.clazz = clazz;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return clazz.equals(other.clazz) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * clazz.hashCode() + id.hashCode();
+        }
+
+    }
+
+    /**
+     * A cached entity and the time when it expires.
+     */
+    private static class Entry implements Serializable {
+
+        private static final long serialVersionUID = -1150371578036394150L;
+
+        private final AbstractPojo pojo;
+
+        // Expiration time in milliseconds, zero if the entry never expires
+        private final long expires;
+
+        public Entry(AbstractPojo pojo, long expires) {
+            this.pojo = pojo;
+            this.expires = expires;
+        }
+
+        public boolean isExpired() {
+            return expires > 0 && System.currentTimeMillis() >= expires;
+        }
+
+    }
+
+}
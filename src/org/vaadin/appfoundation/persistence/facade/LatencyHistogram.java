@@ -0,0 +1,165 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with fixed, exponentially growing buckets. The
+ * upper bounds of the buckets are 1, 2, 5, 10, 20, 50... microseconds up to
+ * 50 seconds, followed by a bucket for everything longer. Recording a
+ * latency doesn't lock or allocate, so it is cheap enough for hot paths.
+ * 
+ * @author Kim
+ * 
+ */
+public class LatencyHistogram implements Serializable {
+
+    private static final long serialVersionUID = -1207458136237962311L;
+
+    // Upper bounds of the buckets in nanoseconds
+    private static final long[] BOUNDS = createBounds();
+
+    private final AtomicLongArray buckets = new AtomicLongArray(
+            BOUNDS.length + 1);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    private static long[] createBounds() {
+        long[] bounds = new long[24];
+        long decade = 1000;
+        for (int i = 0; i < bounds.length; i += 3) {
+            bounds[i] = decade;
+            bounds[i + 1] = 2 * decade;
+            bounds[i + 2] = 5 * decade;
+            decade *= 10;
+        }
+        return bounds;
+    }
+
+    /**
+     * Records a latency.
+     * 
+     * @param nanos
+     *            The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     * 
+     * @return The number of latencies
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean of the recorded latencies.
+     * 
+     * @return The mean latency in nanoseconds or zero if nothing has been
+     *         recorded
+     */
+    public long getMean() {
+        long n = count.get();
+        return n > 0 ? total.get() / n : 0;
+    }
+
+    /**
+     * Returns the longest recorded latency.
+     * 
+     * @return The maximum latency in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns an estimate of the given percentile of the recorded latencies.
+     * The estimate is the upper bound of the bucket containing the
+     * percentile, or the maximum latency if it is in the last bucket.
+     * 
+     * @param percentile
+     *            The percentile between 0 and 100, for example 99.9
+     * @return The latency in nanoseconds or zero if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "Percentile must be between 0 and 100");
+        }
+
+        long[] counts = getBucketCounts();
+        long n = 0;
+        for (long c : counts) {
+            n += c;
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(BOUNDS[i], max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns the upper bounds of the buckets. The last bucket, which holds
+     * the latencies longer than the last bound, has no bound.
+     * 
+     * @return The bounds in nanoseconds
+     */
+    public long[] getBucketBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * Returns the number of latencies recorded in each bucket. The array has
+     * one element more than the bounds array.
+     * 
+     * @return The counts of the buckets
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Clears the histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+}
@@ -0,0 +1,137 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+/**
+ * A connection pool which reports its connection acquisitions to a
+ * PoolMetrics object. It replaces an EclipseLink connection pool with the
+ * same settings.
+ * 
+ * @author Kim
+ * 
+ */
+class MeteredConnectionPool extends ConnectionPool {
+
+    private final PoolMetrics metrics;
+
+    // ConnectionPool.acquireConnection() calls itself when it retries, only
+    // the outermost call is measured
+    private final ThreadLocal<Boolean> acquiring = new ThreadLocal<Boolean>();
+
+    // Acquisition stack traces of the connections in use, only recorded when
+    // leak detection is on. Guarded by the pool's lock.
+    private final Map<Accessor, Acquisition> acquisitions = new IdentityHashMap<Accessor, Acquisition>();
+
+    /**
+     * Constructor.
+     * 
+     * @param pool
+     *            The pool whose settings are copied
+     * @param owner
+     *            The session owning the pool
+     * @param metrics
+     *            The metrics this pool reports to
+     */
+    MeteredConnectionPool(ConnectionPool pool, ServerSession owner,
+            PoolMetrics metrics) {
+        super(pool.getName(), pool.getLogin(), pool
+                .getInitialNumberOfConnections(), pool
+                .getMinNumberOfConnections(), pool.getMaxNumberOfConnections(),
+                owner);
+        setWaitTimeout(pool.getWaitTimeout());
+        setFailoverConnectionPools(pool.getFailoverConnectionPools());
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Accessor acquireConnection() {
+        if (acquiring.get() != null) {
+            return super.acquireConnection();
+        }
+
+        acquiring.set(Boolean.TRUE);
+        metrics.waiterArrived();
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            Accessor accessor = super.acquireConnection();
+            acquired = true;
+            if (metrics.getLeakDetectionThreshold() > 0) {
+                synchronized (this) {
+                    acquisitions.put(accessor, new Acquisition());
+                }
+            }
+            return accessor;
+        } finally {
+            metrics.waiterLeft(System.nanoTime() - start, acquired);
+            acquiring.remove();
+        }
+    }
+
+    @Override
+    public synchronized void releaseConnection(Accessor connection) {
+        acquisitions.remove(connection);
+        super.releaseConnection(connection);
+    }
+
+    /**
+     * Returns the number of connections in use.
+     * 
+     * @return The number of connections in use
+     */
+    synchronized int getActiveCount() {
+        return getConnectionsUsed().size();
+    }
+
+    /**
+     * Returns the number of open connections not in use.
+     * 
+     * @return The number of idle connections
+     */
+    synchronized int getIdleCount() {
+        return getConnectionsAvailable().size();
+    }
+
+    /**
+     * Returns the acquisitions of the connections which have been in use for
+     * longer than the given time.
+     * 
+     * @param threshold
+     *            The time in milliseconds
+     * @return Stack traces of the acquisitions
+     */
+    synchronized List<Throwable> getAcquisitionsOlderThan(long threshold) {
+        long now = System.currentTimeMillis();
+        List<Throwable> old = new ArrayList<Throwable>();
+        for (Acquisition acquisition : acquisitions.values()) {
+            if (now - acquisition.time > threshold) {
+                old.add(acquisition);
+            }
+        }
+        return old;
+    }
+
+    /**
+     * The stack trace and time of a connection acquisition.
+     */
+    private static class Acquisition extends Throwable {
+
+        private static final long serialVersionUID = 2046893620517930268L;
+
+        private final long time = System.currentTimeMillis();
+
+        public Acquisition() {
+            super("Connection acquired by "
+                    + Thread.currentThread().getName());
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Enumeration;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the properties of persistence units from the META-INF/persistence.xml
+ * files on the class path. Used for finding out the settings which the
+ * properties given to an entity manager factory would otherwise override.
+ * 
+ * @author Kim
+ * 
+ */
+final class PersistenceXml {
+
+    private static final String RESOURCE = "META-INF/persistence.xml";
+
+    private PersistenceXml() {
+
+    }
+
+    /**
+     * Returns the value of a property of the given persistence unit.
+     * 
+     * @param unitName
+     *            Persistence-unit name
+     * @param property
+     *            Name of the property
+     * @return The value of the property, or null if the persistence unit
+     *         doesn't define the property or the persistence unit can't be
+     *         found
+     */
+    static String getProperty(String unitName, String property) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = PersistenceXml.class.getClassLoader();
+        }
+
+        try {
+            Enumeration<URL> resources = loader.getResources(RESOURCE);
+            while (resources.hasMoreElements()) {
+                Element unit = findUnit(parse(resources.nextElement()),
+                        unitName);
+                if (unit != null) {
+                    return findProperty(unit, property);
+                }
+            }
+        } catch (IOException e) {
+            // The entity manager factory reports the unreadable files
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        } catch (SAXException e) {
+            // The entity manager factory reports the invalid files
+        }
+        return null;
+    }
+
+    private static Document parse(URL url) throws IOException,
+            ParserConfigurationException, SAXException {
+        InputStream in = url.openStream();
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Element findUnit(Document document, String unitName) {
+        NodeList units = document.getElementsByTagName("persistence-unit");
+        for (int i = 0; i < units.getLength(); i++) {
+            Element unit = (Element) units.item(i);
+            if (unitName.equals(unit.getAttribute("name"))) {
+                return unit;
+            }
+        }
+        return null;
+    }
+
+    private static String findProperty(Element unit, String property) {
+        NodeList properties = unit.getElementsByTagName("property");
+        for (int i = 0; i < properties.getLength(); i++) {
+            Element element = (Element) properties.item(i);
+            if (property.equals(element.getAttribute("name"))) {
+                String value = element.getAttribute("value").trim();
+                return value.length() > 0 ? value : null;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,158 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live metrics of the connection pools of a JPAFacade. The counts cover both
+ * the read pool and the write pool of the persistence unit.
+ * 
+ * @author Kim
+ * 
+ */
+public class PoolMetrics {
+
+    private final List<MeteredConnectionPool> pools = new CopyOnWriteArrayList<MeteredConnectionPool>();
+
+    private final LatencyHistogram acquireLatency = new LatencyHistogram();
+
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final AtomicLong failedAcquisitions = new AtomicLong();
+
+    private final long leakDetectionThreshold;
+
+    /**
+     * Constructor.
+     * 
+     * @param leakDetectionThreshold
+     *            How long a connection may be held before it is reported as a
+     *            possible leak in milliseconds, or zero if leak detection is
+     *            off
+     */
+    PoolMetrics(long leakDetectionThreshold) {
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    /**
+     * Adds a pool to the metered pools.
+     * 
+     * @param pool
+     *            The pool reporting to these metrics
+     */
+    void addPool(MeteredConnectionPool pool) {
+        pools.add(pool);
+    }
+
+    /**
+     * Called when a thread starts acquiring a connection.
+     */
+    void waiterArrived() {
+        waiters.incrementAndGet();
+    }
+
+    /**
+     * Called when a thread has acquired a connection or failed to acquire
+     * one.
+     * 
+     * @param nanos
+     *            How long the acquisition took in nanoseconds
+     * @param acquired
+     *            Was the connection acquired
+     */
+    void waiterLeft(long nanos, boolean acquired) {
+        waiters.decrementAndGet();
+        if (acquired) {
+            acquireLatency.record(nanos);
+        } else {
+            failedAcquisitions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of connections in use.
+     * 
+     * @return The number of active connections
+     */
+    public int getActive() {
+        int active = 0;
+        for (MeteredConnectionPool pool : pools) {
+            active += pool.getActiveCount();
+        }
+        return active;
+    }
+
+    /**
+     * Returns the number of open connections which are not in use.
+     * 
+     * @return The number of idle connections
+     */
+    public int getIdle() {
+        int idle = 0;
+        for (MeteredConnectionPool pool : pools) {
+            idle += pool.getIdleCount();
+        }
+        return idle;
+    }
+
+    /**
+     * Returns the number of threads currently acquiring a connection. The
+     * count is above zero for long only when the pools are exhausted.
+     * 
+     * @return The number of waiting threads
+     */
+    public int getWaiters() {
+        return waiters.get();
+    }
+
+    /**
+     * Returns the histogram of the times spent acquiring a connection.
+     * 
+     * @return The acquisition latencies
+     */
+    public LatencyHistogram getAcquireLatency() {
+        return acquireLatency;
+    }
+
+    /**
+     * Returns the number of acquisitions which failed, for example because no
+     * connection was released within the acquire timeout.
+     * 
+     * @return The number of failed acquisitions
+     */
+    public long getFailedAcquisitions() {
+        return failedAcquisitions.get();
+    }
+
+    /**
+     * Returns how long a connection may be held before it is reported as a
+     * possible leak.
+     * 
+     * @return The threshold in milliseconds or zero if leak detection is off
+     */
+    public long getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    /**
+     * Returns the connections which have been in use for longer than the leak
+     * detection threshold. Each of them is represented by a throwable whose
+     * stack trace shows where the connection was acquired.
+     * 
+     * @return The suspected leaks, or an empty list if leak detection is off
+     */
+    public List<Throwable> getSuspectedLeaks() {
+        List<Throwable> leaks = new ArrayList<Throwable>();
+        if (leakDetectionThreshold > 0) {
+            for (MeteredConnectionPool pool : pools) {
+                leaks.addAll(pool
+                        .getAcquisitionsOlderThan(leakDetectionThreshold));
+            }
+        }
+        return leaks;
+    }
+
+}
@@ -0,0 +1,115 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Map.Entry;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+/**
+ * Session customizer which replaces the connection pools of a persistence
+ * unit with metered pools. The PoolMetrics object the pools report to is
+ * given in the persistence unit properties. JPAFacade sets this customizer
+ * when it is initialized with a ConnectionPoolConfig, in place of the session
+ * customizer defined in the persistence.xml file. That customizer is given in
+ * the property {@link #CUSTOMIZER_PROPERTY} and run before the pools are
+ * replaced, so that the metered pools get its pool settings. The id
+ * allocation of the {@link IdAllocationCustomizer} is applied by this
+ * customizer too.
+ * 
+ * @author Kim
+ * 
+ */
+public class PoolMetricsCustomizer implements SessionCustomizer {
+
+    /**
+     * The persistence unit property holding the PoolMetrics object.
+     */
+    public static final String METRICS_PROPERTY = "org.vaadin.appfoundation.pool-metrics";
+
+    /**
+     * The persistence unit property holding the class name of the session
+     * customizer defined in the persistence.xml file.
+     */
+    public static final String CUSTOMIZER_PROPERTY = "org.vaadin.appfoundation.session-customizer";
+
+    /**
+     * {@inheritDoc}
+     */
+    public void customize(Session session) throws Exception {
+        String customizer = (String) session.getProperty(CUSTOMIZER_PROPERTY);
+        // Don't apply the id allocation twice
+        if (!IdAllocationCustomizer.class.getName().equals(customizer)) {
+            new IdAllocationCustomizer().customize(session);
+        }
+        if (customizer != null) {
+            newCustomizer(customizer).customize(session);
+        }
+
+        PoolMetrics metrics = (PoolMetrics) session
+                .getProperty(METRICS_PROPERTY);
+        if (metrics == null || !(session instanceof ServerSession)) {
+            return;
+        }
+
+        ServerSession serverSession = (ServerSession) session;
+        ConnectionPool readPool = serverSession.getReadConnectionPool();
+        ConnectionPool meteredReadPool = null;
+        for (Entry<String, ConnectionPool> entry : serverSession
+                .getConnectionPools().entrySet()) {
+            ConnectionPool pool = meter(entry.getValue(), serverSession, metrics);
+            // The read pool may be one of the write pools
+            if (entry.getValue() == readPool) {
+                meteredReadPool = pool;
+            }
+            entry.setValue(pool);
+        }
+        serverSession
+                .setReadConnectionPool(meteredReadPool != null ? meteredReadPool
+                        : meter(readPool, serverSession, metrics));
+    }
+
+    /**
+     * Creates the session customizer of the given class.
+     * 
+     * @param className
+     *            Name of the customizer class
+     * @return A new instance of the customizer
+     */
+    private SessionCustomizer newCustomizer(String className)
+            throws ClassNotFoundException, InstantiationException,
+            IllegalAccessException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = PoolMetricsCustomizer.class.getClassLoader();
+        }
+        return (SessionCustomizer) Class.forName(className, true, loader)
+                .newInstance();
+    }
+
+    /**
+     * Returns a metered copy of the given pool. Pools of other types than
+     * ConnectionPool, such as shared read pools and external pools, are
+     * returned as they are.
+     * 
+     * @param pool
+     *            The pool to be metered
+     * @param owner
+     *            The session owning the pool
+     * @param metrics
+     *            The metrics the pool reports to
+     * @return The metered pool
+     */
+    private ConnectionPool meter(ConnectionPool pool, ServerSession owner,
+            PoolMetrics metrics) {
+        if (pool == null || pool.getClass() != ConnectionPool.class) {
+            return pool;
+        }
+        MeteredConnectionPool metered = new MeteredConnectionPool(pool,
+                owner, metrics);
+        metrics.addPool(metered);
+        return metered;
+    }
+
+}
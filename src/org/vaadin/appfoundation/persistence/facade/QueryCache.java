@@ -0,0 +1,165 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.persistence.queries.DatabaseQuery;
+
+/**
+ * A bounded cache of parsed queries keyed by their JPQL text. The cached
+ * queries are shared between threads in the same way as named queries, so a
+ * repeated query string only needs to be parsed once. When the cache is full,
+ * the entry which was added first is evicted.
+ * 
+ * @author Kim
+ * 
+ */
+public class QueryCache implements Serializable {
+
+    private static final long serialVersionUID = -4671320994658315026L;
+
+    private final ConcurrentMap<String, DatabaseQuery> queries = new ConcurrentHashMap<String, DatabaseQuery>();
+
+    // The cached keys in insertion order, used for choosing the evicted entry
+    private final Queue<String> keys = new ConcurrentLinkedQueue<String>();
+
+    private volatile int maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize
+     *            The maximum number of queries held in the cache
+     */
+    public QueryCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the parsed query for the given query string and updates the
+     * hit/miss counters.
+     * 
+     * @param queryStr
+     *            JPQL query string
+     * @return The cached query or null if the query is not in the cache
+     */
+    DatabaseQuery get(String queryStr) {
+        DatabaseQuery query = queries.get(queryStr);
+        if (query != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return query;
+    }
+
+    /**
+     * Adds a parsed query to the cache, evicting the oldest entries if the
+     * cache is full.
+     * 
+     * @param queryStr
+     *            JPQL query string
+     * @param query
+     *            The parsed query
+     */
+    void put(String queryStr, DatabaseQuery query) {
+        if (maxSize == 0) {
+            return;
+        }
+
+        if (queries.putIfAbsent(queryStr, query) == null) {
+            keys.add(queryStr);
+            while (queries.size() > maxSize) {
+                String oldest = keys.poll();
+                if (oldest == null) {
+                    break;
+                }
+                if (queries.remove(oldest) != null) {
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all queries from the cache. The counters are not reset.
+     */
+    public void clear() {
+        queries.clear();
+        keys.clear();
+    }
+
+    /**
+     * Sets the maximum number of queries held in the cache. Setting the size
+     * to zero disables the cache.
+     * 
+     * @param maxSize
+     *            The maximum number of cached queries
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException(
+                    "Cache size may not be negative");
+        }
+        this.maxSize = maxSize;
+        if (queries.size() > maxSize) {
+            clear();
+        }
+    }
+
+    /**
+     * Returns the maximum number of queries held in the cache.
+     * 
+     * @return Maximum cache size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of queries currently in the cache.
+     * 
+     * @return Number of cached queries
+     */
+    public int size() {
+        return queries.size();
+    }
+
+    /**
+     * Returns the number of lookups which found a cached query.
+     * 
+     * @return Number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups which had to parse the query.
+     * 
+     * @return Number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of queries evicted from the cache because it was full.
+     * 
+     * @return Number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+}
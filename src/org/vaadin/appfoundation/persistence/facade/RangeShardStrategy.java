@@ -0,0 +1,54 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Stores the entities in the shards by ranges of ids. The first shard holds
+ * the ids below the first bound, the second shard the ids from the first
+ * bound up to the second bound and so on. The last shard holds all ids from
+ * the last bound onwards.
+ * 
+ * With the ids of a {@link TimeOrderedIdGenerator}, the ranges are ranges of
+ * creation time, so old entities can be kept in their own shards.
+ * 
+ * @author Kim
+ * 
+ */
+public class RangeShardStrategy implements ShardStrategy, Serializable {
+
+    private static final long serialVersionUID = -5630458150712904173L;
+
+    private final long[] bounds;
+
+    /**
+     * Constructor.
+     * 
+     * @param bounds
+     *            The lower bounds of the ranges of the shards, except for the
+     *            first shard, in ascending order. There should be one bound
+     *            less than there are shards.
+     */
+    public RangeShardStrategy(long... bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException(
+                        "Bounds must be in ascending order");
+            }
+        }
+        this.bounds = bounds.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getShard(Class<? extends AbstractPojo> c, long id, int shards) {
+        int shard = 0;
+        while (shard < bounds.length && id >= bounds[shard]) {
+            shard++;
+        }
+        return Math.min(shard, shards - 1);
+    }
+
+}
@@ -0,0 +1,605 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * A facade which routes the operations to a primary facade and a set of
+ * replica facades. Writes, units of work and refreshes go to the primary.
+ * Reads are spread over the replicas in round-robin order.
+ * 
+ * Replicas usually lag a little behind the primary, so a session which has
+ * just written something might not see its own write on a replica. To avoid
+ * that, reads go to the primary for a while after the same session has
+ * written through this facade. By default the session is the current thread;
+ * applications can plug in their own notion of a session, such as the
+ * current Vaadin session, with setSessionResolver().
+ * 
+ * The facades are initialized separately, for example by registering them in
+ * the FacadeFactory, and the ReadWriteFacade itself is registered with
+ * FacadeFactory.registerFacade(String, IFacade, boolean).
+ * 
+ * @author Kim
+ * 
+ */
+public class ReadWriteFacade implements IFacade, StatementControl {
+
+    /**
+     * The default time reads stay on the primary after a write.
+     */
+    public static final long DEFAULT_STICKY_TIME = 5000L;
+
+    /**
+     * Resolves the session the current thread is working for.
+     */
+    public interface SessionResolver {
+
+        /**
+         * Returns the session the current thread is working for.
+         * 
+         * @return An object identifying the session or null if there is no
+         *         session, in which case reads are never pinned to the
+         *         primary
+         */
+        public Object getSession();
+
+    }
+
+    private final IFacade primary;
+
+    private final List<IFacade> replicas;
+
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    // Time of the last write per session. The sessions are held weakly, so
+    // that ended sessions don't pile up here.
+    private final Map<Object, Long> lastWrites = Collections
+            .synchronizedMap(new WeakHashMap<Object, Long>());
+
+    // Set while the current thread runs a unit of work through this facade
+    private final ThreadLocal<Boolean> inTransaction = new ThreadLocal<Boolean>();
+
+    private volatile SessionResolver sessionResolver = new SessionResolver() {
+        public Object getSession() {
+            return Thread.currentThread();
+        }
+    };
+
+    private volatile long stickyTime = DEFAULT_STICKY_TIME;
+
+    /**
+     * Constructor.
+     * 
+     * @param primary
+     *            The facade all writes go to
+     * @param replicas
+     *            The facades the reads are spread over. If there are no
+     *            replicas, everything goes to the primary.
+     */
+    public ReadWriteFacade(IFacade primary, List<? extends IFacade> replicas) {
+        if (primary == null || replicas == null) {
+            throw new IllegalArgumentException(
+                    "Primary and replicas may not be null");
+        }
+        this.primary = primary;
+        this.replicas = new ArrayList<IFacade>(replicas);
+    }
+
+    /**
+     * Returns the facade all writes go to.
+     * 
+     * @return The primary facade
+     */
+    public IFacade getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Returns the facades the reads are spread over.
+     * 
+     * @return The replica facades
+     */
+    public List<IFacade> getReplicas() {
+        return Collections.unmodifiableList(replicas);
+    }
+
+    /**
+     * Sets the resolver of the current session, used for pinning the reads of
+     * a session to the primary after it has written something.
+     * 
+     * @param sessionResolver
+     *            The session resolver
+     */
+    public void setSessionResolver(SessionResolver sessionResolver) {
+        if (sessionResolver == null) {
+            throw new IllegalArgumentException(
+                    "Session resolver may not be null");
+        }
+        this.sessionResolver = sessionResolver;
+    }
+
+    /**
+     * Sets how long the reads of a session go to the primary after the
+     * session has written something. The time should exceed the replication
+     * lag of the replicas.
+     * 
+     * @param stickyTime
+     *            The time in milliseconds, zero to always read from the
+     *            replicas
+     */
+    public void setStickyTime(long stickyTime) {
+        if (stickyTime < 0) {
+            throw new IllegalArgumentException(
+                    "Sticky time may not be negative");
+        }
+        this.stickyTime = stickyTime;
+    }
+
+    /**
+     * Returns how long the reads of a session go to the primary after the
+     * session has written something.
+     * 
+     * @return The time in milliseconds
+     */
+    public long getStickyTime() {
+        return stickyTime;
+    }
+
+    /**
+     * Returns the facade the next read of the current session goes to.
+     * 
+     * @return The facade for reading
+     */
+    protected IFacade reader() {
+        if (replicas.isEmpty() || inTransaction.get() != null) {
+            return primary;
+        }
+
+        Object session = sessionResolver.getSession();
+        if (session != null) {
+            Long lastWrite = lastWrites.get(session);
+            if (lastWrite != null) {
+                if (System.currentTimeMillis() - lastWrite < stickyTime) {
+                    return primary;
+                }
+                lastWrites.remove(session);
+            }
+        }
+
+        int index = (nextReplica.getAndIncrement() & Integer.MAX_VALUE)
+                % replicas.size();
+        return replicas.get(index);
+    }
+
+    /**
+     * Records that the current session has written something, so that its
+     * reads go to the primary for the sticky time.
+     */
+    protected void written() {
+        Object session = sessionResolver.getSession();
+        if (session != null && stickyTime > 0) {
+            lastWrites.put(session, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * The primary and the replicas are initialized separately before they are
+     * given to the constructor, so this method does nothing. A
+     * ReadWriteFacade is registered in the FacadeFactory with
+     * {@link FacadeFactory#registerFacade(String, IFacade, boolean)}.
+     * 
+     * @param name
+     *            Configuration name
+     */
+    public void init(String name) {
+        // Nothing to initialize
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        return reader().find(clazz, id);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Map<Long, A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        return reader().findAll(clazz, ids);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz) {
+        return reader().list(clazz);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz,
+            int startIndex, int amount) {
+        return reader().list(clazz, startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters) {
+        return reader().list(queryStr, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        return reader().list(queryStr, parameters, startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String continuationToken, int amount) {
+        return reader().page(clazz, continuationToken, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String keyField, String continuationToken, int amount) {
+        return reader().page(clazz, keyField, continuationToken, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(Class<A> clazz,
+            int fetchSize) {
+        return reader().cursor(clazz, fetchSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(String queryStr,
+            Map<String, Object> parameters, int fetchSize) {
+        return reader().cursor(queryStr, parameters, fetchSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A findReadOnly(Class<A> clazz, Long id) {
+        return reader().findReadOnly(clazz, id);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz) {
+        return reader().listReadOnly(clazz);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz,
+            int startIndex, int amount) {
+        return reader().listReadOnly(clazz, startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters) {
+        return reader().listReadOnly(queryStr, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        return reader().listReadOnly(queryStr, parameters, startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(String queryStr,
+            Map<String, Object> parameters) {
+        return reader().find(queryStr, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(AbstractPojo pojo) {
+        try {
+            primary.store(pojo);
+        } finally {
+            written();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        try {
+            primary.storeAll(pojos);
+        } finally {
+            written();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos,
+            boolean refresh) {
+        try {
+            primary.storeAll(pojos, refresh);
+        } finally {
+            written();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A update(Class<A> c, Long id,
+            EntityMutation<A> mutation) {
+        // The entity is read from the primary, since a lagging replica would
+        // return a version which conflicts on every attempt
+        try {
+            return primary.update(c, id, mutation);
+        } finally {
+            written();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        try {
+            primary.delete(pojo);
+        } finally {
+            written();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        try {
+            primary.deleteAll(pojos);
+        } finally {
+            written();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int deleteWhere(Class<? extends AbstractPojo> c,
+            String whereClause, Map<String, Object> parameters) {
+        try {
+            return primary.deleteWhere(c, whereClause, parameters);
+        } finally {
+            written();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int updateWhere(Class<? extends AbstractPojo> c,
+            String assignments, String whereClause,
+            Map<String, Object> parameters) {
+        try {
+            return primary.updateWhere(c, assignments, whereClause,
+                    parameters);
+        } finally {
+            written();
+        }
+    }
+
+    /**
+     * Refreshes the entity from the primary, which always has its latest
+     * state.
+     * 
+     * @param pojo
+     *            The entity to be refreshed
+     */
+    public <A extends AbstractPojo> void refresh(A pojo) {
+        primary.refresh(pojo);
+    }
+
+    /**
+     * Executes the unit of work on the primary. Reads made through this
+     * facade during the unit of work also go to the primary.
+     * 
+     * @param work
+     *            The unit of work to be executed
+     * @return The result of the unit of work
+     */
+    public <T> T inTransaction(UnitOfWork<T> work) {
+        Boolean outer = inTransaction.get();
+        inTransaction.set(Boolean.TRUE);
+        try {
+            return primary.inTransaction(work);
+        } finally {
+            if (outer == null) {
+                inTransaction.remove();
+                written();
+            }
+        }
+    }
+
+    /**
+     * Closes the primary and all the replicas.
+     */
+    public void close() {
+        primary.close();
+        for (IFacade replica : replicas) {
+            replica.close();
+        }
+    }
+
+    /**
+     * Kills the primary and all the replicas.
+     */
+    public void kill() {
+        primary.kill();
+        for (IFacade replica : replicas) {
+            replica.kill();
+        }
+        lastWrites.clear();
+    }
+
+    /**
+     * Sets the timeout of the primary and all the replicas.
+     * 
+     * @param timeout
+     *            Timeout in milliseconds or null for removing the override
+     */
+    public void setThreadQueryTimeout(Long timeout) {
+        setThreadQueryTimeout(primary, timeout);
+        for (IFacade replica : replicas) {
+            setThreadQueryTimeout(replica, timeout);
+        }
+    }
+
+    private void setThreadQueryTimeout(IFacade facade, Long timeout) {
+        if (facade instanceof StatementControl) {
+            ((StatementControl) facade).setThreadQueryTimeout(timeout);
+        }
+    }
+
+    /**
+     * Cancels the statements of the thread on the primary and all the
+     * replicas.
+     * 
+     * @param thread
+     *            The thread executing the statement
+     */
+    public void cancelStatements(Thread thread) {
+        cancelStatements(primary, thread);
+        for (IFacade replica : replicas) {
+            cancelStatements(replica, thread);
+        }
+    }
+
+    private void cancelStatements(IFacade facade, Thread thread) {
+        if (facade instanceof StatementControl) {
+            ((StatementControl) facade).cancelStatements(thread);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c) {
+        return reader().count(c);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        return reader().count(c, whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<?> getFieldValues(Class<? extends AbstractPojo> c,
+            String field, String whereConditions, Map<String, Object> parameters) {
+        return reader().getFieldValues(c, field, whereConditions, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return reader().getFieldValues(c, fields, whereConditions, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> List<T> getFieldValues(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return reader().getFieldValues(c, resultClass, fields,
+                whereConditions, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getIds(Class<? extends AbstractPojo> c,
+            String whereConditions, Map<String, Object> parameters) {
+        return reader().getIds(c, whereConditions, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(EntityQuery<A> query) {
+        return reader().list(query);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(EntityQuery<? extends AbstractPojo> query) {
+        return reader().count(query);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(EntityQuery<A> query,
+            String continuationToken, int amount) {
+        return reader().page(query, continuationToken, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            EntityQuery<A> query, int fetchSize) {
+        return reader().cursor(query, fetchSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(
+            EntityQuery<? extends AbstractPojo> query) {
+        return reader().getFieldValues(query);
+    }
+
+}
@@ -0,0 +1,30 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * An iterator over the results of a database query, which fetches the
+ * entities from the database in chunks instead of loading the whole result set
+ * into memory. The cursor keeps a database connection open until it has been
+ * closed, so make sure to always call close() once you are done with it, for
+ * example in a finally block. The cursor is a {@link Closeable}, but its
+ * close() method throws no IOException.
+ * 
+ * @author Kim
+ * 
+ * @param <A>
+ *            Entity type
+ */
+public interface ResultCursor<A extends AbstractPojo> extends Iterator<A>,
+        Closeable {
+
+    /**
+     * Closes the cursor and releases the database resources bound to it.
+     * Calling this method more than once has no effect.
+     */
+    public void close();
+
+}
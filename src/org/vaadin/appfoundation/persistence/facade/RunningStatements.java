@@ -0,0 +1,185 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the JDBC statements which are being executed, so that the
+ * statement of a given thread can be cancelled. The statements are recorded
+ * by the connections returned by track(), which wrap the connections of the
+ * database driver.
+ * 
+ * The wrappers implement all the interfaces of the wrapped objects, so that
+ * casts to the driver's own interfaces keep working.
+ * 
+ * @author Kim
+ * 
+ */
+final class RunningStatements {
+
+    private static final Logger logger = Logger
+            .getLogger(RunningStatements.class.getName());
+
+    // The statement each thread is executing
+    private final ConcurrentMap<Thread, Statement> running = new ConcurrentHashMap<Thread, Statement>();
+
+    /**
+     * Wraps the given connection so that the statements created through it
+     * are recorded while they are executed.
+     * 
+     * @param connection
+     *            The connection of the database driver
+     * @return The wrapped connection
+     */
+    Connection track(Connection connection) {
+        if (connection == null) {
+            return null;
+        }
+        return (Connection) wrap(connection, new ConnectionHandler(connection));
+    }
+
+    /**
+     * Cancels the statement the given thread is executing, if any.
+     * 
+     * @param thread
+     *            The thread executing the statement
+     */
+    void cancel(Thread thread) {
+        Statement statement = running.get(thread);
+        if (statement == null) {
+            return;
+        }
+        try {
+            statement.cancel();
+        } catch (SQLException e) {
+            // The driver may not support cancelling, the statement timeout
+            // still applies
+            logger.log(Level.WARNING, "Cancelling a statement failed", e);
+        }
+    }
+
+    private static Object wrap(Object target, InvocationHandler handler) {
+        ClassLoader loader = target.getClass().getClassLoader();
+        if (loader == null) {
+            loader = RunningStatements.class.getClassLoader();
+        }
+        try {
+            return Proxy.newProxyInstance(loader, getInterfaces(target
+                    .getClass(), false), handler);
+        } catch (IllegalArgumentException e) {
+            // Some of the driver's interfaces aren't accessible, settle for
+            // the JDBC interfaces
+            return Proxy.newProxyInstance(RunningStatements.class
+                    .getClassLoader(), getInterfaces(target.getClass(), true),
+                    handler);
+        }
+    }
+
+    private static Class<?>[] getInterfaces(Class<?> type, boolean jdbcOnly) {
+        Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Class<?> i : c.getInterfaces()) {
+                if (!jdbcOnly || i.getName().startsWith("java.")) {
+                    interfaces.add(i);
+                }
+            }
+        }
+        return interfaces.toArray(new Class<?>[interfaces.size()]);
+    }
+
+    /**
+     * Passes the calls of a wrapper to the wrapped object.
+     */
+    private abstract static class Handler implements InvocationHandler {
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            // The wrapped object doesn't know that it's equal to the wrapper
+            if (method.getName().equals("equals") && args != null
+                    && args.length == 1) {
+                return proxy == args[0];
+            }
+            if (method.getName().equals("hashCode") && args == null) {
+                return System.identityHashCode(proxy);
+            }
+
+            try {
+                return call(method, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        protected abstract Object call(Method method, Object[] args)
+                throws IllegalAccessException, InvocationTargetException;
+
+    }
+
+    /**
+     * Wraps the statements created by a connection.
+     */
+    private class ConnectionHandler extends Handler {
+
+        private final Connection connection;
+
+        public ConnectionHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        protected Object call(Method method, Object[] args)
+                throws IllegalAccessException, InvocationTargetException {
+            Object result = method.invoke(connection, args);
+            if (result instanceof Statement) {
+                Statement statement = (Statement) result;
+                return wrap(statement, new StatementHandler(statement));
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Records a statement while it is being executed.
+     */
+    private class StatementHandler extends Handler {
+
+        private final Statement statement;
+
+        public StatementHandler(Statement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        protected Object call(Method method, Object[] args)
+                throws IllegalAccessException, InvocationTargetException {
+            if (!method.getName().startsWith("execute")) {
+                return method.invoke(statement, args);
+            }
+
+            Thread thread = Thread.currentThread();
+            running.put(thread, statement);
+            try {
+                return method.invoke(statement, args);
+            } finally {
+                running.remove(thread, statement);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,29 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Decides which shard of a {@link ShardedFacade} an entity is stored in. The
+ * decision is based on the id of the entity, so that an entity can be found
+ * again by its id alone.
+ * 
+ * @author Kim
+ * 
+ */
+public interface ShardStrategy {
+
+    /**
+     * Returns the shard of the entity with the given id. The same class and
+     * id must always give the same shard.
+     * 
+     * @param c
+     *            Entity class
+     * @param id
+     *            Id of the entity
+     * @param shards
+     *            The number of shards
+     * @return Index of the shard, between zero and shards - 1
+     */
+    public int getShard(Class<? extends AbstractPojo> c, long id, int shards);
+
+}
@@ -0,0 +1,1235 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.data.EntityAccessor;
+
+/**
+ * A facade which partitions the entities over several facades, the shards,
+ * each of which usually has a database of its own. The shards can for
+ * example be JPAFacades registered in the FacadeFactory.
+ * 
+ * An entity is stored in the shard chosen by the {@link ShardStrategy} from
+ * its id. New entities get their ids from a {@link TimeOrderedIdGenerator}
+ * before they are stored, so that the ids are unique over all shards and the
+ * shard of a new entity is known before it is written. Operations on a
+ * single entity go to its shard only. Queries are run on all shards in
+ * parallel and their results are merged:
+ * <ul>
+ * <li>count() returns the sum of the counts of the shards</li>
+ * <li>list(), getFieldValues() and cursor() return the results of the first
+ * shard followed by the results of the second shard and so on, except that
+ * list(String, Map) and listReadOnly(String, Map) sort the results by the
+ * ORDER BY clause of the query if it has one</li>
+ * <li>the paged variants of list() merge the results of the shards by the
+ * ORDER BY clause of the query, or by id if the query isn't ordered</li>
+ * <li>page() merges the pages of the shards by the key field</li>
+ * <li>find(String, Map) returns the result of the first shard with a
+ * result</li>
+ * </ul>
+ * 
+ * A unit of work runs in a transaction on every shard. The shards commit
+ * their transactions one after another, so a failing commit can leave the
+ * commits of the other shards in place. Inside a unit of work the queries
+ * are run on the calling thread, one shard at a time, so that they see the
+ * changes made in the unit of work.
+ * 
+ * @author Kim
+ * 
+ */
+public class ShardedFacade implements IFacade, StatementControl {
+
+    // Orders entities by their ids
+    private static final Comparator<AbstractPojo> ID_ORDER = new Comparator<AbstractPojo>() {
+        public int compare(AbstractPojo o1, AbstractPojo o2) {
+            return o1.getId().compareTo(o2.getId());
+        }
+    };
+
+    // Finds the entity name, the alias and the ORDER BY clause of a query
+    private static final Pattern ORDER_BY = Pattern.compile(
+            "^\\s*SELECT\\s.*?\\sFROM\\s+(\\w+)\\s+(?:AS\\s+)?(\\w+)\\b.*"
+                    + "\\sORDER\\s+BY\\s+(.*)$", Pattern.CASE_INSENSITIVE
+                    | Pattern.DOTALL);
+
+    private final List<IFacade> shards;
+
+    private final ShardStrategy strategy;
+
+    private final TimeOrderedIdGenerator idGenerator;
+
+    private final ExecutorService executor;
+
+    // Set while the current thread runs a unit of work through this facade
+    private final ThreadLocal<Boolean> inTransaction = new ThreadLocal<Boolean>();
+
+    // Query timeout of the current thread, passed on to the threads querying
+    // the shards
+    private final ThreadLocal<Long> threadQueryTimeout = new ThreadLocal<Long>();
+
+    // The calling thread of each thread querying the shards. Guarded by
+    // itself, so that the statements of a thread aren't cancelled after it
+    // has moved on to the call of another thread.
+    private final Map<Thread, Thread> callers = new HashMap<Thread, Thread>();
+
+    /**
+     * A call executed on each shard.
+     */
+    private interface ShardCall<T> {
+
+        public T call(IFacade shard, int index);
+
+    }
+
+    /**
+     * Constructor. The entities are spread over the shards by the hashes of
+     * their ids, and the ids are generated with node id zero.
+     * 
+     * @param shards
+     *            The facades the entities are partitioned over
+     */
+    public ShardedFacade(List<? extends IFacade> shards) {
+        this(shards, new HashShardStrategy(), new TimeOrderedIdGenerator(0));
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param shards
+     *            The facades the entities are partitioned over
+     * @param strategy
+     *            The strategy choosing the shard of an entity
+     * @param idGenerator
+     *            Generator of the ids of new entities. Each application
+     *            instance writing to the shards needs a generator with a node
+     *            id of its own.
+     */
+    public ShardedFacade(List<? extends IFacade> shards,
+            ShardStrategy strategy, TimeOrderedIdGenerator idGenerator) {
+        if (shards == null || shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+
+        if (strategy == null || idGenerator == null) {
+            throw new IllegalArgumentException(
+                    "Strategy and id generator may not be null");
+        }
+
+        this.shards = new ArrayList<IFacade>(shards);
+        this.strategy = strategy;
+        this.idGenerator = idGenerator;
+        executor = Executors.newFixedThreadPool(shards.size(),
+                new DaemonThreadFactory("facade-shard"));
+    }
+
+    /**
+     * Returns the facades the entities are partitioned over.
+     * 
+     * @return The shards
+     */
+    public List<IFacade> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Returns the index of the shard holding the entity of the given class
+     * and id.
+     * 
+     * @param c
+     *            Entity class
+     * @param id
+     *            Id of the entity
+     * @return Index of the shard
+     */
+    public int getShardIndex(Class<? extends AbstractPojo> c, long id) {
+        int index = strategy.getShard(c, id, shards.size());
+        if (index < 0 || index >= shards.size()) {
+            throw new IllegalStateException("Shard strategy returned shard "
+                    + index + " of " + shards.size());
+        }
+        return index;
+    }
+
+    private IFacade getShard(Class<? extends AbstractPojo> c, long id) {
+        return shards.get(getShardIndex(c, id));
+    }
+
+    private IFacade getShard(AbstractPojo pojo) {
+        return getShard(pojo.getClass(), pojo.getId());
+    }
+
+    /**
+     * Gives a new entity an id, so that its shard is known.
+     * 
+     * @param pojo
+     *            The entity to be stored
+     */
+    private void assignId(AbstractPojo pojo) {
+        if (pojo.getId() == null) {
+            pojo.setId(idGenerator.nextId());
+        }
+    }
+
+    /**
+     * Groups the given entities by their shards. Entities without ids are
+     * left out.
+     * 
+     * @param pojos
+     *            The entities
+     * @return The entities of each shard by the shard index
+     */
+    private <A extends AbstractPojo> Map<Integer, List<A>> groupByShard(
+            Collection<A> pojos) {
+        Map<Integer, List<A>> groups = new LinkedHashMap<Integer, List<A>>();
+        for (A pojo : pojos) {
+            if (pojo.getId() == null) {
+                continue;
+            }
+            int index = getShardIndex(pojo.getClass(), pojo.getId());
+            List<A> group = groups.get(index);
+            if (group == null) {
+                group = new ArrayList<A>();
+                groups.put(index, group);
+            }
+            group.add(pojo);
+        }
+        return groups;
+    }
+
+    /**
+     * Executes the call on every shard and returns the results in the order of
+     * the shards. Outside a unit of work the shards are called in parallel.
+     * 
+     * @param call
+     *            The call to be executed
+     * @return The results of the shards
+     */
+    private <T> List<T> scatter(final ShardCall<T> call) {
+        List<T> results = new ArrayList<T>(shards.size());
+        if (shards.size() == 1 || inTransaction.get() != null) {
+            for (int i = 0; i < shards.size(); i++) {
+                results.add(call.call(shards.get(i), i));
+            }
+            return results;
+        }
+
+        final Thread caller = Thread.currentThread();
+        final Long timeout = threadQueryTimeout.get();
+        List<Future<T>> futures = new ArrayList<Future<T>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            final IFacade shard = shards.get(i);
+            final int index = i;
+            futures.add(executor.submit(new Callable<T>() {
+                public T call() {
+                    Thread worker = Thread.currentThread();
+                    synchronized (callers) {
+                        callers.put(worker, caller);
+                    }
+                    setThreadQueryTimeout(shard, timeout);
+                    try {
+                        return call.call(shard, index);
+                    } finally {
+                        setThreadQueryTimeout(shard, null);
+                        synchronized (callers) {
+                            callers.remove(worker);
+                        }
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                    "Interrupted while waiting for the shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Concatenates the lists in the given order.
+     * 
+     * @param lists
+     *            The lists to be concatenated
+     * @return The concatenated list
+     */
+    private static <T> List<T> concat(List<? extends List<? extends T>> lists) {
+        List<T> all = new ArrayList<T>();
+        for (List<? extends T> list : lists) {
+            all.addAll(list);
+        }
+        return all;
+    }
+
+    /**
+     * Returns a comparator ordering entities like the ORDER BY clause of the
+     * given query, or by id if the query isn't ordered. The ordering may only
+     * consist of fields of the queried entity, since the merged entities are
+     * compared in memory.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @return Comparator for merging the results of the shards
+     * @throws IllegalArgumentException
+     *             if the ordering can't be applied in memory
+     */
+    private static Comparator<AbstractPojo> getOrder(String queryStr) {
+        Matcher matcher = ORDER_BY.matcher(queryStr);
+        if (!matcher.matches()) {
+            return ID_ORDER;
+        }
+
+        String alias = matcher.group(2);
+        try {
+            return InMemoryQuery.parse(
+                    "SELECT " + alias + " FROM " + matcher.group(1) + " "
+                            + alias + " ORDER BY " + matcher.group(3))
+                    .getComparator();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "The results of the shards can't be merged by the "
+                            + "ordering of the query: " + queryStr, e);
+        }
+    }
+
+    /**
+     * Returns a comparator ordering entities like the ORDER BY clause of the
+     * given query, or null if the query isn't ordered.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @return Comparator for sorting the results of the shards or null
+     * @throws IllegalArgumentException
+     *             if the ordering can't be applied in memory
+     */
+    private static Comparator<AbstractPojo> getStatedOrder(String queryStr) {
+        return ORDER_BY.matcher(queryStr).matches() ? getOrder(queryStr)
+                : null;
+    }
+
+    /**
+     * Merges the results of the shards by the given ordering and returns the
+     * requested window of the merged results.
+     * 
+     * @param lists
+     *            The results of the shards
+     * @param order
+     *            The ordering of the results
+     * @param startIndex
+     *            Index of the first returned entity
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return The entities in the window
+     */
+    private static <A extends AbstractPojo> List<A> window(
+            List<List<A>> lists, Comparator<AbstractPojo> order,
+            int startIndex, int amount) {
+        List<A> all = concat(lists);
+        Collections.sort(all, order);
+        if (startIndex >= all.size()) {
+            return new ArrayList<A>();
+        }
+        return new ArrayList<A>(all.subList(startIndex, (int) Math.min(
+                all.size(), (long) startIndex + amount)));
+    }
+
+    /**
+     * Returns the number of results each shard has to return for the given
+     * window, so that the window can be cut from the merged results.
+     */
+    private static int windowEnd(int startIndex, int amount) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) startIndex + amount);
+    }
+
+    /**
+     * The shards are initialized separately before they are given to the
+     * constructor, so this method does nothing. A ShardedFacade is registered
+     * in the FacadeFactory with
+     * {@link FacadeFactory#registerFacade(String, IFacade, boolean)}.
+     * 
+     * @param name
+     *            Configuration name
+     */
+    public void init(String name) {
+        // Nothing to initialize
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        if (id == null) {
+            return null;
+        }
+        return getShard(clazz, id).find(clazz, id);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Map<Long, A> findAll(final Class<A> clazz,
+            Collection<Long> ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("Ids may not be null");
+        }
+
+        final Map<Integer, List<Long>> shardIds = new HashMap<Integer, List<Long>>();
+        for (Long id : ids) {
+            if (id == null) {
+                continue;
+            }
+            int index = getShardIndex(clazz, id);
+            List<Long> group = shardIds.get(index);
+            if (group == null) {
+                group = new ArrayList<Long>();
+                shardIds.put(index, group);
+            }
+            group.add(id);
+        }
+
+        List<Map<Long, A>> results = scatter(new ShardCall<Map<Long, A>>() {
+            public Map<Long, A> call(IFacade shard, int index) {
+                List<Long> group = shardIds.get(index);
+                if (group == null) {
+                    return Collections.emptyMap();
+                }
+                return shard.findAll(clazz, group);
+            }
+        });
+
+        Map<Long, A> found = new HashMap<Long, A>();
+        for (Map<Long, A> result : results) {
+            found.putAll(result);
+        }
+        // Return the entities in the order of the given ids
+        Map<Long, A> ordered = new LinkedHashMap<Long, A>();
+        for (Long id : ids) {
+            A pojo = found.get(id);
+            if (pojo != null) {
+                ordered.put(id, pojo);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(final Class<A> clazz) {
+        return concat(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade shard, int index) {
+                return shard.list(clazz);
+            }
+        }));
+    }
+
+    /**
+     * Fetches a window of the entities of the given type ordered by their
+     * ids. Each shard returns the entities up to the end of the window, so
+     * deep windows are expensive.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz,
+            int startIndex, int amount) {
+        return list("SELECT p FROM " + clazz.getSimpleName()
+                + " p ORDER BY p.id", null, startIndex, amount);
+    }
+
+    /**
+     * Fetches the entities for the given query from all shards. If the query
+     * has an ORDER BY clause, which may then only consist of fields of the
+     * queried entity, the results of the shards are sorted by it. Otherwise
+     * the results of the first shard are followed by the results of the
+     * second shard and so on.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> list(final String queryStr,
+            final Map<String, Object> parameters) {
+        Comparator<AbstractPojo> order = getStatedOrder(queryStr);
+        List<A> all = concat(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade shard, int index) {
+                return shard.list(queryStr, parameters);
+            }
+        }));
+        if (order != null) {
+            Collections.sort(all, order);
+        }
+        return all;
+    }
+
+    /**
+     * Fetches a window of the entities for the given query. The results of
+     * the shards are merged by the ORDER BY clause of the query, which may
+     * only consist of fields of the queried entity, or by id if the query
+     * isn't ordered. Each shard returns the entities up to the end of the
+     * window, so deep windows are expensive.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> list(final String queryStr,
+            final Map<String, Object> parameters, int startIndex, int amount) {
+        Comparator<AbstractPojo> order = getOrder(queryStr);
+        final int end = windowEnd(startIndex, amount);
+        return window(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade shard, int index) {
+                return shard.list(queryStr, parameters, 0, end);
+            }
+        }), order, startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String continuationToken, int amount) {
+        return page(clazz, "id", continuationToken, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(final Class<A> clazz,
+            final String keyField, final String continuationToken,
+            final int amount) {
+        List<KeysetPage<A>> pages = scatter(new ShardCall<KeysetPage<A>>() {
+            public KeysetPage<A> call(IFacade shard, int index) {
+                return shard.page(clazz, keyField, continuationToken, amount);
+            }
+        });
+
+        EntityQuery<A> order = EntityQuery.from(clazz);
+        if (!"id".equals(keyField)) {
+            order.orderBy(keyField);
+        }
+        return merge(pages, order, keyField, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(
+            final EntityQuery<A> query, final String continuationToken,
+            final int amount) {
+        List<KeysetPage<A>> pages = scatter(new ShardCall<KeysetPage<A>>() {
+            public KeysetPage<A> call(IFacade shard, int index) {
+                return shard.page(query, continuationToken, amount);
+            }
+        });
+        return merge(pages, query, JPAFacade.getKeyField(query), amount);
+    }
+
+    /**
+     * Merges the pages of the shards into one page.
+     * 
+     * @param pages
+     *            The pages of the shards
+     * @param order
+     *            A query ordered by the key field
+     * @param keyField
+     *            The key field of the pages
+     * @param amount
+     *            The maximum amount of entities in the page
+     * @return The merged page
+     */
+    private <A extends AbstractPojo> KeysetPage<A> merge(
+            List<KeysetPage<A>> pages, EntityQuery<A> order, String keyField,
+            int amount) {
+        // Each shard returned its first entities after the token, so the
+        // first entities of the merged pages form the page
+        boolean more = false;
+        List<A> items = new ArrayList<A>();
+        for (KeysetPage<A> page : pages) {
+            items.addAll(page.getItems());
+            more |= page.hasMore();
+        }
+        Collections.sort(items, order.getComparator());
+
+        if (items.size() > amount) {
+            items = new ArrayList<A>(items.subList(0, amount));
+            more = true;
+        }
+
+        String nextToken = null;
+        if (more && !items.isEmpty()) {
+            A last = items.get(items.size() - 1);
+            Object keyValue = "id".equals(keyField) ? last.getId()
+                    : EntityAccessor.forClass(last.getClass()).getValue(last,
+                            keyField);
+            nextToken = new KeysetToken(keyField, keyValue, last.getId())
+                    .encode();
+        }
+        return new KeysetPage<A>(items, nextToken);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            final Class<A> clazz, final int fetchSize) {
+        return new ShardCursor<A>(new ShardCall<ResultCursor<A>>() {
+            public ResultCursor<A> call(IFacade shard, int index) {
+                return shard.cursor(clazz, fetchSize);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            final String queryStr, final Map<String, Object> parameters,
+            final int fetchSize) {
+        return new ShardCursor<A>(new ShardCall<ResultCursor<A>>() {
+            public ResultCursor<A> call(IFacade shard, int index) {
+                return shard.cursor(queryStr, parameters, fetchSize);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A findReadOnly(Class<A> clazz, Long id) {
+        if (id == null) {
+            return null;
+        }
+        return getShard(clazz, id).findReadOnly(clazz, id);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(final Class<A> clazz) {
+        return concat(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade shard, int index) {
+                return shard.listReadOnly(clazz);
+            }
+        }));
+    }
+
+    /**
+     * Fetches a window of the entities of the given type in read-only mode,
+     * ordered by their ids.
+     * 
+     * @param clazz
+     *            Entity class
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz,
+            int startIndex, int amount) {
+        return listReadOnly("SELECT p FROM " + clazz.getSimpleName()
+                + " p ORDER BY p.id", null, startIndex, amount);
+    }
+
+    /**
+     * Fetches the entities for the given query from all shards in read-only
+     * mode. The results are merged like in list(String, Map).
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(
+            final String queryStr, final Map<String, Object> parameters) {
+        Comparator<AbstractPojo> order = getStatedOrder(queryStr);
+        List<A> all = concat(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade shard, int index) {
+                return shard.listReadOnly(queryStr, parameters);
+            }
+        }));
+        if (order != null) {
+            Collections.sort(all, order);
+        }
+        return all;
+    }
+
+    /**
+     * Fetches a window of the entities for the given query in read-only
+     * mode. The results of the shards are merged by the ORDER BY clause of
+     * the query, which may only consist of fields of the queried entity, or by
+     * id if the query isn't ordered.
+     * 
+     * @param queryStr
+     *            Database query string
+     * @param parameters
+     *            A map of parameters and parameter values used in the query
+     * @param startIndex
+     *            Index from which we should start selecting entities
+     * @param amount
+     *            The maximum amount of entities returned
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(
+            final String queryStr, final Map<String, Object> parameters,
+            int startIndex, int amount) {
+        Comparator<AbstractPojo> order = getOrder(queryStr);
+        final int end = windowEnd(startIndex, amount);
+        return window(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade shard, int index) {
+                return shard.listReadOnly(queryStr, parameters, 0, end);
+            }
+        }), order, startIndex, amount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(final String queryStr,
+            final Map<String, Object> parameters) {
+        List<A> results = scatter(new ShardCall<A>() {
+            public A call(IFacade shard, int index) {
+                return shard.<A> find(queryStr, parameters);
+            }
+        });
+        for (A result : results) {
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(AbstractPojo pojo) {
+        assignId(pojo);
+        getShard(pojo).store(pojo);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        storeAll(pojos, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos,
+            boolean refresh) {
+        for (A pojo : pojos) {
+            assignId(pojo);
+        }
+        for (Map.Entry<Integer, List<A>> entry : groupByShard(pojos)
+                .entrySet()) {
+            shards.get(entry.getKey()).storeAll(entry.getValue(), refresh);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A update(Class<A> c, Long id,
+            EntityMutation<A> mutation) {
+        if (id == null) {
+            return null;
+        }
+        return getShard(c, id).update(c, id, mutation);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        // If it isn't stored, it can't be removed
+        if (pojo.getId() != null) {
+            getShard(pojo).delete(pojo);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        for (Map.Entry<Integer, List<A>> entry : groupByShard(pojos)
+                .entrySet()) {
+            shards.get(entry.getKey()).deleteAll(entry.getValue());
+        }
+    }
+
+    /**
+     * Executes the statement on every shard. The statements are not executed
+     * in a single transaction, unless they are part of a unit of work.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param whereClause
+     *            The statement's WHERE clause, referring to the entity as p
+     * @param parameters
+     *            A map of parameters and parameter values used in the
+     *            statement
+     * @return The total number of removed entities
+     */
+    public int deleteWhere(final Class<? extends AbstractPojo> c,
+            final String whereClause, final Map<String, Object> parameters) {
+        return sumRows(scatter(new ShardCall<Integer>() {
+            public Integer call(IFacade shard, int index) {
+                return shard.deleteWhere(c, whereClause, parameters);
+            }
+        }));
+    }
+
+    /**
+     * Executes the statement on every shard. The statements are not executed
+     * in a single transaction, unless they are part of a unit of work.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param assignments
+     *            The statement's SET clause, e.g. "p.foo = :foo"
+     * @param whereClause
+     *            The statement's WHERE clause, referring to the entity as p
+     * @param parameters
+     *            A map of parameters and parameter values used in the
+     *            statement
+     * @return The total number of updated entities
+     */
+    public int updateWhere(final Class<? extends AbstractPojo> c,
+            final String assignments, final String whereClause,
+            final Map<String, Object> parameters) {
+        return sumRows(scatter(new ShardCall<Integer>() {
+            public Integer call(IFacade shard, int index) {
+                return shard.updateWhere(c, assignments, whereClause,
+                        parameters);
+            }
+        }));
+    }
+
+    private static int sumRows(List<Integer> rows) {
+        int sum = 0;
+        for (Integer shardRows : rows) {
+            sum += shardRows;
+        }
+        return sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void refresh(A pojo) {
+        if (pojo.getId() != null) {
+            getShard(pojo).refresh(pojo);
+        }
+    }
+
+    /**
+     * Executes the unit of work in a transaction on every shard. The work is
+     * given this facade, so that its operations are routed to the shards.
+     * The transactions are committed one shard at a time, starting from the
+     * last shard.
+     * 
+     * @param work
+     *            The unit of work to be executed
+     * @return The result of the unit of work
+     */
+    public <T> T inTransaction(UnitOfWork<T> work) {
+        if (work == null) {
+            throw new IllegalArgumentException("Unit of work may not be null");
+        }
+
+        Boolean outer = inTransaction.get();
+        inTransaction.set(Boolean.TRUE);
+        try {
+            return inTransaction(work, 0);
+        } finally {
+            if (outer == null) {
+                inTransaction.remove();
+            }
+        }
+    }
+
+    /**
+     * Opens the transaction of the given shard and, inside it, the
+     * transactions of the following shards.
+     * 
+     * @param work
+     *            The unit of work to be executed
+     * @param index
+     *            The index of the shard
+     * @return The result of the unit of work
+     */
+    private <T> T inTransaction(final UnitOfWork<T> work, final int index) {
+        if (index == shards.size()) {
+            return work.execute(this);
+        }
+        return shards.get(index).inTransaction(new UnitOfWork<T>() {
+            public T execute(IFacade facade) {
+                return inTransaction(work, index + 1);
+            }
+        });
+    }
+
+    /**
+     * Closes all the shards.
+     */
+    public void close() {
+        for (IFacade shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Kills all the shards and stops the threads querying them.
+     */
+    public void kill() {
+        executor.shutdownNow();
+        for (IFacade shard : shards) {
+            shard.kill();
+        }
+    }
+
+    /**
+     * Sets the timeout of the current thread on all the shards. The timeout
+     * is passed on to the threads querying the shards in parallel.
+     * 
+     * @param timeout
+     *            Timeout in milliseconds or null for removing the override
+     */
+    public void setThreadQueryTimeout(Long timeout) {
+        if (timeout == null) {
+            threadQueryTimeout.remove();
+        } else {
+            threadQueryTimeout.set(timeout);
+        }
+        for (IFacade shard : shards) {
+            setThreadQueryTimeout(shard, timeout);
+        }
+    }
+
+    private static void setThreadQueryTimeout(IFacade shard, Long timeout) {
+        if (shard instanceof StatementControl) {
+            ((StatementControl) shard).setThreadQueryTimeout(timeout);
+        }
+    }
+
+    /**
+     * Cancels the statements of the thread on all the shards, including the
+     * statements of the threads querying the shards for it.
+     * 
+     * @param thread
+     *            The thread executing the statement
+     */
+    public void cancelStatements(Thread thread) {
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(thread);
+        synchronized (callers) {
+            for (Map.Entry<Thread, Thread> entry : callers.entrySet()) {
+                if (entry.getValue() == thread) {
+                    threads.add(entry.getKey());
+                }
+            }
+            for (IFacade shard : shards) {
+                if (shard instanceof StatementControl) {
+                    for (Thread t : threads) {
+                        ((StatementControl) shard).cancelStatements(t);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(final Class<? extends AbstractPojo> c) {
+        return sum(scatter(new ShardCall<Long>() {
+            public Long call(IFacade shard, int index) {
+                return shard.count(c);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(final Class<? extends AbstractPojo> c,
+            final String whereClause, final Map<String, Object> parameters) {
+        return sum(scatter(new ShardCall<Long>() {
+            public Long call(IFacade shard, int index) {
+                return shard.count(c, whereClause, parameters);
+            }
+        }));
+    }
+
+    private static Long sum(List<Long> counts) {
+        long sum = 0;
+        for (Long count : counts) {
+            if (count != null) {
+                sum += count;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<?> getFieldValues(final Class<? extends AbstractPojo> c,
+            final String field, final String whereConditions,
+            final Map<String, Object> parameters) {
+        return concat(scatter(new ShardCall<List<?>>() {
+            public List<?> call(IFacade shard, int index) {
+                return shard.getFieldValues(c, field, whereConditions,
+                        parameters);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(final Class<? extends AbstractPojo> c,
+            final String[] fields, final String whereConditions,
+            final Map<String, Object> parameters) {
+        return concat(scatter(new ShardCall<List<Object[]>>() {
+            public List<Object[]> call(IFacade shard, int index) {
+                return shard.getFieldValues(c, fields, whereConditions,
+                        parameters);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> List<T> getFieldValues(final Class<? extends AbstractPojo> c,
+            final Class<T> resultClass, final String[] fields,
+            final String whereConditions, final Map<String, Object> parameters) {
+        return concat(scatter(new ShardCall<List<T>>() {
+            public List<T> call(IFacade shard, int index) {
+                return shard.getFieldValues(c, resultClass, fields,
+                        whereConditions, parameters);
+            }
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getIds(final Class<? extends AbstractPojo> c,
+            final String whereConditions, final Map<String, Object> parameters) {
+        List<long[]> results = scatter(new ShardCall<long[]>() {
+            public long[] call(IFacade shard, int index) {
+                return shard.getIds(c, whereConditions, parameters);
+            }
+        });
+
+        int length = 0;
+        for (long[] ids : results) {
+            length += ids.length;
+        }
+        long[] all = new long[length];
+        int position = 0;
+        for (long[] ids : results) {
+            System.arraycopy(ids, 0, all, position, ids.length);
+            position += ids.length;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    /**
+     * Fetches the entities matching the given query from all shards. The
+     * merged results are ordered by the orderings of the query, and by id if
+     * the query is limited but not ordered. Each shard returns the entities
+     * up to the end of the limits, so deep windows are expensive.
+     * 
+     * @param query
+     *            The query
+     * @return List of A entities
+     */
+    public <A extends AbstractPojo> List<A> list(final EntityQuery<A> query) {
+        final EntityQuery<A> shardQuery = query.copy();
+        if (query.isLimited()) {
+            shardQuery.limit(0, windowEnd(query.getFirstResult(), query
+                    .getMaxResults()));
+        }
+        List<A> all = concat(scatter(new ShardCall<List<A>>() {
+            public List<A> call(IFacade shard, int index) {
+                return shard.list(shardQuery);
+            }
+        }));
+
+        if (!query.isLimited() && query.getOrderFields().isEmpty()) {
+            return all;
+        }
+        Collections.sort(all, query.getComparator());
+        if (!query.isLimited()) {
+            return all;
+        }
+        int start = query.getFirstResult();
+        if (start >= all.size()) {
+            return new ArrayList<A>();
+        }
+        return new ArrayList<A>(all.subList(start, (int) Math.min(all.size(),
+                (long) start + query.getMaxResults())));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(final EntityQuery<? extends AbstractPojo> query) {
+        return sum(scatter(new ShardCall<Long>() {
+            public Long call(IFacade shard, int index) {
+                return shard.count(query);
+            }
+        }));
+    }
+
+    /**
+     * Opens a cursor over the entities matching the given query. The cursor
+     * returns the entities of the first shard followed by those of the
+     * second shard and so on, so the orderings and limits of the query only
+     * apply within each shard.
+     * 
+     * @param query
+     *            The query
+     * @param fetchSize
+     *            The number of entities fetched from the database at a time
+     * @return A cursor over the A entities
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            final EntityQuery<A> query, final int fetchSize) {
+        return new ShardCursor<A>(new ShardCall<ResultCursor<A>>() {
+            public ResultCursor<A> call(IFacade shard, int index) {
+                return shard.cursor(query, fetchSize);
+            }
+        });
+    }
+
+    /**
+     * Fetches the selected field values of the entities matching the given
+     * query. The rows of the first shard are followed by those of the second
+     * shard and so on, so the orderings and limits of the query only apply
+     * within each shard.
+     * 
+     * @param query
+     *            The query, with the fields selected with select()
+     * @return List of rows of field values
+     */
+    public List<Object[]> getFieldValues(
+            final EntityQuery<? extends AbstractPojo> query) {
+        return concat(scatter(new ShardCall<List<Object[]>>() {
+            public List<Object[]> call(IFacade shard, int index) {
+                return shard.getFieldValues(query);
+            }
+        }));
+    }
+
+    /**
+     * A cursor going through the cursors of the shards one after another. The
+     * cursor of a shard is opened when the previous one has been exhausted.
+     */
+    private class ShardCursor<A extends AbstractPojo> implements
+            ResultCursor<A> {
+
+        private final ShardCall<ResultCursor<A>> opener;
+
+        private int index = -1;
+
+        private ResultCursor<A> current = null;
+
+        private boolean closed = false;
+
+        public ShardCursor(ShardCall<ResultCursor<A>> opener) {
+            this.opener = opener;
+        }
+
+        public boolean hasNext() {
+            while (!closed && (current == null || !current.hasNext())) {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+                if (++index == shards.size()) {
+                    closed = true;
+                } else {
+                    current = opener.call(shards.get(index), index);
+                }
+            }
+            return !closed;
+        }
+
+        public A next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            closed = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A listener which logs the operations of an {@link InstrumentedFacade} that
+ * take longer than a threshold. The log record contains the fingerprint of
+ * the query and the shapes of its parameters, but not the parameter values,
+ * which may contain personal data.
+ * 
+ * The operations are logged with java.util.logging as warnings of the logger
+ * named after this class.
+ * 
+ * @author Kim
+ * 
+ */
+public class SlowQueryLog implements FacadeListener {
+
+    private static final Logger logger = Logger.getLogger(SlowQueryLog.class
+            .getName());
+
+    // Threshold in nanoseconds
+    private volatile long threshold;
+
+    private final AtomicLong slowOperations = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param thresholdMillis
+     *            Operations taking longer than this many milliseconds are
+     *            logged
+     */
+    public SlowQueryLog(long thresholdMillis) {
+        setThreshold(thresholdMillis);
+    }
+
+    /**
+     * Sets the threshold above which operations are logged.
+     * 
+     * @param thresholdMillis
+     *            The threshold in milliseconds
+     */
+    public void setThreshold(long thresholdMillis) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Threshold may not be negative");
+        }
+        threshold = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    /**
+     * Returns the threshold above which operations are logged.
+     * 
+     * @return The threshold in milliseconds
+     */
+    public long getThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(threshold);
+    }
+
+    /**
+     * Returns the number of operations which have exceeded the threshold.
+     * 
+     * @return Number of slow operations
+     */
+    public long getSlowOperations() {
+        return slowOperations.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void operationCompleted(FacadeEvent event) {
+        if (event.getDuration() > threshold) {
+            slowOperations.incrementAndGet();
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.warning("Slow operation: " + event);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+/**
+ * A facade whose database statements can be limited and cancelled thread by
+ * thread. {@link AsyncFacade} uses it for applying the timeout of an operation
+ * to the statements the operation executes, and for cancelling the statement
+ * of an operation which is cancelled. Facades wrapping other facades, such as
+ * {@link InstrumentedFacade}, forward the calls to the facades they wrap.
+ * 
+ * @author Kim
+ * 
+ */
+public interface StatementControl {
+
+    /**
+     * Overrides the query timeout for the statements executed by the current
+     * thread.
+     * 
+     * @param timeout
+     *            Timeout in milliseconds or null for removing the override
+     */
+    public void setThreadQueryTimeout(Long timeout);
+
+    /**
+     * Cancels the database statement which the given thread is executing. Does
+     * nothing if the thread isn't executing a statement.
+     * 
+     * @param thread
+     *            The thread executing the statement
+     */
+    public void cancelStatements(Thread thread);
+
+}
@@ -0,0 +1,177 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.util.Properties;
+
+import org.eclipse.persistence.sessions.Connector;
+import org.eclipse.persistence.sessions.DatasourceLogin;
+import org.eclipse.persistence.sessions.DefaultConnector;
+import org.eclipse.persistence.sessions.Login;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+/**
+ * Session event listener which makes the connections of a persistence unit
+ * record the statements they are executing, so that {@link JPAFacade} can
+ * cancel the statement of a thread. The connectors of the session and its
+ * connection pools are replaced before the session logs in, and the
+ * connections they open report to the RunningStatements object given in the
+ * persistence unit property {@link #STATEMENTS_PROPERTY}.
+ * 
+ * JPAFacade sets this listener when statement tracking has been turned on,
+ * unless the persistence.xml file defines a session event listener of its
+ * own, since the persistence unit property holds only one listener.
+ * 
+ * @author Kim
+ * 
+ */
+public class StatementTracker extends SessionEventAdapter {
+
+    /**
+     * The persistence unit property holding the RunningStatements object.
+     */
+    public static final String STATEMENTS_PROPERTY = "org.vaadin.appfoundation.running-statements";
+
+    /**
+     * A connector which tracks the statements of its connections.
+     */
+    private interface TrackingConnector extends Connector {
+
+    }
+
+    @Override
+    public void preLogin(SessionEvent event) {
+        Session session = event.getSession();
+        RunningStatements statements = (RunningStatements) session
+                .getProperty(STATEMENTS_PROPERTY);
+        if (statements == null) {
+            return;
+        }
+
+        track(session.getDatasourceLogin(), statements);
+        if (session instanceof ServerSession) {
+            // The pools may have logins of their own
+            ServerSession serverSession = (ServerSession) session;
+            for (ConnectionPool pool : serverSession.getConnectionPools()
+                    .values()) {
+                track(pool.getLogin(), statements);
+            }
+            if (serverSession.getReadConnectionPool() != null) {
+                track(serverSession.getReadConnectionPool().getLogin(),
+                        statements);
+            }
+        }
+    }
+
+    /**
+     * Replaces the connector of the given login with a tracking one.
+     * 
+     * @param login
+     *            The login of the session or a connection pool
+     * @param statements
+     *            The statements the connections report to
+     */
+    private void track(Login login, RunningStatements statements) {
+        if (!(login instanceof DatasourceLogin)) {
+            return;
+        }
+        DatasourceLogin datasourceLogin = (DatasourceLogin) login;
+        Connector connector = datasourceLogin.getConnector();
+        if (connector == null || connector instanceof TrackingConnector) {
+            return;
+        }
+
+        // DatabaseLogin expects to find a DefaultConnector when the login is
+        // configured with a driver and a URL
+        if (connector.getClass() == DefaultConnector.class) {
+            datasourceLogin.setConnector(new TrackingDefaultConnector(
+                    (DefaultConnector) connector, statements));
+        } else {
+            datasourceLogin.setConnector(new TrackingDelegateConnector(
+                    connector, statements));
+        }
+    }
+
+    /**
+     * A DefaultConnector whose connections track their statements.
+     */
+    private static class TrackingDefaultConnector extends DefaultConnector
+            implements TrackingConnector {
+
+        private static final long serialVersionUID = -3926510447158437815L;
+
+        private final transient RunningStatements statements;
+
+        public TrackingDefaultConnector(DefaultConnector connector,
+                RunningStatements statements) {
+            super(connector.getDriverClassName(), connector
+                    .getDriverURLHeader(), connector.getDatabaseURL());
+            this.statements = statements;
+        }
+
+        @Override
+        public Connection connect(Properties properties, Session session) {
+            return statements.track(super.connect(properties, session));
+        }
+
+    }
+
+    /**
+     * A connector which passes the connections of another connector on,
+     * wrapped so that they track their statements.
+     */
+    private static class TrackingDelegateConnector implements
+            TrackingConnector {
+
+        private static final long serialVersionUID = 6519412893655120334L;
+
+        private Connector connector;
+
+        private final transient RunningStatements statements;
+
+        public TrackingDelegateConnector(Connector connector,
+                RunningStatements statements) {
+            this.connector = connector;
+            this.statements = statements;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Connection connect(Properties properties, Session session) {
+            return statements.track(connector.connect(properties, session));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getConnectionDetails() {
+            return connector.getConnectionDetails();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void toString(PrintWriter writer) {
+            connector.toString(writer);
+        }
+
+        @Override
+        public Object clone() {
+            try {
+                TrackingDelegateConnector clone = (TrackingDelegateConnector) super
+                        .clone();
+                clone.connector = (Connector) connector.clone();
+                return clone;
+            } catch (CloneNotSupportedException e) {
+                throw new InternalError();
+            }
+        }
+
+    }
+
+}
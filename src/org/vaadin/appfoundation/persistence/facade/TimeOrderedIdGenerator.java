@@ -0,0 +1,118 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+
+/**
+ * Generates unique 64-bit ids without a database round trip. The ids grow
+ * with time, so that they can be used for ordering entities by their
+ * creation time and keep index inserts at the end of the index.
+ * 
+ * An id consists of 41 bits of milliseconds since 2013-01-01 UTC, which lasts
+ * until the year 2082, 10 bits of node id and 12 bits of sequence number. Each
+ * generator can thus create 4096 ids per millisecond. If that is exceeded, the
+ * generator borrows the following millisecond instead of waiting for it. The
+ * ids are unique as long as no two generators with the same node id run at
+ * the same time.
+ * 
+ * @author Kim
+ * 
+ */
+public class TimeOrderedIdGenerator implements Serializable {
+
+    private static final long serialVersionUID = 4093571843019685713L;
+
+    /**
+     * The time from which the timestamps of the ids are counted.
+     */
+    public static final long EPOCH = 1356998400000L;
+
+    /**
+     * The largest allowed node id.
+     */
+    public static final int MAX_NODE_ID = 1023;
+
+    private static final int NODE_BITS = 10;
+
+    private static final int SEQUENCE_BITS = 12;
+
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private final long nodeId;
+
+    // Guarded by this
+    private long lastTimestamp = -1;
+
+    private long sequence = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param nodeId
+     *            The id of this generator, between 0 and MAX_NODE_ID. Each
+     *            generator running at the same time must have a different
+     *            node id.
+     */
+    public TimeOrderedIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be between 0 and "
+                    + MAX_NODE_ID);
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Returns the next id.
+     * 
+     * @return A new unique id
+     */
+    public synchronized long nextId() {
+        // If the clock has gone backwards, keep using the last timestamp
+        long timestamp = Math.max(System.currentTimeMillis() - EPOCH,
+                lastTimestamp);
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) {
+                // The sequence of this millisecond has run out
+                timestamp++;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS))
+                | (nodeId << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * Returns the node id of this generator.
+     * 
+     * @return The node id
+     */
+    public int getNodeId() {
+        return (int) nodeId;
+    }
+
+    /**
+     * Returns the time the given id was generated at.
+     * 
+     * @param id
+     *            An id generated by a TimeOrderedIdGenerator
+     * @return The time in milliseconds since 1970-01-01 UTC
+     */
+    public static long getTime(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    /**
+     * Returns the node id of the generator which generated the given id.
+     * 
+     * @param id
+     *            An id generated by a TimeOrderedIdGenerator
+     * @return The node id
+     */
+    public static int getNodeId(long id) {
+        return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE_ID);
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.Vector;
+
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.sequencing.Sequence;
+
+/**
+ * EclipseLink sequence which takes the ids from a TimeOrderedIdGenerator. The
+ * ids are generated in memory, so inserts need no round trips to the
+ * database for their ids.
+ * 
+ * @author Kim
+ * 
+ */
+class TimeOrderedSequence extends Sequence {
+
+    private static final long serialVersionUID = -2715369093542061386L;
+
+    private final TimeOrderedIdGenerator generator;
+
+    /**
+     * Constructor.
+     * 
+     * @param name
+     *            Name of the sequence
+     * @param generator
+     *            The generator giving the ids
+     */
+    public TimeOrderedSequence(String name, TimeOrderedIdGenerator generator) {
+        super(name, 1);
+        this.generator = generator;
+    }
+
+    @Override
+    public boolean shouldAcquireValueAfterInsert() {
+        return false;
+    }
+
+    @Override
+    public boolean shouldUsePreallocation() {
+        return false;
+    }
+
+    @Override
+    public boolean shouldUseTransaction() {
+        return false;
+    }
+
+    @Override
+    public Object getGeneratedValue(Accessor accessor,
+            AbstractSession writeSession, String seqName) {
+        return generator.nextId();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Vector getGeneratedVector(Accessor accessor,
+            AbstractSession writeSession, String seqName, int size) {
+        // Preallocation isn't used
+        return null;
+    }
+
+    @Override
+    public void onConnect() {
+        // Nothing to connect to
+    }
+
+    @Override
+    public void onDisconnect() {
+        // Nothing to disconnect from
+    }
+
+}
@@ -0,0 +1,26 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+/**
+ * A piece of work which consists of several facade calls that should be
+ * executed within a single transaction. Units of work are executed with
+ * {@link IFacade#inTransaction(UnitOfWork)}.
+ * 
+ * @author Kim
+ * 
+ * @param <T>
+ *            Type of the unit of work's result
+ */
+public interface UnitOfWork<T> {
+
+    /**
+     * Executes the unit of work. All calls made to the given facade on the
+     * current thread take part in the same transaction. If this method throws
+     * an exception, the transaction is rolled back.
+     * 
+     * @param facade
+     *            The facade which executes the unit of work
+     * @return The result of the unit of work, may be null
+     */
+    public T execute(IFacade facade);
+
+}
@@ -0,0 +1,249 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.io.Serializable;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+/**
+ * Executes the updates of {@link IFacade#update(Class, Long, EntityMutation)}.
+ * An update reads the entity, applies the mutation and stores the entity. If
+ * the store fails because the entity's consistency version has changed in the
+ * meantime, the update is retried after a random delay of up to an
+ * exponentially growing backoff, so that the competing writers spread out
+ * instead of colliding again.
+ * 
+ * The settings can be changed and the counters read while the facade is in
+ * use.
+ * 
+ * @author Kim
+ * 
+ */
+public class UpdateRetry implements Serializable {
+
+    private static final long serialVersionUID = -2214585473602683385L;
+
+    /**
+     * The default maximum number of attempts of an update.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    /**
+     * The default backoff before the first retry in milliseconds.
+     */
+    public static final long DEFAULT_BACKOFF = 10;
+
+    /**
+     * The default upper limit of the backoff in milliseconds.
+     */
+    public static final long DEFAULT_MAX_BACKOFF = 1000;
+
+    private static final Random random = new Random();
+
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private volatile long backoff = DEFAULT_BACKOFF;
+
+    private volatile long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+    private final AtomicLong conflicts = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Reads, mutates and stores the entity until the store succeeds or the
+     * attempts run out.
+     * 
+     * @param facade
+     *            The facade through which the entity is read and stored
+     * @param cache
+     *            The entity cache of the facade or null. The entity is removed
+     *            from the cache before it is read, since a stale cached copy
+     *            would conflict on every attempt.
+     * @param c
+     *            Entity class
+     * @param id
+     *            Id of the entity
+     * @param mutation
+     *            The mutation applied to the entity
+     * @param retry
+     *            false if a conflict should not be retried, for example
+     *            because the surrounding transaction can no longer commit
+     * @return The stored entity or null if there is no entity with the id
+     */
+    <A extends AbstractPojo> A update(IFacade facade, EntityCache cache,
+            Class<A> c, Long id, EntityMutation<A> mutation, boolean retry) {
+        if (mutation == null) {
+            throw new IllegalArgumentException("Mutation may not be null");
+        }
+
+        for (int attempt = 1;; attempt++) {
+            if (cache != null && id != null) {
+                cache.remove(c, id);
+            }
+            A entity = facade.find(c, id);
+            if (entity == null) {
+                return null;
+            }
+            mutation.mutate(entity);
+            try {
+                facade.store(entity);
+                return entity;
+            } catch (RuntimeException e) {
+                if (!isConflict(e)) {
+                    throw e;
+                }
+                conflicts.incrementAndGet();
+                if (!retry || attempt >= maxAttempts) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+                if (!sleep(attempt)) {
+                    // Interrupted, give up with the conflict
+                    failures.incrementAndGet();
+                    throw e;
+                }
+                retries.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Waits before the given attempt is retried. The delay is chosen randomly
+     * between zero and the backoff, which doubles after every attempt.
+     * 
+     * @return false if the thread was interrupted
+     */
+    private boolean sleep(int attempt) {
+        long limit = backoff;
+        for (int i = 1; i < attempt && limit < maxBackoff; i++) {
+            limit *= 2;
+        }
+        limit = Math.min(limit, maxBackoff);
+        if (limit <= 0) {
+            return true;
+        }
+
+        try {
+            Thread.sleep((long) (random.nextDouble() * limit));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the exception was caused by an optimistic locking conflict.
+     * The conflict may be wrapped in a RollbackException, and the provider
+     * may use an exception of its own.
+     * 
+     * @param e
+     *            The exception
+     * @return true if the exception or one of its causes is an optimistic
+     *         lock exception
+     */
+    static boolean isConflict(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getClass().getSimpleName().equals(
+                    "OptimisticLockException")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the maximum number of times an update is attempted. One means that
+     * conflicts are not retried.
+     * 
+     * @param maxAttempts
+     *            Maximum number of attempts
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException(
+                    "An update must be attempted at least once");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Returns the maximum number of times an update is attempted.
+     * 
+     * @return Maximum number of attempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets the backoff of the first retry and the upper limit of the backoff.
+     * The backoff doubles after every retry until it reaches the limit. Zero
+     * retries immediately.
+     * 
+     * @param backoff
+     *            The backoff before the first retry in milliseconds
+     * @param maxBackoff
+     *            The maximum backoff in milliseconds
+     */
+    public void setBackoff(long backoff, long maxBackoff) {
+        if (backoff < 0 || maxBackoff < backoff) {
+            throw new IllegalArgumentException(
+                    "Backoff may not be negative or exceed the maximum");
+        }
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * Returns the backoff before the first retry.
+     * 
+     * @return Backoff in milliseconds
+     */
+    public long getBackoff() {
+        return backoff;
+    }
+
+    /**
+     * Returns the upper limit of the backoff.
+     * 
+     * @return Maximum backoff in milliseconds
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Returns the number of conflicting stores, including those of updates
+     * which eventually succeeded.
+     * 
+     * @return Number of conflicts
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * Returns the number of times an update was retried after a conflict.
+     * 
+     * @return Number of retries
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Returns the number of updates which failed because of a conflict, after
+     * all of their attempts were used.
+     * 
+     * @return Number of failed updates
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+}
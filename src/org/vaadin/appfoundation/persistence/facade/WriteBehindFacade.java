@@ -0,0 +1,1051 @@
+package org.vaadin.appfoundation.persistence.facade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.OptimisticLockException;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.data.EntityAccessor;
+
+/**
+ * A facade which defers the updates of selected entity classes and writes
+ * them to the wrapped facade in batches. It is meant for entities which are
+ * updated often but whose every update needn't be written at once, such as
+ * the failed login counters of users:
+ * 
+ * <pre>
+ * WriteBehindFacade facade = new WriteBehindFacade(jpaFacade, 1000, 100, 500);
+ * facade.addWriteBehindClass(User.class);
+ * FacadeFactory.registerFacade(&quot;default&quot;, facade, true);
+ * </pre>
+ * 
+ * When an already stored entity of a write-behind class is stored, a copy of
+ * it is queued instead of being written. Further updates of the same entity
+ * replace the queued copy, so an entity is written only once per flush no
+ * matter how often it was updated. The queue is flushed by a background
+ * thread every flush interval and as soon as it holds a batch size of
+ * entities. The entities of a flush are stored with a single storeAll() call.
+ * New entities, deletions and all other classes go straight to the wrapped
+ * facade.
+ * 
+ * Storing a queued entity gives it a new consistency version, as a normal
+ * store would, so a stale copy of a queued entity is rejected with an
+ * OptimisticLockException. The versions given to the holders of an entity
+ * grow with every coalesced update, while the database only sees one update
+ * per flush, so the facade remembers the versions of a capacity of recently
+ * flushed entities. When an entity which is neither queued nor remembered is
+ * stored, its version is checked against the wrapped facade, and the store is
+ * rejected with an OptimisticLockException unless the versions match. The
+ * entities returned by find(), list() and the other methods returning
+ * entities include the queued updates. Counts, field values and the where
+ * clauses of queries only see the written state.
+ * 
+ * The queue holds at most the given capacity of entities. When it is full,
+ * store() flushes the queue on the calling thread, which slows down the
+ * writers to the speed of the database, and throws the exception of the
+ * flush if it fails.
+ * 
+ * Durability: queued updates only exist in memory until they are flushed and
+ * are lost if the application dies before that. kill() flushes the queue
+ * before killing the wrapped facade. A queued update which conflicts with an
+ * update written to the database in the meantime is dropped and logged as a
+ * warning, since there is no caller left to report the conflict to. If a
+ * flush fails for any other reason, the updates stay queued and are retried
+ * by the next flush.
+ * 
+ * Units of work run directly on the wrapped facade and don't see the queued
+ * updates, so flush() should be called before a write-behind entity is
+ * changed in a unit of work.
+ * 
+ * @author Kim
+ * 
+ */
+public class WriteBehindFacade implements IFacade, StatementControl {
+
+    private static final Logger logger = Logger
+            .getLogger(WriteBehindFacade.class.getName());
+
+    private final IFacade facade;
+
+    private final int capacity;
+
+    private final int batchSize;
+
+    private final List<Class<?>> writeBehindClasses = new CopyOnWriteArrayList<Class<?>>();
+
+    // The queued entities in the order they were first queued. Guarded by
+    // itself, like the other maps.
+    private final Map<Key, Entry> pending = new LinkedHashMap<Key, Entry>();
+
+    // Recently flushed entities, whose consistency versions may differ from
+    // the ones in the database. The least recently used ones are forgotten,
+    // after which the versions of their holders are checked against the
+    // wrapped facade when they are stored again.
+    private final Map<Key, Entry> flushed;
+
+    // Serializes the flushes
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final ScheduledExecutorService timer;
+
+    // Retry settings and conflict counters of update() for the write-behind
+    // classes
+    private final UpdateRetry updateRetry = new UpdateRetry();
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushRequested.set(false);
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                // The updates stay queued and are retried by the next flush
+                logger.log(Level.WARNING, "Flushing the write-behind queue "
+                        + "failed", e);
+            }
+        }
+    };
+
+    /**
+     * Identifies an entity.
+     */
+    private static final class Key {
+
+        private final Class<?> c;
+
+        private final Long id;
+
+        Key(AbstractPojo pojo) {
+            c = pojo.getClass();
+            id = pojo.getId();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return c.equals(other.c) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * c.hashCode() + id.hashCode();
+        }
+
+    }
+
+    /**
+     * The queued or flushed state of an entity.
+     */
+    private static final class Entry {
+
+        // A copy of the entity with the consistency version given to its
+        // holders
+        private AbstractPojo state;
+
+        // The consistency version of the entity in the database
+        private Long storedVersion;
+
+    }
+
+    /**
+     * A queued entity taken for writing.
+     */
+    private static final class Write {
+
+        private final Key key;
+
+        private final Entry entry;
+
+        // The version of the entry when it was taken, which tells if it was
+        // updated during the write
+        private final Long version;
+
+        private final AbstractPojo pojo;
+
+        Write(Key key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            version = entry.state.getConsistencyVersion();
+            pojo = copy(entry.state);
+            pojo.setConsistencyVersion(entry.storedVersion);
+        }
+
+    }
+
+    /**
+     * A cursor adding the queued updates to the entities of another cursor.
+     */
+    private class OverlayCursor<A extends AbstractPojo> implements
+            ResultCursor<A> {
+
+        private final ResultCursor<A> cursor;
+
+        OverlayCursor(ResultCursor<A> cursor) {
+            this.cursor = cursor;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public A next() {
+            return overlay(cursor.next());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void remove() {
+            cursor.remove();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void close() {
+            cursor.close();
+        }
+
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param facade
+     *            The facade to which the entities are written
+     * @param capacity
+     *            The maximum number of queued entities
+     * @param batchSize
+     *            The number of queued entities which triggers a flush
+     * @param flushInterval
+     *            The interval of the flushes in milliseconds
+     */
+    public WriteBehindFacade(IFacade facade, int capacity, int batchSize,
+            long flushInterval) {
+        if (facade == null) {
+            throw new IllegalArgumentException("Facade may not be null");
+        }
+
+        if (capacity < 1 || batchSize < 1 || flushInterval < 1) {
+            throw new IllegalArgumentException(
+                    "Capacity, batch size and flush interval must be positive numbers");
+        }
+
+        this.facade = facade;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        final int flushedCapacity = capacity;
+        flushed = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > flushedCapacity;
+            }
+        };
+        timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(
+                "facade-write-behind"));
+        timer.scheduleWithFixedDelay(flushTask, flushInterval, flushInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the wrapped facade.
+     * 
+     * @return The facade to which the entities are written
+     */
+    public IFacade getFacade() {
+        return facade;
+    }
+
+    /**
+     * Returns the retry settings of update() for the write-behind classes.
+     * The updates of other classes are retried by the wrapped facade.
+     * 
+     * @return The update retry settings of this facade
+     */
+    public UpdateRetry getUpdateRetry() {
+        return updateRetry;
+    }
+
+    /**
+     * Defers the updates of the entities of the given class and its
+     * subclasses.
+     * 
+     * @param c
+     *            Entity class
+     */
+    public void addWriteBehindClass(Class<? extends AbstractPojo> c) {
+        if (c == null) {
+            throw new IllegalArgumentException("Class may not be null");
+        }
+        writeBehindClasses.add(c);
+    }
+
+    /**
+     * Checks if the updates of the entities of the given class are deferred.
+     * 
+     * @param c
+     *            Entity class
+     * @return true if the entities are written behind
+     */
+    public boolean isWriteBehind(Class<?> c) {
+        for (Class<?> writeBehind : writeBehindClasses) {
+            if (writeBehind.isAssignableFrom(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of queued entities.
+     * 
+     * @return Number of entities waiting to be written
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Writes all queued entities to the wrapped facade. Returns once the
+     * entities queued before the call have been written.
+     * 
+     * @throws RuntimeException
+     *             the exception of the wrapped facade if the entities could
+     *             not be written. They stay queued and are retried by the next
+     *             flush.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            List<Write> batch = takeBatch();
+            while (!batch.isEmpty()) {
+                write(batch);
+                batch = takeBatch();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next batch of queued entities to be written. The entities
+     * stay queued, so that they are seen by the readers, until they have
+     * been written.
+     */
+    private List<Write> takeBatch() {
+        List<Write> batch = new ArrayList<Write>();
+        synchronized (pending) {
+            Iterator<Map.Entry<Key, Entry>> entries = pending.entrySet()
+                    .iterator();
+            while (entries.hasNext() && batch.size() < batchSize) {
+                Map.Entry<Key, Entry> entry = entries.next();
+                batch.add(new Write(entry.getKey(), entry.getValue()));
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Writes a batch of entities. If the batch conflicts with updates
+     * written in the meantime, the entities are written one by one and the
+     * conflicting ones are dropped.
+     */
+    private void write(List<Write> batch) {
+        List<AbstractPojo> pojos = new ArrayList<AbstractPojo>(batch.size());
+        for (Write write : batch) {
+            pojos.add(write.pojo);
+        }
+
+        try {
+            facade.storeAll(pojos, false);
+        } catch (RuntimeException e) {
+            if (!UpdateRetry.isConflict(e)) {
+                throw e;
+            }
+
+            for (Write write : batch) {
+                try {
+                    facade.store(write.pojo);
+                } catch (RuntimeException conflict) {
+                    if (!UpdateRetry.isConflict(conflict)) {
+                        throw conflict;
+                    }
+                    drop(write, conflict);
+                    continue;
+                }
+                written(write);
+            }
+            return;
+        }
+
+        for (Write write : batch) {
+            written(write);
+        }
+    }
+
+    /**
+     * Marks a queued entity as written, unless it was updated during the
+     * write, in which case it stays queued on top of the written state.
+     */
+    private void written(Write write) {
+        synchronized (pending) {
+            if (pending.get(write.key) != write.entry) {
+                return;
+            }
+
+            write.entry.storedVersion = write.pojo.getConsistencyVersion();
+            if (write.version.equals(write.entry.state.getConsistencyVersion())) {
+                pending.remove(write.key);
+                flushed.put(write.key, write.entry);
+            }
+        }
+    }
+
+    private void drop(Write write, RuntimeException conflict) {
+        synchronized (pending) {
+            if (pending.get(write.key) == write.entry) {
+                pending.remove(write.key);
+            }
+        }
+        logger.log(Level.WARNING, "Dropped the write-behind update of "
+                + write.key.c.getName() + " " + write.key.id
+                + ", since it conflicts with an update written in the meantime",
+                conflict);
+    }
+
+    /**
+     * Queues an entity, or flushes the queue first if it is full. If the
+     * entity has neither a queued nor a flushed state with the caller's
+     * version, the version is checked against the wrapped facade, since the
+     * flushed state holding the version given to the caller may have been
+     * forgotten.
+     */
+    private void enqueue(AbstractPojo pojo) {
+        Key key = new Key(pojo);
+        AbstractPojo state = copy(pojo);
+        Long version = pojo.getConsistencyVersion();
+        boolean checked = false;
+        boolean batchFull;
+        while (true) {
+            boolean check = false;
+            synchronized (pending) {
+                Entry entry = pending.get(key);
+                if (entry == null) {
+                    Entry flushedEntry = flushed.get(key);
+                    if (flushedEntry == null
+                            || !equal(version, flushedEntry.state
+                                    .getConsistencyVersion())) {
+                        check = !checked;
+                    }
+                }
+                if (!check && (entry != null || pending.size() < capacity)) {
+                    if (entry == null) {
+                        entry = flushed.remove(key);
+                        if (entry == null
+                                || !equal(version, entry.state
+                                        .getConsistencyVersion())) {
+                            // The caller's version was found in the database
+                            entry = new Entry();
+                            entry.storedVersion = version;
+                        }
+                        pending.put(key, entry);
+                    } else if (!equal(version, entry.state
+                            .getConsistencyVersion())) {
+                        throw new OptimisticLockException(pojo);
+                    }
+
+                    Long next = version == null ? 1L : version + 1;
+                    state.setConsistencyVersion(next);
+                    entry.state = state;
+                    pojo.setConsistencyVersion(next);
+                    batchFull = pending.size() >= batchSize;
+                    break;
+                }
+            }
+
+            if (check) {
+                // Read outside the lock, and check the queue again
+                // afterwards, since the entity may be queued meanwhile
+                AbstractPojo stored = facade.find(pojo.getClass(), pojo
+                        .getId());
+                if (stored == null
+                        || !equal(version, stored.getConsistencyVersion())) {
+                    throw new OptimisticLockException(pojo);
+                }
+                checked = true;
+            } else {
+                // The queue is full, so the writer has to wait for a flush
+                flush();
+            }
+        }
+
+        if (pojo.isTrackingChanges()) {
+            pojo.trackChanges();
+        }
+        if (batchFull && flushRequested.compareAndSet(false, true)) {
+            try {
+                timer.execute(flushTask);
+            } catch (RuntimeException e) {
+                // The timer has been shut down
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Forgets the queued and flushed state of a deleted entity. Must be
+     * called while holding flushLock, so that the entity isn't being written
+     * while it is deleted.
+     */
+    private void forget(AbstractPojo pojo) {
+        if (pojo.getId() == null || !isWriteBehind(pojo.getClass())) {
+            return;
+        }
+
+        Key key = new Key(pojo);
+        synchronized (pending) {
+            pending.remove(key);
+            flushed.remove(key);
+        }
+    }
+
+    /**
+     * Forgets the versions of the written entities of the given class and its
+     * subclasses after a bulk statement, which may have changed their
+     * versions in the database.
+     */
+    private void forgetFlushed(Class<? extends AbstractPojo> c) {
+        synchronized (pending) {
+            Iterator<Key> keys = flushed.keySet().iterator();
+            while (keys.hasNext()) {
+                if (c.isAssignableFrom(keys.next().c)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the entity with its queued updates, or the entity itself if it
+     * has no queued updates.
+     */
+    private <A extends AbstractPojo> A overlay(A pojo) {
+        if (pojo == null || pojo.getId() == null
+                || !isWriteBehind(pojo.getClass())) {
+            return pojo;
+        }
+
+        Key key = new Key(pojo);
+        synchronized (pending) {
+            Entry entry = pending.get(key);
+            if (entry == null) {
+                entry = flushed.get(key);
+                if (entry != null
+                        && !equal(pojo.getConsistencyVersion(),
+                                entry.storedVersion)) {
+                    // Someone else has updated the entity since
+                    flushed.remove(key);
+                    entry = null;
+                }
+            }
+            return entry != null ? WriteBehindFacade.<A> copy(entry.state)
+                    : pojo;
+        }
+    }
+
+    private <A extends AbstractPojo> List<A> overlay(List<A> pojos) {
+        if (pojos == null || writeBehindClasses.isEmpty()) {
+            return pojos;
+        }
+
+        List<A> result = new ArrayList<A>(pojos.size());
+        for (A pojo : pojos) {
+            result.add(overlay(pojo));
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <A extends AbstractPojo> A copy(AbstractPojo pojo) {
+        return (A) EntityAccessor.forClass(pojo.getClass()).newCopy(pojo);
+    }
+
+    private static boolean equal(Long version1, Long version2) {
+        return version1 == null ? version2 == null : version1.equals(version2);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(String name) {
+        facade.init(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
+        return overlay(facade.find(clazz, id));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> Map<Long, A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        Map<Long, A> found = facade.findAll(clazz, ids);
+        if (found != null && !writeBehindClasses.isEmpty()) {
+            for (Map.Entry<Long, A> entry : found.entrySet()) {
+                entry.setValue(overlay(entry.getValue()));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz) {
+        return overlay(facade.list(clazz));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(Class<A> clazz,
+            int startIndex, int amount) {
+        return overlay(facade.list(clazz, startIndex, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters) {
+        return overlay(facade.<A> list(queryStr, parameters));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        return overlay(facade.<A> list(queryStr, parameters, startIndex,
+                amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String continuationToken, int amount) {
+        return overlay(facade.page(clazz, continuationToken, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String keyField, String continuationToken, int amount) {
+        return overlay(facade.page(clazz, keyField, continuationToken, amount));
+    }
+
+    private <A extends AbstractPojo> KeysetPage<A> overlay(KeysetPage<A> page) {
+        if (page == null || writeBehindClasses.isEmpty()) {
+            return page;
+        }
+        return new KeysetPage<A>(overlay(page.getItems()), page
+                .getContinuationToken());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(Class<A> clazz,
+            int fetchSize) {
+        return new OverlayCursor<A>(facade.cursor(clazz, fetchSize));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(String queryStr,
+            Map<String, Object> parameters, int fetchSize) {
+        return new OverlayCursor<A>(facade.<A> cursor(queryStr, parameters,
+                fetchSize));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A findReadOnly(Class<A> clazz, Long id) {
+        return overlay(facade.findReadOnly(clazz, id));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz) {
+        return overlay(facade.listReadOnly(clazz));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz,
+            int startIndex, int amount) {
+        return overlay(facade.listReadOnly(clazz, startIndex, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters) {
+        return overlay(facade.<A> listReadOnly(queryStr, parameters));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        return overlay(facade.<A> listReadOnly(queryStr, parameters,
+                startIndex, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A find(String queryStr,
+            Map<String, Object> parameters) {
+        return overlay(facade.<A> find(queryStr, parameters));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        if (pojo.getId() != null && isWriteBehind(pojo.getClass())) {
+            enqueue(pojo);
+        } else {
+            facade.store(pojo);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos) {
+        storeAll(pojos, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos,
+            boolean refresh) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+
+        // The write-behind entities are queued and the rest are written in a
+        // single transaction
+        List<A> direct = new ArrayList<A>(pojos.size());
+        for (A pojo : pojos) {
+            if (pojo.getId() != null && isWriteBehind(pojo.getClass())) {
+                enqueue(pojo);
+            } else {
+                direct.add(pojo);
+            }
+        }
+        if (!direct.isEmpty()) {
+            facade.storeAll(direct, refresh);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> A update(Class<A> c, Long id,
+            EntityMutation<A> mutation) {
+        if (!isWriteBehind(c)) {
+            return facade.update(c, id, mutation);
+        }
+        // The queued state is read and checked against, so the update only
+        // conflicts with other updates made through this facade
+        return updateRetry.update(this, null, c, id, mutation, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete(AbstractPojo pojo) {
+        if (pojo == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+        flushLock.lock();
+        try {
+            forget(pojo);
+            facade.delete(pojo);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
+        if (pojos == null) {
+            throw new IllegalArgumentException("Null values are not accepted");
+        }
+        flushLock.lock();
+        try {
+            for (A pojo : pojos) {
+                forget(pojo);
+            }
+            facade.deleteAll(pojos);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the queued entities and then executes the statement with the
+     * wrapped facade, so that the statement sees and overrides the queued
+     * updates.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param whereClause
+     *            The statement's WHERE clause, referring to the entity as p
+     * @param parameters
+     *            A map of parameters and parameter values used in the
+     *            statement
+     * @return The number of removed entities
+     */
+    public int deleteWhere(Class<? extends AbstractPojo> c,
+            String whereClause, Map<String, Object> parameters) {
+        flushLock.lock();
+        try {
+            flush();
+            int rows = facade.deleteWhere(c, whereClause, parameters);
+            forgetFlushed(c);
+            return rows;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the queued entities and then executes the statement with the
+     * wrapped facade, so that the statement sees and overrides the queued
+     * updates.
+     * 
+     * @param c
+     *            Class object of the entity
+     * @param assignments
+     *            The statement's SET clause, e.g. "p.foo = :foo"
+     * @param whereClause
+     *            The statement's WHERE clause, referring to the entity as p
+     * @param parameters
+     *            A map of parameters and parameter values used in the
+     *            statement
+     * @return The number of updated entities
+     */
+    public int updateWhere(Class<? extends AbstractPojo> c,
+            String assignments, String whereClause,
+            Map<String, Object> parameters) {
+        flushLock.lock();
+        try {
+            flush();
+            int rows = facade.updateWhere(c, assignments, whereClause,
+                    parameters);
+            forgetFlushed(c);
+            return rows;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> void refresh(A pojo) {
+        facade.refresh(pojo);
+        A queued = overlay(pojo);
+        if (queued != pojo) {
+            EntityAccessor.forClass(pojo.getClass()).copy(queued, pojo);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> T inTransaction(UnitOfWork<T> work) {
+        return facade.inTransaction(work);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() {
+        facade.close();
+    }
+
+    /**
+     * Flushes the queued entities and kills the wrapped facade. If the
+     * entities can't be written, they are lost and the failure is logged.
+     */
+    public void kill() {
+        timer.shutdown();
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Lost " + getPendingCount()
+                    + " write-behind updates, since they could not be "
+                    + "written", e);
+        }
+        facade.kill();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setThreadQueryTimeout(Long timeout) {
+        if (facade instanceof StatementControl) {
+            ((StatementControl) facade).setThreadQueryTimeout(timeout);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void cancelStatements(Thread thread) {
+        if (facade instanceof StatementControl) {
+            ((StatementControl) facade).cancelStatements(thread);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c) {
+        return facade.count(c);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(Class<? extends AbstractPojo> c, String whereClause,
+            Map<String, Object> parameters) {
+        return facade.count(c, whereClause, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<?> getFieldValues(Class<? extends AbstractPojo> c,
+            String field, String whereConditions,
+            Map<String, Object> parameters) {
+        return facade.getFieldValues(c, field, whereConditions, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return facade.getFieldValues(c, fields, whereConditions, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> List<T> getFieldValues(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return facade.getFieldValues(c, resultClass, fields, whereConditions,
+                parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getIds(Class<? extends AbstractPojo> c,
+            String whereConditions, Map<String, Object> parameters) {
+        return facade.getIds(c, whereConditions, parameters);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> List<A> list(EntityQuery<A> query) {
+        return overlay(facade.list(query));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Long count(EntityQuery<? extends AbstractPojo> query) {
+        return facade.count(query);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> KeysetPage<A> page(EntityQuery<A> query,
+            String continuationToken, int amount) {
+        return overlay(facade.page(query, continuationToken, amount));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            EntityQuery<A> query, int fetchSize) {
+        return new OverlayCursor<A>(facade.cursor(query, fetchSize));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Object[]> getFieldValues(
+            EntityQuery<? extends AbstractPojo> query) {
+        return facade.getFieldValues(query);
+    }
+
+}
@@ -21,8 +21,18 @@ import org.vaadin.appfoundation.test.i18n.TmxSourceReaderTest;
 import org.vaadin.appfoundation.test.i18n.TranslationMessageTest;
 import org.vaadin.appfoundation.test.i18n.TranslationUtilTest;
 import org.vaadin.appfoundation.test.persistence.AbstractPojoTest;
+import org.vaadin.appfoundation.test.persistence.AsyncFacadeTest;
+import org.vaadin.appfoundation.test.persistence.EntityAccessorTest;
 import org.vaadin.appfoundation.test.persistence.FacadeFactoryTest;
+import org.vaadin.appfoundation.test.persistence.IdAllocationTest;
+import org.vaadin.appfoundation.test.persistence.InMemoryFacadeTest;
+import org.vaadin.appfoundation.test.persistence.InstrumentedFacadeTest;
 import org.vaadin.appfoundation.test.persistence.JPAFacadeTest;
+import org.vaadin.appfoundation.test.persistence.LRUEntityCacheTest;
+import org.vaadin.appfoundation.test.persistence.PoolMetricsTest;
+import org.vaadin.appfoundation.test.persistence.ReadWriteFacadeTest;
+import org.vaadin.appfoundation.test.persistence.ShardedFacadeTest;
+import org.vaadin.appfoundation.test.persistence.WriteBehindFacadeTest;
 import org.vaadin.appfoundation.test.view.AbstractViewTest;
 import org.vaadin.appfoundation.test.view.DefaultViewFactoryTest;
 import org.vaadin.appfoundation.test.view.SimpleViewContainerTest;
@@ -40,7 +50,12 @@ import org.vaadin.appfoundation.test.view.ViewItemTest;
         MemoryPermissionManagerTest.class, JPAPermissionManagerTest.class,
         PermissionEntityTest.class, PermissionsTest.class,
         SimpleViewContainerTest.class, I18nFormTest.class,
-        TranslationMessageTest.class, TmxSourceReaderTest.class })
+        TranslationMessageTest.class, TmxSourceReaderTest.class,
+        EntityAccessorTest.class, LRUEntityCacheTest.class,
+        AsyncFacadeTest.class, PoolMetricsTest.class,
+        ReadWriteFacadeTest.class, ShardedFacadeTest.class,
+        IdAllocationTest.class, InstrumentedFacadeTest.class,
+        InMemoryFacadeTest.class, WriteBehindFacadeTest.class })
 public class TestSuite {
 
 }
@@ -1,6 +1,10 @@
 package org.vaadin.appfoundation.test.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -25,4 +29,31 @@ public class AbstractPojoTest {
         pojo.setConsistencyVersion(2L);
         assertEquals(Long.valueOf(2L), pojo.getConsistencyVersion());
     }
+
+    @Test
+    public void changedFields() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        assertFalse(pojo.isTrackingChanges());
+        pojo.trackChanges();
+        assertTrue(pojo.isTrackingChanges());
+        assertTrue(pojo.getChangedFields().isEmpty());
+
+        pojo.setFoo(new String("foo"));
+        assertTrue(pojo.getChangedFields().isEmpty());
+        pojo.setFoo("bar");
+        pojo.setConsistencyVersion(3L);
+        assertEquals(Arrays.asList("foo", "consistencyVersion"), pojo
+                .getChangedFields());
+
+        pojo.trackChanges();
+        assertTrue(pojo.getChangedFields().isEmpty());
+        pojo.stopTrackingChanges();
+        assertFalse(pojo.isTrackingChanges());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void changedFieldsNotTracked() {
+        new MockPojo().getChangedFields();
+    }
 }
@@ -0,0 +1,232 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.AsyncFacade;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.InMemoryFacade;
+import org.vaadin.appfoundation.persistence.facade.InstrumentedFacade;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.ReadWriteFacade;
+import org.vaadin.appfoundation.persistence.facade.UnitOfWork;
+import org.vaadin.appfoundation.persistence.facade.WriteBehindFacade;
+
+public class AsyncFacadeTest {
+
+    private JPAFacade facade = null;
+
+    private AsyncFacade async = null;
+
+    @Before
+    public void setUp() {
+        facade = new JPAFacade("default");
+        async = new AsyncFacade(facade, 2, 10);
+    }
+
+    @After
+    public void tearDown() {
+        async.shutdown();
+        facade.kill();
+        facade = null;
+    }
+
+    @Test
+    public void storeAndFind() throws InterruptedException,
+            ExecutionException {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        async.storeAsync(pojo).get();
+        assertNotNull(pojo.getId());
+
+        assertEquals("foo", async.findAsync(MockPojo.class, pojo.getId())
+                .get().getFoo());
+        assertEquals(Long.valueOf(1L), async.countAsync(MockPojo.class).get());
+        assertEquals(1, async.listAsync(MockPojo.class).get().size());
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        assertEquals(1, async.<MockPojo> listAsync(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters)
+                .get().size());
+        assertEquals(Long.valueOf(1L), async.countAsync(MockPojo.class,
+                "p.foo = :foo", parameters).get());
+
+        async.deleteAsync(pojo).get();
+        assertEquals(Long.valueOf(0L), async.countAsync(MockPojo.class).get());
+    }
+
+    @Test
+    public void storeAllAndDeleteAll() throws InterruptedException,
+            ExecutionException {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 5; i++) {
+            pojos.add(new MockPojo());
+        }
+        async.storeAllAsync(pojos).get();
+        assertEquals(Long.valueOf(5L), async.countAsync(MockPojo.class).get());
+
+        async.deleteAllAsync(pojos).get();
+        assertEquals(Long.valueOf(0L), async.countAsync(MockPojo.class).get());
+    }
+
+    @Test
+    public void submit() throws InterruptedException, ExecutionException {
+        Future<Long> future = async.submit(new UnitOfWork<Long>() {
+            public Long execute(IFacade facade) {
+                facade.store(new MockPojo());
+                facade.store(new MockPojo());
+                return facade.count(MockPojo.class);
+            }
+        });
+        assertEquals(Long.valueOf(2L), future.get());
+    }
+
+    @Test
+    public void failure() throws InterruptedException {
+        Future<Void> future = async.submit(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                facade.store(new MockPojo());
+                throw new IllegalStateException();
+            }
+        });
+
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void timeout() throws InterruptedException, ExecutionException {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Future<Void> future = async.submit(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return null;
+            }
+        }, 50L);
+
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException e) {
+            // Expected
+        }
+        assertTrue(future.isCancelled());
+        interrupted.await();
+    }
+
+    @Test
+    public void timeoutIsPassedThroughDecorators()
+            throws InterruptedException, ExecutionException {
+        final MockStatementControl control = new MockStatementControl();
+        ReadWriteFacade readWrite = new ReadWriteFacade(new InMemoryFacade(),
+                Arrays.asList(control));
+        WriteBehindFacade writeBehind = new WriteBehindFacade(readWrite, 10,
+                5, 60000);
+        AsyncFacade decorated = new AsyncFacade(new InstrumentedFacade(
+                writeBehind), 1, 10);
+        UnitOfWork<Long> timeout = new UnitOfWork<Long>() {
+            public Long execute(IFacade facade) {
+                return control.getThreadQueryTimeout();
+            }
+        };
+
+        try {
+            Long left = decorated.submit(timeout, 10000L).get();
+            assertNotNull(left);
+            assertTrue(left > 0 && left <= 10000L);
+            // The timeout is removed once the operation has finished
+            assertNull(decorated.submit(timeout).get());
+        } finally {
+            decorated.shutdown();
+            writeBehind.kill();
+        }
+    }
+
+    @Test
+    public void cancelCancelsStatements() throws InterruptedException {
+        MockStatementControl control = new MockStatementControl();
+        AsyncFacade controlled = new AsyncFacade(control, 1, 10);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Thread> worker = new AtomicReference<Thread>();
+        Future<Void> future = controlled.submit(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                worker.set(Thread.currentThread());
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    // Cancelled
+                }
+                return null;
+            }
+        });
+
+        try {
+            started.await();
+            assertTrue(future.cancel(true));
+            assertEquals(Arrays.asList(worker.get()), control.getCancelled());
+        } finally {
+            controlled.shutdown();
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void queueFull() {
+        AsyncFacade small = new AsyncFacade(facade, 1, 1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        UnitOfWork<Void> blocking = new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    // Ignored
+                }
+                return null;
+            }
+        };
+
+        try {
+            // One running, one queued and one rejected
+            small.submit(blocking);
+            small.submit(blocking);
+            small.submit(blocking);
+        } finally {
+            latch.countDown();
+            small.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeTimeout() {
+        async.setTimeout(-1L);
+    }
+
+}
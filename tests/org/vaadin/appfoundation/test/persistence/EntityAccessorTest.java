@@ -0,0 +1,109 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.EntityAccessor;
+
+public class EntityAccessorTest {
+
+    @Test
+    public void forClass() {
+        assertSame(EntityAccessor.forClass(MockPojo.class), EntityAccessor
+                .forClass(MockPojo.class));
+    }
+
+    @Test
+    public void fieldNames() {
+        EntityAccessor accessor = EntityAccessor.forClass(MockPojo.class);
+        assertEquals(3, accessor.getFieldNames().size());
+        assertTrue(accessor.getFieldNames().contains("foo"));
+        assertTrue(accessor.getFieldNames().contains("id"));
+        assertTrue(accessor.getFieldNames().contains("consistencyVersion"));
+    }
+
+    @Test
+    public void copy() {
+        MockPojo pojo1 = new MockPojo();
+        pojo1.setId(1L);
+        pojo1.setConsistencyVersion(2L);
+        pojo1.setFoo("foo");
+
+        MockPojo pojo2 = new MockPojo();
+        EntityAccessor.forClass(MockPojo.class).copy(pojo1, pojo2);
+
+        assertEquals(Long.valueOf(1L), pojo2.getId());
+        assertEquals(Long.valueOf(2L), pojo2.getConsistencyVersion());
+        assertEquals("foo", pojo2.getFoo());
+    }
+
+    @Test
+    public void newCopy() {
+        MockPojo pojo = new MockPojo();
+        pojo.setId(1L);
+        pojo.setFoo("foo");
+
+        MockPojo copy = EntityAccessor.forClass(MockPojo.class).newCopy(pojo);
+        assertNotSame(pojo, copy);
+        assertEquals(Long.valueOf(1L), copy.getId());
+        assertEquals("foo", copy.getFoo());
+    }
+
+    public static class ValueHolder {
+
+        private Date date = new Date(1000L);
+
+        private byte[] bytes = new byte[] { 1, 2 };
+
+        private List<String> strings = new ArrayList<String>();
+
+    }
+
+    @Test
+    public void newValueCopy() {
+        ValueHolder holder = new ValueHolder();
+        ValueHolder copy = EntityAccessor.forClass(ValueHolder.class)
+                .newValueCopy(holder);
+
+        holder.date.setTime(2000L);
+        holder.bytes[0] = 3;
+        assertEquals(1000L, copy.date.getTime());
+        assertArrayEquals(new byte[] { 1, 2 }, copy.bytes);
+        // Collections are shared
+        assertSame(holder.strings, copy.strings);
+    }
+
+    @Test
+    public void getValue() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+
+        assertEquals("foo", EntityAccessor.forClass(MockPojo.class).getValue(
+                pojo, "foo"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getValueOfUnknownField() {
+        EntityAccessor.forClass(MockPojo.class).getValue(new MockPojo(),
+                "bar");
+    }
+
+    @Test
+    public void getValues() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        EntityAccessor accessor = EntityAccessor.forClass(MockPojo.class);
+
+        Object[] values = accessor.getValues(pojo);
+        assertEquals("foo", values[accessor.getFieldNames().indexOf("foo")]);
+    }
+
+}
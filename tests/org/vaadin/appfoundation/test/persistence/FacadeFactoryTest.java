@@ -5,9 +5,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.After;
 import org.junit.Test;
 import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
 import org.vaadin.appfoundation.persistence.facade.JPAFacade;
 
 public class FacadeFactoryTest {
@@ -119,4 +124,60 @@ public class FacadeFactoryTest {
         FacadeFactory.setDefaultFacade("test");
     }
 
+    @Test
+    public void registerLazyFacade() throws InterruptedException,
+            ExecutionException {
+        FacadeFactory.registerLazyFacade("default", true, null);
+        IFacade facade = FacadeFactory.getFacade();
+        assertTrue(facade instanceof JPAFacade);
+
+        FacadeFactory.warmUpInBackground().get();
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        assertNotNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void concurrentRegistration() throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger registered = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        FacadeFactory.registerFacade("test", new MockFacade(),
+                                true);
+                        registered.incrementAndGet();
+                    } catch (IllegalArgumentException e) {
+                        rejected.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        // Ignored
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, registered.get());
+        assertEquals(threads.length - 1, rejected.get());
+        assertEquals(FacadeFactory.getFacade("test"), FacadeFactory
+                .getFacade());
+    }
+
+    @Test
+    public void removeDefaultFacade() {
+        FacadeFactory.registerFacade("test", new MockFacade(), true);
+        FacadeFactory.removeFacade("test");
+        assertNull(FacadeFactory.getFacade());
+        FacadeFactory.removeFacade("test");
+    }
+
 }
@@ -0,0 +1,107 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sequencing.Sequence;
+import org.junit.After;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.TimeOrderedIdGenerator;
+
+public class IdAllocationTest {
+
+    private SequenceFacade facade = null;
+
+    /**
+     * Gives access to the sequence of the MockPojo entities.
+     */
+    private static class SequenceFacade extends JPAFacade {
+
+        private static final long serialVersionUID = -7436019182536712794L;
+
+        public SequenceFacade(String name) {
+            super(name);
+        }
+
+        public Sequence getSequence() {
+            return JpaHelper.getServerSession(getEntityManagerFactory())
+                    .getDescriptor(MockPojo.class).getSequence();
+        }
+
+    }
+
+    @After
+    public void tearDown() {
+        if (facade != null) {
+            facade.kill();
+            facade = null;
+        }
+    }
+
+    private List<MockPojo> storePojos(int amount) {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < amount; i++) {
+            pojos.add(new MockPojo());
+        }
+        facade.storeAll(pojos);
+        return pojos;
+    }
+
+    @Test
+    public void pooled() {
+        facade = new SequenceFacade("pooled-ids");
+        assertEquals(200, facade.getSequence().getPreallocationSize());
+
+        List<MockPojo> pojos = storePojos(300);
+        for (int i = 1; i < pojos.size(); i++) {
+            assertNotNull(pojos.get(i).getId());
+            assertTrue(pojos.get(i).getId() > pojos.get(i - 1).getId());
+        }
+        assertEquals(Long.valueOf(300L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void timeOrdered() {
+        facade = new SequenceFacade("time-ids");
+        long before = System.currentTimeMillis();
+        List<MockPojo> pojos = storePojos(100);
+        for (int i = 0; i < pojos.size(); i++) {
+            long id = pojos.get(i).getId();
+            assertEquals(7, TimeOrderedIdGenerator.getNodeId(id));
+            assertTrue(TimeOrderedIdGenerator.getTime(id) >= before);
+            if (i > 0) {
+                assertTrue(id > pojos.get(i - 1).getId());
+            }
+        }
+        assertEquals(Long.valueOf(100L), facade.count(MockPojo.class));
+
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        assertNotNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void assignedIdKept() {
+        facade = new SequenceFacade("time-ids");
+        MockPojo pojo = new MockPojo();
+        pojo.setId(12345L);
+        facade.store(pojo);
+        assertEquals(Long.valueOf(12345L), pojo.getId());
+        assertNotNull(facade.find(MockPojo.class, 12345L));
+    }
+
+    @Test
+    public void defaultAllocation() {
+        // Units without the property keep the allocation of the mappings
+        facade = new SequenceFacade("default");
+        // EclipseLink allocates 50 ids at a time by default
+        assertEquals(50, facade.getSequence().getPreallocationSize());
+    }
+
+}
@@ -0,0 +1,546 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.OptimisticLockException;
+import javax.persistence.RollbackException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.EntityMutation;
+import org.vaadin.appfoundation.persistence.facade.EntityQuery;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.InMemoryFacade;
+import org.vaadin.appfoundation.persistence.facade.KeysetPage;
+import org.vaadin.appfoundation.persistence.facade.ResultCursor;
+import org.vaadin.appfoundation.persistence.facade.UnitOfWork;
+
+public class InMemoryFacadeTest {
+
+    private InMemoryFacade facade = null;
+
+    @Before
+    public void setUp() {
+        facade = new InMemoryFacade();
+        facade.init("memory");
+    }
+
+    @After
+    public void tearDown() {
+        facade.kill();
+        facade = null;
+    }
+
+    private List<MockPojo> storePojos(String... foos) {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (String foo : foos) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(foo);
+            pojos.add(pojo);
+        }
+        facade.storeAll(pojos);
+        return pojos;
+    }
+
+    private List<String> foos(List<MockPojo> pojos) {
+        List<String> foos = new ArrayList<String>();
+        for (MockPojo pojo : pojos) {
+            foos.add(pojo.getFoo());
+        }
+        return foos;
+    }
+
+    @Test
+    public void store() {
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        assertNotNull(pojo.getId());
+        assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+
+        pojo.setFoo("foobar");
+        facade.store(pojo);
+        assertEquals(Long.valueOf(2L), pojo.getConsistencyVersion());
+
+        MockPojo found = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("foobar", found.getFoo());
+        assertEquals(Long.valueOf(2L), found.getConsistencyVersion());
+    }
+
+    @Test
+    public void storedEntitiesAreCopied() {
+        MockPojo pojo = storePojos("foo").get(0);
+
+        // Changes are not seen before the entity is stored
+        pojo.setFoo("bar");
+        MockPojo found = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("foo", found.getFoo());
+        assertNotSame(found, facade.find(MockPojo.class, pojo.getId()));
+
+        found.setFoo("baz");
+        assertEquals("foo", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void readOnlyEntitiesAreShared() {
+        MockPojo pojo = storePojos("foo").get(0);
+        assertSame(facade.findReadOnly(MockPojo.class, pojo.getId()), facade
+                .findReadOnly(MockPojo.class, pojo.getId()));
+        assertEquals("foo", facade.listReadOnly(MockPojo.class).get(0)
+                .getFoo());
+    }
+
+    @Test(expected = OptimisticLockException.class)
+    public void staleEntity() {
+        MockPojo pojo = storePojos("foo").get(0);
+        MockPojo stale = facade.find(MockPojo.class, pojo.getId());
+
+        pojo.setFoo("bar");
+        facade.store(pojo);
+
+        stale.setFoo("baz");
+        facade.store(stale);
+    }
+
+    @Test
+    public void staleEntityIsNotStored() {
+        MockPojo pojo = storePojos("foo").get(0);
+        MockPojo stale = facade.find(MockPojo.class, pojo.getId());
+        facade.store(pojo);
+
+        stale.setFoo("baz");
+        try {
+            facade.store(stale);
+            fail();
+        } catch (OptimisticLockException e) {
+            // Expected
+        }
+        assertEquals("foo", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void delete() {
+        List<MockPojo> pojos = storePojos("a", "b", "c");
+        facade.delete(pojos.get(1));
+        assertNull(facade.find(MockPojo.class, pojos.get(1).getId()));
+        assertEquals(Long.valueOf(2L), facade.count(MockPojo.class));
+
+        facade.deleteAll(pojos);
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void refresh() {
+        MockPojo pojo = storePojos("foo").get(0);
+        pojo.setFoo("bar");
+        facade.refresh(pojo);
+        assertEquals("foo", pojo.getFoo());
+    }
+
+    @Test
+    public void findAll() {
+        List<MockPojo> pojos = storePojos("a", "b", "c");
+        Map<Long, MockPojo> found = facade.findAll(MockPojo.class, Arrays
+                .asList(pojos.get(2).getId(), -1L, pojos.get(0).getId()));
+        assertEquals(Arrays.asList(pojos.get(2).getId(), pojos.get(0).getId()),
+                new ArrayList<Long>(found.keySet()));
+    }
+
+    @Test
+    public void listWithQuery() {
+        storePojos("a", "b", "c", "b");
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "b");
+        List<MockPojo> pojos = facade.list(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters);
+        assertEquals(Arrays.asList("b", "b"), foos(pojos));
+
+        // The index of the field has to be kept up to date
+        pojos.get(0).setFoo("d");
+        facade.store(pojos.get(0));
+        assertEquals(1, facade.list(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters)
+                .size());
+        parameters.put("foo", "d");
+        assertEquals(1, facade.list(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters)
+                .size());
+
+        facade.delete(pojos.get(0));
+        assertEquals(0, facade.list(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters)
+                .size());
+    }
+
+    @Test
+    public void listWithConditions() {
+        List<MockPojo> stored = storePojos("a", "b", "c", "d", null);
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("a", "a");
+        parameters.put("c", "c");
+        parameters.put("id", stored.get(3).getId());
+
+        // The same shape of conditions as the queries of JPAPermissionManager
+        List<MockPojo> pojos = facade.list("SELECT p FROM MockPojo p WHERE "
+                + "(p.foo = :a OR p.foo = :c) OR (p.id = :id AND "
+                + "p.foo IS NOT NULL) ORDER BY p.foo DESC", parameters);
+        assertEquals(Arrays.asList("d", "c", "a"), foos(pojos));
+
+        // Comparisons with null are never true, not even when negated
+        pojos = facade.list("SELECT p FROM MockPojo p WHERE NOT (p.foo = :a)",
+                parameters);
+        assertEquals(Arrays.asList("b", "c", "d"), foos(pojos));
+
+        pojos = facade.list("SELECT p FROM MockPojo p WHERE p.foo IS NULL",
+                null);
+        assertEquals(1, pojos.size());
+
+        pojos = facade.list("SELECT p FROM MockPojo p WHERE p.foo LIKE 'b%' "
+                + "OR p.foo IN ('c', 'd') OR p.foo >= 'e'", null);
+        assertEquals(Arrays.asList("b", "c", "d"), foos(pojos));
+
+        parameters.clear();
+        parameters.put("ids", Arrays.asList(stored.get(0).getId(), stored.get(
+                4).getId()));
+        pojos = facade.list("select p from MockPojo as p where p.id in :ids "
+                + "order by p.foo", parameters);
+        assertEquals(Arrays.asList(null, "a"), foos(pojos));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void listWithUnsupportedQuery() {
+        storePojos("a");
+        facade.list("SELECT DISTINCT p FROM MockPojo p", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void listWithMissingParameter() {
+        storePojos("a");
+        facade.list("SELECT p FROM MockPojo p WHERE p.foo = :foo",
+                new HashMap<String, Object>());
+    }
+
+    @Test
+    public void listUnknownEntity() {
+        assertTrue(facade.list("SELECT p FROM MockPojo p", null).isEmpty());
+    }
+
+    @Test
+    public void listWithLimits() {
+        storePojos("a", "b", "c", "d");
+        assertEquals(Arrays.asList("b", "c"), foos(facade.list(MockPojo.class,
+                1, 2)));
+        assertEquals(Arrays.asList("d"), foos(facade.<MockPojo> list(
+                "SELECT p FROM MockPojo p", null, 3, 10)));
+    }
+
+    @Test
+    public void find() {
+        storePojos("a", "b", "b");
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "a");
+        MockPojo pojo = facade.find(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters);
+        assertEquals("a", pojo.getFoo());
+
+        parameters.put("foo", "c");
+        assertNull(facade.find("SELECT p FROM MockPojo p WHERE p.foo = :foo",
+                parameters));
+    }
+
+    @Test
+    public void count() {
+        storePojos("a", "b", "b");
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "b");
+        assertEquals(Long.valueOf(3L), facade.count(MockPojo.class));
+        assertEquals(Long.valueOf(2L), facade.count(MockPojo.class,
+                "p.foo = :foo", parameters));
+    }
+
+    @Test
+    public void getFieldValues() {
+        List<MockPojo> pojos = storePojos("a", "b", "c");
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "a");
+
+        assertEquals(Arrays.asList("b", "c"), facade.getFieldValues(
+                MockPojo.class, "foo", "p.foo <> :foo", parameters));
+
+        List<MockPojoSummary> summaries = facade.getFieldValues(
+                MockPojo.class, MockPojoSummary.class, new String[] { "id",
+                        "foo" }, null, null);
+        assertEquals(3, summaries.size());
+        assertEquals(pojos.get(1).getId(), summaries.get(1).getId());
+        assertEquals("b", summaries.get(1).getFoo());
+
+        assertArrayEquals(new long[] { pojos.get(1).getId(),
+                pojos.get(2).getId() }, facade.getIds(MockPojo.class,
+                "p.foo <> :foo", parameters));
+    }
+
+    @Test
+    public void entityQuery() {
+        storePojos("c", "a", "b", "a");
+        EntityQuery<MockPojo> query = EntityQuery.from(MockPojo.class).ne(
+                "foo", "b").orderByDesc("foo");
+        assertEquals(Arrays.asList("c", "a", "a"), foos(facade.list(query)));
+        assertEquals(Long.valueOf(3L), facade.count(query));
+
+        List<Object[]> rows = facade.getFieldValues(query.copy().select("foo")
+                .limit(0, 1));
+        assertEquals(1, rows.size());
+        assertEquals("c", rows.get(0)[0]);
+
+        assertEquals(Arrays.asList("a", "a"), foos(facade.list(query.copy()
+                .limit(1, 5))));
+    }
+
+    @Test
+    public void page() {
+        storePojos("d", "a", "c", "b", "a");
+        EntityQuery<MockPojo> query = EntityQuery.from(MockPojo.class)
+                .orderBy("foo");
+
+        List<String> foos = new ArrayList<String>();
+        String token = null;
+        do {
+            KeysetPage<MockPojo> page = facade.page(query, token, 2);
+            foos.addAll(foos(page.getItems()));
+            token = page.getContinuationToken();
+        } while (token != null);
+        assertEquals(Arrays.asList("a", "a", "b", "c", "d"), foos);
+
+        KeysetPage<MockPojo> page = facade.page(MockPojo.class, null, 5);
+        assertEquals(Arrays.asList("d", "a", "c", "b", "a"), foos(page
+                .getItems()));
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    public void cursor() {
+        storePojos("a", "b");
+        ResultCursor<MockPojo> cursor = facade.cursor(MockPojo.class, 1);
+        try {
+            assertEquals("a", cursor.next().getFoo());
+            assertEquals("b", cursor.next().getFoo());
+            assertFalse(cursor.hasNext());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void failedTransactionIsRolledBack() {
+        final MockPojo pojo = storePojos("a").get(0);
+        try {
+            facade.inTransaction(new UnitOfWork<Void>() {
+                public Void execute(IFacade facade) {
+                    pojo.setFoo("b");
+                    facade.store(pojo);
+                    facade.store(new MockPojo());
+                    throw new IllegalStateException();
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+        assertEquals("a", facade.find(MockPojo.class, pojo.getId()).getFoo());
+
+        // The index built before the rollback must still be correct
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "a");
+        assertEquals(1, facade.list(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters)
+                .size());
+    }
+
+    @Test
+    public void failedNestedTransactionRollsBackOuter() {
+        try {
+            facade.inTransaction(new UnitOfWork<Void>() {
+                public Void execute(IFacade facade) {
+                    facade.store(new MockPojo());
+                    try {
+                        facade.inTransaction(new UnitOfWork<Void>() {
+                            public Void execute(IFacade facade) {
+                                throw new IllegalStateException();
+                            }
+                        });
+                    } catch (IllegalStateException e) {
+                        // Ignored, but the outer unit is still rolled back
+                    }
+                    return null;
+                }
+            });
+            fail();
+        } catch (RollbackException e) {
+            // Expected
+        }
+
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void storeAllIsAtomic() {
+        MockPojo pojo = storePojos("a").get(0);
+        MockPojo stale = facade.find(MockPojo.class, pojo.getId());
+        facade.store(pojo);
+
+        MockPojo added = new MockPojo();
+        try {
+            facade.storeAll(Arrays.asList(added, stale));
+            fail();
+        } catch (OptimisticLockException e) {
+            // Expected
+        }
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void concurrentReadsAndWrites() throws InterruptedException {
+        final List<MockPojo> pojos = storePojos("a", "b", "c", "d");
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "a");
+        final List<Throwable> failures = new ArrayList<Throwable>();
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        MockPojo pojo = pojos.get(1 + i % 3);
+                        pojo.setFoo(i % 2 == 0 ? "a" : "x");
+                        facade.store(pojo);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        };
+        writer.start();
+        for (int i = 0; i < 500; i++) {
+            // The first entity is never changed, so it is always found
+            List<MockPojo> found = facade.list(
+                    "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters);
+            assertTrue(found.size() >= 1);
+            assertEquals(pojos.get(0).getId(), found.get(0).getId());
+        }
+        writer.join();
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void concurrentUpdates() throws InterruptedException {
+        final MockPojo pojo = storePojos("").get(0);
+        facade.getUpdateRetry().setMaxAttempts(100);
+        facade.getUpdateRetry().setBackoff(0, 1);
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 25; j++) {
+                        facade.update(MockPojo.class, pojo.getId(),
+                                new EntityMutation<MockPojo>() {
+                                    public void mutate(MockPojo entity) {
+                                        entity.setFoo(entity.getFoo() + "x");
+                                    }
+                                });
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // No increment was lost
+        assertEquals(100, facade.find(MockPojo.class, pojo.getId()).getFoo()
+                .length());
+        assertEquals(facade.getUpdateRetry().getConflicts(), facade
+                .getUpdateRetry().getRetries());
+    }
+
+    @Test
+    public void deleteWhere() {
+        storePojos("a", "b", "a");
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "a");
+        assertEquals(2, facade.deleteWhere(MockPojo.class, "p.foo = :foo",
+                parameters));
+        assertEquals(Arrays.asList("b"), foos(facade.list(MockPojo.class)));
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class,
+                "p.foo = :foo", parameters));
+    }
+
+    @Test
+    public void updateWhere() {
+        MockPojo pojo = storePojos("a", "b", "a").get(0);
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "a");
+        assertEquals(2, facade.updateWhere(MockPojo.class, "p.foo = 'c'",
+                "p.foo = :foo", parameters));
+        assertEquals(Arrays.asList("c", "b", "c"), foos(facade
+                .list(MockPojo.class)));
+        // The indexes follow the update
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class,
+                "p.foo = :foo", parameters));
+
+        pojo.setFoo("d");
+        try {
+            facade.store(pojo);
+            fail();
+        } catch (OptimisticLockException e) {
+            // The update incremented the version
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void updateWhereVersion() {
+        facade.updateWhere(MockPojo.class, "p.consistencyVersion = 1",
+                "p.foo = 'a'", null);
+    }
+
+    @Test
+    public void bulkStatementsAreRolledBack() {
+        storePojos("a", "b");
+        try {
+            facade.inTransaction(new UnitOfWork<Void>() {
+                public Void execute(IFacade facade) {
+                    facade.updateWhere(MockPojo.class, "p.foo = 'c'",
+                            "p.foo = 'a'", null);
+                    facade.deleteWhere(MockPojo.class, "p.foo = 'b'", null);
+                    throw new IllegalStateException();
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(Arrays.asList("a", "b"), foos(facade
+                .list(MockPojo.class)));
+    }
+
+}
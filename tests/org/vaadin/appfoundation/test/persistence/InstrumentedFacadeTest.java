@@ -0,0 +1,207 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.EntityMutation;
+import org.vaadin.appfoundation.persistence.facade.EntityQuery;
+import org.vaadin.appfoundation.persistence.facade.FacadeEvent;
+import org.vaadin.appfoundation.persistence.facade.FacadeListener;
+import org.vaadin.appfoundation.persistence.facade.FacadeMetrics;
+import org.vaadin.appfoundation.persistence.facade.FacadeOperation;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.InstrumentedFacade;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.SlowQueryLog;
+import org.vaadin.appfoundation.persistence.facade.UnitOfWork;
+
+public class InstrumentedFacadeTest {
+
+    private InstrumentedFacade facade = null;
+
+    private final List<FacadeEvent> events = new ArrayList<FacadeEvent>();
+
+    private final FacadeListener recorder = new FacadeListener() {
+        public void operationCompleted(FacadeEvent event) {
+            events.add(event);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        facade = new InstrumentedFacade(new JPAFacade("default"));
+        facade.addListener(recorder);
+    }
+
+    @After
+    public void tearDown() {
+        facade.kill();
+        facade = null;
+    }
+
+    private FacadeEvent lastEvent() {
+        return events.get(events.size() - 1);
+    }
+
+    @Test
+    public void events() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+        assertEquals(FacadeOperation.STORE, lastEvent().getOperation());
+        assertSame(MockPojo.class, lastEvent().getEntityClass());
+        assertEquals(1, lastEvent().getRows());
+        assertTrue(lastEvent().getDuration() > 0);
+
+        facade.find(MockPojo.class, pojo.getId());
+        assertEquals(FacadeOperation.FIND, lastEvent().getOperation());
+        assertEquals(1, lastEvent().getRows());
+
+        facade.update(MockPojo.class, pojo.getId(),
+                new EntityMutation<MockPojo>() {
+                    public void mutate(MockPojo entity) {
+                        entity.setFoo("bar");
+                    }
+                });
+        assertEquals(FacadeOperation.UPDATE, lastEvent().getOperation());
+        assertEquals(1, lastEvent().getRows());
+
+        facade.storeAll(Arrays.asList(new MockPojo(), new MockPojo()));
+        assertEquals(FacadeOperation.STORE_ALL, lastEvent().getOperation());
+        assertEquals(2, lastEvent().getRows());
+
+        facade.list(MockPojo.class);
+        assertEquals(FacadeOperation.LIST, lastEvent().getOperation());
+        assertEquals(3, lastEvent().getRows());
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        facade.list("SELECT p FROM MockPojo p WHERE p.foo = :foo",
+                parameters);
+        assertEquals("SELECT p FROM MockPojo p WHERE p.foo = :foo",
+                lastEvent().getQuery());
+        assertEquals("{foo=String}", lastEvent().getParameterShapes());
+
+        facade.count(EntityQuery.from(MockPojo.class).in("id",
+                Arrays.asList(1L, 2L)));
+        assertEquals(FacadeOperation.COUNT, lastEvent().getOperation());
+        assertEquals("{p0=ArrayList[2]}", lastEvent().getParameterShapes());
+    }
+
+    @Test
+    public void failure() {
+        try {
+            facade.list("SELECT x FROM Nothing x", null);
+            fail("Invalid query succeeded");
+        } catch (RuntimeException e) {
+            assertSame(e, lastEvent().getFailure());
+            assertEquals(-1, lastEvent().getRows());
+        }
+    }
+
+    @Test
+    public void transaction() {
+        facade.inTransaction(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                facade.store(new MockPojo());
+                return null;
+            }
+        });
+        assertEquals(2, events.size());
+        assertEquals(FacadeOperation.STORE, events.get(0).getOperation());
+        assertEquals(FacadeOperation.TRANSACTION, events.get(1)
+                .getOperation());
+    }
+
+    @Test
+    public void noListeners() {
+        facade.removeListener(recorder);
+        facade.store(new MockPojo());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void fingerprint() {
+        assertEquals(
+                "SELECT p FROM MockPojo p WHERE p.foo = ? AND p.id > ? AND p.x = :p1",
+                FacadeEvent.fingerprint("SELECT p FROM MockPojo p\n"
+                        + "  WHERE p.foo = 'it''s' AND p.id > 42 AND p.x = :p1"));
+        assertNull(FacadeEvent.fingerprint(null));
+    }
+
+    @Test
+    public void metrics() {
+        FacadeMetrics metrics = new FacadeMetrics();
+        facade.addListener(metrics);
+        facade.storeAll(Arrays.asList(new MockPojo(), new MockPojo()));
+        facade.list(MockPojo.class);
+        facade.list(MockPojo.class);
+
+        assertEquals(2L, metrics.getLatency(FacadeOperation.LIST).getCount());
+        assertEquals(4L, metrics.getRows(FacadeOperation.LIST));
+        assertEquals(2L, metrics.getRows(FacadeOperation.STORE_ALL));
+        assertEquals(0L, metrics.getFailures(FacadeOperation.LIST));
+
+        metrics.reset();
+        assertEquals(0L, metrics.getLatency(FacadeOperation.LIST).getCount());
+    }
+
+    @Test
+    public void slowQueryLog() {
+        final List<LogRecord> records = new ArrayList<LogRecord>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(SlowQueryLog.class.getName());
+        boolean useParent = logger.getUseParentHandlers();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+        try {
+            SlowQueryLog log = new SlowQueryLog(60000);
+            facade.addListener(log);
+            facade.count(MockPojo.class);
+            assertEquals(0L, log.getSlowOperations());
+
+            log.setThreshold(0);
+            Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("foo", "secret");
+            facade.count(MockPojo.class, "p.foo = :foo", parameters);
+            assertEquals(1L, log.getSlowOperations());
+            assertEquals(1, records.size());
+            String message = records.get(0).getMessage();
+            assertTrue(message.contains("p.foo = :foo"));
+            assertTrue(message.contains("{foo=String}"));
+            assertTrue(!message.contains("secret"));
+        } finally {
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(useParent);
+        }
+    }
+
+}
@@ -1,25 +1,71 @@
 package org.vaadin.appfoundation.test.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.persistence.OptimisticLockException;
+import javax.persistence.RollbackException;
+
+import org.eclipse.persistence.internal.databaseaccess.DatabasePlatform;
+import org.eclipse.persistence.jpa.JpaHelper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.CountCache;
+import org.vaadin.appfoundation.persistence.facade.EntityMutation;
+import org.vaadin.appfoundation.persistence.facade.EntityQuery;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
 import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.KeysetPage;
+import org.vaadin.appfoundation.persistence.facade.LRUEntityCache;
+import org.vaadin.appfoundation.persistence.facade.QueryCache;
+import org.vaadin.appfoundation.persistence.facade.ResultCursor;
+import org.vaadin.appfoundation.persistence.facade.StatementTracker;
+import org.vaadin.appfoundation.persistence.facade.UnitOfWork;
+import org.vaadin.appfoundation.persistence.facade.UpdateRetry;
 
 public class JPAFacadeTest {
 
     private JPAFacade facade = null;
 
+    /**
+     * Gives access to the database platform of the persistence unit.
+     */
+    private static class PlatformFacade extends JPAFacade {
+
+        private static final long serialVersionUID = 4129837417707359640L;
+
+        public boolean isCreated() {
+            return emf != null;
+        }
+
+        public DatabasePlatform getPlatform() {
+            return JpaHelper.getServerSession(getEntityManagerFactory())
+                    .getPlatform();
+        }
+
+        public boolean isTracked() {
+            return JpaHelper.getServerSession(getEntityManagerFactory())
+                    .getProperty(StatementTracker.STATEMENTS_PROPERTY) != null;
+        }
+
+    }
+
     @Before
     public void setUp() {
         facade = new JPAFacade("default");
@@ -46,6 +92,37 @@ public class JPAFacadeTest {
                 .getFoo());
     }
 
+    @Test
+    public void storeWithoutRefresh() {
+        facade.setRefreshAfterStore(false);
+        MockPojo pojo = new MockPojo();
+
+        facade.store(pojo);
+        assertNotNull(pojo.getId());
+        assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+        pojo.setFoo("foobar");
+        facade.store(pojo);
+        assertEquals(Long.valueOf(2L), pojo.getConsistencyVersion());
+        assertEquals("foobar", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void refresh() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        MockPojo other = facade.find(MockPojo.class, pojo.getId());
+        other.setFoo("bar");
+        facade.store(other);
+
+        facade.refresh(pojo);
+        assertEquals("bar", pojo.getFoo());
+        assertEquals(other.getConsistencyVersion(), pojo
+                .getConsistencyVersion());
+    }
+
     @Test
     public void find() {
         MockPojo pojo1 = new MockPojo();
@@ -99,7 +176,7 @@ public class JPAFacadeTest {
 
     @Test(expected = IllegalArgumentException.class)
     public void countGetException() {
-        facade.count(null);
+        facade.count((Class<MockPojo>) null);
     }
 
     @Test
@@ -202,6 +279,133 @@ public class JPAFacadeTest {
         assertEquals(uuids.get(6), pojos.get(2).getFoo());
     }
 
+    @Test
+    public void page() {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 17; i++) {
+            MockPojo pojo = new MockPojo();
+            facade.store(pojo);
+            ids.add(pojo.getId());
+        }
+
+        List<Long> pagedIds = new ArrayList<Long>();
+        KeysetPage<MockPojo> page = facade.page(MockPojo.class, null, 5);
+        for (MockPojo pojo : page.getItems()) {
+            pagedIds.add(pojo.getId());
+        }
+        while (page.hasMore()) {
+            page = facade.page(MockPojo.class, page.getContinuationToken(), 5);
+            for (MockPojo pojo : page.getItems()) {
+                pagedIds.add(pojo.getId());
+            }
+        }
+
+        assertEquals(2, page.getItems().size());
+        assertNull(page.getContinuationToken());
+        assertEquals(ids, pagedIds);
+    }
+
+    @Test
+    public void pageByField() {
+        String[] values = { "d", "b", "a", "c", "b", "a", "d" };
+        for (String value : values) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(value);
+            facade.store(pojo);
+        }
+
+        StringBuilder paged = new StringBuilder();
+        String token = null;
+        do {
+            KeysetPage<MockPojo> page = facade.page(MockPojo.class, "foo",
+                    token, 3);
+            assertTrue(page.getItems().size() <= 3);
+            for (MockPojo pojo : page.getItems()) {
+                paged.append(pojo.getFoo());
+            }
+            token = page.getContinuationToken();
+        } while (token != null);
+
+        assertEquals("aabbcdd", paged.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageWithTokenOfOtherField() {
+        for (int i = 0; i < 3; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(Integer.toString(i));
+            facade.store(pojo);
+        }
+
+        KeysetPage<MockPojo> page = facade.page(MockPojo.class, "foo", null, 1);
+        facade.page(MockPojo.class, page.getContinuationToken(), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageWithInvalidToken() {
+        facade.page(MockPojo.class, "not a token", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageWithInvalidField() {
+        facade.page(MockPojo.class, "foo = 'bar' OR p.foo", null, 1);
+    }
+
+    @Test
+    public void cursor() {
+        List<String> uuids = new ArrayList<String>();
+        for (int i = 0; i < 17; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(UUID.randomUUID().toString());
+            uuids.add(pojo.getFoo());
+            facade.store(pojo);
+        }
+
+        ResultCursor<MockPojo> cursor = facade.cursor(MockPojo.class, 5);
+        int count = 0;
+        try {
+            while (cursor.hasNext()) {
+                assertTrue(uuids.contains(cursor.next().getFoo()));
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(17, count);
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void cursorQuery() {
+        for (int i = 0; i < 14; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(i % 2 == 0 ? "foo" : "bar");
+            facade.store(pojo);
+        }
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        ResultCursor<MockPojo> cursor = facade.cursor(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters, 3);
+        int count = 0;
+        try {
+            while (cursor.hasNext()) {
+                assertEquals("foo", cursor.next().getFoo());
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(7, count);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cursorInvalidFetchSize() {
+        facade.cursor(MockPojo.class, 0);
+    }
+
     @Test
     public void storeAll() {
         List<String> uuids = new ArrayList<String>();
@@ -230,6 +434,166 @@ public class JPAFacadeTest {
         }
     }
 
+    @Test
+    public void storeAllWithoutRefresh() {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 7; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(Integer.toString(i));
+            if (i % 2 == 0) {
+                facade.store(pojo);
+                pojo.setFoo("updated" + i);
+            }
+            pojos.add(pojo);
+        }
+
+        facade.storeAll(pojos, false);
+
+        for (int i = 0; i < 7; i++) {
+            MockPojo pojo = pojos.get(i);
+            assertNotNull(pojo.getId());
+            assertEquals(Long.valueOf(i % 2 == 0 ? 2L : 1L), pojo
+                    .getConsistencyVersion());
+            assertEquals(pojo.getFoo(), facade.find(MockPojo.class,
+                    pojo.getId()).getFoo());
+        }
+    }
+
+    @Test
+    public void storeAllInBatches() {
+        facade.setBatchSize(3);
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 8; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(Integer.toString(i));
+            if (i % 2 == 0) {
+                facade.store(pojo);
+                pojo.setFoo("updated" + i);
+            }
+            pojos.add(pojo);
+        }
+
+        facade.storeAll(pojos, false);
+
+        assertEquals(Long.valueOf(8L), facade.count(MockPojo.class));
+        for (int i = 0; i < 8; i++) {
+            MockPojo pojo = pojos.get(i);
+            assertEquals(Long.valueOf(i % 2 == 0 ? 2L : 1L), pojo
+                    .getConsistencyVersion());
+            assertEquals(pojo.getFoo(), facade.find(MockPojo.class,
+                    pojo.getId()).getFoo());
+        }
+
+        // Storing the same instances again must not cause optimistic lock
+        // failures, since their versions are up-to-date
+        pojos.get(0).setFoo("again");
+        facade.storeAll(pojos);
+        assertEquals(Long.valueOf(3L), pojos.get(0).getConsistencyVersion());
+    }
+
+    @Test
+    public void deleteAllInBatches() {
+        facade.setBatchSize(2);
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 7; i++) {
+            MockPojo pojo = new MockPojo();
+            facade.store(pojo);
+            if (i != 3) {
+                pojos.add(pojo);
+            }
+        }
+        pojos.add(new MockPojo());
+
+        facade.deleteAll(pojos);
+
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+        for (MockPojo pojo : pojos) {
+            if (pojo.getId() != null) {
+                assertNull(facade.find(MockPojo.class, pojo.getId()));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setNegativeBatchSize() {
+        facade.setBatchSize(-1);
+    }
+
+    @Test
+    public void statementTrackingIsOptIn() {
+        PlatformFacade untracked = new PlatformFacade();
+        untracked.init("second");
+        try {
+            assertFalse(untracked.isStatementTracking());
+            assertFalse(untracked.isTracked());
+        } finally {
+            untracked.kill();
+        }
+
+        PlatformFacade tracked = new PlatformFacade();
+        tracked.initLazily("second", null);
+        try {
+            tracked.setStatementTracking(true);
+            assertTrue(tracked.isTracked());
+            MockPojo pojo = new MockPojo();
+            tracked.store(pojo);
+            assertNotNull(tracked.find(MockPojo.class, pojo.getId()));
+            // Nothing is running on this thread
+            tracked.cancelStatements(Thread.currentThread());
+        } finally {
+            tracked.kill();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setStatementTrackingAfterInit() {
+        facade.setStatementTracking(true);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void setBatchSizeUninitialized() {
+        new JPAFacade().setBatchSize(3);
+    }
+
+    @Test
+    public void zeroBatchSizeRestoresBatchWriting() {
+        PlatformFacade platformFacade = new PlatformFacade();
+        platformFacade.init("second");
+        try {
+            DatabasePlatform platform = platformFacade.getPlatform();
+            boolean batchWriting = platform.usesBatchWriting();
+            boolean jdbcBatchWriting = platform.usesJDBCBatchWriting();
+            int size = platform.getMaxBatchWritingSize();
+
+            platformFacade.setBatchSize(3);
+            assertTrue(platform.usesJDBCBatchWriting());
+            assertEquals(3, platform.getMaxBatchWritingSize());
+
+            platformFacade.setBatchSize(0);
+            assertEquals(batchWriting, platform.usesBatchWriting());
+            assertEquals(jdbcBatchWriting, platform.usesJDBCBatchWriting());
+            assertEquals(size, platform.getMaxBatchWritingSize());
+        } finally {
+            platformFacade.kill();
+        }
+    }
+
+    @Test
+    public void batchSizeOfLazyFacade() {
+        PlatformFacade lazy = new PlatformFacade();
+        lazy.initLazily("second", null);
+        try {
+            lazy.setBatchSize(3);
+            assertFalse(lazy.isCreated());
+
+            DatabasePlatform platform = lazy.getPlatform();
+            assertTrue(platform.usesJDBCBatchWriting());
+            assertEquals(3, platform.getMaxBatchWritingSize());
+        } finally {
+            lazy.kill();
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void deleteWithNull() {
         facade.delete(null);
@@ -313,6 +677,406 @@ public class JPAFacadeTest {
         facade.count(MockPojo.class, null, null);
     }
 
+    @Test
+    public void queryCache() {
+        MockPojo pojo1 = new MockPojo();
+        pojo1.setFoo("foo");
+        facade.store(pojo1);
+
+        QueryCache cache = facade.getQueryCache();
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        for (int i = 0; i < 3; i++) {
+            parameters.put("foo", i == 2 ? "foo" : "bar");
+            MockPojo pojo2 = facade.find(
+                    "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters);
+            assertEquals(i == 2, pojo2 != null);
+        }
+
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(hits + 2, cache.getHits());
+    }
+
+    @Test
+    public void queryCacheEviction() {
+        QueryCache cache = facade.getQueryCache();
+        cache.setMaxSize(2);
+        for (int i = 0; i < 5; i++) {
+            facade.list("SELECT p FROM MockPojo p WHERE p.id > " + i, null);
+        }
+
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getEvictions());
+    }
+
+    @Test
+    public void queryCacheDisabled() {
+        QueryCache cache = facade.getQueryCache();
+        cache.setMaxSize(0);
+        for (int i = 0; i < 7; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(i % 2 == 0 ? "foo" : "bar");
+            facade.store(pojo);
+        }
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        assertEquals(Long.valueOf(4L), facade.count(MockPojo.class,
+                "p.foo = :foo", parameters));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void queryTimeout() {
+        facade.setQueryTimeout(500L);
+        assertEquals(500L, facade.getQueryTimeout());
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        assertNotNull(facade.find(MockPojo.class, pojo.getId()));
+        assertEquals(1, facade.list(MockPojo.class).size());
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class,
+                "p.foo = :foo", parameters));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeQueryTimeout() {
+        facade.setQueryTimeout(-1L);
+    }
+
+    @Test
+    public void countCache() {
+        CountCache cache = facade.getCountCache();
+        assertEquals(0, cache.getMaxSize());
+        cache.setMaxSize(10);
+        facade.store(new MockPojo());
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class,
+                "p.foo = :foo", parameters));
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class,
+                "p.foo = :foo", parameters));
+        assertEquals(2L, cache.getMisses());
+        assertEquals(2L, cache.getHits());
+        assertEquals(2, cache.size());
+
+        // Different parameters are counted separately
+        parameters.put("foo", "bar");
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class,
+                "p.foo = :foo", parameters));
+        assertEquals(3L, cache.getMisses());
+
+        // Writes invalidate the counts of the written class
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        assertEquals(Long.valueOf(2L), facade.count(MockPojo.class));
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class,
+                "p.foo = :foo", parameters));
+        assertEquals(5L, cache.getMisses());
+
+        facade.delete(pojo);
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void countCacheStale() {
+        CountCache cache = facade.getCountCache();
+        cache.setMaxSize(10);
+        cache.setMaxStaleness(60000L);
+        facade.store(new MockPojo());
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+
+        // The invalidated count is still within the staleness window
+        facade.store(new MockPojo());
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+
+        cache.setMaxStaleness(0L);
+        assertEquals(Long.valueOf(2L), facade.count(MockPojo.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void countCacheNegativeStaleness() {
+        facade.getCountCache().setMaxStaleness(-1L);
+    }
+
+    @Test
+    public void entityCache() {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        facade.setEntityCache(cache);
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        MockPojo found = facade.find(MockPojo.class, pojo.getId());
+        assertEquals(1L, cache.getMisses());
+        assertEquals(1, cache.size());
+
+        MockPojo cached = facade.find(MockPojo.class, pojo.getId());
+        assertEquals(1L, cache.getHits());
+        assertNotSame(found, cached);
+        assertEquals("foo", cached.getFoo());
+
+        // Storing the entity removes it from the cache
+        cached.setFoo("bar");
+        facade.store(cached);
+        assertEquals(0, cache.size());
+        assertEquals("bar", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+
+        facade.delete(cached);
+        assertEquals(0, cache.size());
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void entityCacheSkipsCollections() {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        facade.setEntityCache(cache);
+        MockTaggedPojo pojo = new MockTaggedPojo();
+        pojo.getTags().add("foo");
+        facade.store(pojo);
+
+        // The collection would be shared with the cached state, so the
+        // entity isn't cached and changing the collection in place doesn't
+        // show to the others finding the entity
+        MockTaggedPojo found = facade.find(MockTaggedPojo.class, pojo
+                .getId());
+        found.getTags().add("bar");
+        assertEquals(0, cache.size());
+        assertEquals(Arrays.asList("foo"), new ArrayList<String>(facade.find(
+                MockTaggedPojo.class, pojo.getId()).getTags()));
+    }
+
+    @Test
+    public void cachesCoverSubclasses() {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        facade.setEntityCache(cache);
+        facade.getCountCache().setMaxSize(10);
+        MockPojoChild child = new MockPojoChild();
+        child.setFoo("foo");
+        facade.store(child);
+
+        assertEquals("foo", facade.find(MockPojoChild.class, child.getId())
+                .getFoo());
+        assertEquals(1, cache.size());
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+        assertEquals(Long.valueOf(0L), facade.count(MockPojoChild.class,
+                "p.foo = 'bar'", null));
+
+        // A bulk update of the superclass also updates the subclass
+        assertEquals(1, facade.updateWhere(MockPojo.class, "p.foo = 'bar'",
+                "p.foo = 'foo'", null));
+        assertEquals(0, cache.size());
+        assertEquals("bar", facade.find(MockPojoChild.class, child.getId())
+                .getFoo());
+        assertEquals(Long.valueOf(1L), facade.count(MockPojoChild.class,
+                "p.foo = 'bar'", null));
+
+        // Storing a subclass entity changes the count of the superclass
+        facade.store(new MockPojoChild());
+        assertEquals(Long.valueOf(2L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void entityCacheStoreAllAndDeleteAll() {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        facade.setEntityCache(cache);
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 3; i++) {
+            pojos.add(new MockPojo());
+        }
+        facade.storeAll(pojos);
+        for (MockPojo pojo : pojos) {
+            facade.find(MockPojo.class, pojo.getId());
+        }
+        assertEquals(3, cache.size());
+
+        pojos.get(0).setFoo("foo");
+        facade.storeAll(pojos.subList(0, 1));
+        assertEquals(2, cache.size());
+
+        facade.deleteAll(pojos);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void entityCacheInTransaction() {
+        final LRUEntityCache cache = new LRUEntityCache(10);
+        facade.setEntityCache(cache);
+        final MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        facade.find(MockPojo.class, pojo.getId());
+
+        facade.inTransaction(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                MockPojo found = facade.find(MockPojo.class, pojo.getId());
+                found.setFoo("foo");
+                facade.store(found);
+                // Uncommitted state must not end up in the cache
+                facade.find(MockPojo.class, pojo.getId());
+                assertEquals(0, cache.size());
+                return null;
+            }
+        });
+
+        assertEquals(1L, cache.getHits() + cache.getMisses());
+        assertEquals("foo", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void entityCacheWriteDuringLoad() {
+        final MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+        LRUEntityCache cache = new LRUEntityCache(10) {
+            private static final long serialVersionUID = 1L;
+
+            private boolean written = false;
+
+            @Override
+            public void put(AbstractPojo loaded, long loadTime) {
+                // The entity is written after it was loaded, but before the
+                // loaded state is cached
+                if (!written) {
+                    written = true;
+                    Thread writer = new Thread() {
+                        @Override
+                        public void run() {
+                            MockPojo other = facade.find(MockPojo.class, pojo
+                                    .getId());
+                            other.setFoo("bar");
+                            facade.store(other);
+                        }
+                    };
+                    writer.start();
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        fail();
+                    }
+                }
+                super.put(loaded, loadTime);
+            }
+        };
+        facade.setEntityCache(cache);
+
+        assertEquals("foo", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        assertEquals(0, cache.size());
+        assertEquals("bar", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void inTransaction() {
+        final MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        final MockPojo pojo2 = new MockPojo();
+
+        Long count = facade.inTransaction(new UnitOfWork<Long>() {
+            public Long execute(IFacade facade) {
+                facade.store(pojo);
+                List<MockPojo> pojos = new ArrayList<MockPojo>();
+                pojos.add(pojo2);
+                facade.storeAll(pojos);
+                // Reads within the unit of work see its uncommitted changes
+                return facade.count(MockPojo.class);
+            }
+        });
+
+        assertEquals(Long.valueOf(2L), count);
+        assertNotNull(pojo.getId());
+        assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+        assertEquals("foo", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        assertNotNull(facade.find(MockPojo.class, pojo2.getId()));
+    }
+
+    @Test
+    public void inTransactionRollback() {
+        MockPojo existing = new MockPojo();
+        facade.store(existing);
+        final Long id = existing.getId();
+
+        try {
+            facade.inTransaction(new UnitOfWork<Void>() {
+                public Void execute(IFacade facade) {
+                    facade.store(new MockPojo());
+                    facade.delete(facade.find(MockPojo.class, id));
+                    throw new IllegalStateException();
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+        assertNotNull(facade.find(MockPojo.class, id));
+    }
+
+    @Test
+    public void inTransactionNested() {
+        facade.inTransaction(new UnitOfWork<Void>() {
+            public Void execute(final IFacade facade) {
+                facade.store(new MockPojo());
+                facade.inTransaction(new UnitOfWork<Void>() {
+                    public Void execute(IFacade facade) {
+                        facade.store(new MockPojo());
+                        return null;
+                    }
+                });
+                // The nested unit of work must not have committed or closed
+                // anything
+                facade.store(new MockPojo());
+                return null;
+            }
+        });
+
+        assertEquals(Long.valueOf(3L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void inTransactionNestedFailure() {
+        try {
+            facade.inTransaction(new UnitOfWork<Void>() {
+                public Void execute(final IFacade facade) {
+                    facade.store(new MockPojo());
+                    try {
+                        facade.inTransaction(new UnitOfWork<Void>() {
+                            public Void execute(IFacade facade) {
+                                throw new IllegalStateException();
+                            }
+                        });
+                    } catch (IllegalStateException e) {
+                        // Ignored, the transaction is still rolled back
+                    }
+                    return null;
+                }
+            });
+            fail();
+        } catch (RollbackException e) {
+            // Expected
+        }
+
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void inTransactionWithNull() {
+        facade.inTransaction(null);
+    }
+
     @Test
     public void getFieldValues() {
         List<String> uuids = new ArrayList<String>();
@@ -342,4 +1106,568 @@ public class JPAFacadeTest {
         }
     }
 
+    @Test
+    public void getFieldValuesOfSeveralFields() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+        facade.store(new MockPojo());
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        List<Object[]> rows = facade.getFieldValues(MockPojo.class,
+                new String[] { "id", "foo" }, "p.foo = :foo", parameters);
+        assertEquals(1, rows.size());
+        assertEquals(pojo.getId(), rows.get(0)[0]);
+        assertEquals("foo", rows.get(0)[1]);
+
+        rows = facade.getFieldValues(MockPojo.class, new String[] { "foo" },
+                "p.foo = :foo", parameters);
+        assertEquals(1, rows.size());
+        assertEquals("foo", rows.get(0)[0]);
+    }
+
+    @Test
+    public void getFieldValuesAsObjects() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        List<MockPojoSummary> summaries = facade.getFieldValues(
+                MockPojo.class, MockPojoSummary.class, new String[] { "id",
+                        "foo" }, null, null);
+        assertEquals(1, summaries.size());
+        assertEquals(pojo.getId(), summaries.get(0).getId());
+        assertEquals("foo", summaries.get(0).getFoo());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getFieldValuesWithInvalidField() {
+        facade.getFieldValues(MockPojo.class, new String[] { "id",
+                "foo FROM MockPojo x" }, null, null);
+    }
+
+    @Test
+    public void getIds() {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 5; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(i % 2 == 0 ? "foo" : "bar");
+            pojos.add(pojo);
+        }
+        facade.storeAll(pojos);
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        long[] ids = facade.getIds(MockPojo.class, "p.foo = :foo", parameters);
+        assertEquals(3, ids.length);
+        assertEquals(pojos.get(0).getId().longValue(), ids[0]);
+        assertEquals(pojos.get(2).getId().longValue(), ids[1]);
+        assertEquals(pojos.get(4).getId().longValue(), ids[2]);
+        assertEquals(5, facade.getIds(MockPojo.class, null, null).length);
+    }
+
+    @Test
+    public void findReadOnly() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        MockPojo found = facade.findReadOnly(MockPojo.class, pojo.getId());
+        assertEquals("foo", found.getFoo());
+        // Read-only results are not copied for each caller
+        assertSame(found, facade.findReadOnly(MockPojo.class, pojo.getId()));
+        assertNull(facade.findReadOnly(MockPojo.class, -1L));
+    }
+
+    @Test
+    public void listReadOnly() {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 5; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(i % 2 == 0 ? "foo" : "bar");
+            pojos.add(pojo);
+        }
+        facade.storeAll(pojos);
+
+        List<MockPojo> all = facade.listReadOnly(MockPojo.class);
+        assertEquals(5, all.size());
+        assertTrue(facade.listReadOnly(MockPojo.class).contains(all.get(0)));
+        assertEquals(2, facade.listReadOnly(MockPojo.class, 3, 10).size());
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        String queryStr = "SELECT p FROM MockPojo p WHERE p.foo = :foo ORDER BY p.id";
+        List<MockPojo> foos = facade.listReadOnly(queryStr, parameters);
+        assertEquals(3, foos.size());
+        assertSame(foos.get(0), facade.findReadOnly(MockPojo.class, pojos
+                .get(0).getId()));
+        assertEquals(1, facade.listReadOnly(queryStr, parameters, 2, 10)
+                .size());
+    }
+
+    @Test
+    public void readOnlyInTransaction() {
+        final MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        facade.findReadOnly(MockPojo.class, pojo.getId());
+
+        try {
+            facade.inTransaction(new UnitOfWork<Void>() {
+                public Void execute(IFacade facade) {
+                    MockPojo found = facade.find(MockPojo.class, pojo.getId());
+                    found.setFoo("foo");
+                    facade.store(found);
+                    // The unit's own changes are visible
+                    assertEquals("foo", facade.findReadOnly(MockPojo.class,
+                            pojo.getId()).getFoo());
+                    throw new IllegalStateException();
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // The rolled back change never reached the shared cache
+        assertNull(facade.findReadOnly(MockPojo.class, pojo.getId()).getFoo());
+    }
+
+    @Test
+    public void findAll() {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < 5; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo("foo" + i);
+            pojos.add(pojo);
+        }
+        facade.storeAll(pojos);
+        // Fetch the ids in chunks of two
+        facade.setInListSize(2);
+
+        List<Long> ids = new ArrayList<Long>();
+        ids.add(pojos.get(3).getId());
+        ids.add(-1L);
+        ids.add(pojos.get(0).getId());
+        ids.add(null);
+        ids.add(pojos.get(4).getId());
+        ids.add(pojos.get(3).getId());
+        ids.add(pojos.get(1).getId());
+
+        Map<Long, MockPojo> found = facade.findAll(MockPojo.class, ids);
+        assertEquals(4, found.size());
+        Iterator<MockPojo> it = found.values().iterator();
+        assertEquals("foo3", it.next().getFoo());
+        assertEquals("foo0", it.next().getFoo());
+        assertEquals("foo4", it.next().getFoo());
+        assertEquals("foo1", it.next().getFoo());
+        assertEquals("foo1", found.get(pojos.get(1).getId()).getFoo());
+
+        assertTrue(facade.findAll(MockPojo.class, new ArrayList<Long>())
+                .isEmpty());
+    }
+
+    @Test
+    public void findAllEntityCache() {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        facade.setEntityCache(cache);
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 3; i++) {
+            MockPojo pojo = new MockPojo();
+            facade.store(pojo);
+            pojos.add(pojo);
+            ids.add(pojo.getId());
+        }
+
+        facade.find(MockPojo.class, ids.get(1));
+        assertEquals(1, cache.size());
+
+        assertEquals(3, facade.findAll(MockPojo.class, ids).size());
+        assertEquals(1L, cache.getHits());
+        assertEquals(3, cache.size());
+
+        // All of them are cached now
+        assertEquals(3, facade.findAll(MockPojo.class, ids).size());
+        assertEquals(4L, cache.getHits());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void findAllNullIds() {
+        facade.findAll(MockPojo.class, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroInListSize() {
+        facade.setInListSize(0);
+    }
+
+    @Test
+    public void initLazily() {
+        JPAFacade lazy = new JPAFacade();
+        lazy.initLazily("second", null);
+        try {
+            MockPojo pojo = new MockPojo();
+            lazy.store(pojo);
+            assertNotNull(lazy.find(MockPojo.class, pojo.getId()));
+            lazy.warmUp();
+        } finally {
+            lazy.kill();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void warmUpUninitialized() {
+        new JPAFacade().warmUp();
+    }
+
+    @Test
+    public void storeTrackedChanges() {
+        facade.setRefreshAfterStore(false);
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        pojo.trackChanges();
+        facade.store(pojo);
+        assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+        assertTrue(pojo.getChangedFields().isEmpty());
+
+        // Nothing has changed, so nothing is written
+        facade.store(pojo);
+        assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        assertEquals(Long.valueOf(2L), pojo.getConsistencyVersion());
+        assertTrue(pojo.isTrackingChanges());
+        MockPojo stored = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("bar", stored.getFoo());
+        assertEquals(Long.valueOf(2L), stored.getConsistencyVersion());
+    }
+
+    @Test
+    public void storeTrackedChangesOfTransientField() {
+        MockTransientPojo pojo = new MockTransientPojo();
+        facade.store(pojo);
+        pojo.trackChanges();
+
+        // The transient field isn't in the metamodel, so the entity is merged
+        pojo.setFoo("bar");
+        pojo.setNote("note");
+        facade.store(pojo);
+        assertEquals(Long.valueOf(2L), pojo.getConsistencyVersion());
+        assertEquals("bar", facade.find(MockTransientPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void storeTrackedChangesConflict() {
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        MockPojo other = facade.find(MockPojo.class, pojo.getId());
+        other.setFoo("other");
+        facade.store(other);
+
+        pojo.trackChanges();
+        pojo.setFoo("mine");
+        try {
+            facade.store(pojo);
+            fail("Stale entity was stored");
+        } catch (OptimisticLockException e) {
+            // Expected
+        }
+        assertEquals("other", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        assertEquals(Long.valueOf(1L), pojo.getConsistencyVersion());
+    }
+
+    @Test
+    public void storeTrackedChangesInTransaction() {
+        final MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        pojo.trackChanges();
+        facade.inTransaction(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                pojo.setFoo("bar");
+                facade.store(pojo);
+                return null;
+            }
+        });
+        assertEquals(Long.valueOf(2L), pojo.getConsistencyVersion());
+        assertEquals("bar", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    private void storeFoos(String... foos) {
+        for (String foo : foos) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo(foo);
+            facade.store(pojo);
+        }
+    }
+
+    @Test
+    public void entityQuery() {
+        storeFoos("c", "a", "b", "a", null);
+
+        List<MockPojo> pojos = facade.list(EntityQuery.from(MockPojo.class)
+                .isNotNull("foo").orderByDesc("foo"));
+        assertEquals(4, pojos.size());
+        assertEquals("c", pojos.get(0).getFoo());
+        assertEquals("a", pojos.get(3).getFoo());
+
+        assertEquals(Long.valueOf(2L), facade.count(EntityQuery.from(
+                MockPojo.class).eq("foo", "a")));
+        assertEquals(Long.valueOf(1L), facade.count(EntityQuery.from(
+                MockPojo.class).eq("foo", null)));
+        assertEquals(Long.valueOf(3L), facade.count(EntityQuery.from(
+                MockPojo.class).in("foo", Arrays.asList("a", "c"))));
+        assertEquals(Long.valueOf(0L), facade.count(EntityQuery.from(
+                MockPojo.class).in("foo", new ArrayList<String>())));
+        assertEquals(Long.valueOf(2L), facade.count(EntityQuery.from(
+                MockPojo.class).gt("foo", "a")));
+        assertEquals(Long.valueOf(4L), facade.count(EntityQuery.from(
+                MockPojo.class).like("foo", "_")));
+
+        pojos = facade.list(EntityQuery.from(MockPojo.class).orderBy("foo")
+                .isNotNull("foo").limit(1, 2));
+        assertEquals(2, pojos.size());
+        assertEquals("a", pojos.get(0).getFoo());
+        assertEquals("b", pojos.get(1).getFoo());
+
+        List<Object[]> rows = facade.getFieldValues(EntityQuery.from(
+                MockPojo.class).ne("foo", "a").orderBy("foo").select("foo"));
+        assertEquals(2, rows.size());
+        assertEquals("b", rows.get(0)[0]);
+        assertEquals("c", rows.get(1)[0]);
+    }
+
+    @Test
+    public void entityQuerySharesQueryPlan() {
+        QueryCache cache = facade.getQueryCache();
+        long misses = cache.getMisses();
+        for (String foo : new String[] { "a", "b", "c" }) {
+            facade.list(EntityQuery.from(MockPojo.class).eq("foo", foo)
+                    .orderBy("foo"));
+        }
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void entityQueryInvalidField() {
+        EntityQuery.from(MockPojo.class).eq("foo = 'a' OR 1 = 1 OR p.foo",
+                "a");
+    }
+
+    @Test
+    public void entityQueryPage() {
+        storeFoos("c", "a", "b", "a", "d", "x");
+        EntityQuery<MockPojo> query = EntityQuery.from(MockPojo.class).ne(
+                "foo", "x").orderBy("foo");
+
+        KeysetPage<MockPojo> page = facade.page(query, null, 3);
+        assertEquals(3, page.getItems().size());
+        assertEquals("b", page.getItems().get(2).getFoo());
+        page = facade.page(query, page.getContinuationToken(), 3);
+        assertEquals(2, page.getItems().size());
+        assertEquals("c", page.getItems().get(0).getFoo());
+        assertFalse(page.hasMore());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void entityQueryPageDescending() {
+        facade.page(EntityQuery.from(MockPojo.class).orderByDesc("foo"), null,
+                10);
+    }
+
+    @Test
+    public void entityQueryCursor() {
+        storeFoos("a", "b", "a");
+        ResultCursor<MockPojo> cursor = facade.cursor(EntityQuery.from(
+                MockPojo.class).eq("foo", "a"), 1);
+        int count = 0;
+        while (cursor.hasNext()) {
+            assertEquals("a", cursor.next().getFoo());
+            count++;
+        }
+        cursor.close();
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void update() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        MockPojo updated = facade.update(MockPojo.class, pojo.getId(),
+                new EntityMutation<MockPojo>() {
+                    public void mutate(MockPojo entity) {
+                        entity.setFoo(entity.getFoo() + "bar");
+                    }
+                });
+        assertEquals("foobar", updated.getFoo());
+        assertEquals("foobar", facade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        assertEquals(0, facade.getUpdateRetry().getConflicts());
+    }
+
+    @Test
+    public void updateNonExisting() {
+        assertNull(facade.update(MockPojo.class, -1L,
+                new EntityMutation<MockPojo>() {
+                    public void mutate(MockPojo entity) {
+                        fail();
+                    }
+                }));
+    }
+
+    @Test
+    public void updateRetriesConflict() {
+        final MockPojo pojo = new MockPojo();
+        pojo.setFoo("foo");
+        facade.store(pojo);
+
+        final int[] attempts = { 0 };
+        MockPojo updated = facade.update(MockPojo.class, pojo.getId(),
+                new EntityMutation<MockPojo>() {
+                    public void mutate(MockPojo entity) {
+                        if (attempts[0]++ == 0) {
+                            // A concurrent update of the same entity
+                            pojo.setFoo("concurrent");
+                            facade.store(pojo);
+                        }
+                        entity.setFoo(entity.getFoo() + "bar");
+                    }
+                });
+        assertEquals(2, attempts[0]);
+        assertEquals("concurrentbar", updated.getFoo());
+        assertEquals(1, facade.getUpdateRetry().getConflicts());
+        assertEquals(1, facade.getUpdateRetry().getRetries());
+        assertEquals(0, facade.getUpdateRetry().getFailures());
+    }
+
+    @Test
+    public void updateGivesUp() {
+        final MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        UpdateRetry retry = facade.getUpdateRetry();
+        retry.setMaxAttempts(3);
+        retry.setBackoff(0, 0);
+
+        try {
+            facade.update(MockPojo.class, pojo.getId(),
+                    new EntityMutation<MockPojo>() {
+                        public void mutate(MockPojo entity) {
+                            // Every attempt is beaten by a concurrent update
+                            pojo.setFoo(UUID.randomUUID().toString());
+                            facade.store(pojo);
+                            entity.setFoo("bar");
+                        }
+                    });
+            fail();
+        } catch (RuntimeException e) {
+            // The conflict of the last attempt is thrown
+        }
+        assertEquals(3, retry.getConflicts());
+        assertEquals(2, retry.getRetries());
+        assertEquals(1, retry.getFailures());
+    }
+
+    @Test
+    public void updateInUnitOfWorkIsNotRetried() {
+        final MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+
+        final int[] attempts = { 0 };
+        try {
+            facade.inTransaction(new UnitOfWork<Void>() {
+                public Void execute(IFacade facade) {
+                    facade.update(MockPojo.class, pojo.getId(),
+                            new EntityMutation<MockPojo>() {
+                                public void mutate(MockPojo entity) {
+                                    attempts[0]++;
+                                    entity.setConsistencyVersion(entity
+                                            .getConsistencyVersion() - 1);
+                                }
+                            });
+                    return null;
+                }
+            });
+            fail();
+        } catch (RuntimeException e) {
+            // The unit of work fails with the conflict
+        }
+        assertEquals(1, attempts[0]);
+        assertEquals(0, facade.getUpdateRetry().getRetries());
+    }
+
+    @Test
+    public void deleteWhere() {
+        storeFoos("a", "b", "a");
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "a");
+        assertEquals(2, facade.deleteWhere(MockPojo.class, "p.foo = :foo",
+                parameters));
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+        assertEquals(0, facade.deleteWhere(MockPojo.class, "p.foo = :foo",
+                parameters));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deleteWhereWithoutWhereClause() {
+        facade.deleteWhere(MockPojo.class, null, null);
+    }
+
+    @Test
+    public void updateWhere() {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("a");
+        facade.store(pojo);
+        storeFoos("a", "b");
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "a");
+        parameters.put("bar", "c");
+        assertEquals(2, facade.updateWhere(MockPojo.class, "p.foo = :bar",
+                "p.foo = :foo", parameters));
+        assertEquals(Long.valueOf(2L), facade.count(MockPojo.class,
+                "p.foo = 'c'", null));
+
+        MockPojo updated = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("c", updated.getFoo());
+        assertEquals(Long.valueOf(pojo.getConsistencyVersion() + 1), updated
+                .getConsistencyVersion());
+
+        // The instance read before the update is stale
+        pojo.setFoo("d");
+        try {
+            facade.store(pojo);
+            fail();
+        } catch (RuntimeException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void bulkStatementsInvalidateCaches() {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        facade.setEntityCache(cache);
+        facade.getCountCache().setMaxSize(10);
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo("a");
+        facade.store(pojo);
+        assertNotNull(facade.find(MockPojo.class, pojo.getId()));
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class,
+                "p.foo = 'a'", null));
+
+        facade.updateWhere(MockPojo.class, "p.foo = 'b'", "p.id = "
+                + pojo.getId(), null);
+        assertEquals("b", facade.find(MockPojo.class, pojo.getId()).getFoo());
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class,
+                "p.foo = 'a'", null));
+
+        facade.deleteWhere(MockPojo.class, "p.foo = 'b'", null);
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
 }
@@ -0,0 +1,109 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.LRUEntityCache;
+
+public class LRUEntityCacheTest {
+
+    private MockPojo createPojo(Long id, String foo) {
+        MockPojo pojo = new MockPojo();
+        pojo.setId(id);
+        pojo.setFoo(foo);
+        return pojo;
+    }
+
+    @Test
+    public void get() {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        MockPojo pojo = createPojo(1L, "foo");
+        cache.put(pojo, 1000L);
+        // Changing the original instance mustn't change the cached state
+        pojo.setFoo("bar");
+
+        MockPojo cached = cache.get(MockPojo.class, 1L);
+        assertNotSame(pojo, cached);
+        assertEquals("foo", cached.getFoo());
+        cached.setFoo("bar");
+        assertEquals("foo", cache.get(MockPojo.class, 1L).getFoo());
+
+        assertNull(cache.get(MockPojo.class, 2L));
+        assertEquals(2L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+        assertEquals(1000L, cache.getAverageLoadTime());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        LRUEntityCache cache = new LRUEntityCache(2);
+        cache.put(createPojo(1L, "foo"), 0L);
+        cache.put(createPojo(2L, "foo"), 0L);
+        // Make the first entity the most recently used one
+        cache.get(MockPojo.class, 1L);
+        cache.put(createPojo(3L, "foo"), 0L);
+
+        assertEquals(2, cache.size());
+        assertEquals(1L, cache.getEvictions());
+        assertNotNull(cache.get(MockPojo.class, 1L));
+        assertNull(cache.get(MockPojo.class, 2L));
+        assertNotNull(cache.get(MockPojo.class, 3L));
+    }
+
+    @Test
+    public void timeToLive() throws InterruptedException {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        cache.setTimeToLive(MockPojo.class, 1L);
+        assertEquals(1L, cache.getTimeToLive(MockPojo.class));
+        cache.put(createPojo(1L, "foo"), 0L);
+        Thread.sleep(10);
+
+        assertNull(cache.get(MockPojo.class, 1L));
+        assertEquals(1L, cache.getEvictions());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void remove() {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        cache.put(createPojo(1L, "foo"), 0L);
+        cache.put(createPojo(2L, "foo"), 0L);
+        cache.remove(MockPojo.class, 1L);
+        assertNull(cache.get(MockPojo.class, 1L));
+        assertNotNull(cache.get(MockPojo.class, 2L));
+
+        cache.removeAll(MockPojo.class);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void removeAllRemovesSubclasses() {
+        LRUEntityCache cache = new LRUEntityCache(10);
+        MockPojoChild child = new MockPojoChild();
+        child.setId(2L);
+        cache.put(createPojo(1L, "foo"), 0L);
+        cache.put(child, 0L);
+
+        cache.removeAll(MockPojoChild.class);
+        assertNotNull(cache.get(MockPojo.class, 1L));
+        assertNull(cache.get(MockPojoChild.class, 2L));
+
+        cache.put(child, 0L);
+        cache.removeAll(MockPojo.class);
+        assertEquals(0, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSize() {
+        new LRUEntityCache(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeTimeToLive() {
+        new LRUEntityCache(10).setTimeToLive(-1L);
+    }
+
+}
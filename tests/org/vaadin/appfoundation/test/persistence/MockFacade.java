@@ -5,7 +5,12 @@ import java.util.List;
 import java.util.Map;
 
 import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.EntityMutation;
+import org.vaadin.appfoundation.persistence.facade.EntityQuery;
 import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.KeysetPage;
+import org.vaadin.appfoundation.persistence.facade.ResultCursor;
+import org.vaadin.appfoundation.persistence.facade.UnitOfWork;
 
 public class MockFacade implements IFacade {
 
@@ -17,9 +22,25 @@ public class MockFacade implements IFacade {
 
     }
 
+    public <A extends AbstractPojo> A update(Class<A> c, Long id,
+            EntityMutation<A> mutation) {
+        return null;
+    }
+
     public <A extends AbstractPojo> void deleteAll(Collection<A> pojos) {
     }
 
+    public int deleteWhere(Class<? extends AbstractPojo> c,
+            String whereClause, Map<String, Object> parameters) {
+        return 0;
+    }
+
+    public int updateWhere(Class<? extends AbstractPojo> c,
+            String assignments, String whereClause,
+            Map<String, Object> parameters) {
+        return 0;
+    }
+
     public <A extends AbstractPojo> A find(Class<A> clazz, Long id) {
         return null;
     }
@@ -29,6 +50,34 @@ public class MockFacade implements IFacade {
         return null;
     }
 
+    public <A extends AbstractPojo> A findReadOnly(Class<A> clazz, Long id) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> List<A> listReadOnly(Class<A> clazz,
+            int startIndex, int amount) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> List<A> listReadOnly(String queryStr,
+            Map<String, Object> parameters, int startIndex, int amount) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> Map<Long, A> findAll(Class<A> clazz,
+            Collection<Long> ids) {
+        return null;
+    }
+
     public void init(String name) {
 
     }
@@ -46,10 +95,34 @@ public class MockFacade implements IFacade {
         return null;
     }
 
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String continuationToken, int amount) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> KeysetPage<A> page(Class<A> clazz,
+            String keyField, String continuationToken, int amount) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> ResultCursor<A> cursor(Class<A> clazz,
+            int fetchSize) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> ResultCursor<A> cursor(String queryStr,
+            Map<String, Object> parameters, int fetchSize) {
+        return null;
+    }
+
     public <A extends AbstractPojo> void refresh(A pojo) {
 
     }
 
+    public <T> T inTransaction(UnitOfWork<T> work) {
+        return work.execute(this);
+    }
+
     public void store(AbstractPojo pojo) {
 
     }
@@ -58,6 +131,11 @@ public class MockFacade implements IFacade {
 
     }
 
+    public <A extends AbstractPojo> void storeAll(Collection<A> pojos,
+            boolean refresh) {
+
+    }
+
     public Long count(Class<? extends AbstractPojo> c) {
         return 0L;
     }
@@ -83,4 +161,44 @@ public class MockFacade implements IFacade {
         return null;
     }
 
+    public List<Object[]> getFieldValues(Class<? extends AbstractPojo> c,
+            String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return null;
+    }
+
+    public <T> List<T> getFieldValues(Class<? extends AbstractPojo> c,
+            Class<T> resultClass, String[] fields, String whereConditions,
+            Map<String, Object> parameters) {
+        return null;
+    }
+
+    public long[] getIds(Class<? extends AbstractPojo> c,
+            String whereConditions, Map<String, Object> parameters) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> List<A> list(EntityQuery<A> query) {
+        return null;
+    }
+
+    public Long count(EntityQuery<? extends AbstractPojo> query) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> KeysetPage<A> page(EntityQuery<A> query,
+            String continuationToken, int amount) {
+        return null;
+    }
+
+    public <A extends AbstractPojo> ResultCursor<A> cursor(
+            EntityQuery<A> query, int fetchSize) {
+        return null;
+    }
+
+    public List<Object[]> getFieldValues(
+            EntityQuery<? extends AbstractPojo> query) {
+        return null;
+    }
+
 }
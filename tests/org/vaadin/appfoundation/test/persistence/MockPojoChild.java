@@ -0,0 +1,20 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import javax.persistence.Entity;
+
+@Entity
+public class MockPojoChild extends MockPojo {
+
+    private static final long serialVersionUID = -5262810962307491386L;
+
+    private String bar;
+
+    public void setBar(String bar) {
+        this.bar = bar;
+    }
+
+    public String getBar() {
+        return bar;
+    }
+
+}
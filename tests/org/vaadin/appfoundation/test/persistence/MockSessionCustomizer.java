@@ -0,0 +1,14 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sessions.Session;
+
+public class MockSessionCustomizer implements SessionCustomizer {
+
+    public static volatile int customized = 0;
+
+    public void customize(Session session) throws Exception {
+        customized++;
+    }
+
+}
@@ -0,0 +1,36 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.vaadin.appfoundation.persistence.facade.InMemoryFacade;
+import org.vaadin.appfoundation.persistence.facade.StatementControl;
+
+public class MockStatementControl extends InMemoryFacade implements
+        StatementControl {
+
+    private final ThreadLocal<Long> timeout = new ThreadLocal<Long>();
+
+    private final List<Thread> cancelled = new CopyOnWriteArrayList<Thread>();
+
+    public void setThreadQueryTimeout(Long timeout) {
+        if (timeout == null) {
+            this.timeout.remove();
+        } else {
+            this.timeout.set(timeout);
+        }
+    }
+
+    public Long getThreadQueryTimeout() {
+        return timeout.get();
+    }
+
+    public void cancelStatements(Thread thread) {
+        cancelled.add(thread);
+    }
+
+    public List<Thread> getCancelled() {
+        return cancelled;
+    }
+
+}
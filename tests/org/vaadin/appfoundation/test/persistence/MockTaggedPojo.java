@@ -0,0 +1,28 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+@Entity
+public class MockTaggedPojo extends AbstractPojo {
+
+    private static final long serialVersionUID = 3471289560240361782L;
+
+    @ElementCollection(fetch = FetchType.EAGER)
+    private List<String> tags = new ArrayList<String>();
+
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+}
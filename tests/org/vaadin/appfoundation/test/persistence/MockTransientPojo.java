@@ -0,0 +1,33 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import javax.persistence.Entity;
+
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+
+@Entity
+public class MockTransientPojo extends AbstractPojo {
+
+    private static final long serialVersionUID = 6028735120658130719L;
+
+    private String foo;
+
+    // Not persisted, but compared by the change tracking
+    private transient String note;
+
+    public void setFoo(String foo) {
+        this.foo = foo;
+    }
+
+    public String getFoo() {
+        return foo;
+    }
+
+    public void setNote(String note) {
+        this.note = note;
+    }
+
+    public String getNote() {
+        return note;
+    }
+
+}
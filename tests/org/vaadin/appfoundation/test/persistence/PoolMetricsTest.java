@@ -0,0 +1,150 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.ConnectionPoolConfig;
+import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.LatencyHistogram;
+import org.vaadin.appfoundation.persistence.facade.PoolMetrics;
+import org.vaadin.appfoundation.persistence.facade.UnitOfWork;
+
+public class PoolMetricsTest {
+
+    private JPAFacade facade = null;
+
+    @After
+    public void tearDown() {
+        if (facade != null) {
+            facade.kill();
+            facade = null;
+        }
+        FacadeFactory.clear();
+    }
+
+    private ConnectionPoolConfig createConfig() {
+        ConnectionPoolConfig config = new ConnectionPoolConfig();
+        config.setMinSize(2);
+        config.setInitialSize(2);
+        config.setMaxSize(4);
+        config.setAcquireTimeout(1000L);
+        config.setStatementCacheSize(20);
+        return config;
+    }
+
+    @Test
+    public void noPoolConfig() {
+        facade = new JPAFacade("second");
+        assertNull(facade.getPoolMetrics());
+    }
+
+    @Test
+    public void metrics() {
+        facade = new JPAFacade("second", createConfig());
+        PoolMetrics metrics = facade.getPoolMetrics();
+        assertNotNull(metrics);
+
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        facade.find(MockPojo.class, pojo.getId());
+        facade.list(MockPojo.class);
+
+        assertTrue(metrics.getAcquireLatency().getCount() > 0);
+        assertEquals(0, metrics.getActive());
+        assertTrue(metrics.getIdle() >= 2);
+        assertEquals(0, metrics.getWaiters());
+        assertEquals(0L, metrics.getFailedAcquisitions());
+        assertTrue(metrics.getSuspectedLeaks().isEmpty());
+    }
+
+    @Test
+    public void leakDetection() {
+        ConnectionPoolConfig config = createConfig();
+        config.setLeakDetectionThreshold(10L);
+        facade = new JPAFacade("second", config);
+        final PoolMetrics metrics = facade.getPoolMetrics();
+
+        facade.inTransaction(new UnitOfWork<Void>() {
+            public Void execute(IFacade facade) {
+                // Storing flushes the unit of work, which holds on to its
+                // connection until the transaction ends
+                facade.store(new MockPojo());
+                assertEquals(1, metrics.getActive());
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // Ignored
+                }
+                List<Throwable> leaks = metrics.getSuspectedLeaks();
+                assertEquals(1, leaks.size());
+                assertTrue(leaks.get(0).getStackTrace().length > 0);
+                return null;
+            }
+        });
+
+        assertEquals(0, metrics.getActive());
+        assertTrue(metrics.getSuspectedLeaks().isEmpty());
+    }
+
+    @Test
+    public void registerFacade() {
+        FacadeFactory.registerFacade("second", true, createConfig());
+        IFacade registered = FacadeFactory.getFacade();
+        assertTrue(registered instanceof JPAFacade);
+        assertNotNull(((JPAFacade) registered).getPoolMetrics());
+    }
+
+    @Test
+    public void unitCustomizerIsRun() {
+        MockSessionCustomizer.customized = 0;
+        facade = new JPAFacade("customized", createConfig());
+        facade.store(new MockPojo());
+
+        // Both the customizer of the unit and the metering are applied
+        assertEquals(1, MockSessionCustomizer.customized);
+        assertTrue(facade.getPoolMetrics().getAcquireLatency().getCount() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void minSizeOverMaxSize() {
+        ConnectionPoolConfig config = new ConnectionPoolConfig();
+        config.setMinSize(5);
+        config.setMaxSize(4);
+        facade = new JPAFacade("second", config);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeAcquireTimeout() {
+        new ConnectionPoolConfig().setAcquireTimeout(-1L);
+    }
+
+    @Test
+    public void histogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getPercentile(99));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1500L);
+        }
+        histogram.record(3000000L);
+
+        assertEquals(100L, histogram.getCount());
+        assertEquals(3000000L, histogram.getMax());
+        assertEquals(2000L, histogram.getPercentile(50));
+        assertEquals(2000L, histogram.getPercentile(99));
+        assertEquals(3000000L, histogram.getPercentile(100));
+        assertEquals(histogram.getBucketBounds().length + 1, histogram
+                .getBucketCounts().length);
+
+        histogram.reset();
+        assertEquals(0L, histogram.getCount());
+    }
+
+}
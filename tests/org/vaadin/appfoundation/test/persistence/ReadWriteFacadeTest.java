@@ -0,0 +1,169 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.FacadeFactory;
+import org.vaadin.appfoundation.persistence.facade.IFacade;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.ReadWriteFacade;
+import org.vaadin.appfoundation.persistence.facade.UnitOfWork;
+
+public class ReadWriteFacadeTest {
+
+    private JPAFacade primary = null;
+
+    private JPAFacade replica = null;
+
+    private ReadWriteFacade facade = null;
+
+    @Before
+    public void setUp() {
+        // The units use different databases, so that it is possible to tell
+        // which one was read
+        primary = new JPAFacade("default");
+        replica = new JPAFacade("second");
+        facade = new ReadWriteFacade(primary, Arrays.asList(replica));
+    }
+
+    @After
+    public void tearDown() {
+        if (facade != null) {
+            facade.kill();
+            facade = null;
+        }
+    }
+
+    @Test
+    public void routing() {
+        facade.setStickyTime(0L);
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+
+        assertNotNull(primary.find(MockPojo.class, pojo.getId()));
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+        assertEquals(0, facade.list(MockPojo.class).size());
+
+        replica.store(new MockPojo());
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void readYourWrites() {
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        // Reads stay on the primary after the write
+        assertNotNull(facade.find(MockPojo.class, pojo.getId()));
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+
+        // But only for the session which wrote
+        final Object[] session = { "other" };
+        facade.setSessionResolver(new ReadWriteFacade.SessionResolver() {
+            public Object getSession() {
+                return session[0];
+            }
+        });
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+        facade.delete(pojo);
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+
+        session[0] = null;
+        facade.store(new MockPojo());
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void stickinessExpires() throws InterruptedException {
+        facade.setStickyTime(20L);
+        facade.store(new MockPojo());
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+        Thread.sleep(50);
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void inTransaction() {
+        facade.setStickyTime(0L);
+        final ReadWriteFacade router = facade;
+        Long count = facade.inTransaction(new UnitOfWork<Long>() {
+            public Long execute(IFacade facade) {
+                router.store(new MockPojo());
+                // Reads within the unit of work see its writes
+                return router.count(MockPojo.class);
+            }
+        });
+        assertEquals(Long.valueOf(1L), count);
+        assertEquals(Long.valueOf(1L), primary.count(MockPojo.class));
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void roundRobin() {
+        facade.kill();
+        List<IFacade> replicas = new ArrayList<IFacade>();
+        for (long i = 1; i <= 3; i++) {
+            final Long count = i;
+            replicas.add(new MockFacade() {
+                @Override
+                public Long count(Class<? extends AbstractPojo> c) {
+                    return count;
+                }
+            });
+        }
+        primary = new JPAFacade("default");
+        facade = new ReadWriteFacade(primary, replicas);
+
+        long total = 0;
+        for (int i = 0; i < 6; i++) {
+            total += facade.count(MockPojo.class);
+        }
+        assertEquals(12L, total);
+    }
+
+    @Test
+    public void noReplicas() {
+        facade.kill();
+        primary = new JPAFacade("default");
+        facade = new ReadWriteFacade(primary, new ArrayList<IFacade>());
+        facade.setStickyTime(0L);
+        facade.store(new MockPojo());
+        assertEquals(Long.valueOf(1L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void registerFacade() {
+        FacadeFactory.registerFacade("routing", facade, true);
+        assertSame(facade, FacadeFactory.getFacade());
+        assertSame(facade, FacadeFactory.getFacade("routing"));
+
+        // Removing the facade kills it
+        FacadeFactory.clear();
+        facade = null;
+    }
+
+    @Test
+    public void init() {
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        // The primary is already initialized, so init() leaves it as such
+        facade.init("default");
+        assertNotNull(primary.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeStickyTime() {
+        facade.setStickyTime(-1L);
+    }
+
+}
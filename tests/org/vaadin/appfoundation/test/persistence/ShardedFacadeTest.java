@@ -0,0 +1,349 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.data.AbstractPojo;
+import org.vaadin.appfoundation.persistence.facade.EntityQuery;
+import org.vaadin.appfoundation.persistence.facade.HashShardStrategy;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.KeysetPage;
+import org.vaadin.appfoundation.persistence.facade.RangeShardStrategy;
+import org.vaadin.appfoundation.persistence.facade.ResultCursor;
+import org.vaadin.appfoundation.persistence.facade.ShardedFacade;
+import org.vaadin.appfoundation.persistence.facade.TimeOrderedIdGenerator;
+
+public class ShardedFacadeTest {
+
+    private JPAFacade first = null;
+
+    private JPAFacade second = null;
+
+    private ShardedFacade facade = null;
+
+    @Before
+    public void setUp() {
+        // The units use different databases, so that it is possible to tell
+        // which shard an entity was stored in
+        first = new JPAFacade("default");
+        second = new JPAFacade("second");
+        facade = new ShardedFacade(Arrays.asList(first, second));
+    }
+
+    @After
+    public void tearDown() {
+        facade.kill();
+    }
+
+    private List<MockPojo> storePojos(int amount) {
+        List<MockPojo> pojos = new ArrayList<MockPojo>();
+        for (int i = 0; i < amount; i++) {
+            MockPojo pojo = new MockPojo();
+            pojo.setFoo("foo" + (char) ('a' + i % 26));
+            pojos.add(pojo);
+        }
+        facade.storeAll(pojos);
+        return pojos;
+    }
+
+    @Test
+    public void routing() {
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        assertNotNull(pojo.getId());
+
+        int shard = facade.getShardIndex(MockPojo.class, pojo.getId());
+        JPAFacade owner = shard == 0 ? first : second;
+        JPAFacade other = shard == 0 ? second : first;
+        assertNotNull(owner.find(MockPojo.class, pojo.getId()));
+        assertNull(other.find(MockPojo.class, pojo.getId()));
+        assertNotNull(facade.find(MockPojo.class, pojo.getId()));
+
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        assertEquals("bar", owner.find(MockPojo.class, pojo.getId()).getFoo());
+
+        facade.delete(pojo);
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void spreadOverShards() {
+        storePojos(40);
+        assertEquals(Long.valueOf(40L), facade.count(MockPojo.class));
+        assertTrue(first.count(MockPojo.class) > 0);
+        assertTrue(second.count(MockPojo.class) > 0);
+        assertEquals(40, facade.list(MockPojo.class).size());
+        assertEquals(40, facade.getIds(MockPojo.class, null, null).length);
+    }
+
+    @Test
+    public void findAll() {
+        List<MockPojo> pojos = storePojos(10);
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = pojos.size() - 1; i >= 0; i--) {
+            ids.add(pojos.get(i).getId());
+        }
+
+        Map<Long, MockPojo> found = facade.findAll(MockPojo.class, ids);
+        assertEquals(ids, new ArrayList<Long>(found.keySet()));
+    }
+
+    @Test
+    public void listWindow() {
+        List<MockPojo> pojos = storePojos(20);
+        List<MockPojo> window = facade.list(MockPojo.class, 5, 10);
+        assertEquals(10, window.size());
+        for (int i = 0; i < window.size(); i++) {
+            // The generated ids grow, so the window follows the store order
+            assertEquals(pojos.get(i + 5).getId(), window.get(i).getId());
+        }
+        assertEquals(0, facade.list(MockPojo.class, 20, 10).size());
+    }
+
+    @Test
+    public void listWindowOrderedByField() {
+        storePojos(20);
+        String query = "SELECT p FROM MockPojo p ORDER BY p.foo DESC";
+        List<MockPojo> window = facade.list(query, null, 5, 10);
+        List<MockPojo> readOnly = facade.listReadOnly(query, null, 5, 10);
+        assertEquals(10, window.size());
+        assertEquals(10, readOnly.size());
+        for (int i = 0; i < window.size(); i++) {
+            // foot is the greatest value, so the window starts from fooo
+            String foo = "foo" + (char) ('o' - i);
+            assertEquals(foo, window.get(i).getFoo());
+            assertEquals(foo, readOnly.get(i).getFoo());
+        }
+    }
+
+    @Test
+    public void listOrderedByField() {
+        storePojos(20);
+        String query = "SELECT p FROM MockPojo p ORDER BY p.foo DESC";
+        List<MockPojo> all = facade.list(query, null);
+        List<MockPojo> readOnly = facade.listReadOnly(query, null);
+        assertEquals(20, all.size());
+        assertEquals(20, readOnly.size());
+        for (int i = 0; i < all.size(); i++) {
+            // The results of the shards are merged, not put back to back
+            String foo = "foo" + (char) ('t' - i);
+            assertEquals(foo, all.get(i).getFoo());
+            assertEquals(foo, readOnly.get(i).getFoo());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void listWindowWithUnsupportedOrdering() {
+        facade.list("SELECT p FROM MockPojo p ORDER BY UPPER(p.foo)", null,
+                0, 10);
+    }
+
+    @Test
+    public void page() {
+        storePojos(25);
+        Set<Long> seen = new HashSet<Long>();
+        Long last = null;
+        String token = null;
+        do {
+            KeysetPage<MockPojo> page = facade.page(MockPojo.class, token, 10);
+            for (MockPojo pojo : page.getItems()) {
+                assertTrue(last == null || pojo.getId() > last);
+                last = pojo.getId();
+                assertTrue(seen.add(pojo.getId()));
+            }
+            token = page.getContinuationToken();
+        } while (token != null);
+        assertEquals(25, seen.size());
+    }
+
+    @Test
+    public void pageByKeyField() {
+        storePojos(30);
+        int pages = 0;
+        String lastFoo = null;
+        int total = 0;
+        String token = null;
+        do {
+            KeysetPage<MockPojo> page = facade.page(MockPojo.class, "foo",
+                    token, 7);
+            for (MockPojo pojo : page.getItems()) {
+                assertTrue(lastFoo == null || pojo.getFoo().compareTo(lastFoo) >= 0);
+                lastFoo = pojo.getFoo();
+                total++;
+            }
+            token = page.getContinuationToken();
+            pages++;
+        } while (token != null);
+        assertEquals(30, total);
+        assertEquals(5, pages);
+    }
+
+    @Test
+    public void cursor() {
+        storePojos(15);
+        ResultCursor<MockPojo> cursor = facade.cursor(MockPojo.class, 4);
+        int count = 0;
+        while (cursor.hasNext()) {
+            assertNotNull(cursor.next());
+            count++;
+        }
+        cursor.close();
+        assertEquals(15, count);
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void deleteAll() {
+        List<MockPojo> pojos = storePojos(10);
+        facade.deleteAll(pojos);
+        assertEquals(Long.valueOf(0L), facade.count(MockPojo.class));
+    }
+
+    @Test
+    public void init() {
+        MockPojo pojo = new MockPojo();
+        facade.store(pojo);
+        // The shards are already initialized, so init() leaves them as such
+        facade.init("default");
+        assertNotNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void idGenerator() {
+        TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(17);
+        long before = System.currentTimeMillis();
+        long previous = 0;
+        Set<Long> ids = new HashSet<Long>();
+        for (int i = 0; i < 10000; i++) {
+            long id = generator.nextId();
+            assertTrue(id > previous);
+            assertTrue(ids.add(id));
+            previous = id;
+        }
+        assertEquals(17, TimeOrderedIdGenerator.getNodeId(previous));
+        assertTrue(TimeOrderedIdGenerator.getTime(previous) >= before);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidNodeId() {
+        new TimeOrderedIdGenerator(TimeOrderedIdGenerator.MAX_NODE_ID + 1);
+    }
+
+    @Test
+    public void hashStrategy() {
+        HashShardStrategy strategy = new HashShardStrategy();
+        int[] counts = new int[4];
+        TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(0);
+        for (int i = 0; i < 4000; i++) {
+            counts[strategy.getShard(MockPojo.class, generator.nextId(), 4)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 800);
+        }
+    }
+
+    @Test
+    public void rangeStrategy() {
+        RangeShardStrategy strategy = new RangeShardStrategy(100, 200);
+        assertEquals(0, strategy.getShard(MockPojo.class, 99, 3));
+        assertEquals(1, strategy.getShard(MockPojo.class, 100, 3));
+        assertEquals(2, strategy.getShard(MockPojo.class, 500, 3));
+        assertEquals(1, strategy.getShard(MockPojo.class, 500, 2));
+    }
+
+    @Test
+    public void entityQuery() {
+        storePojos(30);
+        EntityQuery<MockPojo> query = EntityQuery.from(MockPojo.class).ne(
+                "foo", "fooa").orderByDesc("foo");
+        assertEquals(Long.valueOf(28L), facade.count(query));
+
+        List<MockPojo> pojos = facade.list(query.copy().limit(2, 5));
+        assertEquals(5, pojos.size());
+        // foo values z, y and x occur once, so the window starts from x
+        assertEquals("foox", pojos.get(0).getFoo());
+        assertEquals("foot", pojos.get(4).getFoo());
+
+        int total = 0;
+        String token = null;
+        do {
+            KeysetPage<MockPojo> page = facade.page(EntityQuery.from(
+                    MockPojo.class).ne("foo", "fooa"), token, 8);
+            total += page.getItems().size();
+            token = page.getContinuationToken();
+        } while (token != null);
+        assertEquals(28, total);
+    }
+
+    @Test
+    public void statementControlReachesShardThreads()
+            throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> timeouts = new CopyOnWriteArrayList<Long>();
+        final List<Thread> workers = new CopyOnWriteArrayList<Thread>();
+        List<MockStatementControl> shards = new ArrayList<MockStatementControl>();
+        for (int i = 0; i < 2; i++) {
+            shards.add(new MockStatementControl() {
+                @Override
+                public Long count(Class<? extends AbstractPojo> c) {
+                    timeouts.add(getThreadQueryTimeout());
+                    workers.add(Thread.currentThread());
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.count(c);
+                }
+            });
+        }
+
+        final ShardedFacade sharded = new ShardedFacade(shards);
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                sharded.setThreadQueryTimeout(500L);
+                try {
+                    sharded.count(MockPojo.class);
+                } finally {
+                    sharded.setThreadQueryTimeout(null);
+                }
+            }
+        };
+        caller.start();
+        try {
+            // Both shards are queried on threads of their own
+            started.await();
+            sharded.cancelStatements(caller);
+        } finally {
+            release.countDown();
+            caller.join();
+            sharded.kill();
+        }
+
+        assertEquals(Arrays.asList(500L, 500L), timeouts);
+        for (MockStatementControl shard : shards) {
+            assertTrue(shard.getCancelled().contains(caller));
+            assertTrue(shard.getCancelled().containsAll(workers));
+        }
+    }
+
+}
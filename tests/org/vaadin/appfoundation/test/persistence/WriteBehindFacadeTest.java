@@ -0,0 +1,316 @@
+package org.vaadin.appfoundation.test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.OptimisticLockException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.appfoundation.persistence.facade.InMemoryFacade;
+import org.vaadin.appfoundation.persistence.facade.JPAFacade;
+import org.vaadin.appfoundation.persistence.facade.WriteBehindFacade;
+
+public class WriteBehindFacadeTest {
+
+    private JPAFacade jpaFacade = null;
+
+    private WriteBehindFacade facade = null;
+
+    @Before
+    public void setUp() {
+        jpaFacade = new JPAFacade("default");
+        // The interval is long enough not to flush during the tests
+        facade = new WriteBehindFacade(jpaFacade, 10, 5, 60000);
+        facade.addWriteBehindClass(MockPojo.class);
+    }
+
+    @After
+    public void tearDown() {
+        facade.kill();
+        facade = null;
+    }
+
+    private MockPojo storePojo(String foo) {
+        MockPojo pojo = new MockPojo();
+        pojo.setFoo(foo);
+        facade.store(pojo);
+        return pojo;
+    }
+
+    @Test
+    public void newEntitiesAreStoredDirectly() {
+        MockPojo pojo = storePojo("foo");
+        assertNotNull(pojo.getId());
+        assertEquals(0, facade.getPendingCount());
+        assertEquals("foo", jpaFacade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void updatesAreDeferred() {
+        MockPojo pojo = storePojo("foo");
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        assertEquals(1, facade.getPendingCount());
+        assertEquals(Long.valueOf(2L), pojo.getConsistencyVersion());
+
+        // The database doesn't have the update yet, but the facade returns it
+        assertEquals("foo", jpaFacade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        MockPojo found = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("bar", found.getFoo());
+        assertEquals(Long.valueOf(2L), found.getConsistencyVersion());
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("foo", "foo");
+        MockPojo queried = facade.find(
+                "SELECT p FROM MockPojo p WHERE p.foo = :foo", parameters);
+        assertEquals("bar", queried.getFoo());
+
+        facade.flush();
+        assertEquals(0, facade.getPendingCount());
+        assertEquals("bar", jpaFacade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void updatesAreCoalesced() {
+        MockPojo pojo = storePojo("foo");
+        for (int i = 0; i < 10; i++) {
+            pojo.setFoo("foo" + i);
+            facade.store(pojo);
+        }
+        assertEquals(1, facade.getPendingCount());
+        assertEquals(Long.valueOf(11L), pojo.getConsistencyVersion());
+
+        facade.flush();
+        MockPojo stored = jpaFacade.find(MockPojo.class, pojo.getId());
+        assertEquals("foo9", stored.getFoo());
+        // All the queued updates were written at once
+        assertEquals(Long.valueOf(2L), stored.getConsistencyVersion());
+
+        // The entity can still be updated with the version given to it
+        MockPojo found = facade.find(MockPojo.class, pojo.getId());
+        assertEquals(Long.valueOf(11L), found.getConsistencyVersion());
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        facade.flush();
+        assertEquals("bar", jpaFacade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void forgottenVersionIsChecked() {
+        facade.kill();
+        jpaFacade = new JPAFacade("default");
+        facade = new WriteBehindFacade(jpaFacade, 2, 100, 60000);
+        facade.addWriteBehindClass(MockPojo.class);
+
+        MockPojo pojo = storePojo("foo");
+        for (int i = 0; i < 3; i++) {
+            pojo.setFoo("foo" + i);
+            facade.store(pojo);
+        }
+        facade.flush();
+
+        // Flushing two other entities forgets the version given to pojo
+        for (int i = 0; i < 2; i++) {
+            MockPojo other = storePojo("other");
+            other.setFoo("changed");
+            facade.store(other);
+        }
+        facade.flush();
+
+        // The version can't be told from the database, so the store fails
+        // instead of being dropped by the flush
+        pojo.setFoo("bar");
+        try {
+            facade.store(pojo);
+            fail();
+        } catch (OptimisticLockException e) {
+            // expected
+        }
+        assertEquals(0, facade.getPendingCount());
+
+        MockPojo found = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("foo2", found.getFoo());
+        found.setFoo("bar");
+        facade.store(found);
+        facade.flush();
+        assertEquals("bar", jpaFacade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test(expected = OptimisticLockException.class)
+    public void staleEntityIsRejected() {
+        MockPojo pojo = storePojo("foo");
+        MockPojo stale = facade.find(MockPojo.class, pojo.getId());
+
+        pojo.setFoo("bar");
+        facade.store(pojo);
+
+        stale.setFoo("baz");
+        facade.store(stale);
+    }
+
+    @Test
+    public void conflictingUpdateIsDropped() {
+        MockPojo pojo = storePojo("foo");
+        MockPojo other = jpaFacade.find(MockPojo.class, pojo.getId());
+        MockPojo another = storePojo("another");
+
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        another.setFoo("changed");
+        facade.store(another);
+
+        // Written directly to the database while the update is queued
+        other.setFoo("direct");
+        jpaFacade.store(other);
+
+        facade.flush();
+        assertEquals(0, facade.getPendingCount());
+        assertEquals("direct", jpaFacade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        // The rest of the batch is written
+        assertEquals("changed", jpaFacade.find(MockPojo.class,
+                another.getId()).getFoo());
+    }
+
+    @Test
+    public void batchSizeTriggersFlush() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            MockPojo pojo = storePojo("foo");
+            pojo.setFoo("bar");
+            facade.store(pojo);
+        }
+
+        for (int i = 0; i < 100 && facade.getPendingCount() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, facade.getPendingCount());
+        assertEquals(Long.valueOf(5L), jpaFacade.count(MockPojo.class,
+                "p.foo = 'bar'", null));
+    }
+
+    @Test
+    public void fullQueueIsFlushedByWriter() {
+        facade.kill();
+        jpaFacade = new JPAFacade("default");
+        facade = new WriteBehindFacade(jpaFacade, 2, 100, 60000);
+        facade.addWriteBehindClass(MockPojo.class);
+
+        MockPojo[] pojos = new MockPojo[3];
+        for (int i = 0; i < pojos.length; i++) {
+            pojos[i] = storePojo("foo");
+        }
+        for (MockPojo pojo : pojos) {
+            pojo.setFoo("bar");
+            facade.store(pojo);
+        }
+
+        // The third update didn't fit, so the first two were written
+        assertEquals(1, facade.getPendingCount());
+        assertEquals("bar", jpaFacade.find(MockPojo.class, pojos[0].getId())
+                .getFoo());
+        assertEquals("foo", jpaFacade.find(MockPojo.class, pojos[2].getId())
+                .getFoo());
+    }
+
+    @Test
+    public void delete() {
+        MockPojo pojo = storePojo("foo");
+        pojo.setFoo("bar");
+        facade.store(pojo);
+
+        facade.delete(pojo);
+        assertEquals(0, facade.getPendingCount());
+        assertNull(facade.find(MockPojo.class, pojo.getId()));
+    }
+
+    @Test
+    public void storeAll() {
+        MockPojo stored = storePojo("foo");
+        stored.setFoo("bar");
+        MockPojo added = new MockPojo();
+        facade.storeAll(Arrays.asList(stored, added));
+
+        assertNotNull(added.getId());
+        assertEquals(1, facade.getPendingCount());
+    }
+
+    @Test
+    public void otherClassesAreNotDeferred() {
+        facade.kill();
+        jpaFacade = new JPAFacade("default");
+        facade = new WriteBehindFacade(jpaFacade, 10, 5, 60000);
+        assertFalse(facade.isWriteBehind(MockPojo.class));
+
+        MockPojo pojo = storePojo("foo");
+        pojo.setFoo("bar");
+        facade.store(pojo);
+        assertEquals(0, facade.getPendingCount());
+        assertEquals("bar", jpaFacade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+    @Test
+    public void killFlushesQueue() {
+        final InMemoryFacade memory = new InMemoryFacade();
+        WriteBehindFacade writeBehind = new WriteBehindFacade(
+                new InMemoryFacade() {
+                    // Keep the entities for checking them after kill()
+                    @Override
+                    public void kill() {
+                        memory.storeAll(list(MockPojo.class));
+                    }
+                }, 10, 5, 60000);
+        writeBehind.addWriteBehindClass(MockPojo.class);
+
+        MockPojo pojo = new MockPojo();
+        writeBehind.store(pojo);
+        pojo.setFoo("bar");
+        writeBehind.store(pojo);
+        assertTrue(writeBehind.getPendingCount() > 0);
+
+        writeBehind.kill();
+        assertEquals("bar", memory.find(MockPojo.class, pojo.getId())
+                .getFoo());
+        try {
+            writeBehind.flush();
+        } catch (RuntimeException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void bulkStatementsSeeQueuedUpdates() {
+        MockPojo pojo = storePojo("foo");
+        pojo.setFoo("bar");
+        facade.store(pojo);
+
+        assertEquals(1, facade.updateWhere(MockPojo.class, "p.foo = 'baz'",
+                "p.foo = 'bar'", null));
+        assertEquals(0, facade.getPendingCount());
+        MockPojo found = facade.find(MockPojo.class, pojo.getId());
+        assertEquals("baz", found.getFoo());
+
+        // The entity read after the statement can still be updated
+        found.setFoo("qux");
+        facade.store(found);
+        facade.flush();
+        assertEquals("qux", jpaFacade.find(MockPojo.class, pojo.getId())
+                .getFoo());
+    }
+
+}